@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -95,7 +93,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -129,13 +126,17 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageCollector;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.DataUsageCache;
+import com.android.settings.net.DataUsageCapabilities;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidDetailResolver;
 import com.android.settings.widget.ChartDataUsageView;
 import com.android.settings.widget.ChartDataUsageView.DataUsageChartListener;
 import com.android.settings.widget.PieChartView;
@@ -144,7 +145,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -184,6 +184,9 @@ public class DataUsageSummary extends Fragment {
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    /** Charts and summaries loaded, shown again while reloading. */
+    private static final DataUsageCache sStatsCache = new DataUsageCache();
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
@@ -191,7 +194,7 @@ public class DataUsageSummary extends Fragment {
 
     private INetworkStatsSession mStatsSession;
 
-    private static final String PREF_FILE = "data_usage";
+    static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
     private static final String PREF_SHOW_ETHERNET = "show_ethernet";
 
@@ -238,8 +241,14 @@ public class DataUsageSummary extends Fragment {
     private boolean mShowWifi = false;
     private boolean mShowEthernet = false;
 
+    /** Networks there are tabs for, as last probed. */
+    private DataUsageCapabilities mCapabilities;
+    private ProbeTask mProbeTask;
+
     private NetworkTemplate mTemplate;
     private ChartData mChartData;
+    /** Cached chart data posted to be bound once updateBody() is done. */
+    private ChartData mPendingChartData;
 
     private AppItem mCurrentApp = null;
 
@@ -258,6 +267,7 @@ public class DataUsageSummary extends Fragment {
     private boolean mBinding;
 
     private UidDetailProvider mUidDetailProvider;
+    private UidDetailResolver mUidDetailResolver;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -292,14 +302,9 @@ public class DataUsageSummary extends Fragment {
             throw new RuntimeException(e);
         }
 
-        mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
-        mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false);
-
-        // override preferences when no mobile radio
-        if (!hasReadyMobileRadio(context)) {
-            mShowWifi = true;
-            mShowEthernet = true;
-        }
+        // start from what was found last time; probed again once resumed
+        mCapabilities = DataUsageCapabilities.read(mPrefs);
+        updateShowPreferences();
 
         setHasOptionsMenu(true);
     }
@@ -312,6 +317,7 @@ public class DataUsageSummary extends Fragment {
         final View view = inflater.inflate(R.layout.data_usage_summary, container, false);
 
         mUidDetailProvider = new UidDetailProvider(context);
+        mUidDetailResolver = new UidDetailResolver(context, mUidDetailProvider);
 
         mTabHost = (TabHost) view.findViewById(android.R.id.tabhost);
         mTabsContainer = (ViewGroup) view.findViewById(R.id.tabs_container);
@@ -401,7 +407,7 @@ public class DataUsageSummary extends Fragment {
         mUsageSummary = (TextView) mHeader.findViewById(R.id.usage_summary);
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
 
-        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailResolver, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -420,6 +426,13 @@ public class DataUsageSummary extends Fragment {
         // selected network, and binds chart, cycles and detail list.
         updateTabs();
 
+        // check which networks have tabs, filling them in as found
+        if (mProbeTask != null) {
+            mProbeTask.cancel(false);
+        }
+        mProbeTask = new ProbeTask();
+        mProbeTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
         // kick off background task to update stats
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -428,6 +441,7 @@ public class DataUsageSummary extends Fragment {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    sStatsCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -443,6 +457,14 @@ public class DataUsageSummary extends Fragment {
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        // push out any policy changes still waiting to be written
+        mPolicyEditor.flush();
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.data_usage, menu);
@@ -454,45 +476,21 @@ public class DataUsageSummary extends Fragment {
         final boolean appDetailMode = isAppDetailMode();
         final boolean isOwner = ActivityManager.getCurrentUser() == UserHandle.USER_OWNER;
 
+        prepareNetworkMenu(menu, mCapabilities, appDetailMode, isOwner);
+
         mMenuDataRoaming = menu.findItem(R.id.data_usage_menu_roaming);
-        mMenuDataRoaming.setVisible(hasReadyMobileRadio(context) && !appDetailMode);
         mMenuDataRoaming.setChecked(getDataRoaming());
 
         mMenuRestrictBackground = menu.findItem(R.id.data_usage_menu_restrict_background);
-        mMenuRestrictBackground.setVisible(
-                hasReadyMobileRadio(context) && isOwner && !appDetailMode);
         mMenuRestrictBackground.setChecked(mPolicyManager.getRestrictBackground());
 
         mMenuAutoSync = menu.findItem(R.id.data_usage_menu_auto_sync);
         mMenuAutoSync.setChecked(ContentResolver.getMasterSyncAutomatically());
         mMenuAutoSync.setVisible(!appDetailMode);
 
-        final MenuItem split4g = menu.findItem(R.id.data_usage_menu_split_4g);
-        split4g.setVisible(hasReadyMobile4gRadio(context) && isOwner && !appDetailMode);
-        split4g.setChecked(isMobilePolicySplit());
-
-        final MenuItem showWifi = menu.findItem(R.id.data_usage_menu_show_wifi);
-        if (hasWifiRadio(context) && hasReadyMobileRadio(context)) {
-            showWifi.setVisible(!appDetailMode);
-            showWifi.setChecked(mShowWifi);
-        } else {
-            showWifi.setVisible(false);
-        }
-
-        final MenuItem showEthernet = menu.findItem(R.id.data_usage_menu_show_ethernet);
-        if (hasEthernet(context) && hasReadyMobileRadio(context)) {
-            showEthernet.setVisible(!appDetailMode);
-            showEthernet.setChecked(mShowEthernet);
-        } else {
-            showEthernet.setVisible(false);
-        }
-
-        final MenuItem metered = menu.findItem(R.id.data_usage_menu_metered);
-        if (hasReadyMobileRadio(context) || hasWifiRadio(context)) {
-            metered.setVisible(!appDetailMode);
-        } else {
-            metered.setVisible(false);
-        }
+        menu.findItem(R.id.data_usage_menu_split_4g).setChecked(isMobilePolicySplit());
+        menu.findItem(R.id.data_usage_menu_show_wifi).setChecked(mShowWifi);
+        menu.findItem(R.id.data_usage_menu_show_ethernet).setChecked(mShowEthernet);
 
         final MenuItem help = menu.findItem(R.id.data_usage_menu_help);
         String helpUrl;
@@ -503,6 +501,25 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
+    /**
+     * Show the menu items that depend on which networks there are, going
+     * by what was last probed rather than asking the radios again.
+     */
+    static void prepareNetworkMenu(Menu menu, DataUsageCapabilities caps,
+            boolean appDetailMode, boolean isOwner) {
+        menu.findItem(R.id.data_usage_menu_roaming).setVisible(caps.mobile && !appDetailMode);
+        menu.findItem(R.id.data_usage_menu_restrict_background).setVisible(
+                caps.mobile && isOwner && !appDetailMode);
+        menu.findItem(R.id.data_usage_menu_split_4g).setVisible(
+                caps.mobile4g && isOwner && !appDetailMode);
+        menu.findItem(R.id.data_usage_menu_show_wifi).setVisible(
+                caps.wifi && caps.mobile && !appDetailMode);
+        menu.findItem(R.id.data_usage_menu_show_ethernet).setVisible(
+                caps.ethernet && caps.mobile && !appDetailMode);
+        menu.findItem(R.id.data_usage_menu_metered).setVisible(
+                (caps.mobile || caps.wifi) && !appDetailMode);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -570,9 +587,18 @@ public class DataUsageSummary extends Fragment {
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
+        mUidDetailResolver.release();
+        mUidDetailResolver = null;
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        if (mProbeTask != null) {
+            mProbeTask.cancel(false);
+            mProbeTask = null;
+        }
+        if (mListView != null) {
+            cancelPendingChartData();
+        }
         TrafficStats.closeQuietly(mStatsSession);
 
         if (this.isRemoving()) {
@@ -616,20 +642,20 @@ public class DataUsageSummary extends Fragment {
      * first tab, and kicks off a full rebind of body contents.
      */
     private void updateTabs() {
-        final Context context = getActivity();
         mTabHost.clearAllTabs();
 
+        final DataUsageCapabilities caps = mCapabilities;
         final boolean mobileSplit = isMobilePolicySplit();
-        if (mobileSplit && hasReadyMobile4gRadio(context)) {
+        if (mobileSplit && caps.mobile4g) {
             mTabHost.addTab(buildTabSpec(TAB_3G, R.string.data_usage_tab_3g));
             mTabHost.addTab(buildTabSpec(TAB_4G, R.string.data_usage_tab_4g));
-        } else if (hasReadyMobileRadio(context)) {
+        } else if (caps.mobile) {
             mTabHost.addTab(buildTabSpec(TAB_MOBILE, R.string.data_usage_tab_mobile));
         }
-        if (mShowWifi && hasWifiRadio(context)) {
+        if (mShowWifi && caps.wifi) {
             mTabHost.addTab(buildTabSpec(TAB_WIFI, R.string.data_usage_tab_wifi));
         }
-        if (mShowEthernet && hasEthernet(context)) {
+        if (mShowEthernet && caps.ethernet) {
             mTabHost.addTab(buildTabSpec(TAB_ETHERNET, R.string.data_usage_tab_ethernet));
         }
 
@@ -652,6 +678,77 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
+    /**
+     * Show wifi and ethernet as picked in the menu, or always when there
+     * is no mobile radio.
+     */
+    private void updateShowPreferences() {
+        mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false) || !mCapabilities.mobile;
+        mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false) || !mCapabilities.mobile;
+    }
+
+    /**
+     * Rebuild tabs when probing found different networks than last time,
+     * staying on the current tab.
+     */
+    private void applyCapabilities(DataUsageCapabilities caps) {
+        if (!isAdded() || caps.sameTabs(mCapabilities)) {
+            mCapabilities = caps;
+            return;
+        }
+        mCapabilities = caps;
+        updateShowPreferences();
+        if (mIntentTab == null) {
+            mIntentTab = mTabHost.getCurrentTabTag();
+        }
+        updateTabs();
+        getActivity().invalidateOptionsMenu();
+    }
+
+    /**
+     * Session the probe adds up ethernet history in.
+     */
+    INetworkStatsSession getProbeSession() {
+        return mStatsSession;
+    }
+
+    /**
+     * Asks about the radios; called on the probe's thread.
+     */
+    void probeRadios(DataUsageCapabilities caps, Context context) {
+        caps.probeRadios(context);
+    }
+
+    /**
+     * Probes which networks have tabs away from the UI thread, handing back
+     * the radios as soon as they're known, then ethernet.
+     */
+    private class ProbeTask extends AsyncTask<Void, DataUsageCapabilities, DataUsageCapabilities> {
+        private final Context mContext = getActivity().getApplicationContext();
+        private final INetworkStatsSession mSession = getProbeSession();
+        private final DataUsageCapabilities mCaps = new DataUsageCapabilities(mCapabilities);
+
+        @Override
+        protected DataUsageCapabilities doInBackground(Void... params) {
+            probeRadios(mCaps, mContext);
+            publishProgress(new DataUsageCapabilities(mCaps));
+            if (isCancelled()) return null;
+            mCaps.probeEthernet(mSession, System.currentTimeMillis());
+            return mCaps;
+        }
+
+        @Override
+        protected void onProgressUpdate(DataUsageCapabilities... values) {
+            applyCapabilities(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(DataUsageCapabilities result) {
+            result.write(mPrefs);
+            applyCapabilities(result);
+        }
+    }
+
     /**
      * Factory that provide empty {@link View} to make {@link TabHost} happy.
      */
@@ -742,11 +839,22 @@ public class DataUsageSummary extends Fragment {
             throw new IllegalStateException("unknown tab: " + currentTab);
         }
 
-        // kick off loader for network history
-        // TODO: consider chaining two loaders together instead of reloading
-        // network history when showing app detail.
-        getLoaderManager().restartLoader(LOADER_CHART_DATA,
-                ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
+        // kick off loader for network history, showing what we last had
+        // for this network and app in the meantime
+        final Bundle chartArgs = ChartDataLoader.buildArgs(mTemplate, mCurrentApp);
+        final DataUsageCache.Hit<ChartData> chart = ChartDataLoader.getCached(
+                sStatsCache, chartArgs);
+        if (chart != null && chart.fresh) {
+            getLoaderManager().destroyLoader(LOADER_CHART_DATA);
+            postBindChartData(chart.value);
+        } else {
+            if (chart != null) {
+                postBindChartData(chart.value);
+            } else {
+                cancelPendingChartData();
+            }
+            getLoaderManager().restartLoader(LOADER_CHART_DATA, chartArgs, mChartDataCallbacks);
+        }
 
         // detail mode can change visible menus, invalidate
         getActivity().invalidateOptionsMenu();
@@ -823,7 +931,7 @@ public class DataUsageSummary extends Fragment {
         updateDetailData();
 
         if (UserHandle.isApp(uid) && !mPolicyManager.getRestrictBackground()
-                && isBandwidthControlEnabled() && hasReadyMobileRadio(context)) {
+                && isBandwidthControlEnabled() && mCapabilities.mobile) {
             setPreferenceTitle(mAppRestrictView, R.string.data_usage_app_restrict_background);
             setPreferenceSummary(mAppRestrictView,
                     getString(R.string.data_usage_app_restrict_background_summary));
@@ -1178,9 +1286,19 @@ public class DataUsageSummary extends Fragment {
                 entry = mChartData.network.getValues(start, end, now, null);
             }
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            // kick off loader for detailed stats, unless we just had them
+            final Bundle summaryArgs = SummaryForAllUidLoader.buildArgs(mTemplate, start, end);
+            final DataUsageCache.Hit<NetworkStats> summary = SummaryForAllUidLoader.getCached(
+                    sStatsCache, summaryArgs);
+            if (summary != null && summary.fresh) {
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                bindSummary(summary.value);
+            } else {
+                if (summary != null) {
+                    bindSummary(summary.value);
+                }
+                getLoaderManager().restartLoader(LOADER_SUMMARY, summaryArgs, mSummaryCallbacks);
+            }
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1205,23 +1323,23 @@ public class DataUsageSummary extends Fragment {
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsSession, args, sStatsCache);
         }
 
         @Override
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
-            mChartData = data;
-            mChart.bindNetworkStats(mChartData.network);
-            mChart.bindDetailNetworkStats(mChartData.detail);
-
-            // calcuate policy cycles based on available data
-            updatePolicy(true);
-            updateAppDetail();
-
-            // force scroll to top of body when showing detail
-            if (mChartData.detail != null) {
-                mListView.smoothScrollToPosition(0);
+            // What was loaded now replaces any cached data still to be shown.
+            final ChartData shown = mPendingChartData != null ? mPendingChartData : mChartData;
+            cancelPendingChartData();
+            if (data.sameAs(shown)) {
+                // Binding the same again would only redo the cycle list,
+                // and could throw away the range the user picked.
+                if (shown != mChartData) {
+                    bindChartData(shown);
+                }
+                return;
             }
+            bindChartData(data);
         }
 
         @Override
@@ -1236,15 +1354,12 @@ public class DataUsageSummary extends Fragment {
             NetworkStats>() {
         @Override
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args, sStatsCache);
         }
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
-            updateEmptyVisible();
+            bindSummary(data);
         }
 
         @Override
@@ -1252,17 +1367,65 @@ public class DataUsageSummary extends Fragment {
             mAdapter.bindStats(null, new int[0]);
             updateEmptyVisible();
         }
+    };
 
-        private void updateEmptyVisible() {
-            final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
-            mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    /**
+     * Binds cached chart data once updateBody() is done.  Binding refreshes
+     * the cycle list, which has to happen outside of {@link #mBinding}.
+     */
+    private void postBindChartData(ChartData data) {
+        cancelPendingChartData();
+        mPendingChartData = data;
+        mListView.post(mBindPendingChartData);
+    }
+
+    private void cancelPendingChartData() {
+        mPendingChartData = null;
+        mListView.removeCallbacks(mBindPendingChartData);
+    }
+
+    private final Runnable mBindPendingChartData = new Runnable() {
+        @Override
+        public void run() {
+            final ChartData data = mPendingChartData;
+            mPendingChartData = null;
+            if (data != null && isAdded()) {
+                bindChartData(data);
+            }
         }
     };
 
+    private void bindChartData(ChartData data) {
+        mChartData = data;
+        mChart.bindNetworkStats(mChartData.network);
+        mChart.bindDetailNetworkStats(mChartData.detail);
+
+        // calcuate policy cycles based on available data
+        updatePolicy(true);
+        updateAppDetail();
+
+        // force scroll to top of body when showing detail
+        if (mChartData.detail != null && !mChartData.partial) {
+            mListView.smoothScrollToPosition(0);
+        }
+    }
+
+    private void bindSummary(NetworkStats stats) {
+        final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        mAdapter.bindStats(stats, restrictedUids);
+        updateEmptyVisible();
+    }
+
+    private void updateEmptyVisible() {
+        final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
+        mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
+
     @Deprecated
     private boolean isMobilePolicySplit() {
         final Context context = getActivity();
-        if (hasReadyMobileRadio(context)) {
+        if (mCapabilities.mobile) {
             final TelephonyManager tele = TelephonyManager.from(context);
             return mPolicyEditor.isMobilePolicySplit(getActiveSubscriberId(context));
         } else {
@@ -1273,7 +1436,7 @@ public class DataUsageSummary extends Fragment {
     @Deprecated
     private void setMobilePolicySplit(boolean split) {
         final Context context = getActivity();
-        if (hasReadyMobileRadio(context)) {
+        if (mCapabilities.mobile) {
             final TelephonyManager tele = TelephonyManager.from(context);
             mPolicyEditor.setMobilePolicySplit(getActiveSubscriberId(context), split);
         }
@@ -1478,14 +1641,18 @@ public class DataUsageSummary extends Fragment {
      * Adapter of applications, sorted by total usage descending.
      */
     public static class DataUsageAdapter extends BaseAdapter {
-        private final UidDetailProvider mProvider;
+        /** Rows prefetched past the last one shown, when the list has none yet. */
+        private static final int MIN_PREFETCH = 8;
+
+        private final UidDetailResolver mResolver;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        private final AppUsageCollector mItems = new AppUsageCollector();
         private long mLargest;
+        private int mPrefetchedTo;
 
-        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
-            mProvider = checkNotNull(provider);
+        public DataUsageAdapter(UidDetailResolver resolver, int insetSide) {
+            mResolver = checkNotNull(resolver);
             mInsetSide = insetSide;
         }
 
@@ -1493,57 +1660,13 @@ public class DataUsageSummary extends Fragment {
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-                final int collapseKey;
-                if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
-                        collapseKey = uid;
-                    } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                }
-
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
-            }
-
-            for (int uid : restrictedUids) {
-                // Only splice in restricted state for current user
-                if (UserHandle.getUserId(uid) != currentUserId) continue;
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            // Rows are collapsed into items as they are read; items are
+            // only ranked and built as the list gets to them.
+            mItems.reset(ActivityManager.getCurrentUser());
+            mItems.addStats(stats);
+            mItems.addRestricted(restrictedUids);
+            mLargest = mItems.getLargest();
+            mPrefetchedTo = 0;
             notifyDataSetChanged();
         }
 
@@ -1579,9 +1702,10 @@ public class DataUsageSummary extends Fragment {
             final ProgressBar progress = (ProgressBar) convertView.findViewById(
                     android.R.id.progress);
 
-            // kick off async load of app details
+            // kick off async load of app details, and of the next screenful
             final AppItem item = mItems.get(position);
-            UidDetailTask.bindView(mProvider, item, convertView);
+            mResolver.bindView(item.key, convertView);
+            prefetchAfter(position, Math.max(parent.getChildCount(), MIN_PREFETCH));
 
             if (item.restricted && item.total <= 0) {
                 text1.setText(R.string.data_usage_app_restricted);
@@ -1596,6 +1720,14 @@ public class DataUsageSummary extends Fragment {
 
             return convertView;
         }
+
+        private void prefetchAfter(int position, int count) {
+            final int end = Math.min(position + 1 + count, mItems.size());
+            for (int i = Math.max(position + 1, mPrefetchedTo); i < end; i++) {
+                mResolver.prefetch(mItems.getKey(i));
+            }
+            mPrefetchedTo = Math.max(mPrefetchedTo, end);
+        }
     }
 
     /**
@@ -2139,66 +2271,6 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
-    /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
-     */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
-        private final UidDetailProvider mProvider;
-        private final AppItem mItem;
-        private final View mTarget;
-
-        private UidDetailTask(UidDetailProvider provider, AppItem item, View target) {
-            mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
-            mTarget = checkNotNull(target);
-        }
-
-        public static void bindView(
-                UidDetailProvider provider, AppItem item, View target) {
-            final UidDetailTask existing = (UidDetailTask) target.getTag();
-            if (existing != null) {
-                existing.cancel(false);
-            }
-
-            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
-            if (cachedDetail != null) {
-                bindView(cachedDetail, target);
-            } else {
-                target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
-            }
-        }
-
-        private static void bindView(UidDetail detail, View target) {
-            final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
-            final TextView title = (TextView) target.findViewById(android.R.id.title);
-
-            if (detail != null) {
-                icon.setImageDrawable(detail.icon);
-                title.setText(detail.label);
-            } else {
-                icon.setImageDrawable(null);
-                title.setText(null);
-            }
-        }
-
-        @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
-        }
-
-        @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
-        }
-
-        @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
-        }
-    }
-
     /**
      * Test if device has a mobile data radio with SIM in ready state.
      */
@@ -2247,31 +2319,16 @@ public class DataUsageSummary extends Fragment {
     }
 
     /**
-     * Test if device has an ethernet network connection.
+     * Test if device has an ethernet network connection.  Whether it ever
+     * carried traffic is up to {@link DataUsageCapabilities}.
      */
-    public boolean hasEthernet(Context context) {
+    public static boolean hasEthernetRadio(Context context) {
         if (TEST_RADIOS) {
             return SystemProperties.get(TEST_RADIOS_PROP).contains("ethernet");
         }
 
         final ConnectivityManager conn = ConnectivityManager.from(context);
-        final boolean hasEthernet = conn.isNetworkSupported(TYPE_ETHERNET);
-
-        final long ethernetBytes;
-        if (mStatsSession != null) {
-            try {
-                ethernetBytes = mStatsSession.getSummaryForNetwork(
-                        NetworkTemplate.buildTemplateEthernet(), Long.MIN_VALUE, Long.MAX_VALUE)
-                        .getTotalBytes();
-            } catch (RemoteException e) {
-                throw new RuntimeException(e);
-            }
-        } else {
-            ethernetBytes = 0;
-        }
-
-        // only show ethernet when both hardware present and traffic has occurred
-        return hasEthernet && ethernetBytes > 0;
+        return conn.isNetworkSupported(TYPE_ETHERNET);
     }
 
     /**
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads application labels and icons on a small pool of background threads.
+ * Work is taken in priority order: anything a visible list row has asked
+ * for goes ahead of the bulk load, which otherwise proceeds in the order it
+ * was queued.  No {@link ApplicationsState} lock is held while calling into
+ * the package manager; results are handed to the {@link Callbacks} to publish.
+ */
+class AppEntryLoader {
+    static final String TAG = "AppEntryLoader";
+    static final boolean DEBUG = false;
+
+    static final int PRIORITY_VISIBLE = 0;
+    static final int PRIORITY_BACKGROUND = 1;
+
+    // Idle workers are let go after this long.
+    static final long KEEP_ALIVE_MS = 5 * 1000;
+
+    public static interface Callbacks {
+        /** Called on a worker thread once the label of an application is known. */
+        public void onLabelLoaded(ApplicationInfo info, String label, boolean mounted);
+        /** Called on a worker thread after a new icon was set on the entry. */
+        public void onIconLoaded(ApplicationsState.AppEntry entry);
+        /** Called on a worker thread when there is no more queued work. */
+        public void onIdle();
+    }
+
+    final Context mContext;
+    final PackageManager mPm;
+    final Callbacks mCallbacks;
+    final ThreadPoolExecutor mExecutor;
+
+    // Tasks that have been queued but not yet started.  Synchronize on 'this'.
+    final HashMap<String, Task> mPendingLabels = new HashMap<String, Task>();
+    final HashMap<String, Task> mPendingIcons = new HashMap<String, Task>();
+    // Labels a worker is loading right now.  Synchronize on 'this'.
+    final HashSet<String> mLoadingLabels = new HashSet<String>();
+    long mSeq;
+    int mOutstanding;
+
+    abstract class Task implements Runnable, Comparable<Task> {
+        final String packageName;
+        int priority;
+        long seq;
+
+        Task(String packageName, int priority) {
+            this.packageName = packageName;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return seq < another.seq ? -1 : (seq == another.seq ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            synchronized (AppEntryLoader.this) {
+                if (pendingMap().get(packageName) != this) {
+                    return;
+                }
+                pendingMap().remove(packageName);
+                if (this instanceof LabelTask) {
+                    mLoadingLabels.add(packageName);
+                }
+            }
+            try {
+                load();
+            } finally {
+                boolean idle;
+                synchronized (AppEntryLoader.this) {
+                    if (this instanceof LabelTask) {
+                        mLoadingLabels.remove(packageName);
+                    }
+                    mOutstanding--;
+                    idle = mOutstanding == 0;
+                }
+                if (idle) {
+                    mCallbacks.onIdle();
+                }
+            }
+        }
+
+        abstract HashMap<String, Task> pendingMap();
+        abstract void load();
+    }
+
+    final class LabelTask extends Task {
+        final ApplicationInfo info;
+
+        LabelTask(ApplicationInfo info, int priority) {
+            super(info.packageName, priority);
+            this.info = info;
+        }
+
+        @Override
+        HashMap<String, Task> pendingMap() {
+            return mPendingLabels;
+        }
+
+        @Override
+        void load() {
+            if (!new File(info.sourceDir).exists()) {
+                mCallbacks.onLabelLoaded(info, info.packageName, false);
+                return;
+            }
+            CharSequence label = info.loadLabel(mPm);
+            mCallbacks.onLabelLoaded(info, label != null ? label.toString() : info.packageName,
+                    true);
+        }
+    }
+
+    final class IconTask extends Task {
+        final ApplicationsState.AppEntry entry;
+
+        IconTask(ApplicationsState.AppEntry entry, int priority) {
+            super(entry.info.packageName, priority);
+            this.entry = entry;
+        }
+
+        @Override
+        HashMap<String, Task> pendingMap() {
+            return mPendingIcons;
+        }
+
+        @Override
+        void load() {
+            ApplicationInfo info;
+            synchronized (entry) {
+                if (entry.icon != null && entry.mounted) {
+                    return;
+                }
+                info = entry.info;
+            }
+            if (!entry.apkFile.exists()) {
+                // Only a placeholder from our own resources, cheap enough to
+                // do with the entry locked.
+                synchronized (entry) {
+                    entry.ensureIconLocked(mContext, mPm);
+                }
+                return;
+            }
+            Drawable icon = info.loadIcon(mPm);
+            synchronized (entry) {
+                entry.icon = icon;
+                entry.mounted = true;
+            }
+            mCallbacks.onIconLoaded(entry);
+        }
+    }
+
+    AppEntryLoader(Context context, PackageManager pm, int numWorkers, Callbacks callbacks) {
+        mContext = context;
+        mPm = pm;
+        mCallbacks = callbacks;
+        mExecutor = new ThreadPoolExecutor(numWorkers, numWorkers,
+                KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("ApplicationsState.Worker#" + (++mCount)) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static int defaultWorkerCount() {
+        return Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Queues loading of the label for an application that does not have an
+     * entry yet.  Does nothing if a load for it is already queued or running.
+     */
+    void loadLabel(ApplicationInfo info, int priority) {
+        synchronized (this) {
+            if (mLoadingLabels.contains(info.packageName)) {
+                return;
+            }
+            Task task = mPendingLabels.get(info.packageName);
+            if (task == null) {
+                enqueueLocked(new LabelTask(info, priority));
+            } else if (priority < task.priority) {
+                bumpLocked(task, priority);
+            }
+        }
+    }
+
+    /**
+     * Queues loading of the icon for the given entry.  Does nothing if a
+     * load for it is already queued at the same or a higher priority.
+     */
+    void loadIcon(ApplicationsState.AppEntry entry, int priority) {
+        synchronized (this) {
+            Task task = mPendingIcons.get(entry.info.packageName);
+            if (task == null) {
+                enqueueLocked(new IconTask(entry, priority));
+            } else if (priority < task.priority) {
+                bumpLocked(task, priority);
+            }
+        }
+    }
+
+    /**
+     * Drops any queued work for the given package.  Work already running
+     * still completes.
+     */
+    void cancel(String packageName) {
+        synchronized (this) {
+            cancelLocked(mPendingLabels.get(packageName));
+            cancelLocked(mPendingIcons.get(packageName));
+        }
+    }
+
+    /**
+     * Drops all queued work.
+     */
+    void cancelAll() {
+        synchronized (this) {
+            for (Task task : mPendingLabels.values().toArray(new Task[0])) {
+                cancelLocked(task);
+            }
+            for (Task task : mPendingIcons.values().toArray(new Task[0])) {
+                cancelLocked(task);
+            }
+        }
+    }
+
+    synchronized boolean isIdle() {
+        return mOutstanding == 0;
+    }
+
+    private void enqueueLocked(Task task) {
+        task.seq = mSeq++;
+        task.pendingMap().put(task.packageName, task);
+        mOutstanding++;
+        mExecutor.execute(task);
+    }
+
+    private void bumpLocked(Task task, int priority) {
+        // The queue can't re-order in place, so take the task out and put
+        // it back in with its new priority.  If a worker got to it first
+        // there is nothing left to do.
+        if (mExecutor.remove(task)) {
+            if (DEBUG) Log.i(TAG, "Bumping " + task.packageName + " to " + priority);
+            task.priority = priority;
+            task.seq = mSeq++;
+            mExecutor.execute(task);
+        }
+    }
+
+    private void cancelLocked(Task task) {
+        if (task != null && mExecutor.remove(task)) {
+            task.pendingMap().remove(task.packageName);
+            mOutstanding--;
+        }
+    }
+}
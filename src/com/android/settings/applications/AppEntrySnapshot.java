@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * On-disk copy of the labels and sizes of all applications as of the last
+ * time they were fully loaded, so that a cold start of the application list
+ * can show a sorted, sized list before anything has been asked of the
+ * package manager.  A record is only used if the apk it was taken from is
+ * still at the same path with the same modification time.
+ *
+ * The file is a header (magic, version, locale) followed by one fixed-order
+ * record per package; strings are length-prefixed UTF-8.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.bin";
+
+    private static final int MAGIC = 0x41505053; // "APPS"
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class Record {
+        String packageName;
+        String sourceDir;
+        long apkModified;
+
+        String label;
+        String normalizedLabel;
+
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+        long size;
+        long internalSize;
+        long externalSize;
+
+        /**
+         * Captures the entry's current label and sizes.  Caller must hold
+         * the entry's lock.
+         */
+        static Record fromEntryLocked(ApplicationsState.AppEntry entry) {
+            Record r = new Record();
+            r.packageName = entry.info.packageName;
+            r.sourceDir = entry.info.sourceDir;
+            r.apkModified = entry.apkFile.lastModified();
+            r.label = entry.label;
+            r.normalizedLabel = entry.getNormalizedLabel();
+            r.cacheSize = entry.cacheSize;
+            r.codeSize = entry.codeSize;
+            r.dataSize = entry.dataSize;
+            r.externalCodeSize = entry.externalCodeSize;
+            r.externalDataSize = entry.externalDataSize;
+            r.externalCacheSize = entry.externalCacheSize;
+            r.size = entry.size;
+            r.internalSize = entry.internalSize;
+            r.externalSize = entry.externalSize;
+            return r;
+        }
+
+        /**
+         * Copies the saved label and sizes into a new entry.  The size is
+         * left stale so it will still be measured again.
+         */
+        void applyTo(ApplicationsState.AppEntry entry) {
+            entry.normalizedLabel = normalizedLabel;
+            entry.cacheSize = cacheSize;
+            entry.codeSize = codeSize;
+            entry.dataSize = dataSize;
+            entry.externalCodeSize = externalCodeSize;
+            entry.externalDataSize = externalDataSize;
+            entry.externalCacheSize = externalCacheSize;
+            entry.size = size;
+            entry.internalSize = internalSize;
+            entry.externalSize = externalSize;
+        }
+    }
+
+    final String mLocale;
+    final HashMap<String, Record> mRecords;
+
+    private AppEntrySnapshot(String locale, HashMap<String, Record> records) {
+        mLocale = locale;
+        mRecords = records;
+    }
+
+    boolean isEmpty() {
+        return mRecords.isEmpty();
+    }
+
+    /**
+     * Returns the saved record for the application, or null if there is
+     * none or the apk has changed since it was taken.
+     */
+    Record get(ApplicationInfo info) {
+        Record r = mRecords.get(info.packageName);
+        if (r == null) {
+            return null;
+        }
+        if (!r.sourceDir.equals(info.sourceDir)
+                || r.apkModified != new File(info.sourceDir).lastModified()) {
+            if (DEBUG) Log.i(TAG, "Stale record for " + info.packageName);
+            mRecords.remove(info.packageName);
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * Reads the snapshot written for the given locale.  Returns an empty
+     * snapshot if there is none, it was written for another locale, or it
+     * can't be parsed.
+     */
+    static AppEntrySnapshot read(File file, String locale) {
+        HashMap<String, Record> records = new HashMap<String, Record>();
+        FileInputStream in = null;
+        try {
+            // Goes back to the last complete snapshot if a write was cut off.
+            in = new AtomicFile(file).openRead();
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring snapshot with unknown format");
+                return new AppEntrySnapshot(locale, records);
+            }
+            if (!locale.equals(readString(buf))) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot for different locale");
+                return new AppEntrySnapshot(locale, records);
+            }
+            final int N = buf.getInt();
+            for (int i=0; i<N; i++) {
+                Record r = new Record();
+                r.packageName = readString(buf);
+                r.sourceDir = readString(buf);
+                r.apkModified = buf.getLong();
+                r.label = readString(buf);
+                r.normalizedLabel = readString(buf);
+                r.cacheSize = buf.getLong();
+                r.codeSize = buf.getLong();
+                r.dataSize = buf.getLong();
+                r.externalCodeSize = buf.getLong();
+                r.externalDataSize = buf.getLong();
+                r.externalCacheSize = buf.getLong();
+                r.size = buf.getLong();
+                r.internalSize = buf.getLong();
+                r.externalSize = buf.getLong();
+                records.put(r.packageName, r);
+            }
+            if (DEBUG) Log.i(TAG, "Read " + N + " records");
+        } catch (FileNotFoundException e) {
+            if (DEBUG) Log.i(TAG, "No snapshot");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+            records.clear();
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated snapshot", e);
+            records.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return new AppEntrySnapshot(locale, records);
+    }
+
+    /**
+     * Replaces the snapshot on disk with the given records.
+     */
+    static void write(File file, String locale, ArrayList<Record> records) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, locale);
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                Record r = records.get(i);
+                writeString(out, r.packageName);
+                writeString(out, r.sourceDir);
+                out.writeLong(r.apkModified);
+                writeString(out, r.label);
+                writeString(out, r.normalizedLabel);
+                out.writeLong(r.cacheSize);
+                out.writeLong(r.codeSize);
+                out.writeLong(r.dataSize);
+                out.writeLong(r.externalCodeSize);
+                out.writeLong(r.externalDataSize);
+                out.writeLong(r.externalCacheSize);
+                out.writeLong(r.size);
+                out.writeLong(r.internalSize);
+                out.writeLong(r.externalSize);
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Wrote " + records.size() + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xffff];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IOException("String too long: " + bytes.length);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Timings for the phases of loading the application list, kept for the
+ * last few times ApplicationsState was resumed so they can be pulled off a
+ * device with dumpsys and compared across builds.
+ *
+ * Everything here is called from whichever thread did the work, so it
+ * synchronizes on itself.  It never calls out while doing so.
+ */
+class AppLoadStats {
+    static final int MAX_RUNS = 10;
+
+    /**
+     * Count, total and longest of one kind of timed event.
+     */
+    static final class Timing {
+        int count;
+        long totalNs;
+        long maxNs;
+
+        void add(long ns) {
+            count++;
+            totalNs += ns;
+            if (ns > maxNs) {
+                maxNs = ns;
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix, String name) {
+            pw.print(prefix); pw.print(name); pw.print(": "); pw.print(count);
+            if (count > 0) {
+                pw.print(", avg "); printNs(pw, totalNs / count);
+                pw.print(", max "); printNs(pw, maxNs);
+                pw.print(", total "); printNs(pw, totalNs);
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * One resume of ApplicationsState, through to all sizes being known.
+     */
+    static final class Run {
+        final long startWallTime;
+        final long startUptime;
+
+        // Milliseconds from the start, or -1 if not reached (yet).
+        long firstRebuild = -1;
+        long allLabels = -1;
+        long allIcons = -1;
+        long allSizes = -1;
+
+        final Timing rebuilds = new Timing();
+        final Timing incrementalRebuilds = new Timing();
+        final Timing sorts = new Timing();
+        final Timing publishes = new Timing();
+        final Timing sizeRequests = new Timing();
+        final Timing sizeBatches = new Timing();
+        final Timing callbacks = new Timing();
+        final Timing lockWaits = new Timing();
+        final Timing lockHolds = new Timing();
+
+        int maxLabelQueue;
+        int maxIconQueue;
+        int maxSizeQueue;
+
+        Run() {
+            startWallTime = System.currentTimeMillis();
+            startUptime = SystemClock.uptimeMillis();
+        }
+
+        long sinceStart() {
+            return SystemClock.uptimeMillis() - startUptime;
+        }
+    }
+
+    private final ArrayList<Run> mRuns = new ArrayList<Run>();
+    private Run mCurrent;
+
+    synchronized void startRun() {
+        mCurrent = new Run();
+        mRuns.add(mCurrent);
+        if (mRuns.size() > MAX_RUNS) {
+            mRuns.remove(0);
+        }
+    }
+
+    synchronized void noteRebuild(long ns, long sortNs, boolean incremental) {
+        if (mCurrent == null) return;
+        if (mCurrent.firstRebuild < 0) {
+            mCurrent.firstRebuild = mCurrent.sinceStart();
+        }
+        (incremental ? mCurrent.incrementalRebuilds : mCurrent.rebuilds).add(ns);
+        if (!incremental) {
+            mCurrent.sorts.add(sortNs);
+        }
+    }
+
+    synchronized void notePublish(long ns) {
+        if (mCurrent == null) return;
+        mCurrent.publishes.add(ns);
+    }
+
+    synchronized void noteLabelsQueued(int count) {
+        if (mCurrent == null) return;
+        if (count > mCurrent.maxLabelQueue) {
+            mCurrent.maxLabelQueue = count;
+        }
+    }
+
+    synchronized void noteAllLabels() {
+        if (mCurrent == null || mCurrent.allLabels >= 0) return;
+        mCurrent.allLabels = mCurrent.sinceStart();
+    }
+
+    synchronized void noteIconsQueued(int count) {
+        if (mCurrent == null) return;
+        if (count > mCurrent.maxIconQueue) {
+            mCurrent.maxIconQueue = count;
+        }
+    }
+
+    synchronized void noteAllIcons() {
+        if (mCurrent == null || mCurrent.allIcons >= 0) return;
+        mCurrent.allIcons = mCurrent.sinceStart();
+    }
+
+    synchronized void noteSizesPending(int count) {
+        if (mCurrent == null) return;
+        if (count > mCurrent.maxSizeQueue) {
+            mCurrent.maxSizeQueue = count;
+        }
+    }
+
+    synchronized void noteSizeRequest(long ms) {
+        if (mCurrent == null) return;
+        mCurrent.sizeRequests.add(ms * 1000000);
+    }
+
+    synchronized void noteSizeBatch(long ns) {
+        if (mCurrent == null) return;
+        mCurrent.sizeBatches.add(ns);
+    }
+
+    synchronized void noteAllSizes() {
+        if (mCurrent == null || mCurrent.allSizes >= 0) return;
+        mCurrent.allSizes = mCurrent.sinceStart();
+    }
+
+    synchronized void noteCallbacks(long ns) {
+        if (mCurrent == null) return;
+        mCurrent.callbacks.add(ns);
+    }
+
+    /**
+     * Records a section under mEntriesMap: how long it took to get the
+     * lock after asking at waitStartNs, and how long it was held from
+     * holdStartNs until now.
+     */
+    synchronized void noteLock(long waitStartNs, long holdStartNs) {
+        if (mCurrent == null) return;
+        mCurrent.lockWaits.add(holdStartNs - waitStartNs);
+        mCurrent.lockHolds.add(SystemClock.elapsedRealtimeNanos() - holdStartNs);
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Application load stats, last "); pw.print(mRuns.size());
+        pw.println(" runs:");
+        String inner = prefix + "    ";
+        for (int i=mRuns.size()-1; i>=0; i--) {
+            Run run = mRuns.get(i);
+            pw.print(prefix); pw.print("  Run started ");
+            pw.print(DateFormat.format("yyyy-MM-dd HH:mm:ss", run.startWallTime));
+            if (run == mCurrent && run.allSizes < 0) {
+                pw.print(" (in progress, ");
+                TimeUtils.formatDuration(run.sinceStart(), pw);
+                pw.print(")");
+            }
+            pw.println();
+            pw.print(inner); pw.print("first rebuild="); printPhase(pw, run.firstRebuild);
+            pw.print(" all labels="); printPhase(pw, run.allLabels);
+            pw.print(" all icons="); printPhase(pw, run.allIcons);
+            pw.print(" all sizes="); printPhase(pw, run.allSizes);
+            pw.println();
+            run.rebuilds.dump(pw, inner, "full rebuilds");
+            run.sorts.dump(pw, inner, "  of which sorting");
+            run.incrementalRebuilds.dump(pw, inner, "incremental rebuilds");
+            run.publishes.dump(pw, inner, "entry table publishes");
+            run.sizeRequests.dump(pw, inner, "size requests");
+            run.sizeBatches.dump(pw, inner, "size change batches");
+            run.callbacks.dump(pw, inner, "session callbacks");
+            run.lockWaits.dump(pw, inner, "mEntriesMap waits");
+            run.lockHolds.dump(pw, inner, "mEntriesMap holds");
+            pw.print(inner); pw.print("max queued: labels="); pw.print(run.maxLabelQueue);
+            pw.print(" icons="); pw.print(run.maxIconQueue);
+            pw.print(" sizes="); pw.println(run.maxSizeQueue);
+        }
+    }
+
+    private static void printPhase(PrintWriter pw, long ms) {
+        if (ms < 0) {
+            pw.print("-");
+        } else {
+            TimeUtils.formatDuration(ms, pw);
+        }
+    }
+
+    static void printNs(PrintWriter pw, long ns) {
+        if (ns < 10000000) {
+            pw.print(ns / 1000); pw.print("us");
+        } else {
+            TimeUtils.formatDuration(ns / 1000000, pw);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceActivity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -105,6 +106,20 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
+            // Labels and icons of the packages that changed have to be
+            // loaded again.
+            AppOpsState.PackageCache cache = mLoader.mState.mPackageCache;
+            String[] pkgs = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+            if (pkgs != null) {
+                for (int i=0; i<pkgs.length; i++) {
+                    cache.invalidate(pkgs[i]);
+                }
+            } else if (intent.getData() != null) {
+                cache.invalidate(intent.getData().getSchemeSpecificPart());
+            } else {
+                cache.invalidateAll();
+            }
+            mLoader.mState.mSharedStates.invalidate();
             // Tell the loader about the change.
             mLoader.onContentChanged();
         }
@@ -128,7 +143,7 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public List<AppOpEntry> loadInBackground() {
-            return mState.buildState(mTemplate);
+            return mState.mSharedStates.get(mState, mTemplate, SystemClock.elapsedRealtime());
         }
 
         /**
@@ -177,12 +192,18 @@ public class AppOpsCategory extends ListFragment implements
 
             // Start watching for changes in the app data.
             if (mPackageObserver == null) {
+                if (mState.mPackageCache.startWatching()) {
+                    mState.mSharedStates.invalidate();
+                }
                 mPackageObserver = new PackageIntentReceiver(this);
             }
 
             // Has something interesting in the configuration changed since we
             // last built the app list?
             boolean configChange = mLastConfig.applyNewConfig(getContext().getResources());
+            if (mState.mPackageCache.applyConfig(getContext().getResources())) {
+                mState.mSharedStates.invalidate();
+            }
 
             if (takeContentChanged() || mApps == null || configChange) {
                 // If the data has changed since the last time it was loaded
@@ -230,6 +251,7 @@ public class AppOpsCategory extends ListFragment implements
             if (mPackageObserver != null) {
                 getContext().unregisterReceiver(mPackageObserver);
                 mPackageObserver = null;
+                mState.mPackageCache.stopWatching();
             }
         }
 
@@ -113,9 +113,10 @@ public class AppOpsDetails extends Fragment {
 
         mOperationsSection.removeAllViews();
         String lastPermGroup = "";
-        for (AppOpsState.OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
-            List<AppOpsState.AppOpEntry> entries = mState.buildState(tpl,
-                    mPackageInfo.applicationInfo.uid, mPackageInfo.packageName);
+        List<List<AppOpsState.AppOpEntry>> states = mState.buildStates(
+                AppOpsState.ALL_TEMPLATES, mPackageInfo.applicationInfo.uid,
+                mPackageInfo.packageName);
+        for (List<AppOpsState.AppOpEntry> entries : states) {
             for (final AppOpsState.AppOpEntry entry : entries) {
                 final AppOpsManager.OpEntry firstOp = entry.getOpEntry(0);
                 final View view = mInflater.inflate(R.layout.app_ops_details_item,
@@ -35,10 +35,15 @@ import com.android.settings.R;
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class AppOpsState {
     static final String TAG = "AppOpsState";
@@ -49,11 +54,28 @@ public class AppOpsState {
     final PackageManager mPm;
     final CharSequence[] mOpSummaries;
     final CharSequence[] mOpLabels;
+    final PackageCache mPackageCache;
+    final SharedStates mSharedStates;
 
     List<AppOpEntry> mApps;
 
+    // Shared by every AppOpsState, so each template's page doesn't load the
+    // same labels, or make the same queries, again.
+    static final PackageCache sPackageCache = new PackageCache();
+    static final SharedStates sSharedStates = new SharedStates();
+
     public AppOpsState(Context context) {
+        this(context, sPackageCache, sSharedStates);
+    }
+
+    AppOpsState(Context context, PackageCache packageCache) {
+        this(context, packageCache, new SharedStates());
+    }
+
+    AppOpsState(Context context, PackageCache packageCache, SharedStates sharedStates) {
         mContext = context;
+        mPackageCache = packageCache;
+        mSharedStates = sharedStates;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
         mPm = context.getPackageManager();
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries);
@@ -74,6 +96,10 @@ public class AppOpsState {
             showPerms = src.createBooleanArray();
         }
 
+        boolean sameAs(OpsTemplate other) {
+            return Arrays.equals(ops, other.ops) && Arrays.equals(showPerms, other.showPerms);
+        }
+
         @Override
         public int describeContents() {
             return 0;
@@ -202,25 +228,250 @@ public class AppOpsState {
             MEDIA_TEMPLATE, DEVICE_TEMPLATE
     };
 
+    /**
+     * What is known about an installed package whatever the template: its
+     * info, label and icon.  Shared by the AppEntry of each template it
+     * shows up in, so it locks itself.
+     */
+    static final class PackageRecord {
+        final ApplicationInfo mInfo;
+        final File mApkFile;
+        String mLabel;
+        Drawable mIcon;
+        boolean mMounted;
+
+        PackageRecord(ApplicationInfo info) {
+            mInfo = info;
+            mApkFile = new File(info.sourceDir);
+        }
+
+        /**
+         * Returns a drawable of its own for the caller: the same record is
+         * shown by the page of each template it is in.
+         */
+        synchronized Drawable getIcon(AppOpsState state) {
+            if (mIcon == null) {
+                if (mApkFile.exists()) {
+                    mIcon = mInfo.loadIcon(state.mPm);
+                    return copyIcon();
+                } else {
+                    mMounted = false;
+                }
+            } else if (!mMounted) {
+                // If the app wasn't mounted but is now mounted, reload
+                // its icon.
+                if (mApkFile.exists()) {
+                    mMounted = true;
+                    mIcon = mInfo.loadIcon(state.mPm);
+                    return copyIcon();
+                }
+            } else {
+                return copyIcon();
+            }
+
+            return state.mContext.getResources().getDrawable(
+                    android.R.drawable.sym_def_app_icon);
+        }
+
+        private Drawable copyIcon() {
+            Drawable.ConstantState constState = mIcon.getConstantState();
+            return constState != null ? constState.newDrawable() : mIcon;
+        }
+
+        synchronized String getLabel() {
+            return mLabel;
+        }
+
+        synchronized void loadLabel(Context context) {
+            if (mLabel == null || !mMounted) {
+                if (!mApkFile.exists()) {
+                    mMounted = false;
+                    mLabel = mInfo.packageName;
+                } else {
+                    mMounted = true;
+                    CharSequence label = mInfo.loadLabel(context.getPackageManager());
+                    mLabel = label != null ? label.toString() : mInfo.packageName;
+                }
+            }
+        }
+    }
+
+    /**
+     * The PackageRecords loaded so far, by package name.  Records go when
+     * their package changes, which is only seen while someone is watching
+     * for it, so everything goes when nobody was.  It lives as long as the
+     * process, so it keeps only the most recently used MAX_RECORDS.
+     */
+    static final class PackageCache {
+        static final int MAX_RECORDS = 500;
+
+        private final LinkedHashMap<String, PackageRecord> mRecords;
+        private int mWatchers;
+        private Locale mLocale;
+        private int mDensity;
+
+        PackageCache() {
+            this(MAX_RECORDS);
+        }
+
+        PackageCache(final int maxRecords) {
+            mRecords = new LinkedHashMap<String, PackageRecord>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PackageRecord> eldest) {
+                    return size() > maxRecords;
+                }
+            };
+        }
+
+        synchronized PackageRecord get(String packageName) {
+            return mRecords.get(packageName);
+        }
+
+        synchronized PackageRecord put(String packageName, PackageRecord record) {
+            PackageRecord existing = mRecords.get(packageName);
+            if (existing != null) {
+                // Another template's page got there first.
+                return existing;
+            }
+            mRecords.put(packageName, record);
+            return record;
+        }
+
+        synchronized void invalidate(String packageName) {
+            mRecords.remove(packageName);
+        }
+
+        synchronized void invalidateAll() {
+            mRecords.clear();
+        }
+
+        /**
+         * Drops everything if labels or icons would now load differently,
+         * and says whether it did.
+         */
+        synchronized boolean applyConfig(Resources res) {
+            Locale locale = res.getConfiguration().locale;
+            int density = res.getDisplayMetrics().densityDpi;
+            if (!locale.equals(mLocale) || density != mDensity) {
+                mRecords.clear();
+                mLocale = locale;
+                mDensity = density;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if nobody was watching, so everything was dropped.
+         */
+        synchronized boolean startWatching() {
+            if (mWatchers++ == 0) {
+                // Anything could have changed while nobody was looking.
+                mRecords.clear();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void stopWatching() {
+            mWatchers--;
+        }
+
+        synchronized int size() {
+            return mRecords.size();
+        }
+    }
+
+    /**
+     * The entries of every template in ALL_TEMPLATES, built in one go by
+     * whichever page asks first and handed to the pages that ask soon
+     * after, so the pages of the summary make one round of queries between
+     * them instead of one each.  A page asking while they are being built
+     * waits for them.
+     */
+    static final class SharedStates {
+        // Pages starting together share a build; one starting later makes
+        // a new one, as the ops' times will have moved on.
+        static final long MAX_AGE = 5*1000;
+
+        private List<List<AppOpEntry>> mStates;
+        private long mBuildTime;
+        private boolean mBuilding;
+        private int mGeneration;
+
+        // Since the process started, for tests.
+        int mBuilds;
+
+        List<AppOpEntry> get(AppOpsState state, OpsTemplate tpl, long now) {
+            int index = -1;
+            for (int i=0; i<ALL_TEMPLATES.length; i++) {
+                if (ALL_TEMPLATES[i].sameAs(tpl)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return state.buildState(tpl);
+            }
+            final int generation;
+            synchronized (this) {
+                while (mBuilding) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (mStates != null && now >= mBuildTime && now - mBuildTime < MAX_AGE) {
+                    return mStates.get(index);
+                }
+                mBuilding = true;
+                mBuilds++;
+                generation = mGeneration;
+            }
+            List<List<AppOpEntry>> states = null;
+            try {
+                states = state.buildStates(ALL_TEMPLATES, 0, null);
+            } finally {
+                synchronized (this) {
+                    mBuilding = false;
+                    // Unless something changed while they were built.
+                    if (states != null && generation == mGeneration) {
+                        mStates = states;
+                        mBuildTime = now;
+                    }
+                    notifyAll();
+                }
+            }
+            return states.get(index);
+        }
+
+        /**
+         * Makes the next page to ask build them again.
+         */
+        synchronized void invalidate() {
+            mStates = null;
+            mGeneration++;
+        }
+    }
+
     /**
      * This class holds the per-item data in our Loader.
      */
     public static class AppEntry {
         private final AppOpsState mState;
-        private final ApplicationInfo mInfo;
-        private final File mApkFile;
+        private final PackageRecord mRecord;
         private final SparseArray<AppOpsManager.OpEntry> mOps
                 = new SparseArray<AppOpsManager.OpEntry>();
         private final SparseArray<AppOpEntry> mOpSwitches
                 = new SparseArray<AppOpEntry>();
-        private String mLabel;
-        private Drawable mIcon;
-        private boolean mMounted;
 
         public AppEntry(AppOpsState state, ApplicationInfo info) {
+            this(state, new PackageRecord(info));
+        }
+
+        AppEntry(AppOpsState state, PackageRecord record) {
             mState = state;
-            mInfo = info;
-            mApkFile = new File(info.sourceDir);
+            mRecord = record;
         }
 
         public void addOp(AppOpEntry entry, AppOpsManager.OpEntry op) {
@@ -237,52 +488,23 @@ public class AppOpsState {
         }
 
         public ApplicationInfo getApplicationInfo() {
-            return mInfo;
+            return mRecord.mInfo;
         }
 
         public String getLabel() {
-            return mLabel;
+            return mRecord.getLabel();
         }
 
         public Drawable getIcon() {
-            if (mIcon == null) {
-                if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
-                    return mIcon;
-                } else {
-                    mMounted = false;
-                }
-            } else if (!mMounted) {
-                // If the app wasn't mounted but is now mounted, reload
-                // its icon.
-                if (mApkFile.exists()) {
-                    mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
-                    return mIcon;
-                }
-            } else {
-                return mIcon;
-            }
-
-            return mState.mContext.getResources().getDrawable(
-                    android.R.drawable.sym_def_app_icon);
+            return mRecord.getIcon(mState);
         }
 
         @Override public String toString() {
-            return mLabel;
+            return getLabel();
         }
 
         void loadLabel(Context context) {
-            if (mLabel == null || !mMounted) {
-                if (!mApkFile.exists()) {
-                    mMounted = false;
-                    mLabel = mInfo.packageName;
-                } else {
-                    mMounted = true;
-                    CharSequence label = mInfo.loadLabel(context.getPackageManager());
-                    mLabel = label != null ? label.toString() : mInfo.packageName;
-                }
-            }
+            mRecord.loadLabel(context);
         }
     }
 
@@ -465,17 +687,21 @@ public class AppOpsState {
             final String packageName, ApplicationInfo appInfo) {
         AppEntry appEntry = appEntries.get(packageName);
         if (appEntry == null) {
-            if (appInfo == null) {
-                try {
-                    appInfo = mPm.getApplicationInfo(packageName,
-                            PackageManager.GET_DISABLED_COMPONENTS
-                            | PackageManager.GET_UNINSTALLED_PACKAGES);
-                } catch (PackageManager.NameNotFoundException e) {
-                    Log.w(TAG, "Unable to find info for package " + packageName);
-                    return null;
+            PackageRecord record = mPackageCache.get(packageName);
+            if (record == null) {
+                if (appInfo == null) {
+                    try {
+                        appInfo = mPm.getApplicationInfo(packageName,
+                                PackageManager.GET_DISABLED_COMPONENTS
+                                | PackageManager.GET_UNINSTALLED_PACKAGES);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        Log.w(TAG, "Unable to find info for package " + packageName);
+                        return null;
+                    }
                 }
+                record = mPackageCache.put(packageName, new PackageRecord(appInfo));
             }
-            appEntry = new AppEntry(this, appInfo);
+            appEntry = new AppEntry(this, record);
             appEntry.loadLabel(context);
             appEntries.put(packageName, appEntry);
         }
@@ -483,45 +709,45 @@ public class AppOpsState {
     }
 
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName) {
-        final Context context = mContext;
-
-        final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
-        final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+        return buildStates(new OpsTemplate[] { tpl }, uid, packageName).get(0);
+    }
 
+    /**
+     * Builds the entries for each of the templates, asking for the ops and
+     * the permission holders of all of them at once.
+     */
+    public List<List<AppOpEntry>> buildStates(OpsTemplate[] tpls, int uid, String packageName) {
+        final boolean[] haveOp = new boolean[AppOpsManager._NUM_OP];
         final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
-        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
-        for (int i=0; i<tpl.ops.length; i++) {
-            if (tpl.showPerms[i]) {
-                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
-                    opToOrder[tpl.ops[i]] = i;
+        final HashSet<String> havePerm = new HashSet<String>();
+        int numOps = 0;
+        for (int t=0; t<tpls.length; t++) {
+            OpsTemplate tpl = tpls[t];
+            for (int i=0; i<tpl.ops.length; i++) {
+                if (!haveOp[tpl.ops[i]]) {
+                    haveOp[tpl.ops[i]] = true;
+                    numOps++;
                 }
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && havePerm.add(perm)) {
+                        perms.add(perm);
+                    }
+                }
+            }
+        }
+        final int[] ops = new int[numOps];
+        for (int op=0, i=0; op<AppOpsManager._NUM_OP; op++) {
+            if (haveOp[op]) {
+                ops[i++] = op;
             }
         }
 
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
-            pkgs = mAppOps.getOpsForPackage(uid, packageName, tpl.ops);
+            pkgs = mAppOps.getOpsForPackage(uid, packageName, ops);
         } else {
-            pkgs = mAppOps.getPackagesForOps(tpl.ops);
-        }
-
-        if (pkgs != null) {
-            for (int i=0; i<pkgs.size(); i++) {
-                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
-                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null);
-                if (appEntry == null) {
-                    continue;
-                }
-                for (int j=0; j<pkgOps.getOps().size(); j++) {
-                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
-                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                }
-            }
+            pkgs = mAppOps.getPackagesForOps(ops);
         }
 
         List<PackageInfo> apps;
@@ -537,56 +763,152 @@ public class AppOpsState {
             perms.toArray(permsArray);
             apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
         }
-        for (int i=0; i<apps.size(); i++) {
-            PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo);
-            if (appEntry == null) {
-                continue;
-            }
-            List<AppOpsManager.OpEntry> dummyOps = null;
-            AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
-                for (int j=0; j<appInfo.requestedPermissions.length; j++) {
-                    if (appInfo.requestedPermissionsFlags != null) {
-                        if ((appInfo.requestedPermissionsFlags[j]
-                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
-                            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
-                                    + appInfo.requestedPermissions[j] + " not granted; skipping");
-                            continue;
-                        }
+
+        return buildStates(tpls, packageName, pkgs, apps);
+    }
+
+    /**
+     * Builds the entries for a template out of the ops and permission
+     * holders already retrieved for it.
+     */
+    List<AppOpEntry> buildState(OpsTemplate tpl, String packageName,
+            List<AppOpsManager.PackageOps> pkgs, List<PackageInfo> apps) {
+        return buildStates(new OpsTemplate[] { tpl }, packageName, pkgs, apps).get(0);
+    }
+
+    /**
+     * Builds the entries for each template out of the ops and permission
+     * holders already retrieved for all of them, going over each once.
+     */
+    List<List<AppOpEntry>> buildStates(OpsTemplate[] tpls, String packageName,
+            List<AppOpsManager.PackageOps> pkgs, List<PackageInfo> apps) {
+        final Context context = mContext;
+        final int N = tpls.length;
+
+        // Which ops each template shows, and for each permission a template
+        // shows, the op it stands for there: the first one needing it.
+        final boolean[][] tplHasOp = new boolean[N][AppOpsManager._NUM_OP];
+        final int[][] opToOrder = new int[N][AppOpsManager._NUM_OP];
+        final HashMap<String, int[]> permToOps = new HashMap<String, int[]>();
+        for (int t=0; t<N; t++) {
+            OpsTemplate tpl = tpls[t];
+            for (int i=0; i<tpl.ops.length; i++) {
+                tplHasOp[t][tpl.ops[i]] = true;
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm == null) {
+                        continue;
+                    }
+                    int[] permOps = permToOps.get(perm);
+                    if (permOps == null) {
+                        permOps = new int[N];
+                        Arrays.fill(permOps, -1);
+                        permToOps.put(perm, permOps);
                     }
-                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
-                            + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
+                    if (permOps[t] < 0) {
+                        permOps[t] = tpl.ops[i];
+                        opToOrder[t][tpl.ops[i]] = i;
+                    }
+                }
+            }
+        }
+
+        final ArrayList<List<AppOpEntry>> states = new ArrayList<List<AppOpEntry>>(N);
+        final ArrayList<HashMap<String, AppEntry>> appEntries
+                = new ArrayList<HashMap<String, AppEntry>>(N);
+        for (int t=0; t<N; t++) {
+            states.add(new ArrayList<AppOpEntry>());
+            appEntries.add(new HashMap<String, AppEntry>());
+        }
+
+        if (pkgs != null) {
+            for (int i=0; i<pkgs.size(); i++) {
+                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+                List<AppOpsManager.OpEntry> ops = pkgOps.getOps();
+                for (int t=0; t<N; t++) {
+                    AppEntry appEntry = null;
+                    for (int j=0; j<ops.size(); j++) {
+                        AppOpsManager.OpEntry opEntry = ops.get(j);
+                        if (!tplHasOp[t][opEntry.getOp()]) {
                             continue;
                         }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
+                        if (appEntry == null) {
+                            appEntry = getAppEntry(context, appEntries.get(t),
+                                    pkgOps.getPackageName(), null);
+                            if (appEntry == null) {
+                                break;
+                            }
                         }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+                        addOp(states.get(t), pkgOps, appEntry, opEntry, packageName == null,
+                                packageName == null ? 0 : opToOrder[t][opEntry.getOp()]);
+                    }
+                }
+            }
+        }
 
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
+        for (int i=0; i<apps.size(); i++) {
+            PackageInfo appInfo = apps.get(i);
+            if (appInfo.requestedPermissions == null) {
+                continue;
+            }
+            AppEntry[] tplAppEntries = null;
+            AppOpsManager.PackageOps[] tplPkgOps = null;
+            for (int j=0; j<appInfo.requestedPermissions.length; j++) {
+                if (appInfo.requestedPermissionsFlags != null) {
+                    if ((appInfo.requestedPermissionsFlags[j]
+                            & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                                + appInfo.requestedPermissions[j] + " not granted; skipping");
+                        continue;
                     }
                 }
+                if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
+                        + appInfo.requestedPermissions[j]);
+                final int[] permOps = permToOps.get(appInfo.requestedPermissions[j]);
+                if (permOps == null) {
+                    continue;
+                }
+                for (int t=0; t<N; t++) {
+                    final int op = permOps[t];
+                    if (op < 0) {
+                        continue;
+                    }
+                    if (tplAppEntries == null) {
+                        tplAppEntries = new AppEntry[N];
+                        tplPkgOps = new AppOpsManager.PackageOps[N];
+                    }
+                    AppEntry appEntry = tplAppEntries[t];
+                    if (appEntry == null) {
+                        appEntry = getAppEntry(context, appEntries.get(t), appInfo.packageName,
+                                appInfo.applicationInfo);
+                        tplAppEntries[t] = appEntry;
+                    }
+                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                            + appInfo.requestedPermissions[j] + " has op " + op + ": "
+                            + appEntry.hasOp(op));
+                    if (appEntry.hasOp(op)) {
+                        continue;
+                    }
+                    if (tplPkgOps[t] == null) {
+                        tplPkgOps[t] = new AppOpsManager.PackageOps(appInfo.packageName,
+                                appInfo.applicationInfo.uid,
+                                new ArrayList<AppOpsManager.OpEntry>());
+                    }
+                    AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                            op, AppOpsManager.MODE_ALLOWED, 0, 0, 0);
+                    tplPkgOps[t].getOps().add(opEntry);
+                    addOp(states.get(t), tplPkgOps[t], appEntry, opEntry, packageName == null,
+                            packageName == null ? 0 : opToOrder[t][op]);
+                }
             }
         }
 
-        // Sort the list.
-        Collections.sort(entries, APP_OP_COMPARATOR);
+        // Sort the lists.
+        for (int t=0; t<N; t++) {
+            Collections.sort(states.get(t), APP_OP_COMPARATOR);
+        }
 
         // Done!
-        return entries;
+        return states;
     }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+/**
+ * Word-prefix index over the normalized labels of a list of applications.
+ * A label matches a prefix if the label itself or any part of it following
+ * a space starts with the prefix, the same rule the application list has
+ * always used for its type-to-filter.
+ *
+ * Every such word-start suffix of every label is kept in one sorted array,
+ * so the matches for a prefix are a contiguous range found by binary search.
+ * When the prefix grows by typing, the search is narrowed within the
+ * previous range.  The index follows changes to the entry list by adding and
+ * removing only the entries that differ, or whose label changed since they
+ * were indexed.
+ */
+class AppPrefixIndex {
+    static final class Suffix implements Comparable<Suffix> {
+        final String text;
+        final AppEntry entry;
+        // The normalized label this was cut from.
+        final String label;
+
+        Suffix(String text, AppEntry entry, String label) {
+            this.text = text;
+            this.entry = entry;
+            this.label = label;
+        }
+
+        @Override
+        public int compareTo(Suffix another) {
+            return text.compareTo(another.text);
+        }
+    }
+
+    private ArrayList<AppEntry> mEntries;
+    private IdentityHashMap<AppEntry, Integer> mPositions;
+    // The normalized label each entry was indexed under.
+    private IdentityHashMap<AppEntry, String> mLabels;
+    private ArrayList<Suffix> mSuffixes = new ArrayList<Suffix>();
+
+    // The last query, to narrow from when the next one extends it.
+    private String mLastPrefix;
+    private int mLastStart;
+    private int mLastEnd;
+
+    /**
+     * Points the index at a new list of entries, in display order.  May be
+     * called again with the same list after labels in it have changed.
+     */
+    synchronized void setEntries(ArrayList<AppEntry> entries) {
+        IdentityHashMap<AppEntry, String> labels
+                = new IdentityHashMap<AppEntry, String>(entries.size());
+        ArrayList<AppEntry> relabeled = new ArrayList<AppEntry>();
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            String label = entry.getNormalizedLabel();
+            labels.put(entry, label);
+            String indexed = mLabels != null ? mLabels.get(entry) : null;
+            if (indexed == null || !indexed.equals(label)) {
+                relabeled.add(entry);
+            }
+        }
+        if (entries == mEntries && relabeled.isEmpty()) {
+            return;
+        }
+
+        IdentityHashMap<AppEntry, Integer> positions
+                = new IdentityHashMap<AppEntry, Integer>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            positions.put(entries.get(i), i);
+        }
+
+        if (mLabels == null) {
+            mSuffixes = new ArrayList<Suffix>(entries.size() * 2);
+            for (int i=0; i<entries.size(); i++) {
+                AppEntry entry = entries.get(i);
+                addSuffixes(mSuffixes, entry, labels.get(entry));
+            }
+            Collections.sort(mSuffixes);
+        } else {
+            // Drop the suffixes of entries that went away or were relabeled.
+            ArrayList<Suffix> kept = new ArrayList<Suffix>(mSuffixes.size());
+            for (int i=0; i<mSuffixes.size(); i++) {
+                Suffix s = mSuffixes.get(i);
+                String label = labels.get(s.entry);
+                if (label != null && label.equals(s.label)) {
+                    kept.add(s);
+                }
+            }
+            // And merge in those of entries that are new or relabeled.
+            ArrayList<Suffix> added = new ArrayList<Suffix>();
+            for (int i=0; i<relabeled.size(); i++) {
+                AppEntry entry = relabeled.get(i);
+                addSuffixes(added, entry, labels.get(entry));
+            }
+            if (added.isEmpty()) {
+                mSuffixes = kept;
+            } else {
+                Collections.sort(added);
+                mSuffixes = merge(kept, added);
+            }
+        }
+
+        mEntries = entries;
+        mPositions = positions;
+        mLabels = labels;
+        mLastPrefix = null;
+    }
+
+    /**
+     * Returns the entries matching a normalized prefix, in the order they
+     * appear in the entry list.
+     */
+    synchronized ArrayList<AppEntry> query(String prefix) {
+        int start = 0;
+        int end = mSuffixes.size();
+        if (mLastPrefix != null && prefix.startsWith(mLastPrefix)) {
+            start = mLastStart;
+            end = mLastEnd;
+        }
+        start = lowerBound(prefix, start, end);
+        end = upperBound(prefix, start, end);
+        mLastPrefix = prefix;
+        mLastStart = start;
+        mLastEnd = end;
+
+        // A label can match on more than one word; report it once.
+        int[] matches = new int[end - start];
+        for (int i=start; i<end; i++) {
+            matches[i - start] = mPositions.get(mSuffixes.get(i).entry);
+        }
+        Arrays.sort(matches);
+        ArrayList<AppEntry> result = new ArrayList<AppEntry>(matches.length);
+        for (int i=0; i<matches.length; i++) {
+            if (i == 0 || matches[i] != matches[i-1]) {
+                result.add(mEntries.get(matches[i]));
+            }
+        }
+        return result;
+    }
+
+    // First suffix in [start, end) that is not less than the prefix.
+    private int lowerBound(String prefix, int start, int end) {
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            if (mSuffixes.get(mid).text.compareTo(prefix) < 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    // First suffix in [start, end) past those starting with the prefix.
+    private int upperBound(String prefix, int start, int end) {
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            String text = mSuffixes.get(mid).text;
+            if (text.startsWith(prefix) || text.compareTo(prefix) < 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    private static void addSuffixes(ArrayList<Suffix> out, AppEntry entry, String label) {
+        out.add(new Suffix(label, entry, label));
+        int idx = label.indexOf(' ');
+        while (idx >= 0) {
+            out.add(new Suffix(label.substring(idx + 1), entry, label));
+            idx = label.indexOf(' ', idx + 1);
+        }
+    }
+
+    private static ArrayList<Suffix> merge(ArrayList<Suffix> a, ArrayList<Suffix> b) {
+        ArrayList<Suffix> out = new ArrayList<Suffix>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            if (a.get(i).compareTo(b.get(j)) <= 0) {
+                out.add(a.get(i++));
+            } else {
+                out.add(b.get(j++));
+            }
+        }
+        while (i < a.size()) {
+            out.add(a.get(i++));
+        }
+        while (j < b.size()) {
+            out.add(b.get(j++));
+        }
+        return out;
+    }
+}
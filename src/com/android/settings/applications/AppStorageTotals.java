@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Running storage totals for one list of applications.  Each entry's
+ * sizes are remembered when counted, so a size change only takes out the
+ * old numbers and puts in the new ones instead of adding up the list again,
+ * and a new list only counts the entries that came or went.
+ */
+class AppStorageTotals {
+    private static final int INTERNAL = 0;
+    private static final int EXTERNAL_CODE = 1;
+    private static final int EXTERNAL_DATA = 2;
+    private static final int EXTERNAL_CACHE = 3;
+    // Not part of any total shown, but a change to it is still a change:
+    // the storage bar counts the cache as free space.
+    private static final int CACHE = 4;
+    private static final int NUM_SIZES = 5;
+
+    private static final class Counted {
+        final long[] sizes = new long[NUM_SIZES];
+        // The last setEntries() that found the entry in its list.
+        int generation;
+    }
+
+    private final IdentityHashMap<AppEntry, Counted> mCounted
+            = new IdentityHashMap<AppEntry, Counted>();
+    private final long[] mTotals = new long[NUM_SIZES];
+    private int mGeneration;
+
+    /**
+     * Switches to a new list of entries.  Entries that were already in the
+     * last one keep what was counted for them.
+     */
+    void setEntries(List<AppEntry> entries) {
+        if (entries == null) {
+            mCounted.clear();
+            for (int i=0; i<NUM_SIZES; i++) {
+                mTotals[i] = 0;
+            }
+            return;
+        }
+        final int generation = ++mGeneration;
+        final int N = entries.size();
+        for (int i=0; i<N; i++) {
+            AppEntry entry = entries.get(i);
+            Counted counted = mCounted.get(entry);
+            if (counted == null) {
+                counted = new Counted();
+                synchronized (entry) {
+                    readSizesLocked(entry, counted.sizes);
+                }
+                mCounted.put(entry, counted);
+                add(counted.sizes, 1);
+            }
+            counted.generation = generation;
+        }
+        if (mCounted.size() > N) {
+            Iterator<Counted> it = mCounted.values().iterator();
+            while (it.hasNext()) {
+                Counted counted = it.next();
+                if (counted.generation != generation) {
+                    add(counted.sizes, -1);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks up new sizes for an entry.  Returns false if the entry isn't
+     * counted here or its sizes, including its cache, are unchanged.
+     */
+    boolean update(AppEntry entry) {
+        Counted counted = mCounted.get(entry);
+        if (counted == null) {
+            return false;
+        }
+        final long[] old = counted.sizes;
+        long[] sizes = new long[NUM_SIZES];
+        synchronized (entry) {
+            readSizesLocked(entry, sizes);
+        }
+        boolean changed = false;
+        for (int i=0; i<NUM_SIZES && !changed; i++) {
+            changed = sizes[i] != old[i];
+        }
+        if (changed) {
+            add(old, -1);
+            add(sizes, 1);
+            System.arraycopy(sizes, 0, old, 0, NUM_SIZES);
+        }
+        return changed;
+    }
+
+    /**
+     * Storage used by the applications on the SD card, or in internal
+     * storage, which includes external storage when that is emulated.
+     */
+    long getAppStorage(boolean sdCard, boolean emulatedStorage) {
+        if (sdCard) {
+            return mTotals[EXTERNAL_CODE] + mTotals[EXTERNAL_DATA] + mTotals[EXTERNAL_CACHE];
+        }
+        long total = mTotals[INTERNAL];
+        if (emulatedStorage) {
+            total += mTotals[EXTERNAL_CODE] + mTotals[EXTERNAL_DATA];
+        }
+        return total;
+    }
+
+    private void add(long[] sizes, int sign) {
+        for (int i=0; i<NUM_SIZES; i++) {
+            mTotals[i] += sign * sizes[i];
+        }
+    }
+
+    private static void readSizesLocked(AppEntry entry, long[] out) {
+        out[INTERNAL] = entry.codeSize + entry.dataSize;
+        out[EXTERNAL_CODE] = entry.externalCodeSize;
+        out[EXTERNAL_DATA] = entry.externalDataSize;
+        out[EXTERNAL_CACHE] = entry.externalCacheSize;
+        out[CACHE] = entry.cacheSize;
+    }
+}
@@ -23,14 +23,19 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -47,7 +52,7 @@ public class ApplicationsState {
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
         public void onPackageIconChanged();
-        public void onPackageSizeChanged(String packageName);
+        public void onPackageSizesChanged(ArrayList<String> packageNames);
         public void onAllSizesComputed();
     }
 
@@ -104,6 +109,19 @@ public class ApplicationsState {
             return normalizedLabel;
         }
 
+        // Sort key for the label, so the comparators don't have to run the
+        // collator on every comparison.
+        CollationKey getCollationKey() {
+            CollationKey key = collationKey;
+            if (key == null) {
+                synchronized (sCollator) {
+                    key = sCollator.getCollationKey(label);
+                }
+                collationKey = key;
+            }
+            return key;
+        }
+
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
         Drawable icon;
@@ -114,6 +132,7 @@ public class ApplicationsState {
         long sizeLoadStart;
 
         String normalizedLabel;
+        CollationKey collationKey;
 
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
@@ -123,9 +142,21 @@ public class ApplicationsState {
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        // For entries whose label was already loaded by the AppEntryLoader.
+        AppEntry(ApplicationInfo info, long id, String label, boolean mounted) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.size = SIZE_UNKNOWN;
+            this.sizeStale = true;
+            this.label = label;
+            this.mounted = mounted;
+        }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
+                String oldLabel = this.label;
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
@@ -134,6 +165,10 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                if (!this.label.equals(oldLabel)) {
+                    this.normalizedLabel = null;
+                    this.collationKey = null;
+                }
             }
         }
         
@@ -160,8 +195,11 @@ public class ApplicationsState {
         }
     }
 
+    // Shared by all entries' collation keys, which are only comparable if
+    // they come from the same collator.  Synchronize on it to use it.
+    static final Collator sCollator = Collator.getInstance();
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,43 +209,99 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
         }
     };
 
-    public static final Comparator<AppEntry> SIZE_COMPARATOR
-            = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    /**
+     * Orders by one of the size fields, largest first, then by label.
+     * {@link #sortEntries} sorts with these on the sizes alone and only
+     * compares labels among entries of equal size.
+     */
+    static abstract class SizeComparator implements Comparator<AppEntry> {
+        abstract long getSize(AppEntry entry);
+
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
-            if (object1.size < object2.size) return 1;
-            if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            final long size1 = getSize(object1);
+            final long size2 = getSize(object2);
+            if (size1 < size2) return 1;
+            if (size1 > size2) return -1;
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
+        }
+    }
+
+    public static final Comparator<AppEntry> SIZE_COMPARATOR = new SizeComparator() {
+        @Override
+        long getSize(AppEntry entry) {
+            return entry.size;
         }
     };
 
-    public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
-            = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR = new SizeComparator() {
         @Override
-        public int compare(AppEntry object1, AppEntry object2) {
-            if (object1.internalSize < object2.internalSize) return 1;
-            if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+        long getSize(AppEntry entry) {
+            return entry.internalSize;
         }
     };
 
-    public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
-            = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR = new SizeComparator() {
         @Override
-        public int compare(AppEntry object1, AppEntry object2) {
-            if (object1.externalSize < object2.externalSize) return 1;
-            if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+        long getSize(AppEntry entry) {
+            return entry.externalSize;
         }
     };
 
+    // Layout of the packed keys used by sortEntries() for size order: the
+    // size, offset past the negative SIZE_* values and inverted so larger
+    // sizes sort first, above the index of the entry in the list.
+    static final int SORT_INDEX_BITS = 21;
+    static final long SORT_MAX_SIZE = (1L << (63 - SORT_INDEX_BITS)) - 1 + SIZE_INVALID;
+
+    /**
+     * Sorts the entries with the given comparator.  For the size
+     * comparators this sorts packed primitive keys and only touches the
+     * labels to break ties.
+     */
+    static void sortEntries(ArrayList<AppEntry> list, Comparator<AppEntry> comparator) {
+        final int N = list.size();
+        if (!(comparator instanceof SizeComparator) || N >= (1 << SORT_INDEX_BITS)) {
+            Collections.sort(list, comparator);
+            return;
+        }
+        final SizeComparator sizeComparator = (SizeComparator)comparator;
+        final long maxKey = (1L << (63 - SORT_INDEX_BITS)) - 1;
+        final long[] keys = new long[N];
+        for (int i=0; i<N; i++) {
+            long size = sizeComparator.getSize(list.get(i));
+            if (size < SIZE_INVALID || size > SORT_MAX_SIZE) {
+                Collections.sort(list, comparator);
+                return;
+            }
+            keys[i] = ((maxKey - (size - SIZE_INVALID)) << SORT_INDEX_BITS) | i;
+        }
+        Arrays.sort(keys);
+
+        final AppEntry[] sorted = new AppEntry[N];
+        final int indexMask = (1 << SORT_INDEX_BITS) - 1;
+        for (int i=0; i<N; i++) {
+            sorted[i] = list.get((int)(keys[i] & indexMask));
+        }
+        // Runs of equal size still need to be in label order.
+        int runStart = 0;
+        for (int i=1; i<=N; i++) {
+            if (i == N || (keys[i] >>> SORT_INDEX_BITS) != (keys[runStart] >>> SORT_INDEX_BITS)) {
+                if (i - runStart > 1) {
+                    Arrays.sort(sorted, runStart, i, comparator);
+                }
+                runStart = i;
+            }
+        }
+        for (int i=0; i<N; i++) {
+            list.set(i, sorted[i]);
+        }
+    }
+
     public static final AppFilter THIRD_PARTY_FILTER = new AppFilter() {
         public void init() {
         }
@@ -272,7 +366,8 @@ public class ApplicationsState {
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  Readers that don't need to change them
+    // should use mEntryTable instead.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
@@ -280,12 +375,80 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Whether the above changed since mEntryTable was last published.
+    boolean mEntryTableDirty;
+    // Sum of cacheSize over mAppEntries, kept up to date as sizes come in.
+    // Only changed with mEntriesMap held, along with the entries it sums.
+    final AtomicLong mCacheSizeTotal = new AtomicLong();
+    // Whether every entry needing a size has been handed to mSizeScheduler.
+    boolean mSizesQueued;
     boolean mSessionsChanged;
 
+    /**
+     * An immutable copy of the entries and applications, for reading
+     * without mEntriesMap.  The AppEntry objects themselves are shared, so
+     * their fields are still synchronized on the entry.
+     */
+    static final class EntryTable {
+        static final EntryTable EMPTY = new EntryTable(0, new HashMap<String, AppEntry>(),
+                new ArrayList<AppEntry>(), new ArrayList<ApplicationInfo>());
+
+        final int version;
+        final HashMap<String, AppEntry> entries;
+        final ArrayList<AppEntry> appEntries;
+        final ArrayList<ApplicationInfo> applications;
+
+        EntryTable(int version, HashMap<String, AppEntry> entries,
+                ArrayList<AppEntry> appEntries, ArrayList<ApplicationInfo> applications) {
+            this.version = version;
+            this.entries = entries;
+            this.appEntries = appEntries;
+            this.applications = applications;
+        }
+
+        AppEntry get(String packageName) {
+            return entries.get(packageName);
+        }
+
+        ApplicationInfo getApplication(String packageName) {
+            for (int i=applications.size()-1; i>=0; i--) {
+                ApplicationInfo info = applications.get(i);
+                if (info.packageName.equals(packageName)) {
+                    return info;
+                }
+            }
+            return null;
+        }
+    }
+
+    // What readers see of mEntriesMap, mAppEntries and mApplications.
+    // Replaced, never modified, whenever a batch of changes to them is done.
+    volatile EntryTable mEntryTable = EntryTable.EMPTY;
+
+    // How long labels loaded by mLoader collect before being published.
+    static final long PUBLISH_ENTRIES_DELAY = 100;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    // Loads labels and icons off the background thread; see MSG_LOAD_ENTRIES
+    // and MSG_LOAD_ICONS.
+    final AppEntryLoader mLoader;
+
+    // Labels and sizes saved at the end of the last full load.  Only
+    // touched by the background thread.
+    AppEntrySnapshot mSnapshot;
+
+    // How many getPackageSizeInfo calls to keep going at once.
+    static final int MAX_SIZE_REQUESTS = 4;
+    // How long to collect size changes before telling the sessions.
+    static final long SIZE_CHANGED_BATCH_DELAY = 200;
+    final PackageSizeScheduler mSizeScheduler = new PackageSizeScheduler(MAX_SIZE_REQUESTS,
+            PackageSizeScheduler.DEFAULT_TIMEOUT_MS);
+
+    // How long each part of loading took, for dump().
+    final AppLoadStats mStats = new AppLoadStats();
+
     /**
      * Receives notifications when applications are added/removed.
      */
@@ -366,8 +529,13 @@ public class ApplicationsState {
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
 
+        MainHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            final long start = SystemClock.elapsedRealtimeNanos();
             rebuildActiveSessions();
             switch (msg.what) {
                 case MSG_REBUILD_COMPLETE: {
@@ -387,12 +555,12 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
-                    }
+                    dispatchSizesChanged();
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
+                    // Anything still waiting in the batch goes out first.
+                    removeMessages(MSG_PACKAGE_SIZE_CHANGED);
+                    dispatchSizesChanged();
                     for (int i=0; i<mActiveSessions.size(); i++) {
                         mActiveSessions.get(i).mCallbacks.onAllSizesComputed();
                     }
@@ -404,10 +572,23 @@ public class ApplicationsState {
                     }
                 } break;
             }
+            mStats.noteCallbacks(SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    void dispatchSizesChanged() {
+        ArrayList<String> changed = mSizeScheduler.takeChanged();
+        if (changed.isEmpty()) {
+            return;
         }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i=0; i<mActiveSessions.size(); i++) {
+            mActiveSessions.get(i).mCallbacks.onPackageSizesChanged(changed);
+        }
+        mStats.noteSizeBatch(SystemClock.elapsedRealtimeNanos() - start);
     }
 
-    final MainHandler mMainHandler = new MainHandler();
+    final MainHandler mMainHandler = new MainHandler(Looper.getMainLooper());
 
     // --------------------------------------------------------------
 
@@ -424,12 +605,19 @@ public class ApplicationsState {
     }
 
     private ApplicationsState(Application app) {
-        mContext = app;
-        mPm = mContext.getPackageManager();
+        this(app, app.getPackageManager());
+    }
+
+    // For tests, which fill in the applications themselves.
+    ApplicationsState(Context context, PackageManager pm) {
+        mContext = context;
+        mPm = pm;
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mLoader = new AppEntryLoader(mContext, mPm, AppEntryLoader.defaultWorkerCount(),
+                mLoaderCallbacks);
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -476,31 +664,49 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // The last list we built and what it was built with, so a rebuild
+        // with the same filter and comparator only needs to apply the
+        // packages that changed since.  Only touched by the background thread.
+        ArrayList<AppEntry> mBaseList;
+        AppFilter mBaseFilter;
+        Comparator<AppEntry> mBaseComparator;
+
+        // Packages added, removed or resized since mBaseList was built, or
+        // mBaseInvalid if it can't be trusted at all.  Synchronized on mEntriesMap.
+        final HashSet<String> mPendingChanges = new HashSet<String>();
+        boolean mBaseInvalid = true;
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+            final long waitStart = SystemClock.elapsedRealtimeNanos();
             synchronized (mEntriesMap) {
+                final long holdStart = SystemClock.elapsedRealtimeNanos();
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
                     doResumeIfNeededLocked();
                 }
+                mStats.noteLock(waitStart, holdStart);
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
         }
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
+            final long waitStart = SystemClock.elapsedRealtimeNanos();
             synchronized (mEntriesMap) {
+                final long holdStart = SystemClock.elapsedRealtimeNanos();
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
                     mBackgroundHandler.removeMessages(BackgroundHandler.MSG_REBUILD_LIST, this);
                     doPauseIfNeededLocked();
                 }
+                mStats.noteLock(waitStart, holdStart);
                 if (DEBUG_LOCKING) Log.v(TAG, "...pause releasing lock");
             }
         }
@@ -508,7 +714,9 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
+                final long waitStart = SystemClock.elapsedRealtimeNanos();
                 synchronized (mEntriesMap) {
+                    final long holdStart = SystemClock.elapsedRealtimeNanos();
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -520,6 +728,7 @@ public class ApplicationsState {
                                 BackgroundHandler.MSG_REBUILD_LIST);
                         mBackgroundHandler.sendMessage(msg);
                     }
+                    mStats.noteLock(waitStart, holdStart);
                 }
 
                 // We will wait for .25s for the list to be built.
@@ -543,6 +752,10 @@ public class ApplicationsState {
         }
 
         void handleRebuildList() {
+            // On a cold start this lets the rebuild use saved labels instead
+            // of loading every one of them itself.
+            restoreFromSnapshot();
+
             AppFilter filter;
             Comparator<AppEntry> comparator;
             synchronized (mRebuildSync) {
@@ -558,33 +771,65 @@ public class ApplicationsState {
             }
 
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            final long start = SystemClock.elapsedRealtimeNanos();
+            long sortNs = 0;
 
             if (filter != null) {
                 filter.init();
             }
-            
-            List<ApplicationInfo> apps;
+
+            ArrayList<AppEntry> filteredApps = null;
+            ArrayList<String> changes = null;
             synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
+                if (!mBaseInvalid && mBaseList != null && filter == mBaseFilter
+                        && comparator == mBaseComparator
+                        && mPendingChanges.size() <= mBaseList.size() / 8) {
+                    changes = new ArrayList<String>(mPendingChanges);
+                }
+                mPendingChanges.clear();
+                mBaseInvalid = false;
             }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
-            for (int i=0; i<apps.size(); i++) {
-                ApplicationInfo info = apps.get(i);
-                if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+            // Everything below works from the published table, so nothing
+            // else waits on mEntriesMap while the list is being built.
+            if (changes != null) {
+                // Callers may still be holding on to the old list, so
+                // apply the changes to a copy.
+                filteredApps = new ArrayList<AppEntry>(mBaseList);
+                if (DEBUG) Log.i(TAG, "Applying " + changes.size() + " changes...");
+                applyChanges(filteredApps, changes, filter, comparator);
+            } else {
+                final List<ApplicationInfo> apps = mEntryTable.applications;
+                filteredApps = new ArrayList<AppEntry>();
+                if (DEBUG) Log.i(TAG, "Rebuilding...");
+                for (int i=0; i<apps.size(); i++) {
+                    ApplicationInfo info = apps.get(i);
+                    if (filter == null || filter.filterApp(info)) {
+                        AppEntry entry = obtainEntry(info);
                         entry.ensureLabel(mContext);
                         if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
                         filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
                 }
+
+                final long sortStart = SystemClock.elapsedRealtimeNanos();
+                sortEntries(filteredApps, comparator);
+                sortNs = SystemClock.elapsedRealtimeNanos() - sortStart;
             }
+            publishEntries();
 
-            Collections.sort(filteredApps, comparator);
+            mBaseList = filteredApps;
+            mBaseFilter = filter;
+            mBaseComparator = comparator;
+
+            // Measure what this list shows, in the order it shows it, first.
+            ArrayList<String> order = new ArrayList<String>(filteredApps.size());
+            for (int i=0; i<filteredApps.size(); i++) {
+                order.add(filteredApps.get(i).info.packageName);
+            }
+            mSizeScheduler.setOrder(order);
+            mStats.noteRebuild(SystemClock.elapsedRealtimeNanos() - start, sortNs,
+                    changes != null);
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
@@ -605,6 +850,36 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Brings the sorted list up to date for the given packages.  All of
+         * their old entries come out first, so what is left is in order
+         * again, then the current ones that still pass the filter are put
+         * back in the right places.
+         */
+        void applyChanges(ArrayList<AppEntry> list, List<String> pkgNames, AppFilter filter,
+                Comparator<AppEntry> comparator) {
+            final HashSet<String> changed = new HashSet<String>(pkgNames);
+            int kept = 0;
+            for (int i=0; i<list.size(); i++) {
+                AppEntry entry = list.get(i);
+                if (!changed.contains(entry.info.packageName)) {
+                    list.set(kept++, entry);
+                }
+            }
+            for (int i=list.size()-1; i>=kept; i--) {
+                list.remove(i);
+            }
+            for (int i=0; i<pkgNames.size(); i++) {
+                ApplicationInfo info = mEntryTable.getApplication(pkgNames.get(i));
+                if (info == null || (filter != null && !filter.filterApp(info))) {
+                    continue;
+                }
+                AppEntry entry = obtainEntry(info);
+                entry.ensureLabel(mContext);
+                insertSorted(list, entry, comparator);
+            }
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -613,6 +888,111 @@ public class ApplicationsState {
         }
     }
 
+    static void insertSorted(ArrayList<AppEntry> list, AppEntry entry,
+            Comparator<AppEntry> comparator) {
+        int idx = Collections.binarySearch(list, entry, comparator);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        list.add(idx, entry);
+    }
+
+    /**
+     * Lets every session know that a package was added, removed or
+     * changed size, so its next rebuild can just re-place it.
+     */
+    void notePackageChangedLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mPendingChanges.add(pkgName);
+        }
+    }
+
+    /**
+     * Forces every session's next rebuild to start from scratch.
+     */
+    void invalidateSessionListsLocked() {
+        for (int i=0; i<mSessions.size(); i++) {
+            Session s = mSessions.get(i);
+            s.mPendingChanges.clear();
+            s.mBaseInvalid = true;
+        }
+    }
+
+    /**
+     * Notes that mEntriesMap, mAppEntries or mApplications changed; they
+     * become visible to readers at the next publishEntriesLocked().
+     */
+    void entriesChangedLocked() {
+        mEntryTableDirty = true;
+    }
+
+    /**
+     * Publishes a new mEntryTable if anything changed since the last one.
+     * Writers call this once at the end of a batch of changes.
+     */
+    void publishEntriesLocked() {
+        if (!mEntryTableDirty) {
+            return;
+        }
+        mEntryTableDirty = false;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mEntryTable = new EntryTable(mEntryTable.version + 1,
+                new HashMap<String, AppEntry>(mEntriesMap),
+                new ArrayList<AppEntry>(mAppEntries),
+                new ArrayList<ApplicationInfo>(mApplications));
+        mStats.notePublish(SystemClock.elapsedRealtimeNanos() - start);
+        if (DEBUG) Log.i(TAG, "Published entry table " + mEntryTable.version);
+    }
+
+    void publishEntries() {
+        synchronized (mEntriesMap) {
+            publishEntriesLocked();
+        }
+    }
+
+    /**
+     * Returns the entry for an application, creating it if there isn't
+     * one yet.  The label of a new entry is loaded before taking
+     * mEntriesMap, so the lock is never held across the PackageManager.
+     * Entries not published yet are found too, so a label the loader
+     * already has isn't loaded again.
+     */
+    AppEntry obtainEntry(ApplicationInfo info) {
+        final long waitStart = SystemClock.elapsedRealtimeNanos();
+        synchronized (mEntriesMap) {
+            final long holdStart = SystemClock.elapsedRealtimeNanos();
+            AppEntry entry = mEntriesMap.get(info.packageName);
+            if (entry != null) {
+                if (entry.info != info) {
+                    entry.info = info;
+                }
+                mStats.noteLock(waitStart, holdStart);
+                return entry;
+            }
+            mStats.noteLock(waitStart, holdStart);
+        }
+
+        final boolean mounted = new File(info.sourceDir).exists();
+        CharSequence cs = mounted ? info.loadLabel(mPm) : null;
+        final String label = cs != null ? cs.toString() : info.packageName;
+        final long waitStart2 = SystemClock.elapsedRealtimeNanos();
+        synchronized (mEntriesMap) {
+            final long holdStart = SystemClock.elapsedRealtimeNanos();
+            // Someone else may have created it while the label loaded.
+            AppEntry entry = mEntriesMap.get(info.packageName);
+            if (entry == null) {
+                entry = new AppEntry(info, mCurId++, label, mounted);
+                mEntriesMap.put(info.packageName, entry);
+                mAppEntries.add(entry);
+                entriesChangedLocked();
+            } else if (entry.info != info) {
+                entry.info = info;
+            }
+            mStats.noteLock(waitStart2, holdStart);
+            return entry;
+        }
+    }
+
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
         synchronized (mEntriesMap) {
@@ -626,6 +1006,7 @@ public class ApplicationsState {
             return;
         }
         mResumed = true;
+        mStats.startRun();
         if (mPackageIntentReceiver == null) {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
@@ -634,12 +1015,15 @@ public class ApplicationsState {
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
+        invalidateSessionListsLocked();
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
+            mLoader.cancelAll();
             mEntriesMap.clear();
             mAppEntries.clear();
+            mCacheSizeTotal.set(0);
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -664,12 +1048,26 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        entriesChangedLocked();
+        publishEntriesLocked();
+        mSizeScheduler.clear();
+        mSizesQueued = false;
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
     }
 
+    void dump(String prefix, PrintWriter pw) {
+        final EntryTable table = mEntryTable;
+        pw.print(prefix); pw.print("ApplicationsState: resumed="); pw.print(mResumed);
+        pw.print(" applications="); pw.print(table.applications.size());
+        pw.print(" entries="); pw.print(table.appEntries.size());
+        pw.print(" table version="); pw.println(table.version);
+        pw.print(prefix); pw.print("  loader idle="); pw.print(mLoader.isIdle());
+        pw.print(" sizes pending="); pw.println(mSizeScheduler.getPendingCount());
+        mStats.dump(prefix + "  ", pw);
+    }
+
     public boolean haveDisabledApps() {
         return mHaveDisabledApps;
     }
@@ -691,21 +1089,17 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
-                }
+        final EntryTable table = mEntryTable;
+        AppEntry entry = table.get(packageName);
+        if (entry == null) {
+            // Installed but not loaded yet.
+            ApplicationInfo info = table.getApplication(packageName);
+            if (info != null) {
+                entry = obtainEntry(info);
+                publishEntries();
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return entry;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -716,29 +1110,35 @@ public class ApplicationsState {
             entry.ensureIconLocked(mContext, mPm);
         }
     }
+
+    /**
+     * Asks for the icon of an entry that is about to be shown, ahead of
+     * the rest of the background load.  MSG_PACKAGE_ICON_CHANGED is sent
+     * once it is available.
+     */
+    void requestIcon(AppEntry entry) {
+        if (entry.icon != null) {
+            return;
+        }
+        mLoader.loadIcon(entry, AppEntryLoader.PRIORITY_VISIBLE);
+    }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        if (mEntryTable.get(packageName) != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
+    /**
+     * Asks for the size of an entry that is about to be shown to be
+     * measured ahead of the others still waiting.
+     */
+    void requestSizeFirst(AppEntry entry) {
+        mSizeScheduler.prioritize(entry.info.packageName);
+    }
+
     long sumCacheSizes() {
-        long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
-        }
-        return sum;
+        return mCacheSizeTotal.get();
     }
     
     int indexOfApplicationInfoLocked(String pkgName) {
@@ -752,6 +1152,12 @@ public class ApplicationsState {
 
     void addPackage(String pkgName) {
         try {
+            if (!mResumed || mEntryTable.getApplication(pkgName) != null) {
+                // Not resumed means a full query on the next resume anyway.
+                return;
+            }
+            // Look the package up before taking the lock.
+            ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
             synchronized (mEntriesMap) {
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
                 if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
@@ -767,7 +1173,6 @@ public class ApplicationsState {
                     if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
                     return;
                 }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
                 if (!info.enabled) {
                     if (info.enabledSetting
                             != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
@@ -776,6 +1181,9 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                entriesChangedLocked();
+                publishEntriesLocked();
+                notePackageChangedLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -794,6 +1202,7 @@ public class ApplicationsState {
             int idx = indexOfApplicationInfoLocked(pkgName);
             if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
             if (idx >= 0) {
+                mLoader.cancel(pkgName);
                 AppEntry entry = mEntriesMap.get(pkgName);
                 if (DEBUG) Log.i(TAG, "removePackage: " + entry);
                 if (entry != null) {
@@ -802,6 +1211,14 @@ public class ApplicationsState {
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                entriesChangedLocked();
+                publishEntriesLocked();
+                if (entry != null) {
+                    synchronized (entry) {
+                        mCacheSizeTotal.addAndGet(-entry.cacheSize);
+                    }
+                }
+                notePackageChangedLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -823,19 +1240,160 @@ public class ApplicationsState {
         removePackage(pkgName);
         addPackage(pkgName);
     }
-    
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
-        if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
-        if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+
+    final AppEntryLoader.Callbacks mLoaderCallbacks = new AppEntryLoader.Callbacks() {
+        @Override
+        public void onLabelLoaded(ApplicationInfo info, String label, boolean mounted) {
+            final long waitStart = SystemClock.elapsedRealtimeNanos();
+            synchronized (mEntriesMap) {
+                final long holdStart = SystemClock.elapsedRealtimeNanos();
+                if (DEBUG_LOCKING) Log.v(TAG, "onLabelLoaded acquired lock");
+                // The package may have been removed or replaced while its
+                // label was loading; the next MSG_LOAD_ENTRIES picks up
+                // whatever is installed now.
+                final int idx = indexOfApplicationInfoLocked(info.packageName);
+                // A rebuild may also have needed this entry before we got to it.
+                if (idx < 0 || mApplications.get(idx) != info) {
+                    if (DEBUG) Log.i(TAG, "Dropping stale label for " + info.packageName);
+                } else if (mEntriesMap.get(info.packageName) == null) {
+                    AppEntry entry = new AppEntry(info, mCurId++, label, mounted);
+                    mEntriesMap.put(info.packageName, entry);
+                    mAppEntries.add(entry);
+                    entriesChangedLocked();
+                }
+                mStats.noteLock(waitStart, holdStart);
+                if (DEBUG_LOCKING) Log.v(TAG, "onLabelLoaded releasing lock");
+            }
+            // Labels come in one at a time; publish them in batches.
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_PUBLISH_ENTRIES)) {
+                mBackgroundHandler.sendEmptyMessageDelayed(BackgroundHandler.MSG_PUBLISH_ENTRIES,
+                        PUBLISH_ENTRIES_DELAY);
+            }
         }
-        return entry;
+
+        @Override
+        public void onIconLoaded(AppEntry entry) {
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+            }
+        }
+
+        @Override
+        public void onIdle() {
+            // Go back through the load sequence to pick up anything that
+            // arrived while the workers were busy, and move on from there.
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+            }
+        }
+    };
+
+    private File getSnapshotFile() {
+        return new File(mContext.getCacheDir(), AppEntrySnapshot.FILE_NAME);
+    }
+
+    private String getSnapshotLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    /**
+     * Creates entries for any applications we have saved labels and sizes
+     * for, so a cold start can show a full list right away.  Sizes are
+     * left stale and get measured again as usual.  Called on the
+     * background thread.
+     */
+    void restoreFromSnapshot() {
+        ArrayList<ApplicationInfo> missing = new ArrayList<ApplicationInfo>();
+        final EntryTable table = mEntryTable;
+        for (int i=0; i<table.applications.size(); i++) {
+            ApplicationInfo info = table.applications.get(i);
+            if (table.get(info.packageName) == null) {
+                missing.add(info);
+            }
+        }
+        if (missing.isEmpty()) {
+            // Nothing to restore, so no need to read the file.
+            return;
+        }
+
+        final String locale = getSnapshotLocale();
+        if (mSnapshot == null || !mSnapshot.mLocale.equals(locale)) {
+            mSnapshot = AppEntrySnapshot.read(getSnapshotFile(), locale);
+        }
+        if (mSnapshot.isEmpty()) {
+            return;
+        }
+
+        // Checking the records against their apks means a stat each, so
+        // do that before taking the lock.
+        ArrayList<AppEntrySnapshot.Record> records = new ArrayList<AppEntrySnapshot.Record>();
+        for (int i=missing.size()-1; i>=0; i--) {
+            AppEntrySnapshot.Record r = mSnapshot.get(missing.get(i));
+            if (r == null) {
+                missing.remove(i);
+            } else {
+                records.add(r);
+            }
+        }
+        Collections.reverse(records);
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        // Build the entries outside the lock too, with ids set aside for them.
+        long firstId;
+        synchronized (mEntriesMap) {
+            firstId = mCurId;
+            mCurId += missing.size();
+        }
+        ArrayList<AppEntry> restored = new ArrayList<AppEntry>(missing.size());
+        for (int i=0; i<missing.size(); i++) {
+            AppEntrySnapshot.Record r = records.get(i);
+            AppEntry entry = new AppEntry(missing.get(i), firstId + i, r.label, true);
+            r.applyTo(entry);
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+            restored.add(entry);
+        }
+
+        synchronized (mEntriesMap) {
+            if (DEBUG_LOCKING) Log.v(TAG, "restoreFromSnapshot acquired lock");
+            for (int i=0; i<restored.size(); i++) {
+                AppEntry entry = restored.get(i);
+                if (mEntriesMap.get(entry.info.packageName) != null) {
+                    continue;
+                }
+                mEntriesMap.put(entry.info.packageName, entry);
+                mAppEntries.add(entry);
+                mCacheSizeTotal.addAndGet(entry.cacheSize);
+            }
+            entriesChangedLocked();
+            publishEntriesLocked();
+            if (DEBUG) Log.i(TAG, "Restored " + restored.size() + " entries from snapshot");
+            if (DEBUG_LOCKING) Log.v(TAG, "restoreFromSnapshot releasing lock");
+        }
+    }
+
+    /**
+     * Saves the current labels and sizes for the next cold start.  Called
+     * on the background thread once all sizes are computed.
+     */
+    void saveSnapshot() {
+        final ArrayList<AppEntry> entries = mEntryTable.appEntries;
+        ArrayList<AppEntrySnapshot.Record> records
+                = new ArrayList<AppEntrySnapshot.Record>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            synchronized (entry) {
+                if (entry.mounted && entry.label != null) {
+                    records.add(AppEntrySnapshot.Record.fromEntryLocked(entry));
+                }
+            }
+        }
+        AppEntrySnapshot.write(getSnapshotFile(), getSnapshotLocale(), records);
+        // The file is now newer than anything we had left to restore.
+        mSnapshot = null;
     }
 
     // --------------------------------------------------------------
@@ -872,25 +1430,36 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_PUBLISH_ENTRIES = 5;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                // Worked out before taking any lock.
+                final long externalCodeSize = stats.externalCodeSize + stats.externalObbSize;
+                final long externalDataSize = stats.externalDataSize + stats.externalMediaSize;
+                final long internalSize = getTotalInternalSize(stats);
+                final long externalSize = getTotalExternalSize(stats);
+                final long newSize = externalCodeSize + externalDataSize + internalSize;
+                final String sizeStr = getSizeStr(newSize);
+                final String internalSizeStr = getSizeStr(internalSize);
+                final String externalSizeStr = getSizeStr(externalSize);
+                // Look in the map rather than the published table, so an
+                // entry created since the last publish gets its size too.
+                // Holding it also keeps mCacheSizeTotal in step with the
+                // entries that are actually there.
                 synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
                     AppEntry entry = mEntriesMap.get(stats.packageName);
                     if (entry != null) {
                         synchronized (entry) {
+                            if (entry.sizeLoadStart > 0) {
+                                mStats.noteSizeRequest(SystemClock.uptimeMillis()
+                                        - entry.sizeLoadStart);
+                            }
                             entry.sizeStale = false;
                             entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
                             if (entry.size != newSize ||
                                     entry.cacheSize != stats.cacheSize ||
                                     entry.codeSize != stats.codeSize ||
@@ -898,6 +1467,7 @@ public class ApplicationsState {
                                     entry.externalCodeSize != externalCodeSize ||
                                     entry.externalDataSize != externalDataSize ||
                                     entry.externalCacheSize != stats.externalCacheSize) {
+                                mCacheSizeTotal.addAndGet(stats.cacheSize - entry.cacheSize);
                                 entry.size = newSize;
                                 entry.cacheSize = stats.cacheSize;
                                 entry.codeSize = stats.codeSize;
@@ -905,29 +1475,28 @@ public class ApplicationsState {
                                 entry.externalCodeSize = externalCodeSize;
                                 entry.externalDataSize = externalDataSize;
                                 entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
+                                entry.sizeStr = sizeStr;
+                                entry.internalSize = internalSize;
+                                entry.internalSizeStr = internalSizeStr;
+                                entry.externalSize = externalSize;
+                                entry.externalSizeStr = externalSizeStr;
+                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " "
+                                        + entry + ": " + entry.sizeStr);
                                 sizeChanged = true;
                             }
                         }
                         if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                            notePackageChangedLocked(stats.packageName);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
-                    }
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
+                mSizeScheduler.onSizeComputed(stats.packageName, sizeChanged);
+                if (sizeChanged
+                        && !mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                    mMainHandler.sendEmptyMessageDelayed(MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                            SIZE_CHANGED_BATCH_DELAY);
+                }
+                sendEmptyMessage(MSG_LOAD_SIZES);
             }
         };
 
@@ -954,102 +1523,133 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_PUBLISH_ENTRIES: {
+                    publishEntries();
+                } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                    // Labels are loaded by mLoader, which comes back here
+                    // through onIdle() once it has drained its queue.
+                    restoreFromSnapshot();
+                    // Whatever the loader finished so far counts as done.
+                    publishEntries();
+                    int numQueued = 0;
+                    final EntryTable table = mEntryTable;
+                    for (int i=0; i<table.applications.size(); i++) {
+                        ApplicationInfo info = table.applications.get(i);
+                        if (table.get(info.packageName) == null) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
                                         MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                                 mMainHandler.sendMessage(m);
                             }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
-                            }
+                            mLoader.loadLabel(info, AppEntryLoader.PRIORITY_BACKGROUND);
+                            numQueued++;
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
-                    if (numDone >= 6) {
-                        sendEmptyMessage(MSG_LOAD_ENTRIES);
-                    } else {
+                    mStats.noteLabelsQueued(numQueued);
+                    if (numQueued == 0 && mLoader.isIdle()) {
+                        mStats.noteAllLabels();
+                        synchronized (mEntriesMap) {
+                            // Entries may have been added; look for ones
+                            // needing a size again.
+                            mSizesQueued = false;
+                        }
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
+                    int numQueued = 0;
+                    final ArrayList<AppEntry> entries = mEntryTable.appEntries;
+                    for (int i=0; i<entries.size(); i++) {
+                        AppEntry entry = entries.get(i);
+                        // An unmounted entry only needs another try if its
+                        // apk has come back.
+                        if (entry.icon == null
+                                || (!entry.mounted && entry.apkFile.exists())) {
+                            if (!mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
                             }
+                            mLoader.loadIcon(entry, AppEntryLoader.PRIORITY_BACKGROUND);
+                            numQueued++;
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
-                    if (numDone > 0) {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
-                        }
-                    }
-                    if (numDone >= 2) {
-                        sendEmptyMessage(MSG_LOAD_ICONS);
-                    } else {
+                    mStats.noteIconsQueued(numQueued);
+                    if (numQueued == 0 && mLoader.isIdle()) {
+                        mStats.noteAllIcons();
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    boolean allSizesComputed = false;
+                    final EntryTable table = mEntryTable;
+                    final long waitStart = SystemClock.elapsedRealtimeNanos();
                     synchronized (mEntriesMap) {
+                        final long holdStart = SystemClock.elapsedRealtimeNanos();
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                        if (!mSizesQueued) {
+                            for (int i=0; i<table.appEntries.size(); i++) {
+                                AppEntry entry = table.appEntries.get(i);
+                                if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
+                                    mSizeScheduler.enqueue(entry.info.packageName);
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
                             }
+                            mSizesQueued = true;
+                        }
+                        mStats.noteSizesPending(mSizeScheduler.getPendingCount());
+
+                        final long now = SystemClock.uptimeMillis();
+                        ArrayList<String> ready = mSizeScheduler.takeReady(now);
+                        for (int i=0; i<ready.size(); i++) {
+                            String pkgName = ready.get(i);
+                            AppEntry entry = table.get(pkgName);
+                            if (entry == null) {
+                                // Removed while it was waiting.
+                                mSizeScheduler.onSizeComputed(pkgName, false);
+                                continue;
+                            }
+                            if (!mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
+                            }
+                            entry.sizeLoadStart = now;
+                            mPm.getPackageSizeInfo(pkgName, mStatsObserver);
+                        }
+
+                        if (!mSizeScheduler.isIdle()) {
+                            // Answers that came in before we took the lock are
+                            // already accounted for above, so any wakeups they
+                            // queued can go.  Check back for requests that never
+                            // answer.
+                            removeMessages(MSG_LOAD_SIZES);
+                            sendEmptyMessageDelayed(MSG_LOAD_SIZES,
+                                    PackageSizeScheduler.DEFAULT_TIMEOUT_MS);
+                            mStats.noteLock(waitStart, holdStart);
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
                         }
+
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
+                            allSizesComputed = true;
                         }
+                        mStats.noteLock(waitStart, holdStart);
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (allSizesComputed) {
+                        mStats.noteAllSizes();
+                        saveSnapshot();
+                    }
                 } break;
             }
         }
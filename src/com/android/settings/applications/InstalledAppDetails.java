@@ -615,8 +615,8 @@ public class InstalledAppDetails extends Fragment
     }
 
     @Override
-    public void onPackageSizeChanged(String packageName) {
-        if (packageName.equals(mAppEntry.info.packageName)) {
+    public void onPackageSizesChanged(ArrayList<String> packageNames) {
+        if (packageNames.contains(mAppEntry.info.packageName)) {
             refreshSizeInfo();
         }
     }
@@ -43,6 +43,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFrameLayout;
@@ -78,6 +79,8 @@ import com.android.settings.applications.ApplicationsState.AppEntry;
 import com.android.settings.deviceinfo.StorageMeasurement;
 import com.android.settings.Utils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -209,6 +212,15 @@ public class ManageApplications extends Fragment implements
         private long mFreeStorage = 0, mAppStorage = 0, mTotalStorage = 0;
         private long mLastUsedStorage, mLastAppStorage, mLastFreeStorage;
 
+        // Filesystem stats are an IPC to the container service, so they are
+        // only asked for again after FILE_SYSTEM_STATS_INTERVAL or when
+        // something like a finished size pass makes them worth refreshing.
+        static final long FILE_SYSTEM_STATS_INTERVAL = 10 * 1000;
+        private long mFileSystemTotal, mFileSystemFree;
+        private long mLastFileSystemStats;
+        // The cache of all apps, counted as free, when last shown.
+        long mLastCacheSizes;
+
         final Runnable mRunningProcessesAvail = new Runnable() {
             public void run() {
                 handleRunningProcessesAvail();
@@ -236,6 +248,7 @@ public class ManageApplications extends Fragment implements
 
         public void setContainerService(IMediaContainerService containerService) {
             mContainerService = containerService;
+            invalidateFileSystemStats();
             updateStorageUsage();
         }
 
@@ -300,6 +313,7 @@ public class ManageApplications extends Fragment implements
         }
 
         public void resume(int sortOrder) {
+            invalidateFileSystemStats();
             if (mApplications != null) {
                 mApplications.resume(sortOrder);
             }
@@ -329,59 +343,49 @@ public class ManageApplications extends Fragment implements
             // Doesn't make sense for stuff that is not an app list.
             if (mApplications == null) return;
 
-            mFreeStorage = 0;
-            mAppStorage = 0;
-            mTotalStorage = 0;
+            if (mLastFileSystemStats == 0 || SystemClock.uptimeMillis() - mLastFileSystemStats
+                    >= FILE_SYSTEM_STATS_INTERVAL) {
+                refreshFileSystemStats();
+            }
+            mTotalStorage = mFileSystemTotal;
+            mFreeStorage = mFileSystemFree;
 
             if (mFilter == FILTER_APPS_SDCARD) {
-                if (mContainerService != null) {
-                    try {
-                        final long[] stats = mContainerService.getFileSystemStats(
-                                Environment.getExternalStorageDirectory().getPath());
-                        mTotalStorage = stats[0];
-                        mFreeStorage = stats[1];
-                    } catch (RemoteException e) {
-                        Log.w(TAG, "Problem in container service", e);
-                    }
-                }
-
-                if (mApplications != null) {
-                    final int N = mApplications.getCount();
-                    for (int i=0; i<N; i++) {
-                        ApplicationsState.AppEntry ae = mApplications.getAppEntry(i);
-                        mAppStorage += ae.externalCodeSize + ae.externalDataSize
-                                + ae.externalCacheSize;
-                    }
-                }
+                mAppStorage = mApplications.mTotals.getAppStorage(true, false);
             } else {
-                if (mContainerService != null) {
-                    try {
-                        final long[] stats = mContainerService.getFileSystemStats(
-                                Environment.getDataDirectory().getPath());
-                        mTotalStorage = stats[0];
-                        mFreeStorage = stats[1];
-                    } catch (RemoteException e) {
-                        Log.w(TAG, "Problem in container service", e);
-                    }
-                }
-
-                final boolean emulatedStorage = Environment.isExternalStorageEmulated();
-                if (mApplications != null) {
-                    final int N = mApplications.getCount();
-                    for (int i=0; i<N; i++) {
-                        ApplicationsState.AppEntry ae = mApplications.getAppEntry(i);
-                        mAppStorage += ae.codeSize + ae.dataSize;
-                        if (emulatedStorage) {
-                            mAppStorage += ae.externalCodeSize + ae.externalDataSize;
-                        }
-                    }
-                }
-                mFreeStorage += mApplicationsState.sumCacheSizes();
+                mAppStorage = mApplications.mTotals.getAppStorage(false,
+                        Environment.isExternalStorageEmulated());
+                mLastCacheSizes = mApplicationsState.sumCacheSizes();
+                mFreeStorage += mLastCacheSizes;
             }
 
             applyCurrentStorage();
         }
 
+        void invalidateFileSystemStats() {
+            mLastFileSystemStats = 0;
+        }
+
+        private void refreshFileSystemStats() {
+            mFileSystemTotal = 0;
+            mFileSystemFree = 0;
+            if (mContainerService == null) {
+                // Try again once it is bound.
+                return;
+            }
+            final String path = mFilter == FILTER_APPS_SDCARD
+                    ? Environment.getExternalStorageDirectory().getPath()
+                    : Environment.getDataDirectory().getPath();
+            try {
+                final long[] stats = mContainerService.getFileSystemStats(path);
+                mFileSystemTotal = stats[0];
+                mFileSystemFree = stats[1];
+            } catch (RemoteException e) {
+                Log.w(TAG, "Problem in container service", e);
+            }
+            mLastFileSystemStats = SystemClock.uptimeMillis();
+        }
+
         void applyCurrentStorage() {
             // If view hierarchy is not yet created, no views to update.
             if (mRootView == null) {
@@ -547,12 +551,15 @@ public class ManageApplications extends Fragment implements
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
+        final AppPrefixIndex mPrefixIndex = new AppPrefixIndex();
+        // Storage used by what mEntries shows, for the storage bar.
+        final AppStorageTotals mTotals = new AppStorageTotals();
 
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
                 ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                        = applyPrefixFilter(mPrefixIndex, constraint, mBaseEntries);
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
                 fr.count = entries.size();
@@ -562,7 +569,7 @@ public class ManageApplications extends Fragment implements
             @Override
             protected void publishResults(CharSequence constraint, FilterResults results) {
                 mCurFilterPrefix = constraint;
-                mEntries = (ArrayList<ApplicationsState.AppEntry>)results.values;
+                setEntries((ArrayList<ApplicationsState.AppEntry>)results.values);
                 notifyDataSetChanged();
                 mTab.updateStorageUsage();
             }
@@ -654,11 +661,11 @@ public class ManageApplications extends Fragment implements
                 // Don't have new list yet, but can continue using the old one.
                 return;
             }
-            mBaseEntries = entries;
+            setBaseEntries(entries);
             if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+                setEntries(applyPrefixFilter(mPrefixIndex, mCurFilterPrefix, mBaseEntries));
             } else {
-                mEntries = null;
+                setEntries(null);
             }
             notifyDataSetChanged();
             mTab.updateStorageUsage();
@@ -673,23 +680,35 @@ public class ManageApplications extends Fragment implements
             }
         }
 
-        ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
-                ArrayList<ApplicationsState.AppEntry> origEntries) {
+        private void setEntries(ArrayList<ApplicationsState.AppEntry> entries) {
+            if (entries != mEntries) {
+                mEntries = entries;
+                mTotals.setEntries(entries);
+            }
+        }
+
+        /**
+         * Takes a new list to filter, indexing its labels now rather than
+         * on each character typed.
+         */
+        private void setBaseEntries(ArrayList<ApplicationsState.AppEntry> entries) {
+            mBaseEntries = entries;
+            if (entries != null) {
+                mPrefixIndex.setEntries(entries);
+            }
+        }
+
+        /**
+         * What is shown for a typed prefix; only searches the index, which
+         * must already hold origEntries.
+         */
+        static ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(AppPrefixIndex index,
+                CharSequence prefix, ArrayList<ApplicationsState.AppEntry> origEntries) {
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
+                return index.query(prefixStr);
             }
         }
 
@@ -709,43 +728,68 @@ public class ManageApplications extends Fragment implements
             mTab.mListContainer.setVisibility(View.VISIBLE);
             mTab.mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
-            mBaseEntries = apps;
-            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            setBaseEntries(apps);
+            setEntries(applyPrefixFilter(mPrefixIndex, mCurFilterPrefix, mBaseEntries));
             notifyDataSetChanged();
             mTab.updateStorageUsage();
         }
 
         @Override
         public void onPackageListChanged() {
+            ArrayList<ApplicationsState.AppEntry> oldEntries = mBaseEntries;
             rebuild(false);
+            if (mBaseEntries != null && mBaseEntries == oldEntries) {
+                // Still showing the old list, whose labels may have changed.
+                mPrefixIndex.setEntries(mBaseEntries);
+            }
         }
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Rows that were bound before their icon was ready asked for it
+            // in getView(); fill them in now.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (holder.entry.icon != null
+                            && holder.appIcon.getDrawable() != holder.entry.icon) {
+                        holder.appIcon.setImageDrawable(holder.entry.icon);
+                    }
+                }
+            }
         }
 
         @Override
-        public void onPackageSizeChanged(String packageName) {
+        public void onPackageSizesChanged(ArrayList<String> packageNames) {
+            boolean totalsChanged = false;
+            for (int i=0; i<packageNames.size(); i++) {
+                AppEntry entry = mState.mEntryTable.get(packageNames.get(i));
+                if (entry != null && mTotals.update(entry)) {
+                    totalsChanged = true;
+                }
+            }
+            boolean updated = false;
             for (int i=0; i<mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
-                if (holder.entry.info.packageName.equals(packageName)) {
+                if (packageNames.contains(holder.entry.info.packageName)) {
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
-                    mTab.updateStorageUsage();
-                    return;
+                    updated = true;
                 }
             }
+            if (updated && mLastSortMode == SORT_ORDER_SIZE
+                    && packageNames.contains(mTab.mOwner.mCurrentPkgName)) {
+                // We got the size information for the last app the
+                // user viewed, and are sorting by size...  they may
+                // have cleared data, so we immediately want to resort
+                // the list with the new size to reflect it to the user.
+                rebuild(false);
+            }
+            // Cache of apps not in this list still counts as free space.
+            if (totalsChanged || mState.sumCacheSizes() != mTab.mLastCacheSizes) {
+                mTab.updateStorageUsage();
+            }
         }
 
         @Override
@@ -753,6 +797,7 @@ public class ManageApplications extends Fragment implements
             if (mLastSortMode == SORT_ORDER_SIZE) {
                 rebuild(false);
             }
+            mTab.invalidateFileSystemStats();
             mTab.updateStorageUsage();
         }
         
@@ -785,11 +830,16 @@ public class ManageApplications extends Fragment implements
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
                 if (entry.icon != null) {
                     holder.appIcon.setImageDrawable(entry.icon);
+                } else {
+                    holder.appIcon.setImageDrawable(null);
+                    mState.requestIcon(entry);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
+                if (entry.sizeStale) {
+                    mState.requestSizeFirst(entry);
+                }
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
                     holder.disabled.setVisibility(View.VISIBLE);
                     holder.disabled.setText(R.string.not_installed);
@@ -1074,6 +1124,24 @@ public class ManageApplications extends Fragment implements
         super.onDestroy();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // adb shell dumpsys activity com.android.settings reports how long
+        // the last few loads of the application list took, and how often
+        // the Running tab polled.
+        if (mApplicationsState != null) {
+            mApplicationsState.dump(prefix, writer);
+        }
+        for (int i=0; i<mTabs.size(); i++) {
+            TabInfo tab = mTabs.get(i);
+            if (tab.mRunningProcessesView != null
+                    && tab.mRunningProcessesView.mState != null) {
+                tab.mRunningProcessesView.mState.dump(prefix, writer);
+            }
+        }
+    }
+
     void updateOptionsMenu() {
         if (mOptionsMenu == null) {
             return;
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which packages to measure next and keeps a bounded number of
+ * size requests in flight.  Packages on screen go first, then packages in
+ * the order of the list being shown, then everything else in the order it
+ * was queued.  Size changes are collected so they can be delivered to the
+ * UI in batches.
+ *
+ * This only does the bookkeeping; the caller issues the requests returned
+ * by {@link #takeReady} and reports back through {@link #onSizeComputed}.
+ */
+class PackageSizeScheduler {
+    // Requests that haven't answered in this long are tried again.
+    static final long DEFAULT_TIMEOUT_MS = 20 * 1000;
+
+    // How many on-screen packages to remember; older ones have most likely
+    // scrolled off.
+    static final int MAX_VISIBLE = 32;
+
+    final int mMaxInFlight;
+    final long mTimeoutMs;
+
+    private final LinkedHashSet<String> mVisible = new LinkedHashSet<String>();
+    private LinkedHashSet<String> mQueue = new LinkedHashSet<String>();
+    private final HashMap<String, Long> mInFlight = new HashMap<String, Long>();
+    private final LinkedHashSet<String> mChanged = new LinkedHashSet<String>();
+
+    PackageSizeScheduler(int maxInFlight, long timeoutMs) {
+        mMaxInFlight = maxInFlight;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Forgets everything queued and in flight.
+     */
+    synchronized void clear() {
+        mVisible.clear();
+        mQueue.clear();
+        mInFlight.clear();
+    }
+
+    /**
+     * Adds a package to be measured, after anything already queued.
+     */
+    synchronized void enqueue(String packageName) {
+        if (!mInFlight.containsKey(packageName)) {
+            mQueue.add(packageName);
+        }
+    }
+
+    /**
+     * Moves queued packages into the order they are listed in, ahead of
+     * any not in the list.
+     */
+    synchronized void setOrder(List<String> packageNames) {
+        LinkedHashSet<String> queue = new LinkedHashSet<String>(mQueue.size());
+        for (int i=0; i<packageNames.size(); i++) {
+            String pkg = packageNames.get(i);
+            if (mQueue.contains(pkg)) {
+                queue.add(pkg);
+            }
+        }
+        queue.addAll(mQueue);
+        mQueue = queue;
+    }
+
+    /**
+     * Measures a queued package as soon as there is room, ahead of the rest.
+     */
+    synchronized void prioritize(String packageName) {
+        if (!mQueue.contains(packageName)) {
+            return;
+        }
+        mVisible.remove(packageName);
+        mVisible.add(packageName);
+        if (mVisible.size() > MAX_VISIBLE) {
+            Iterator<String> it = mVisible.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the packages to request now, and counts them as in flight.
+     */
+    synchronized ArrayList<String> takeReady(long now) {
+        ArrayList<String> ready = new ArrayList<String>();
+        if (!mInFlight.isEmpty()) {
+            Iterator<Map.Entry<String, Long>> it = mInFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                if (e.getValue() < now - mTimeoutMs) {
+                    // Never heard back; ask again.
+                    it.remove();
+                    mVisible.remove(e.getKey());
+                    ready.add(e.getKey());
+                }
+            }
+            for (int i=0; i<ready.size(); i++) {
+                mInFlight.put(ready.get(i), now);
+            }
+        }
+        while (mInFlight.size() < mMaxInFlight && !mVisible.isEmpty()) {
+            // Most recently shown first.
+            String pkg = null;
+            for (String p : mVisible) {
+                pkg = p;
+            }
+            mVisible.remove(pkg);
+            mQueue.remove(pkg);
+            mInFlight.put(pkg, now);
+            ready.add(pkg);
+        }
+        Iterator<String> it = mQueue.iterator();
+        while (mInFlight.size() < mMaxInFlight && it.hasNext()) {
+            String pkg = it.next();
+            it.remove();
+            mInFlight.put(pkg, now);
+            ready.add(pkg);
+        }
+        return ready;
+    }
+
+    /**
+     * Records that a measurement came back.  Returns false if it wasn't
+     * one we were waiting for.
+     */
+    synchronized boolean onSizeComputed(String packageName, boolean changed) {
+        if (changed) {
+            mChanged.add(packageName);
+        }
+        return mInFlight.remove(packageName) != null;
+    }
+
+    /**
+     * Returns and clears the packages whose size changed since last called.
+     */
+    synchronized ArrayList<String> takeChanged() {
+        ArrayList<String> changed = new ArrayList<String>(mChanged);
+        mChanged.clear();
+        return changed;
+    }
+
+    synchronized boolean hasChanged() {
+        return !mChanged.isEmpty();
+    }
+
+    synchronized boolean isIdle() {
+        return mQueue.isEmpty() && mInFlight.isEmpty();
+    }
+
+    /**
+     * Returns how many packages are queued or in flight.
+     */
+    synchronized int getPendingCount() {
+        return mQueue.size() + mInFlight.size();
+    }
+
+    synchronized boolean isQueuedOrInFlight(String packageName) {
+        return mQueue.contains(packageName) || mInFlight.containsKey(packageName);
+    }
+}
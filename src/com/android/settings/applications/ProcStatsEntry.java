@@ -65,11 +65,20 @@ public final class ProcStatsEntry implements Parcelable {
         mMaxPss = tmpTotals.maxPss;
         mAvgUss = tmpTotals.avgUss;
         mMaxUss = tmpTotals.maxUss;
-        mWeight = (weightWithTime ? mDuration : 1) * (useUss ? mAvgUss : mAvgPss);
+        mWeight = computeWeight(tmpTotals, useUss, weightWithTime);
         if (DEBUG) Log.d(TAG, "New proc entry " + proc.mName + ": dur=" + mDuration
                 + " avgpss=" + mAvgPss + " weight=" + mWeight);
     }
 
+    /**
+     * The weight an entry would have for the process data just computed
+     * into totals, without building the entry.
+     */
+    static long computeWeight(ProcessStats.ProcessDataCollection totals, boolean useUss,
+            boolean weightWithTime) {
+        return (weightWithTime ? totals.totalTime : 1) * (useUss ? totals.avgUss : totals.avgPss);
+    }
+
     public ProcStatsEntry(Parcel in) {
         mPackage = in.readString();
         mUid = in.readInt();
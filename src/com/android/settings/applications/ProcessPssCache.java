@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.RemoteException;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Remembers the memory (PSS) last measured for each running process, so
+ * each poll only has to ask the activity manager about processes whose
+ * numbers have expired.  Entries are keyed by pid and the sequence number
+ * of the poll that first saw that process with that pid, so a pid that is
+ * reused by a new process is measured again.
+ *
+ * Sampled from RunningState's background thread; dumped and cleared from
+ * wherever, so it synchronizes on itself, though not across the call to
+ * the provider.
+ */
+class ProcessPssCache {
+    // How long a measurement is good for: processes the user is likely to
+    // be looking at change quickly; cached ones mostly sit still.
+    static final long ACTIVE_TTL = 4000;
+    static final long CACHED_TTL = 30000;
+
+    /**
+     * Where measurements come from; normally the activity manager.
+     */
+    interface Provider {
+        long[] getProcessPss(int[] pids) throws RemoteException;
+    }
+
+    static final class Entry {
+        int startSeq;
+        long pss;
+        long time;
+        int lastSample;
+    }
+
+    private final Provider mProvider;
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+    private int mSample;
+    private int[] mRequest = new int[32];
+    private int[] mRequestIndex = new int[32];
+
+    // Since the process started, for dumpsys.
+    int mSamples;
+    int mCalls;
+    int mPidsRequested;
+    int mPidsCached;
+
+    ProcessPssCache(Provider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Fills in pss[i] for each of the first 'count' pids[i] in one call to
+     * the provider, for the ones that have no measurement younger than
+     * ttls[i]; the rest come from earlier measurements.  estimated[i] is
+     * set for values older than ACTIVE_TTL, which may be well off by now.
+     * Processes not in the list are forgotten.
+     */
+    void sample(int count, int[] pids, int[] startSeqs, long[] ttls, long now,
+            long[] pss, boolean[] estimated) throws RemoteException {
+        final int[] request = findExpired(count, pids, startSeqs, ttls, now, pss, estimated);
+        if (request == null) {
+            return;
+        }
+        // A round trip to the activity manager; don't hold up dump() or
+        // clear() for it.
+        long[] result = mProvider.getProcessPss(request);
+        synchronized (this) {
+            for (int i=0; i<request.length; i++) {
+                int index = mRequestIndex[i];
+                Entry entry = mEntries.get(request[i]);
+                // Unless cleared meanwhile, the entry is still this process's.
+                if (entry != null && entry.startSeq == startSeqs[index]) {
+                    entry.pss = result[i];
+                    entry.time = now;
+                }
+                pss[index] = result[i];
+                estimated[index] = false;
+            }
+        }
+    }
+
+    /**
+     * Fills in the values that can come from earlier measurements, and
+     * returns the pids that need measuring, or null if none do; where each
+     * goes in the results is left in mRequestIndex.
+     */
+    private synchronized int[] findExpired(int count, int[] pids, int[] startSeqs, long[] ttls,
+            long now, long[] pss, boolean[] estimated) {
+        mSample++;
+        mSamples++;
+        int numRequest = 0;
+        for (int i=0; i<count; i++) {
+            Entry entry = mEntries.get(pids[i]);
+            if (entry == null) {
+                entry = new Entry();
+                entry.startSeq = startSeqs[i];
+                entry.time = -1;
+                mEntries.put(pids[i], entry);
+            } else if (entry.startSeq != startSeqs[i]) {
+                entry.startSeq = startSeqs[i];
+                entry.time = -1;
+            }
+            entry.lastSample = mSample;
+            if (entry.time < 0 || now - entry.time >= ttls[i]) {
+                if (numRequest >= mRequest.length) {
+                    mRequest = grow(mRequest);
+                    mRequestIndex = grow(mRequestIndex);
+                }
+                mRequest[numRequest] = pids[i];
+                mRequestIndex[numRequest] = i;
+                numRequest++;
+            } else {
+                pss[i] = entry.pss;
+                estimated[i] = now - entry.time >= ACTIVE_TTL;
+                mPidsCached++;
+            }
+        }
+
+        // Drop processes that are gone.
+        for (int i=mEntries.size()-1; i>=0; i--) {
+            if (mEntries.valueAt(i).lastSample != mSample) {
+                mEntries.removeAt(i);
+            }
+        }
+
+        if (numRequest == 0) {
+            return null;
+        }
+        int[] request = new int[numRequest];
+        System.arraycopy(mRequest, 0, request, 0, numRequest);
+        mCalls++;
+        mPidsRequested += numRequest;
+        return request;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Process memory samples: "); pw.print(mSamples);
+        pw.print(", calls "); pw.print(mCalls);
+        pw.print(", pids measured "); pw.print(mPidsRequested);
+        pw.print(", from cache "); pw.println(mPidsCached);
+    }
+
+    private static int[] grow(int[] array) {
+        int[] newArray = new int[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessStats;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the process stats read for each duration window, so going back to
+ * a window already shown needs no call to the service and no parsing.
+ *
+ * Stats keep changing for as long as processes run, and the service has
+ * nothing cheap to ask that says by how much, so a window is only used
+ * until VALIDATE_INTERVAL past the time its stats run up to, and is then
+ * read again.  Each read also drops every other window that no longer
+ * matches it: ones running up to a time that far behind, or ahead, as
+ * after the service restarted.  Windows are dropped least recently used
+ * first once their stats add up to more than MAX_BYTES as read from the
+ * service.
+ *
+ * get() is called from the UI thread and load() from a worker, so
+ * everything synchronizes on this, except the reading itself.
+ */
+class ProcessStatsCache {
+    static final String TAG = "ProcessStatsCache";
+
+    static final long VALIDATE_INTERVAL = 60*1000;
+    static final long MAX_BYTES = 512*1024;
+
+    static final class Window {
+        final long duration;
+        final ProcessStats stats;
+        final int memState;
+        final long size;
+        // The elapsed realtime the stats run up to.
+        final long statsTime;
+
+        Window(long _duration, ProcessStats _stats, int _memState, long _size, long now) {
+            duration = _duration;
+            stats = _stats;
+            memState = _memState;
+            size = _size;
+            statsTime = stats.mTimePeriodEndRealtime > 0 ? stats.mTimePeriodEndRealtime : now;
+        }
+
+        boolean isCurrent(long now) {
+            return now >= statsTime && now - statsTime < VALIDATE_INTERVAL;
+        }
+    }
+
+    static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int num = super.read(buffer, offset, count);
+            if (num > 0) {
+                mCount += num;
+            }
+            return num;
+        }
+    }
+
+    private final IProcessStats mService;
+    private final long mMaxBytes;
+    // In access order, so the first is the least recently used.
+    private final LinkedHashMap<Long, Window> mWindows = new LinkedHashMap<Long, Window>(
+            4, 0.75f, true);
+    private long mBytes;
+
+    // Since the process started, for dumpsys.
+    int mHits;
+    int mReads;
+    int mEvictions;
+
+    ProcessStatsCache(IProcessStats service) {
+        this(service, MAX_BYTES);
+    }
+
+    ProcessStatsCache(IProcessStats service, long maxBytes) {
+        mService = service;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the window if it can be used without asking the service,
+     * else null.
+     */
+    synchronized Window get(long duration, long now) {
+        Window win = mWindows.get(duration);
+        if (win != null && win.isCurrent(now)) {
+            mHits++;
+            return win;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the window, reading it from the service if needed.  Call off
+     * the UI thread.  Returns null if it couldn't be read.
+     */
+    Window load(long duration, long now) {
+        Window win = get(duration, now);
+        if (win != null) {
+            return win;
+        }
+        try {
+            win = read(duration, mService.getCurrentMemoryState(), now);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+        synchronized (this) {
+            mReads++;
+            Window old = mWindows.put(duration, win);
+            if (old != null) {
+                mBytes -= old.size;
+            }
+            // Whatever doesn't match what was just read is out of date.
+            Iterator<Window> it = mWindows.values().iterator();
+            while (it.hasNext()) {
+                Window other = it.next();
+                if (other != win && !other.isCurrent(win.statsTime)) {
+                    mBytes -= other.size;
+                    it.remove();
+                }
+            }
+            mBytes += win.size;
+            trimLocked();
+        }
+        return win;
+    }
+
+    private Window read(long duration, int memState, long now) throws RemoteException {
+        ParcelFileDescriptor pfd = mService.getStatsOverTime(duration);
+        ProcessStats stats = new ProcessStats(false);
+        CountingInputStream is = new CountingInputStream(
+                new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+        stats.read(is);
+        try {
+            is.close();
+        } catch (IOException e) {
+        }
+        if (stats.mReadError != null) {
+            Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+        }
+        return new Window(duration, stats, memState, is.mCount, now);
+    }
+
+    private void trimLocked() {
+        Iterator<Window> it = mWindows.values().iterator();
+        // Always keep the one just used, whatever its size.
+        while (mBytes > mMaxBytes && mWindows.size() > 1) {
+            Window win = it.next();
+            mBytes -= win.size;
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Forgets every window, so the next load reads it again.
+     */
+    synchronized void clear() {
+        mWindows.clear();
+        mBytes = 0;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized int getWindowCount() {
+        return mWindows.size();
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Process stats windows: "); pw.print(mWindows.size());
+        pw.print(", "); pw.print(mBytes); pw.println(" bytes");
+        pw.print(prefix); pw.print("  hits "); pw.print(mHits);
+        pw.print(", reads "); pw.print(mReads);
+        pw.print(", evictions "); pw.println(mEvictions);
+    }
+}
@@ -18,9 +18,9 @@ package com.android.settings.applications;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserManager;
@@ -42,11 +42,12 @@ import com.android.internal.app.ProcessStats;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.PriorityQueue;
 
 public class ProcessStatsUi extends PreferenceFragment
         implements LinearColorBar.OnRegionTappedListener {
@@ -86,6 +87,8 @@ public class ProcessStatsUi extends PreferenceFragment
     };
 
     private static ProcessStats sStatsXfer;
+    // Shared by every instance, so windows read survive leaving the screen.
+    private static ProcessStatsCache sCache;
 
     IProcessStats mProcessStats;
     UserManager mUm;
@@ -112,6 +115,8 @@ public class ProcessStatsUi extends PreferenceFragment
     long mMaxWeight;
     long mTotalTime;
 
+    private RefreshTask mRefreshTask;
+
     // The actual duration value to use for each duration option.  Note these
     // are lower than the actual duration, since our durations are computed in
     // batches of 3 hours so we want to allow the time we use to be slightly
@@ -138,6 +143,11 @@ public class ProcessStatsUi extends PreferenceFragment
         addPreferencesFromResource(R.xml.process_stats_summary);
         mProcessStats = IProcessStats.Stub.asInterface(
                 ServiceManager.getService(ProcessStats.SERVICE_NAME));
+        synchronized (ProcessStatsUi.class) {
+            if (sCache == null) {
+                sCache = new ProcessStatsCache(mProcessStats);
+            }
+        }
         mUm = (UserManager)getActivity().getSystemService(Context.USER_SERVICE);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         mMemStatusPref = mAppListGroup.findPreference(KEY_MEM_STATUS);
@@ -160,6 +170,10 @@ public class ProcessStatsUi extends PreferenceFragment
     @Override
     public void onPause() {
         super.onPause();
+        if (mRefreshTask != null) {
+            mRefreshTask.cancel(false);
+            mRefreshTask = null;
+        }
     }
 
     @Override
@@ -180,6 +194,14 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (sCache != null) {
+            sCache.dump(prefix, writer);
+        }
+    }
+
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (!(preference instanceof ProcessStatsPreference)) {
@@ -280,6 +302,7 @@ public class ProcessStatsUi extends PreferenceFragment
         switch (id) {
             case MENU_STATS_REFRESH:
                 mStats = null;
+                sCache.clear();
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -344,30 +367,178 @@ public class ProcessStatsUi extends PreferenceFragment
             ProcessStats.ADJ_MEM_FACTOR_MODERATE
     };
 
-    private String makeDuration(long time) {
+    private static String makeDuration(long time) {
         StringBuilder sb = new StringBuilder(32);
         TimeUtils.formatDuration(time, sb);
         return sb.toString();
     }
 
+    /**
+     * What is to be shown, captured on the UI thread for RefreshTask.
+     */
+    static final class StatsRequest {
+        ProcessStats stats;
+        int memState;
+        long duration;
+        int[] procStates;
+        int memRegion;
+        boolean useUss;
+        boolean weightWithTime;
+    }
+
+    /**
+     * What RefreshTask worked out: the entries to list, in order, with
+     * their UI data and icons already loaded.
+     */
+    static final class StatsResult {
+        ProcessStats stats;
+        int memState = -1;
+        long totalTime;
+        long[] memTimes;
+        long memTotalTime;
+        long maxWeight;
+        final ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+        final ArrayList<Drawable> icons = new ArrayList<Drawable>();
+    }
+
+    /**
+     * A process that may be listed; only its weight is known until it
+     * makes it into the list.
+     */
+    static final class Candidate {
+        final ProcessStats.ProcessState proc;
+        final long weight;
+        final long duration;
+        boolean chosen;
+        ProcStatsEntry entry;
+
+        Candidate(ProcessStats.ProcessState _proc, long _weight, long _duration) {
+            proc = _proc;
+            weight = _weight;
+            duration = _duration;
+        }
+    }
+
+    // The reverse of sEntryCompare, so a heap of the best has the worst on top.
+    final static Comparator<Candidate> sCandidateCompare = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            if (lhs.weight < rhs.weight) {
+                return -1;
+            } else if (lhs.weight > rhs.weight) {
+                return 1;
+            } else if (lhs.duration < rhs.duration) {
+                return -1;
+            } else if (lhs.duration > rhs.duration) {
+                return 1;
+            }
+            return 0;
+        }
+    };
+
+    private static void offer(PriorityQueue<Candidate> best, Candidate cand) {
+        if (best.size() < MAX_ITEMS_TO_LIST) {
+            best.add(cand);
+        } else if (sCandidateCompare.compare(cand, best.peek()) > 0) {
+            best.poll();
+            best.add(cand);
+        }
+    }
+
+    /**
+     * Loads the stats if needed and works out the list off the UI thread,
+     * so switching what is shown doesn't hold up the menu.
+     */
+    final class RefreshTask extends AsyncTask<Void, Void, StatsResult> {
+        final StatsRequest mRequest;
+        final ProcessStatsCache mCache;
+        final PackageManager mPm;
+
+        RefreshTask(StatsRequest request) {
+            mRequest = request;
+            mCache = sCache;
+            mPm = getActivity().getPackageManager();
+        }
+
+        @Override
+        protected StatsResult doInBackground(Void... params) {
+            StatsResult result = new StatsResult();
+            if (mRequest.stats != null) {
+                result.stats = mRequest.stats;
+                result.memState = mRequest.memState;
+            } else {
+                ProcessStatsCache.Window win = mCache.load(mRequest.duration,
+                        SystemClock.elapsedRealtime());
+                if (win != null) {
+                    result.stats = win.stats;
+                    result.memState = win.memState;
+                }
+            }
+            if (result.stats != null && !isCancelled()) {
+                computeStats(mPm, mRequest, result);
+            }
+            return result;
+        }
+
+        @Override
+        protected void onPostExecute(StatsResult result) {
+            if (mRefreshTask != this) {
+                return;
+            }
+            mRefreshTask = null;
+            if (getActivity() == null || result.stats == null) {
+                return;
+            }
+            mStats = result.stats;
+            mLastDuration = mRequest.duration;
+            mMemState = result.memState;
+            showStats(mRequest, result);
+        }
+    }
+
     private void refreshStats() {
         updateMenus();
 
-        if (mStats == null || mLastDuration != mDuration) {
-            load();
+        StatsRequest request = new StatsRequest();
+        if (mStats != null && mLastDuration == mDuration) {
+            request.stats = mStats;
+            request.memState = mMemState;
+        } else {
+            // A window already read recently can be shown without asking
+            // the service anything.
+            ProcessStatsCache.Window win = sCache.get(mDuration, SystemClock.elapsedRealtime());
+            if (win != null) {
+                request.stats = win.stats;
+                request.memState = win.memState;
+            }
         }
+        request.duration = mDuration;
+        if (mStatsType == MENU_TYPE_FOREGROUND) {
+            request.procStates = FOREGROUND_PROC_STATES;
+        } else if (mStatsType == MENU_TYPE_CACHED) {
+            request.procStates = CACHED_PROC_STATES;
+        } else {
+            request.procStates = mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
+                    : ProcessStats.BACKGROUND_PROC_STATES;
+        }
+        request.memRegion = mMemRegion;
+        request.useUss = mUseUss;
+        request.weightWithTime = mStatsType == MENU_TYPE_BACKGROUND;
 
-        int[] stats;
+        if (mRefreshTask != null) {
+            mRefreshTask.cancel(false);
+        }
+        mRefreshTask = new RefreshTask(request);
+        mRefreshTask.execute();
+    }
+
+    private void showStats(StatsRequest request, StatsResult result) {
         int statsLabel;
         if (mStatsType == MENU_TYPE_FOREGROUND) {
-            stats = FOREGROUND_PROC_STATES;
             statsLabel = R.string.process_stats_type_foreground;
         } else if (mStatsType == MENU_TYPE_CACHED) {
-            stats = CACHED_PROC_STATES;
             statsLabel = R.string.process_stats_type_cached;
         } else {
-            stats = mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
-                    : ProcessStats.BACKGROUND_PROC_STATES;
             statsLabel = R.string.process_stats_type_background;
         }
 
@@ -400,99 +571,177 @@ public class ProcessStatsUi extends PreferenceFragment
         mAppListGroup.addPreference(hist);
         */
 
-        long now = SystemClock.uptimeMillis();
+        mTotalTime = result.totalTime;
+        mMaxWeight = result.maxWeight;
+
+        final long[] memTimes = result.memTimes;
+        LinearColorPreference colors = new LinearColorPreference(getActivity());
+        colors.setOrder(-1);
+        colors.setOnRegionTappedListener(this);
+        switch (request.memRegion) {
+            case LinearColorBar.REGION_RED:
+                colors.setColoredRegions(LinearColorBar.REGION_RED);
+                break;
+            case LinearColorBar.REGION_YELLOW:
+                colors.setColoredRegions(LinearColorBar.REGION_RED
+                        | LinearColorBar.REGION_YELLOW);
+                break;
+            default:
+                colors.setColoredRegions(LinearColorBar.REGION_ALL);
+                break;
+        }
+        colors.setRatios(memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL] / (float)mTotalTime,
+                (memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
+                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]) / (float)mTotalTime,
+                memTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL] / (float)mTotalTime);
+        mAppListGroup.addPreference(colors);
+
+        if (DEBUG) Log.d(TAG, "-------------------- BUILDING UI");
 
-        final PackageManager pm = getActivity().getPackageManager();
+        for (int i=0, N=result.entries.size(); i<N; i++) {
+            ProcStatsEntry proc = result.entries.get(i);
+            final double percentOfWeight = (((double)proc.mWeight) / mMaxWeight) * 100;
+            final double percentOfTime = (((double)proc.mDuration) / result.memTotalTime) * 100;
+            ProcessStatsPreference pref = new ProcessStatsPreference(getActivity(), null, proc);
+            pref.setTitle(proc.mUiLabel);
+            Drawable icon = result.icons.get(i);
+            if (icon != null) {
+                pref.setIcon(icon);
+            }
+            pref.setOrder(i);
+            pref.setPercent(percentOfWeight, percentOfTime);
+            mAppListGroup.addPreference(pref);
+        }
+    }
+
+    /**
+     * Picks the entries to list and loads what they show.  Every process
+     * only gets its weight computed; the full entry, with its packages,
+     * services, label and icon, is built just for the ones listed.
+     */
+    static void computeStats(PackageManager pm, StatsRequest request, StatsResult result) {
+        final ProcessStats stats = result.stats;
+        long now = SystemClock.uptimeMillis();
 
-        mTotalTime = ProcessStats.dumpSingleTime(null, null, mStats.mMemFactorDurations,
-                mStats.mMemFactor, mStats.mStartTime, now);
-        if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(mTotalTime));
+        result.totalTime = ProcessStats.dumpSingleTime(null, null, stats.mMemFactorDurations,
+                stats.mMemFactor, stats.mStartTime, now);
+        if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(result.totalTime));
 
         long[] memTimes = new long[ProcessStats.ADJ_MEM_FACTOR_COUNT];
         for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
             for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
                 int state = imem+iscreen;
-                memTimes[imem] += mStats.mMemFactorDurations[state];
+                memTimes[imem] += stats.mMemFactorDurations[state];
             }
         }
+        result.memTimes = memTimes;
 
         long memTotalTime;
         int[] memStates;
-
-        LinearColorPreference colors = new LinearColorPreference(getActivity());
-        colors.setOrder(-1);
-        colors.setOnRegionTappedListener(this);
-        switch (mMemRegion) {
+        switch (request.memRegion) {
             case LinearColorBar.REGION_RED:
-                colors.setColoredRegions(LinearColorBar.REGION_RED);
                 memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
                 memStates = RED_MEM_STATES;
                 break;
             case LinearColorBar.REGION_YELLOW:
-                colors.setColoredRegions(LinearColorBar.REGION_RED
-                        | LinearColorBar.REGION_YELLOW);
                 memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
                         + memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
                         + memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
                 memStates = YELLOW_MEM_STATES;
                 break;
             default:
-                colors.setColoredRegions(LinearColorBar.REGION_ALL);
-                memTotalTime = mTotalTime;
+                memTotalTime = result.totalTime;
                 memStates = ProcessStats.ALL_MEM_ADJ;
                 break;
         }
-        colors.setRatios(memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL] / (float)mTotalTime,
-                (memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]) / (float)mTotalTime,
-                memTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL] / (float)mTotalTime);
-        mAppListGroup.addPreference(colors);
+        result.memTotalTime = memTotalTime;
 
         ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
-                ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
-
-        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+                ProcessStats.ALL_SCREEN_ADJ, memStates, request.procStates);
+
+        if (DEBUG) Log.d(TAG, "-------------------- WEIGHING PROCESSES");
+
+        // A process is listed if it is within a hundredth of the heaviest, or
+        // ran for a third of the time, and only the first MAX_ITEMS_TO_LIST
+        // of those by weight are.  Whatever else passes is lighter than
+        // everything listed, so keeping the heaviest few overall and the
+        // heaviest few that ran that long is enough.
+        final PriorityQueue<Candidate> heaviest = new PriorityQueue<Candidate>(
+                MAX_ITEMS_TO_LIST, sCandidateCompare);
+        final PriorityQueue<Candidate> longest = new PriorityQueue<Candidate>(
+                MAX_ITEMS_TO_LIST, sCandidateCompare);
+        final ProcessMap<Candidate> candidates = new ProcessMap<Candidate>();
+        for (int ipkg=0, N=stats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+            final SparseArray<ProcessStats.PackageState> pkgUids
+                    = stats.mPackages.getMap().valueAt(ipkg);
+            for (int iu=0; iu<pkgUids.size(); iu++) {
+                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
+                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
+                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                    final ProcessStats.ProcessState proc = stats.mProcesses.get(pkgProc.mName,
+                            pkgProc.mUid);
+                    if (proc == null) {
+                        Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                + "/" + st.mUid + " proc name " + pkgProc.mName);
+                        continue;
+                    }
+                    if (candidates.get(proc.mName, proc.mUid) != null) {
+                        continue;
+                    }
+                    ProcessStats.computeProcessData(proc, totals, 0);
+                    Candidate cand = new Candidate(proc, ProcStatsEntry.computeWeight(totals,
+                            request.useUss, request.weightWithTime), totals.totalTime);
+                    candidates.put(proc.mName, proc.mUid, cand);
+                    if (cand.duration <= 0) {
+                        continue;
+                    }
+                    offer(heaviest, cand);
+                    if ((((double)cand.duration) / memTotalTime) * 100 >= 33) {
+                        offer(longest, cand);
+                    }
+                }
+            }
+        }
 
-        /*
-        ArrayList<ProcessStats.ProcessState> rawProcs = mStats.collectProcessesLocked(
-                ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
-                ProcessStats.BACKGROUND_PROC_STATES, now, null);
-        for (int i=0, N=(rawProcs != null ? rawProcs.size() : 0); i<N; i++) {
-            procs.add(new ProcStatsEntry(rawProcs.get(i), totals));
+        long maxWeight = 1;
+        for (Candidate cand : heaviest) {
+            if (maxWeight < cand.weight) {
+                maxWeight = cand.weight;
+            }
+            cand.chosen = true;
         }
-        */
+        for (Candidate cand : longest) {
+            cand.chosen = true;
+        }
+        result.maxWeight = maxWeight;
 
         if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
 
+        final ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
         final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+        for (int ipkg=0, N=stats.mPackages.getMap().size(); ipkg<N; ipkg++) {
             final SparseArray<ProcessStats.PackageState> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
+                    = stats.mPackages.getMap().valueAt(ipkg);
             for (int iu=0; iu<pkgUids.size(); iu++) {
                 final ProcessStats.PackageState st = pkgUids.valueAt(iu);
                 for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
                     final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                    final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                            pkgProc.mUid);
-                    if (proc == null) {
-                        Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                + "/" + st.mUid + " proc name " + pkgProc.mName);
+                    final Candidate cand = candidates.get(pkgProc.mName, pkgProc.mUid);
+                    if (cand == null || !cand.chosen) {
                         continue;
                     }
-                    ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                    if (ent == null) {
-                        ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                mStatsType == MENU_TYPE_BACKGROUND);
-                        if (ent.mDuration > 0) {
-                            if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                    + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
-                                    + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
-                                    + " pss=" + ent.mAvgPss);
-                            entriesMap.put(proc.mName, proc.mUid, ent);
-                            entries.add(ent);
-                        }
-                    }  else {
-                        ent.addPackage(st.mPackageName);
+                    final ProcessStats.ProcessState proc = cand.proc;
+                    if (cand.entry == null) {
+                        cand.entry = new ProcStatsEntry(proc, st.mPackageName, totals,
+                                request.useUss, request.weightWithTime);
+                        if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
+                                + proc.mUid + ": time=" + makeDuration(cand.entry.mDuration)
+                                + " (" + ((((double)cand.entry.mDuration) / memTotalTime) * 100)
+                                + "%)" + " pss=" + cand.entry.mAvgPss);
+                        entriesMap.put(proc.mName, proc.mUid, cand.entry);
+                        entries.add(cand.entry);
+                    } else {
+                        cand.entry.addPackage(st.mPackageName);
                     }
                 }
             }
@@ -501,9 +750,9 @@ public class ProcessStatsUi extends PreferenceFragment
         if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
 
         // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
-                SparseArray<ProcessStats.PackageState> uids = mStats.mPackages.getMap().valueAt(ip);
+        if (request.weightWithTime) {
+            for (int ip=0, N=stats.mPackages.getMap().size(); ip<N; ip++) {
+                SparseArray<ProcessStats.PackageState> uids = stats.mPackages.getMap().valueAt(ip);
                 for (int iu=0; iu<uids.size(); iu++) {
                     ProcessStats.PackageState ps = uids.valueAt(iu);
                     for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
@@ -515,7 +764,7 @@ public class ProcessStatsUi extends PreferenceFragment
                                         + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
                                         + ss.mProcessName);
                                 ent.addService(ss);
-                            } else {
+                            } else if (candidates.get(ss.mProcessName, uids.keyAt(iu)) == null) {
                                 Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
                                         + " for service " + ss.mName);
                             }
@@ -525,45 +774,11 @@ public class ProcessStatsUi extends PreferenceFragment
             }
         }
 
-        /*
-        SparseArray<ArrayMap<String, ProcStatsEntry>> processes
-                = new SparseArray<ArrayMap<String, ProcStatsEntry>>();
-        for (int ip=0, N=mStats.mProcesses.getMap().size(); ip<N; ip++) {
-            SparseArray<ProcessStats.ProcessState> uids = mStats.mProcesses.getMap().valueAt(ip);
-            for (int iu=0; iu<uids.size(); iu++) {
-                ProcessStats.ProcessState st = uids.valueAt(iu);
-                ProcStatsEntry ent = new ProcStatsEntry(st, totals, mUseUss,
-                        mStatsType == MENU_TYPE_BACKGROUND);
-                if (ent.mDuration > 0) {
-                    if (DEBUG) Log.d(TAG, "Adding proc " + st.mName + "/" + st.mUid + ": time="
-                            + makeDuration(ent.mDuration) + " ("
-                            + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)");
-                    procs.add(ent);
-                    ArrayMap<String, ProcStatsEntry> uidProcs = processes.get(ent.mUid);
-                    if (uidProcs == null) {
-                        uidProcs = new ArrayMap<String, ProcStatsEntry>();
-                        processes.put(ent.mUid, uidProcs);
-                    }
-                    uidProcs.put(ent.mName, ent);
-                }
-            }
-        }
-        */
-
         Collections.sort(entries, sEntryCompare);
 
-        long maxWeight = 1;
-        for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
-            ProcStatsEntry proc = entries.get(i);
-            if (maxWeight < proc.mWeight) {
-                maxWeight = proc.mWeight;
-            }
-        }
-        mMaxWeight = maxWeight;
-
-        if (DEBUG) Log.d(TAG, "-------------------- BUILDING UI");
+        if (DEBUG) Log.d(TAG, "-------------------- LOADING UI DATA");
 
-        for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
+        for (int i=0, N=entries.size(); i<N; i++) {
             ProcStatsEntry proc = entries.get(i);
             final double percentOfWeight = (((double)proc.mWeight) / maxWeight) * 100;
             final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
@@ -572,41 +787,15 @@ public class ProcessStatsUi extends PreferenceFragment
                         + " time=" + percentOfTime);
                 continue;
             }
-            ProcessStatsPreference pref = new ProcessStatsPreference(getActivity(), null, proc);
-            proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
-                    mStatsType == MENU_TYPE_BACKGROUND);
+            proc.evaluateTargetPackage(pm, stats, totals, sEntryCompare, request.useUss,
+                    request.weightWithTime);
             proc.retrieveUiData(pm);
-            pref.setTitle(proc.mUiLabel);
-            if (proc.mUiTargetApp != null) {
-                pref.setIcon(proc.mUiTargetApp.loadIcon(pm));
-            }
-            pref.setOrder(i);
-            pref.setPercent(percentOfWeight, percentOfTime);
-            mAppListGroup.addPreference(pref);
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) {
+            result.entries.add(proc);
+            result.icons.add(proc.mUiTargetApp != null ? proc.mUiTargetApp.loadIcon(pm) : null);
+            if (result.entries.size() >= MAX_ITEMS_TO_LIST) {
                 if (DEBUG) Log.d(TAG, "Done with UI, hit item limit!");
                 break;
             }
         }
     }
-
-    private void load() {
-        try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
-            }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
-            }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
-        }
-    }
 }
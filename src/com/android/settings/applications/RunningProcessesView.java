@@ -33,6 +33,7 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -44,7 +45,6 @@ import android.widget.TextView;
 import android.widget.AbsListView.RecyclerListener;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -209,22 +209,21 @@ public class RunningProcessesView extends FrameLayout
         final RunningState mState;
         final LayoutInflater mInflater;
         boolean mShowBackground;
-        ArrayList<RunningState.MergedItem> mOrigItems;
-        final ArrayList<RunningState.MergedItem> mItems
-                = new ArrayList<RunningState.MergedItem>();
+        // One of the state's published lists, which never change.
+        ArrayList<RunningState.MergedItem> mItems;
         
         ServiceListAdapter(RunningState state) {
             mState = state;
             mInflater = (LayoutInflater)getContext().getSystemService(
                     Context.LAYOUT_INFLATER_SERVICE);
-            refreshItems();
+            mItems = getCurrentItems();
         }
 
         void setShowBackground(boolean showBackground) {
             if (mShowBackground != showBackground) {
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
-                refreshItems();
+                mItems = getCurrentItems();
                 notifyDataSetChanged();
                 mColorBar.setShowingGreen(mShowBackground);
             }
@@ -234,20 +233,37 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
+        ArrayList<RunningState.MergedItem> getCurrentItems() {
+            return mShowBackground ? mState.getCurrentBackgroundItems()
+                    : mState.getCurrentMergedItems();
+        }
+
+        /**
+         * Switches to the state's latest list.  If the state's change set
+         * goes from the list being shown to that one and only changes what
+         * some rows show, just the ones of those on screen are bound again;
+         * otherwise the whole list is refreshed.
+         */
         void refreshItems() {
-            ArrayList<RunningState.MergedItem> newItems =
-                mShowBackground ? mState.getCurrentBackgroundItems()
-                        : mState.getCurrentMergedItems();
-            if (mOrigItems != newItems) {
-                mOrigItems = newItems;
-                if (newItems == null) {
-                    mItems.clear();
-                } else {
-                    mItems.clear();
-                    mItems.addAll(newItems);
-                    if (mShowBackground) {
-                        Collections.sort(mItems, mState.mBackgroundComparator);
-                    }
+            ArrayList<RunningState.MergedItem> newItems = getCurrentItems();
+            if (mItems == newItems) {
+                return;
+            }
+            RunningState.ChangeSet changes = mShowBackground
+                    ? mState.getBackgroundChanges() : mState.getMergedChanges();
+            ArrayList<RunningState.MergedItem> oldItems = mItems;
+            mItems = newItems;
+            if (changes == null || changes.mFrom != oldItems || changes.mTo != newItems
+                    || changes.isStructural()) {
+                notifyDataSetChanged();
+                return;
+            }
+            final int first = mListView.getFirstVisiblePosition();
+            final int N = mListView.getChildCount();
+            for (int i=0; i<changes.mChanged.length; i++) {
+                int position = changes.mChanged[i];
+                if (position >= first && position < first+N) {
+                    bindView(mListView.getChildAt(position-first), position);
                 }
             }
         }
@@ -270,7 +286,7 @@ public class RunningProcessesView extends FrameLayout
         }
 
         public long getItemId(int position) {
-            return mItems.get(position).hashCode();
+            return mItems.get(position).getStableId();
         }
 
         public boolean areAllItemsEnabled() {
@@ -318,7 +334,6 @@ public class RunningProcessesView extends FrameLayout
         if (dataChanged) {
             ServiceListAdapter adapter = (ServiceListAdapter)(mListView.getAdapter());
             adapter.refreshItems();
-            adapter.notifyDataSetChanged();
         }
         
         if (mDataAvail != null) {
@@ -408,6 +423,15 @@ public class RunningProcessesView extends FrameLayout
         mActiveItems.remove(view);
     }
 
+    @Override
+    public boolean onInterceptTouchEvent(MotionEvent ev) {
+        if (ev.getActionMasked() == MotionEvent.ACTION_DOWN && mState != null) {
+            // Someone is looking; don't leave them with slow updates.
+            mState.noteUserInteraction();
+        }
+        return super.onInterceptTouchEvent(ev);
+    }
+
     public RunningProcessesView(Context context, AttributeSet attrs) {
         super(context, attrs);
         mMyUserId = UserHandle.myUserId();
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides how often RunningState polls the activity manager.  Each poll
+ * that changes nothing the user can see doubles the time to the next one,
+ * up to a limit; any change, or the user touching the screen, goes back
+ * to polling as fast as before.
+ *
+ * This only does the bookkeeping; RunningState schedules the polls.  The
+ * UI thread reports interaction while the background thread polls, so
+ * everything synchronizes on this.
+ */
+class RunningRefreshScheduler {
+    static final long MIN_POLL_DELAY = 2000;
+    static final long MAX_POLL_DELAY = 16000;
+
+    private long mPollDelay = MIN_POLL_DELAY;
+    private long mLastPoll = -1;
+
+    // Since the process started, for dumpsys.
+    private int mPolls;
+    private int mPollsSkipped;
+
+    /**
+     * Starts over polling fast.
+     */
+    synchronized void reset() {
+        mPollDelay = MIN_POLL_DELAY;
+        mLastPoll = -1;
+    }
+
+    /**
+     * Called after each poll with whether it changed anything shown;
+     * returns how long to wait before the next one.
+     */
+    synchronized long notePoll(boolean changed, long now) {
+        mPolls++;
+        if (mLastPoll >= 0) {
+            // The polls a fixed MIN_POLL_DELAY would have made since the last.
+            mPollsSkipped += Math.max(0, (int)((now - mLastPoll) / MIN_POLL_DELAY) - 1);
+        }
+        mLastPoll = now;
+        if (changed) {
+            mPollDelay = MIN_POLL_DELAY;
+        } else {
+            mPollDelay = Math.min(mPollDelay * 2, MAX_POLL_DELAY);
+        }
+        return mPollDelay;
+    }
+
+    /**
+     * Called when the user does something.  Returns how long until the
+     * next poll should now happen, or -1 if it is already due soon enough.
+     */
+    synchronized long noteInteraction(long now) {
+        if (mPollDelay == MIN_POLL_DELAY) {
+            return -1;
+        }
+        mPollDelay = MIN_POLL_DELAY;
+        return mLastPoll >= 0 ? Math.max(0, mLastPoll + MIN_POLL_DELAY - now) : 0;
+    }
+
+    synchronized long getPollDelay() {
+        return mPollDelay;
+    }
+
+    synchronized int getPollsSkipped() {
+        return mPollsSkipped;
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Running state polls: "); pw.print(mPolls);
+        pw.print(", skipped "); pw.print(mPollsSkipped);
+        pw.print(", next after "); pw.print(mPollDelay); pw.println("ms");
+    }
+}
@@ -38,13 +38,18 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.Log;
+import android.util.LongSparseLongArray;
 import android.util.SparseArray;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -68,7 +73,6 @@ public class RunningState {
     static final int MSG_UPDATE_TIME = 4;
 
     static final long TIME_UPDATE_DELAY = 1000;
-    static final long CONTENTS_UPDATE_DELAY = 2000;
 
     static final int MAX_SERVICES = 100;
 
@@ -136,6 +140,31 @@ public class RunningState {
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // Temporary list used when sorting the service processes.
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+
+    // Decides when to poll again.
+    final RunningRefreshScheduler mRefreshScheduler = new RunningRefreshScheduler();
+
+    // Process memory, measured again only once it expires.
+    final ProcessPssCache mPssCache = new ProcessPssCache(new ProcessPssCache.Provider() {
+        @Override
+        public long[] getProcessPss(int[] pids) throws RemoteException {
+            return ActivityManagerNative.getDefault().getProcessPss(pids);
+        }
+    });
+
+    // Temporary arrays used when sampling process memory.
+    int[] mTmpPids = new int[0];
+    int[] mTmpStartSeqs = new int[0];
+    long[] mTmpTtls = new long[0];
+    long[] mTmpPss = new long[0];
+    boolean[] mTmpPssEstimated = new boolean[0];
+
+    // Diff each new list of merged / background items against the last one.
+    final Differ mMergedDiffer = new Differ();
+    final Differ mBackgroundDiffer = new Differ();
+
     int mSequence = 0;
 
     final Comparator<RunningState.MergedItem> mBackgroundComparator
@@ -209,6 +238,11 @@ public class RunningState {
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mUserBackgroundItems = new ArrayList<MergedItem>();
+
+    // How mMergedItems and mUserBackgroundItems differ from the lists they
+    // replaced, or null if they have never been replaced.
+    ChangeSet mMergedChanges;
+    ChangeSet mBackgroundChanges;
     
     int mNumBackgroundProcesses;
     long mBackgroundProcessMemory;
@@ -237,12 +271,14 @@ public class RunningState {
                             return;
                         }
                     }
+                    boolean changed = update(mApplicationContext, mAm);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changed ? 1 : 0;
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, mRefreshScheduler.notePoll(changed,
+                            SystemClock.uptimeMillis()));
                     break;
             }
         }
@@ -311,6 +347,8 @@ public class RunningState {
 
         long mActiveSince;
         long mSize;
+        // mSize is from an older measurement that may be off by now.
+        boolean mSizeEstimated;
         String mSizeStr;
         String mCurSizeStr;
         boolean mNeedDivider;
@@ -350,6 +388,8 @@ public class RunningState {
         final int mUid;
         final String mProcessName;
         int mPid;
+        // The sequence of the update that first saw this process at mPid.
+        int mStartSeq;
         
         ProcessItem mClient;
         int mLastNumDependentProcesses;
@@ -509,11 +549,11 @@ public class RunningState {
             return changed;
         }
         
-        boolean updateSize(Context context, long pss, int curSeq) {
+        boolean updateSize(Context context, long pss, boolean estimated, int curSeq) {
             mSize = pss * 1024;
+            mSizeEstimated = estimated;
             if (mCurSeq == curSeq) {
-                String sizeStr = Formatter.formatShortFileSize(
-                        context, mSize);
+                String sizeStr = formatSize(context, mSize, mSizeEstimated);
                 if (!sizeStr.equals(mSizeStr)){
                     mSizeStr = sizeStr;
                     // We update this on the second tick where we update just
@@ -570,10 +610,150 @@ public class RunningState {
         
         private int mLastNumProcesses = -1, mLastNumServices = -1;
 
+        // Set when update() changes something shown in this item's row;
+        // cleared when the row is handed to the UI in a ChangeSet.
+        boolean mDataChanged;
+
+        // Set once the item is in a list handed to the UI.  From then on
+        // the background thread only brings its size up to date; anything
+        // else is changed in a copy made by writable().
+        boolean mPublished;
+        // The published item this is a copy of, until the copy is found to
+        // show something different and replaces it.
+        MergedItem mOriginal;
+
         MergedItem(int userId) {
             super(false, userId);
         }
 
+        /**
+         * Returns this item if the UI has never been handed it, or else a
+         * copy of it to change instead.
+         */
+        MergedItem writable() {
+            if (!mPublished) {
+                return this;
+            }
+            MergedItem copy = new MergedItem(mUserId);
+            copy.mProcess = mProcess;
+            copy.mUser = mUser;
+            copy.mOtherProcesses.addAll(mOtherProcesses);
+            copy.mServices.addAll(mServices);
+            copy.mChildren.addAll(mChildren);
+            copy.mLastNumProcesses = mLastNumProcesses;
+            copy.mLastNumServices = mLastNumServices;
+            copy.mPackageInfo = mPackageInfo;
+            copy.mDisplayLabel = mDisplayLabel;
+            copy.mLabel = mLabel;
+            copy.mDescription = mDescription;
+            copy.mCurSeq = mCurSeq;
+            copy.mActiveSince = mActiveSince;
+            copy.mSize = mSize;
+            copy.mSizeEstimated = mSizeEstimated;
+            copy.mSizeStr = mSizeStr;
+            copy.mBackground = mBackground;
+            copy.mOriginal = this;
+            return copy;
+        }
+
+        /**
+         * Returns the item to hand out for this one: the published item it
+         * was copied from if the copy shows just the same, so the UI keeps
+         * the row it has, or else this one.  Children are settled first.
+         */
+        MergedItem settle() {
+            if (mPublished) {
+                return this;
+            }
+            for (int i=0; i<mChildren.size(); i++) {
+                mChildren.set(i, mChildren.get(i).settle());
+            }
+            if (mOriginal != null) {
+                if (showsSameAs(mOriginal)) {
+                    return mOriginal;
+                }
+                mOriginal = null;
+            }
+            return this;
+        }
+
+        private boolean showsSameAs(MergedItem other) {
+            return mProcess == other.mProcess && mUser == other.mUser
+                    && mPackageInfo == other.mPackageInfo
+                    && mActiveSince == other.mActiveSince && mBackground == other.mBackground
+                    && TextUtils.equals(mDisplayLabel, other.mDisplayLabel)
+                    && TextUtils.equals(mLabel, other.mLabel)
+                    && TextUtils.equals(mDescription, other.mDescription)
+                    && mOtherProcesses.equals(other.mOtherProcesses)
+                    && mServices.equals(other.mServices)
+                    && mChildren.equals(other.mChildren);
+        }
+
+        /**
+         * Whether update() would change anything shown in this item, so a
+         * published one has to be copied first.  Only known without
+         * updating for an item of a process, not of a user.
+         */
+        boolean wouldUpdate(boolean background) {
+            if (mUser != null) {
+                return true;
+            }
+            if (mBackground != background || mPackageInfo != mProcess.mPackageInfo
+                    || !TextUtils.equals(mDisplayLabel, mProcess.mDisplayLabel)
+                    || !TextUtils.equals(mLabel, mProcess.mLabel)) {
+                return true;
+            }
+            if (!background && (mLastNumProcesses
+                    != (mProcess.mPid > 0 ? 1 : 0) + mOtherProcesses.size()
+                    || mLastNumServices != mServices.size())) {
+                return true;
+            }
+            long activeSince = -1;
+            for (int i=0; i<mServices.size(); i++) {
+                ServiceItem si = mServices.get(i);
+                if (si.mActiveSince >= 0 && activeSince < si.mActiveSince) {
+                    activeSince = si.mActiveSince;
+                }
+            }
+            return activeSince != mActiveSince;
+        }
+
+        /**
+         * Whether mOtherProcesses holds just procs[start, end).
+         */
+        boolean hasOtherProcesses(ArrayList<ProcessItem> procs, int start, int end) {
+            if (mOtherProcesses.size() != end - start) {
+                return false;
+            }
+            for (int i=start; i<end; i++) {
+                if (mOtherProcesses.get(i - start) != procs.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static void markPublished(ArrayList<MergedItem> items) {
+            for (int i=0; i<items.size(); i++) {
+                MergedItem item = items.get(i);
+                item.mPublished = true;
+                item.mOriginal = null;
+                markPublished(item.mChildren);
+            }
+        }
+
+        /**
+         * An id for this item's row that stays the same from one update to
+         * the next, even if the item is rebuilt: the process it is for, or
+         * the user for an item collecting everything of another user.
+         */
+        long getStableId() {
+            if (mUser != null) {
+                return -1 - mUserId;
+            }
+            return ((long)mProcess.mUid << 32) | (mProcess.mProcessName.hashCode() & 0xffffffffL);
+        }
+
         private void setDescription(Context context, int numProcesses, int numServices) {
             if (mLastNumProcesses != numProcesses || mLastNumServices != numServices) {
                 mLastNumProcesses = numProcesses;
@@ -592,6 +772,12 @@ public class RunningState {
         }
 
         boolean update(Context context, boolean background) {
+            final PackageItemInfo lastPackageInfo = mPackageInfo;
+            final CharSequence lastDisplayLabel = mDisplayLabel;
+            final String lastDescription = mDescription;
+            final long lastActiveSince = mActiveSince;
+            final boolean lastBackground = mBackground;
+
             mBackground = background;
 
             if (mUser != null) {
@@ -637,26 +823,36 @@ public class RunningState {
                 }
             }
 
+            if (mPackageInfo != lastPackageInfo || mActiveSince != lastActiveSince
+                    || mBackground != lastBackground
+                    || !TextUtils.equals(mDisplayLabel, lastDisplayLabel)
+                    || !TextUtils.equals(mDescription, lastDescription)) {
+                mDataChanged = true;
+                return true;
+            }
             return false;
         }
         
         boolean updateSize(Context context) {
             if (mUser != null) {
                 mSize = 0;
+                mSizeEstimated = false;
                 for (int i=0; i<mChildren.size(); i++) {
                     MergedItem child = mChildren.get(i);
                     child.updateSize(context);
                     mSize += child.mSize;
+                    mSizeEstimated |= child.mSizeEstimated;
                 }
             } else {
                 mSize = mProcess.mSize;
+                mSizeEstimated = mProcess.mSizeEstimated;
                 for (int i=0; i<mOtherProcesses.size(); i++) {
                     mSize += mOtherProcesses.get(i).mSize;
+                    mSizeEstimated |= mOtherProcesses.get(i).mSizeEstimated;
                 }
             }
             
-            String sizeStr = Formatter.formatShortFileSize(
-                    context, mSize);
+            String sizeStr = formatSize(context, mSize, mSizeEstimated);
             if (!sizeStr.equals(mSizeStr)){
                 mSizeStr = sizeStr;
                 // We update this on the second tick where we update just
@@ -684,6 +880,144 @@ public class RunningState {
         }
     }
 
+    /**
+     * How one published list of items differs from the one before it, by
+     * the items' stable ids, so the UI can touch only the rows that need it.
+     * The lists themselves are never modified once published.
+     */
+    static final class ChangeSet {
+        static final int[] NONE = new int[0];
+
+        final ArrayList<MergedItem> mFrom;
+        final ArrayList<MergedItem> mTo;
+
+        // Positions in mTo of rows that are new.
+        final int[] mInserted;
+        // Positions in mFrom of rows that are gone.
+        final int[] mRemoved;
+        // Positions in mTo of rows that are now out of their old order.
+        final int[] mMoved;
+        // Positions in mTo of rows that were there before but need binding
+        // again, because their item was rebuilt or what it shows changed.
+        final int[] mChanged;
+        // Ids couldn't be matched up (two rows had the same id), so all the
+        // UI can do is start over.
+        final boolean mReset;
+
+        ChangeSet(ArrayList<MergedItem> from, ArrayList<MergedItem> to, int[] inserted,
+                int[] removed, int[] moved, int[] changed, boolean reset) {
+            mFrom = from;
+            mTo = to;
+            mInserted = inserted;
+            mRemoved = removed;
+            mMoved = moved;
+            mChanged = changed;
+            mReset = reset;
+        }
+
+        boolean isStructural() {
+            return mReset || mInserted.length > 0 || mRemoved.length > 0 || mMoved.length > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeSet{inserted=" + Arrays.toString(mInserted)
+                    + " removed=" + Arrays.toString(mRemoved)
+                    + " moved=" + Arrays.toString(mMoved)
+                    + " changed=" + Arrays.toString(mChanged)
+                    + (mReset ? " reset" : "") + "}";
+        }
+    }
+
+    /**
+     * Works out the ChangeSet between two lists.  It keeps its lookup tables
+     * and scratch space from one call to the next, so diffing lists that are
+     * about the same size as last time allocates nothing but the result.
+     * Only used from the background thread.
+     */
+    static final class Differ {
+        private final LongSparseLongArray mOldPositions = new LongSparseLongArray();
+        private final LongSparseLongArray mNewPositions = new LongSparseLongArray();
+        private int[] mInserted = new int[16];
+        private int[] mRemoved = new int[16];
+        private int[] mMoved = new int[16];
+        private int[] mChanged = new int[16];
+        private int mNumInserted, mNumRemoved, mNumMoved, mNumChanged;
+
+        /**
+         * Returns what changed going from one list to the other, or null if
+         * nothing did, in which case the caller can keep showing 'from'.
+         * Clears mDataChanged on every item in 'to'.
+         *
+         * Moves are found in one pass, marking any row that comes before a
+         * row it used to follow; that isn't always the fewest moves, but it
+         * is enough to know the order changed.
+         */
+        ChangeSet diff(ArrayList<MergedItem> from, ArrayList<MergedItem> to) {
+            final int NF = from.size();
+            final int NT = to.size();
+            mNumInserted = mNumRemoved = mNumMoved = mNumChanged = 0;
+            mOldPositions.clear();
+            mNewPositions.clear();
+            for (int i=0; i<NF; i++) {
+                mOldPositions.put(from.get(i).getStableId(), i);
+            }
+            for (int i=0; i<NT; i++) {
+                mNewPositions.put(to.get(i).getStableId(), i);
+            }
+            if (mOldPositions.size() != NF || mNewPositions.size() != NT) {
+                for (int i=0; i<NT; i++) {
+                    to.get(i).mDataChanged = false;
+                }
+                return new ChangeSet(from, to, ChangeSet.NONE, ChangeSet.NONE,
+                        ChangeSet.NONE, ChangeSet.NONE, true);
+            }
+
+            for (int i=0; i<NF; i++) {
+                if (mNewPositions.get(from.get(i).getStableId(), -1) < 0) {
+                    mRemoved = add(mRemoved, mNumRemoved++, i);
+                }
+            }
+            int lastOld = -1;
+            for (int i=0; i<NT; i++) {
+                MergedItem item = to.get(i);
+                int old = (int)mOldPositions.get(item.getStableId(), -1);
+                if (old < 0) {
+                    mInserted = add(mInserted, mNumInserted++, i);
+                } else {
+                    if (old < lastOld) {
+                        mMoved = add(mMoved, mNumMoved++, i);
+                    } else {
+                        lastOld = old;
+                    }
+                    if (from.get(old) != item || item.mDataChanged) {
+                        mChanged = add(mChanged, mNumChanged++, i);
+                    }
+                }
+                item.mDataChanged = false;
+            }
+
+            if (mNumInserted == 0 && mNumRemoved == 0 && mNumMoved == 0 && mNumChanged == 0) {
+                return null;
+            }
+            return new ChangeSet(from, to, copy(mInserted, mNumInserted),
+                    copy(mRemoved, mNumRemoved), copy(mMoved, mNumMoved),
+                    copy(mChanged, mNumChanged), false);
+        }
+
+        private static int[] add(int[] array, int index, int value) {
+            if (index >= array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+            }
+            array[index] = value;
+            return array;
+        }
+
+        private static int[] copy(int[] array, int count) {
+            return count > 0 ? Arrays.copyOf(array, count) : ChangeSet.NONE;
+        }
+    }
+
     class ServiceProcessComparator implements Comparator<ProcessItem> {
         public int compare(ProcessItem object1, ProcessItem object2) {
             if (object1.mUserId != object2.mUserId) {
@@ -708,6 +1042,15 @@ public class RunningState {
         }
     }
     
+    static String formatSize(Context context, long size, boolean estimated) {
+        String sizeStr = Formatter.formatShortFileSize(context, size);
+        if (estimated) {
+            return context.getResources().getString(R.string.running_process_size_estimate,
+                    sizeStr);
+        }
+        return sizeStr;
+    }
+
     static CharSequence makeLabel(PackageManager pm,
             String className, PackageItemInfo item) {
         if (item != null && (item.labelRes != 0
@@ -735,7 +1078,7 @@ public class RunningState {
         }
     }
 
-    private RunningState(Context context) {
+    RunningState(Context context) {
         mApplicationContext = context.getApplicationContext();
         mAm = (ActivityManager)mApplicationContext.getSystemService(Context.ACTIVITY_SERVICE);
         mPm = mApplicationContext.getPackageManager();
@@ -757,6 +1100,7 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
+            mRefreshScheduler.reset();
             if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
                 mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             }
@@ -764,6 +1108,23 @@ public class RunningState {
         }
     }
 
+    /**
+     * The user did something, so they are probably watching; if polling
+     * has slowed down, bring it back to speed.
+     */
+    void noteUserInteraction() {
+        long delay = mRefreshScheduler.noteInteraction(SystemClock.uptimeMillis());
+        if (delay < 0) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mResumed) {
+                mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+                mBackgroundHandler.sendEmptyMessageDelayed(MSG_UPDATE_CONTENTS, delay);
+            }
+        }
+    }
+
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
@@ -810,7 +1171,19 @@ public class RunningState {
         return false;
     }
 
+    private void ensurePssScratch(int size) {
+        if (mTmpPids.length < size) {
+            size = Math.max(size, mTmpPids.length * 2);
+            mTmpPids = new int[size];
+            mTmpStartSeqs = new int[size];
+            mTmpTtls = new long[size];
+            mTmpPss = new long[size];
+            mTmpPssEstimated = new boolean[size];
+        }
+    }
+
     private void reset() {
+        mPssCache.clear();
         mServiceProcessesByName.clear();
         mServiceProcessesByPid.clear();
         mInterestingProcesses.clear();
@@ -827,13 +1200,15 @@ public class RunningState {
         if (first) {
             if (userItem == null) {
                 userItem = new MergedItem(newItem.mUserId);
-                userItems.put(newItem.mUserId, userItem);
             } else {
+                userItem = userItem.writable();
                 userItem.mChildren.clear();
             }
+            userItems.put(newItem.mUserId, userItem);
             userItem.mCurSeq = mSequence;
             if ((userItem.mUser=mUsers.get(newItem.mUserId)) == null) {
                 userItem.mUser = new UserState();
+                mUsers.put(newItem.mUserId, userItem.mUser);
                 UserInfo info = mUm.getUserInfo(newItem.mUserId);
                 userItem.mUser.mInfo = info;
                 if (info != null) {
@@ -853,16 +1228,29 @@ public class RunningState {
     }
 
     private boolean update(Context context, ActivityManager am) {
+        List<ActivityManager.RunningServiceInfo> services
+                = am.getRunningServices(MAX_SERVICES);
+        List<ActivityManager.RunningAppProcessInfo> processes
+                = am.getRunningAppProcesses();
+        return update(context, services, processes);
+    }
+
+    /**
+     * Brings everything up to date with the given snapshot of the running
+     * services and processes, publishing new lists of items, and the
+     * ChangeSets to go with them, if anything shown has changed.  Returns
+     * true if a list the UI is showing was replaced.  'services' is modified.
+     */
+    boolean update(Context context, List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
         
         boolean changed = false;
 
-        // Retrieve list of services, filtering out anything that definitely
-        // won't be shown in the UI.
-        List<ActivityManager.RunningServiceInfo> services 
-                = am.getRunningServices(MAX_SERVICES);
+        // Filter the services, removing anything that definitely won't be
+        // shown in the UI.
         int NS = services != null ? services.size() : 0;
         for (int i=0; i<NS; i++) {
             ActivityManager.RunningServiceInfo si = services.get(i);
@@ -886,10 +1274,8 @@ public class RunningState {
             }
         }
 
-        // Retrieve list of running processes, organizing them into a sparse
-        // array for easy retrieval.
-        List<ActivityManager.RunningAppProcessInfo> processes
-                = am.getRunningAppProcesses();
+        // Organize the running processes into a sparse array for easy
+        // retrieval.
         final int NP = processes != null ? processes.size() : 0;
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
@@ -973,6 +1359,7 @@ public class RunningState {
                             mServiceProcessesByPid.put(pid, proc);
                         }
                         proc.mPid = pid;
+                        proc.mStartSeq = mSequence;
                     }
                 }
                 proc.mDependentProcesses.clear();
@@ -991,10 +1378,15 @@ public class RunningState {
                 // of a service, so look for it in the secondary
                 // running list.
                 proc = mRunningProcesses.get(pi.pid);
-                if (proc == null) {
+                if (proc == null || proc.mUid != pi.uid
+                        || !TextUtils.equals(proc.mProcessName, pi.processName)) {
+                    // New, or the pid has gone to another process, which
+                    // shares nothing with the old one; in particular not
+                    // its start sequence, so its memory is measured again.
                     changed = true;
                     proc = new ProcessItem(context, pi.uid, pi.processName);
                     proc.mPid = pi.pid;
+                    proc.mStartSeq = mSequence;
                     mRunningProcesses.put(pi.pid, proc);
                 }
                 proc.mDependentProcesses.clear();
@@ -1049,7 +1441,7 @@ public class RunningState {
         int NHP = mInterestingProcesses.size();
         for (int i=0; i<NHP; i++) {
             ProcessItem proc = mInterestingProcesses.get(i);
-            if (!proc.mInteresting || mRunningProcesses.get(proc.mPid) == null) {
+            if (!proc.mInteresting || mRunningProcesses.get(proc.mPid) != proc) {
                 changed = true;
                 mInterestingProcesses.remove(i);
                 i--;
@@ -1116,7 +1508,8 @@ public class RunningState {
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1161,7 +1554,7 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -1186,13 +1579,24 @@ public class RunningState {
                         si.mMergedItem = mergedItem;
                     }
                     mergedItem.mProcess = pi;
+                }
+                final int lastProc = Math.max(firstProc, mProcessItems.size()-1);
+                if (mergedItem.mPublished
+                        && (!mergedItem.hasOtherProcesses(mProcessItems, firstProc, lastProc)
+                                || mergedItem.wouldUpdate(false))) {
+                    // The UI may be looking at this one; change a copy.
+                    mergedItem = mergedItem.writable();
+                    for (ServiceItem si : pi.mServices.values()) {
+                        si.mMergedItem = mergedItem;
+                    }
+                }
+                if (!mergedItem.mPublished) {
                     mergedItem.mOtherProcesses.clear();
-                    for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
+                    for (int mpi=firstProc; mpi<lastProc; mpi++) {
                         mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
                     }
+                    mergedItem.update(context, false);
                 }
-                
-                mergedItem.update(context, false);
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1206,11 +1610,7 @@ public class RunningState {
             for (int i=0; i<NHP; i++) {
                 ProcessItem proc = mInterestingProcesses.get(i);
                 if (proc.mClient == null && proc.mServices.size() <= 0) {
-                    if (proc.mMergedItem == null) {
-                        proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
-                    }
-                    proc.mMergedItem.update(context, false);
+                    updateMergedItem(context, proc, false);
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1231,10 +1631,27 @@ public class RunningState {
                 }
             }
 
+            // Hand back what the UI already has wherever a copy came to
+            // nothing.
+            for (int i=0; i<newMergedItems.size(); i++) {
+                newMergedItems.set(i, newMergedItems.get(i).settle());
+            }
+
+            sortedProcesses.clear();
+
+            // Only hand out a new list if something in it will look different.
+            ChangeSet mergedChanges = mMergedDiffer.diff(mMergedItems, newMergedItems);
             synchronized (mLock) {
                 mItems = newItems;
-                mMergedItems = newMergedItems;
+                if (mergedChanges != null) {
+                    mMergedItems = newMergedItems;
+                    mMergedChanges = mergedChanges;
+                }
+            }
+            if (mergedChanges != null) {
+                MergedItem.markPublished(newMergedItems);
             }
+            changed = mergedChanges != null;
         }
         
         // Count number of interesting other (non-active) processes, and
@@ -1275,46 +1692,42 @@ public class RunningState {
         boolean diffUsers = false;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            ensurePssScratch(numProc);
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                mTmpPids[i] = proc.mPid;
+                mTmpStartSeqs[i] = proc.mStartSeq;
+                mTmpTtls[i] = proc.mCurSeq != mSequence && proc.mRunningProcessInfo.importance
+                        >= ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND
+                        ? ProcessPssCache.CACHED_TTL : ProcessPssCache.ACTIVE_TTL;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
+            mPssCache.sample(numProc, mTmpPids, mTmpStartSeqs, mTmpTtls,
+                    SystemClock.uptimeMillis(), mTmpPss, mTmpPssEstimated);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                changed |= proc.updateSize(context, mTmpPss[i], mTmpPssEstimated[i], mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
                     backgroundProcessMemory += proc.mSize;
-                    MergedItem mergedItem;
+                    MergedItem mergedItem = updateMergedItem(context, proc, true).settle();
+                    // Sizes alone are brought up to date in place.
+                    mergedItem.updateSize(context);
+                    if (newBackgroundItems == null && (bgIndex >= mBackgroundItems.size()
+                            || mBackgroundItems.get(bgIndex) != mergedItem)) {
+                        newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
+                        for (int bgi=0; bgi<bgIndex; bgi++) {
+                            MergedItem prev = mBackgroundItems.get(bgi);
+                            diffUsers |= prev.mUserId != mMyUserId;
+                            newBackgroundItems.add(prev);
+                        }
+                    }
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
-                    } else {
-                        if (bgIndex >= mBackgroundItems.size()
-                                || mBackgroundItems.get(bgIndex).mProcess != proc) {
-                            newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                            for (int bgi=0; bgi<bgIndex; bgi++) {
-                                mergedItem = mBackgroundItems.get(bgi);
-                                diffUsers |= mergedItem.mUserId != mMyUserId;
-                                newBackgroundItems.add(mergedItem);
-                            }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
-                            diffUsers |= mergedItem.mUserId != mMyUserId;
-                            newBackgroundItems.add(mergedItem);
-                        } else {
-                            mergedItem = mBackgroundItems.get(bgIndex);
-                        }
                     }
-                    mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
@@ -1336,16 +1749,17 @@ public class RunningState {
             }
         }
 
+        ChangeSet backgroundChanges = null;
         if (newBackgroundItems != null) {
             // The background items have changed; we need to re-build the
-            // per-user items.
+            // per-user items, which are what get shown, sorted.
+            newUserBackgroundItems = new ArrayList<MergedItem>(newBackgroundItems.size());
             if (!diffUsers) {
-                // Easy: there are no other users, we can just use the same array.
-                newUserBackgroundItems = newBackgroundItems;
+                // Easy: there are no other users, we can just use the same items.
+                newUserBackgroundItems.addAll(newBackgroundItems);
             } else {
                 // We now need to re-build the per-user list so that background
                 // items for users are collapsed together.
-                newUserBackgroundItems = new ArrayList<MergedItem>();
                 final int NB = newBackgroundItems.size();
                 for (int i=0; i<NB; i++) {
                     MergedItem mergedItem = newBackgroundItems.get(i);
@@ -1363,10 +1777,19 @@ public class RunningState {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
                         user.update(context, true);
+                    }
+                }
+                for (int i=0; i<newUserBackgroundItems.size(); i++) {
+                    MergedItem user = newUserBackgroundItems.get(i).settle();
+                    if (user.mUser != null) {
                         user.updateSize(context);
                     }
+                    newUserBackgroundItems.set(i, user);
                 }
             }
+            Collections.sort(newUserBackgroundItems, mBackgroundComparator);
+            backgroundChanges = mBackgroundDiffer.diff(mUserBackgroundItems,
+                    newUserBackgroundItems);
         }
 
         for (int i=0; i<mMergedItems.size(); i++) {
@@ -1382,7 +1805,10 @@ public class RunningState {
             mServiceProcessMemory = serviceProcessMemory;
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
+            }
+            if (backgroundChanges != null) {
                 mUserBackgroundItems = newUserBackgroundItems;
+                mBackgroundChanges = backgroundChanges;
                 if (mWatchingBackgroundItems) {
                     changed = true;
                 }
@@ -1392,6 +1818,9 @@ public class RunningState {
                 mLock.notifyAll();
             }
         }
+        if (backgroundChanges != null) {
+            MergedItem.markPublished(newUserBackgroundItems);
+        }
         
         return changed;
     }
@@ -1419,4 +1848,41 @@ public class RunningState {
             return mUserBackgroundItems;
         }
     }
+
+    void dump(String prefix, PrintWriter pw) {
+        mRefreshScheduler.dump(prefix, pw);
+        mPssCache.dump(prefix, pw);
+    }
+
+    ChangeSet getMergedChanges() {
+        synchronized (mLock) {
+            return mMergedChanges;
+        }
+    }
+
+    ChangeSet getBackgroundChanges() {
+        synchronized (mLock) {
+            return mBackgroundChanges;
+        }
+    }
+
+    /**
+     * Brings the process's own item up to date and returns it.  One the
+     * UI has been handed is left as it is if nothing in it would change,
+     * and otherwise a copy of it is changed.
+     */
+    private static MergedItem updateMergedItem(Context context, ProcessItem proc,
+            boolean background) {
+        if (proc.mMergedItem == null) {
+            proc.mMergedItem = new MergedItem(proc.mUserId);
+            proc.mMergedItem.mProcess = proc;
+        } else if (proc.mMergedItem.mPublished) {
+            if (!proc.mMergedItem.wouldUpdate(background)) {
+                return proc.mMergedItem;
+            }
+            proc.mMergedItem = proc.mMergedItem.writable();
+        }
+        proc.mMergedItem.update(context, background);
+        return proc.mMergedItem;
+    }
 }
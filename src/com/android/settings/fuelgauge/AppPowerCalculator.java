@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import static android.os.BatteryStats.NETWORK_MOBILE_RX_BYTES;
+import static android.os.BatteryStats.NETWORK_MOBILE_TX_BYTES;
+import static android.os.BatteryStats.NETWORK_WIFI_RX_BYTES;
+import static android.os.BatteryStats.NETWORK_WIFI_TX_BYTES;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.os.PowerProfile;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Works out how much power each uid drew, from stats that are no longer
+ * being updated, such as those parceled over from the battery service.
+ * Everything taken from the power profile and sensors is read up front, so
+ * {@link #calculate(Uid)} only reads the stats and can run for many uids at
+ * once.
+ *
+ * {@link #calculateAll(SparseArray, int)} splits the uids between workers,
+ * each writing only the slots of the uids it took, so results come back in
+ * the same order as the stats whichever worker got to them.  Callers add
+ * them up in that order, which keeps the totals identical to adding them
+ * up one uid at a time.
+ */
+class AppPowerCalculator {
+    private static final boolean DEBUG = false;
+
+    private static final String TAG = "AppPowerCalculator";
+
+    /** Uids taken by a worker at a time. */
+    private static final int CHUNK_SIZE = 16;
+
+    private static final long KEEP_ALIVE_MS = 5000;
+
+    private static final AtomicInteger sWorkerCount = new AtomicInteger();
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            defaultWorkerCount(), defaultWorkerCount(), KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "BatteryUsage Power#" + sWorkerCount.incrementAndGet());
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Power drawn by one uid, with the usage it was worked out from.
+     */
+    static class AppPower {
+        int uid;
+        double power; // in mAs
+        String packageWithHighestDrain;
+        long cpuTime;
+        long cpuFgTime;
+        long wakeLockTime;
+        long gpsTime;
+        long wifiRunningTime;
+        long mobileRxBytes;
+        long mobileTxBytes;
+        long wifiRxBytes;
+        long wifiTxBytes;
+    }
+
+    private final int mWhich;
+    private final long mUSecTime;
+    private final double[] mPowerCpuNormal;
+    private final double mPowerCpuAwake;
+    private final double mPowerWifiOn;
+    private final double mPowerWifiScan;
+    private final double[] mPowerWifiBatchedScan;
+    private final double mPowerGpsOn;
+    private final int[] mSensorHandles;
+    private final double[] mSensorPowers;
+    private final double mMobilePowerPerByte;
+    private final double mWifiPowerPerByte;
+
+    AppPowerCalculator(PowerProfile profile, SensorManager sensorManager, int which,
+            long uSecTime, double mobilePowerPerByte, double wifiPowerPerByte) {
+        mWhich = which;
+        mUSecTime = uSecTime;
+        final int speedSteps = profile.getNumSpeedSteps();
+        mPowerCpuNormal = new double[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            mPowerCpuNormal[p] = profile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        mPowerCpuAwake = profile.getAveragePower(PowerProfile.POWER_CPU_AWAKE);
+        mPowerWifiOn = profile.getAveragePower(PowerProfile.POWER_WIFI_ON);
+        mPowerWifiScan = profile.getAveragePower(PowerProfile.POWER_WIFI_SCAN);
+        mPowerWifiBatchedScan = new double[BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS];
+        for (int bin = 0; bin < mPowerWifiBatchedScan.length; bin++) {
+            mPowerWifiBatchedScan[bin] = profile.getAveragePower(
+                    PowerProfile.POWER_WIFI_BATCHED_SCAN, bin);
+        }
+        mPowerGpsOn = profile.getAveragePower(PowerProfile.POWER_GPS_ON);
+        final List<Sensor> sensorList = sensorManager.getSensorList(Sensor.TYPE_ALL);
+        mSensorHandles = new int[sensorList.size()];
+        mSensorPowers = new double[sensorList.size()];
+        for (int i = 0; i < mSensorHandles.length; i++) {
+            mSensorHandles[i] = sensorList.get(i).getHandle();
+            mSensorPowers[i] = sensorList.get(i).getPower();
+        }
+        mMobilePowerPerByte = mobilePowerPerByte;
+        mWifiPowerPerByte = wifiPowerPerByte;
+    }
+
+    AppPowerCalculator(int which, long uSecTime, double[] powerCpuNormal, double powerCpuAwake,
+            double powerWifiOn, double powerWifiScan, double[] powerWifiBatchedScan,
+            double powerGpsOn, int[] sensorHandles, double[] sensorPowers,
+            double mobilePowerPerByte, double wifiPowerPerByte) {
+        mWhich = which;
+        mUSecTime = uSecTime;
+        mPowerCpuNormal = powerCpuNormal;
+        mPowerCpuAwake = powerCpuAwake;
+        mPowerWifiOn = powerWifiOn;
+        mPowerWifiScan = powerWifiScan;
+        mPowerWifiBatchedScan = powerWifiBatchedScan;
+        mPowerGpsOn = powerGpsOn;
+        mSensorHandles = sensorHandles;
+        mSensorPowers = sensorPowers;
+        mMobilePowerPerByte = mobilePowerPerByte;
+        mWifiPowerPerByte = wifiPowerPerByte;
+    }
+
+    static int defaultWorkerCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Works out the power for every uid, in the order of the stats, using
+     * the calling thread and up to workers - 1 others.
+     */
+    AppPower[] calculateAll(final SparseArray<? extends Uid> uidStats, int workers) {
+        final int NU = uidStats.size();
+        final AppPower[] results = new AppPower[NU];
+        final int helpers = Math.min(workers, (NU + CHUNK_SIZE - 1) / CHUNK_SIZE) - 1;
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int start;
+                while ((start = next.getAndAdd(CHUNK_SIZE)) < NU) {
+                    final int end = Math.min(start + CHUNK_SIZE, NU);
+                    for (int iu = start; iu < end; iu++) {
+                        results[iu] = calculate(uidStats.valueAt(iu));
+                    }
+                }
+            }
+        };
+        if (helpers <= 0) {
+            worker.run();
+            return results;
+        }
+
+        final CountDownLatch done = new CountDownLatch(helpers);
+        final RuntimeException[] failure = new RuntimeException[1];
+        for (int i = 0; i < helpers; i++) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } catch (RuntimeException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) throw failure[0];
+        }
+        return results;
+    }
+
+    /**
+     * Works out the power for one uid.  Only reads the stats.
+     */
+    AppPower calculate(Uid u) {
+        final int which = mWhich;
+        final long uSecTime = mUSecTime;
+        final int speedSteps = mPowerCpuNormal.length;
+        final long[] cpuSpeedStepTimes = new long[speedSteps];
+        final AppPower app = new AppPower();
+        app.uid = u.getUid();
+        double p; // in mAs
+        double power = 0; // in mAs
+        double highestDrain = 0;
+        String packageWithHighestDrain = null;
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        long cpuTime = 0;
+        long cpuFgTime = 0;
+        long wakelockTime = 0;
+        long gpsTime = 0;
+        if (DEBUG) Log.i(TAG, "UID " + app.uid);
+        if (processStats.size() > 0) {
+            // Process CPU time
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                Uid.Proc ps = ent.getValue();
+                final long userTime = ps.getUserTime(which);
+                final long systemTime = ps.getSystemTime(which);
+                final long foregroundTime = ps.getForegroundTime(which);
+                cpuFgTime += foregroundTime * 10; // convert to millis
+                final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
+                int totalTimeAtSpeeds = 0;
+                // Get the total first
+                for (int step = 0; step < speedSteps; step++) {
+                    cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                // Then compute the ratio of time spent at each speed
+                double processPower = 0;
+                for (int step = 0; step < speedSteps; step++) {
+                    double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                    processPower += ratio * tmpCpuTime * mPowerCpuNormal[step];
+                }
+                cpuTime += tmpCpuTime;
+                if (DEBUG && processPower != 0) {
+                    Log.i(TAG, String.format("process %s, cpu power=%.2f",
+                            ent.getKey(), processPower / 1000));
+                }
+                power += processPower;
+                if (packageWithHighestDrain == null
+                        || packageWithHighestDrain.startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                } else if (highestDrain < processPower
+                        && !ent.getKey().startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                }
+            }
+        }
+        if (cpuFgTime > cpuTime) {
+            if (DEBUG && cpuFgTime > cpuTime + 10000) {
+                Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
+            }
+            cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+        }
+        power /= 1000;
+        if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
+
+        // Process wake lock usage
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                : wakelockStats.entrySet()) {
+            Uid.Wakelock wakelock = wakelockEntry.getValue();
+            // Only care about partial wake locks since full wake locks
+            // are canceled when the user turns the screen off.
+            BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        wakelockTime /= 1000; // convert to millis
+
+        // Add cost of holding a wake lock
+        p = (wakelockTime * mPowerCpuAwake) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
+
+        // Add cost of mobile traffic
+        final long mobileRx = u.getNetworkActivityCount(NETWORK_MOBILE_RX_BYTES, which);
+        final long mobileTx = u.getNetworkActivityCount(NETWORK_MOBILE_TX_BYTES, which);
+        p = (mobileRx + mobileTx) * mMobilePowerPerByte;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("mobile power=%.2f", p));
+
+        // Add cost of wifi traffic
+        final long wifiRx = u.getNetworkActivityCount(NETWORK_WIFI_RX_BYTES, which);
+        final long wifiTx = u.getNetworkActivityCount(NETWORK_WIFI_TX_BYTES, which);
+        p = (wifiRx + wifiTx) * mWifiPowerPerByte;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi power=%.2f", p));
+
+        // Add cost of keeping WIFI running.
+        long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+        p = (wifiRunningTimeMs * mPowerWifiOn) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
+
+        // Add cost of WIFI scans
+        long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
+        p = (wifiScanTimeMs * mPowerWifiScan) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
+        for (int bin = 0; bin < BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS; bin++) {
+            long batchScanTimeMs = u.getWifiBatchedScanTime(bin, uSecTime, which) / 1000;
+            p = (batchScanTimeMs * mPowerWifiBatchedScan[bin]);
+            power += p;
+            if (DEBUG && p != 0) {
+                Log.i(TAG, String.format("wifi batched scanning lvl %d = %.2f", bin, p));
+            }
+        }
+
+        // Process Sensor usage
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                : sensorStats.entrySet()) {
+            Uid.Sensor sensor = sensorEntry.getValue();
+            int sensorHandle = sensor.getHandle();
+            BatteryStats.Timer timer = sensor.getSensorTime();
+            long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
+            double multiplier = 0;
+            switch (sensorHandle) {
+                case Uid.Sensor.GPS:
+                    multiplier = mPowerGpsOn;
+                    gpsTime = sensorTime;
+                    break;
+                default:
+                    for (int i = 0; i < mSensorHandles.length; i++) {
+                        if (mSensorHandles[i] == sensorHandle) {
+                            multiplier = mSensorPowers[i];
+                            break;
+                        }
+                    }
+            }
+            p = (multiplier * sensorTime) / 1000;
+            power += p;
+            if (DEBUG && p != 0) {
+                Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
+            }
+        }
+
+        if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", app.uid, power));
+
+        app.power = power;
+        app.packageWithHighestDrain = packageWithHighestDrain;
+        app.cpuTime = cpuTime;
+        app.cpuFgTime = cpuFgTime;
+        app.wakeLockTime = wakelockTime;
+        app.gpsTime = gpsTime;
+        app.wifiRunningTime = wifiRunningTimeMs;
+        app.mobileRxBytes = mobileRx;
+        app.mobileTxBytes = mobileTx;
+        app.wifiRxBytes = wifiRx;
+        app.wifiTxBytes = wifiTx;
+        return app;
+    }
+}
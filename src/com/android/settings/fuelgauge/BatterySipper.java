@@ -24,22 +24,14 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.os.BatteryStats.Uid;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 /**
  * Contains information about package name, icon image, power usage about an
  * application or a system service.
  */
 public class BatterySipper implements Comparable<BatterySipper> {
     final Context mContext;
-    /* Cache cleared when PowerUsageSummary is destroyed */
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-    final ArrayList<BatterySipper> mRequestQueue;
-    final Handler mHandler;
     String name;
     Drawable icon;
     int iconId; // For passing to the detail screen.
@@ -61,6 +53,8 @@ public class BatterySipper implements Comparable<BatterySipper> {
     double noCoveragePercent;
     String defaultPackageName;
     String[] mPackages;
+    /* Whether the name and icon still need loading in the background */
+    boolean mNeedsNameAndIcon;
 
     static class UidToDetail {
         String name;
@@ -68,12 +62,9 @@ public class BatterySipper implements Comparable<BatterySipper> {
         Drawable icon;
     }
 
-    BatterySipper(Context context, ArrayList<BatterySipper> requestQueue,
-            Handler handler, String label, DrainType drainType,
+    BatterySipper(Context context, String label, DrainType drainType,
             int iconId, Uid uid, double[] values) {
         mContext = context;
-        mRequestQueue = requestQueue;
-        mHandler = handler;
         this.values = values;
         name = label;
         this.drainType = drainType;
@@ -129,12 +120,9 @@ public class BatterySipper implements Comparable<BatterySipper> {
 
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        UidToDetail utd = SipperNameResolver.getCached(uid);
+        if (utd != null) {
+            setNameAndIcon(utd);
             return;
         }
         PackageManager pm = mContext.getPackageManager();
@@ -153,24 +141,42 @@ public class BatterySipper implements Comparable<BatterySipper> {
         } else {
             //name = packages[0];
         }
-        if (mHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
-            }
-        }
+        mNeedsNameAndIcon = true;
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        SipperNameResolver.clearCache();
+    }
+
+    void setNameAndIcon(UidToDetail utd) {
+        defaultPackageName = utd.packageName;
+        name = utd.name;
+        icon = utd.icon;
+        mNeedsNameAndIcon = false;
+    }
+
+    /**
+     * Takes the name and icon loaded for another sipper of the same uid.
+     */
+    void setNameAndIcon(BatterySipper other) {
+        defaultPackageName = other.defaultPackageName;
+        mPackages = other.mPackages;
+        name = other.name;
+        icon = other.icon;
+        if (icon != null && icon.getConstantState() != null) {
+            icon = icon.getConstantState().newDrawable();
+        }
+        mNeedsNameAndIcon = false;
     }
 
     /**
      * Loads the app label and icon image and stores into the cache.
+     * @return whether a name and icon were found for the uid
      */
-    public void loadNameAndIcon() {
+    public boolean loadNameAndIcon() {
         // Bail out if the current sipper is not an App sipper.
         if (uidObj == null) {
-            return;
+            return false;
         }
         PackageManager pm = mContext.getPackageManager();
         final int uid = uidObj.getUid();
@@ -178,7 +184,7 @@ public class BatterySipper implements Comparable<BatterySipper> {
         mPackages = pm.getPackagesForUid(uid);
         if (mPackages == null) {
             name = Integer.toString(uid);
-            return;
+            return false;
         }
 
         String[] packageLabels = new String[mPackages.length];
@@ -228,15 +234,12 @@ public class BatterySipper implements Comparable<BatterySipper> {
                 }
             }
         }
-        final String uidString = Integer.toString(uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (mHandler != null) {
-            mHandler.sendMessage(
-                    mHandler.obtainMessage(BatteryStatsHelper.MSG_UPDATE_NAME_ICON, this));
-        }
+        SipperNameResolver.putCached(uid, utd);
+        mNeedsNameAndIcon = false;
+        return true;
     }
 }
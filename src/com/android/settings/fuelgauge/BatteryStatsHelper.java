@@ -18,14 +18,11 @@ package com.android.settings.fuelgauge;
 
 import static android.os.BatteryStats.NETWORK_MOBILE_RX_BYTES;
 import static android.os.BatteryStats.NETWORK_MOBILE_TX_BYTES;
-import static android.os.BatteryStats.NETWORK_WIFI_RX_BYTES;
-import static android.os.BatteryStats.NETWORK_WIFI_TX_BYTES;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
-import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
@@ -57,7 +54,6 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A helper class for retrieving the power usage information for all applications and services.
@@ -95,44 +91,16 @@ public class BatteryStatsHelper {
     // How much the apps together have left WIFI running.
     private long mAppWifiRunning;
 
-    /** Queue for fetching name and icon for an application */
-    private ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
-
     private Activity mActivity;
     private Handler mHandler;
-
-    private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
-
-        public void abort() {
-            mAbort = true;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                BatterySipper bs;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        mHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        return;
-                    }
-                    bs = mRequestQueue.remove(0);
-                }
-                bs.loadNameAndIcon();
-            }
-        }
-    }
-
-    private NameAndIconLoader mRequestThread;
+    private SipperNameResolver mNameResolver;
 
     public BatteryStatsHelper(Activity activity, Handler handler) {
         mActivity = activity;
         mHandler = handler;
+        if (handler != null) {
+            mNameResolver = new SipperNameResolver(activity, handler);
+        }
     }
 
     /** Clears the current stats and forces recreating for future use. */
@@ -162,16 +130,14 @@ public class BatteryStatsHelper {
     }
 
     public void pause() {
-        if (mRequestThread != null) {
-            mRequestThread.abort();
+        if (mNameResolver != null) {
+            mNameResolver.cancel();
         }
     }
 
     public void destroy() {
         if (mActivity.isChangingConfigurations()) {
             sStatsXfer = mStats;
-        } else {
-            BatterySipper.sUidCache.clear();
         }
     }
 
@@ -346,17 +312,32 @@ public class BatteryStatsHelper {
 
         Collections.sort(mUsageList);
 
-        if (mHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
-                }
+        if (mNameResolver != null) {
+            mNameResolver.resolve(getSippersNeedingNames());
+        }
+    }
+
+    /**
+     * Sippers whose names and icons still need loading, those listed
+     * highest first, then those only added into wifi, bluetooth or users.
+     */
+    private List<BatterySipper> getSippersNeedingNames() {
+        final ArrayList<BatterySipper> sippers = new ArrayList<BatterySipper>();
+        addSippersNeedingNames(sippers, mUsageList);
+        addSippersNeedingNames(sippers, mWifiSippers);
+        addSippersNeedingNames(sippers, mBluetoothSippers);
+        for (int i = 0; i < mUserSippers.size(); i++) {
+            addSippersNeedingNames(sippers, mUserSippers.valueAt(i));
+        }
+        return sippers;
+    }
+
+    private static void addSippersNeedingNames(List<BatterySipper> sippers,
+            List<BatterySipper> from) {
+        for (int i = 0; i < from.size(); i++) {
+            final BatterySipper bs = from.get(i);
+            if (bs.mNeedsNameAndIcon) {
+                sippers.add(bs);
             }
         }
     }
@@ -365,190 +346,42 @@ public class BatteryStatsHelper {
         SensorManager sensorManager = (SensorManager) mActivity.getSystemService(
                 Context.SENSOR_SERVICE);
         final int which = mStatsType;
-        final int speedSteps = mPowerProfile.getNumSpeedSteps();
-        final double[] powerCpuNormal = new double[speedSteps];
-        final long[] cpuSpeedStepTimes = new long[speedSteps];
-        for (int p = 0; p < speedSteps; p++) {
-            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
-        }
-        final double mobilePowerPerByte = getMobilePowerPerByte();
-        final double wifiPowerPerByte = getWifiPowerPerByte();
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
         long appWakelockTime = 0;
         BatterySipper osApp = null;
         mStatsPeriod = uSecTime;
         SparseArray<? extends Uid> uidStats = mStats.getUidStats();
-        final int NU = uidStats.size();
+        final AppPowerCalculator calculator = new AppPowerCalculator(mPowerProfile,
+                sensorManager, which, uSecTime, getMobilePowerPerByte(), getWifiPowerPerByte());
+        final AppPowerCalculator.AppPower[] results = calculator.calculateAll(uidStats,
+                AppPowerCalculator.defaultWorkerCount());
+
+        // Add up in the order of the stats, so totals come out the same
+        // however the uids were shared between workers.
+        final int NU = results.length;
         for (int iu = 0; iu < NU; iu++) {
+            final AppPowerCalculator.AppPower result = results[iu];
             Uid u = uidStats.valueAt(iu);
-            double p; // in mAs
-            double power = 0; // in mAs
-            double highestDrain = 0;
-            String packageWithHighestDrain = null;
-            //mUsageList.add(new AppUsage(u.getUid(), new double[] {power}));
-            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
-            long cpuTime = 0;
-            long cpuFgTime = 0;
-            long wakelockTime = 0;
-            long gpsTime = 0;
-            if (DEBUG) Log.i(TAG, "UID " + u.getUid());
-            if (processStats.size() > 0) {
-                // Process CPU time
-                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
-                        : processStats.entrySet()) {
-                    Uid.Proc ps = ent.getValue();
-                    final long userTime = ps.getUserTime(which);
-                    final long systemTime = ps.getSystemTime(which);
-                    final long foregroundTime = ps.getForegroundTime(which);
-                    cpuFgTime += foregroundTime * 10; // convert to millis
-                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
-                    int totalTimeAtSpeeds = 0;
-                    // Get the total first
-                    for (int step = 0; step < speedSteps; step++) {
-                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
-                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
-                    }
-                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
-                    // Then compute the ratio of time spent at each speed
-                    double processPower = 0;
-                    for (int step = 0; step < speedSteps; step++) {
-                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
-                        processPower += ratio * tmpCpuTime * powerCpuNormal[step];
-                    }
-                    cpuTime += tmpCpuTime;
-                    if (DEBUG && processPower != 0) {
-                        Log.i(TAG, String.format("process %s, cpu power=%.2f",
-                                ent.getKey(), processPower / 1000));
-                    }
-                    power += processPower;
-                    if (packageWithHighestDrain == null
-                            || packageWithHighestDrain.startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    } else if (highestDrain < processPower
-                            && !ent.getKey().startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    }
-                }
-            }
-            if (cpuFgTime > cpuTime) {
-                if (DEBUG && cpuFgTime > cpuTime + 10000) {
-                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
-                }
-                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
-            }
-            power /= 1000;
-            if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
-
-            // Process wake lock usage
-            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
-            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
-                    : wakelockStats.entrySet()) {
-                Uid.Wakelock wakelock = wakelockEntry.getValue();
-                // Only care about partial wake locks since full wake locks
-                // are canceled when the user turns the screen off.
-                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
-                if (timer != null) {
-                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
-                }
-            }
-            wakelockTime /= 1000; // convert to millis
-            appWakelockTime += wakelockTime;
-
-            // Add cost of holding a wake lock
-            p = (wakelockTime
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
-
-            // Add cost of mobile traffic
-            final long mobileRx = u.getNetworkActivityCount(NETWORK_MOBILE_RX_BYTES, mStatsType);
-            final long mobileTx = u.getNetworkActivityCount(NETWORK_MOBILE_TX_BYTES, mStatsType);
-            p = (mobileRx + mobileTx) * mobilePowerPerByte;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("mobile power=%.2f", p));
-
-            // Add cost of wifi traffic
-            final long wifiRx = u.getNetworkActivityCount(NETWORK_WIFI_RX_BYTES, mStatsType);
-            final long wifiTx = u.getNetworkActivityCount(NETWORK_WIFI_TX_BYTES, mStatsType);
-            p = (wifiRx + wifiTx) * wifiPowerPerByte;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi power=%.2f", p));
-
-            // Add cost of keeping WIFI running.
-            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
-            mAppWifiRunning += wifiRunningTimeMs;
-            p = (wifiRunningTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
-
-            // Add cost of WIFI scans
-            long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
-            p = (wifiScanTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_SCAN)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
-            for (int bin = 0; bin < BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS; bin++) {
-                long batchScanTimeMs = u.getWifiBatchedScanTime(bin, uSecTime, which) / 1000;
-                p = (batchScanTimeMs
-                        * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_BATCHED_SCAN, bin));
-                power += p;
-                if (DEBUG && p != 0) {
-                    Log.i(TAG, String.format("wifi batched scanning lvl %d = %.2f", bin, p));
-                }
-            }
-
-            // Process Sensor usage
-            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
-            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
-                    : sensorStats.entrySet()) {
-                Uid.Sensor sensor = sensorEntry.getValue();
-                int sensorHandle = sensor.getHandle();
-                BatteryStats.Timer timer = sensor.getSensorTime();
-                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
-                double multiplier = 0;
-                switch (sensorHandle) {
-                    case Uid.Sensor.GPS:
-                        multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
-                        gpsTime = sensorTime;
-                        break;
-                    default:
-                        List<Sensor> sensorList = sensorManager.getSensorList(
-                                android.hardware.Sensor.TYPE_ALL);
-                        for (android.hardware.Sensor s : sensorList) {
-                            if (s.getHandle() == sensorHandle) {
-                                multiplier = s.getPower();
-                                break;
-                            }
-                        }
-                }
-                p = (multiplier * sensorTime) / 1000;
-                power += p;
-                if (DEBUG && p != 0) {
-                    Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
-                }
-            }
-
-            if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", u.getUid(), power));
+            final double power = result.power;
+            appWakelockTime += result.wakeLockTime;
+            mAppWifiRunning += result.wifiRunningTime;
 
             // Add the app to the list if it is consuming power
             boolean isOtherUser = false;
             final int userId = UserHandle.getUserId(u.getUid());
             if (power != 0 || includeZeroConsumption || u.getUid() == 0) {
-                BatterySipper app = new BatterySipper(mActivity, mRequestQueue, mHandler,
-                        packageWithHighestDrain, DrainType.APP, 0, u,
+                BatterySipper app = new BatterySipper(mActivity,
+                        result.packageWithHighestDrain, DrainType.APP, 0, u,
                         new double[] {power});
-                app.cpuTime = cpuTime;
-                app.gpsTime = gpsTime;
-                app.wifiRunningTime = wifiRunningTimeMs;
-                app.cpuFgTime = cpuFgTime;
-                app.wakeLockTime = wakelockTime;
-                app.mobileRxBytes = mobileRx;
-                app.mobileTxBytes = mobileTx;
-                app.wifiRxBytes = wifiRx;
-                app.wifiTxBytes = wifiTx;
+                app.cpuTime = result.cpuTime;
+                app.gpsTime = result.gpsTime;
+                app.wifiRunningTime = result.wifiRunningTime;
+                app.cpuFgTime = result.cpuFgTime;
+                app.wakeLockTime = result.wakeLockTime;
+                app.mobileRxBytes = result.mobileRxBytes;
+                app.mobileTxBytes = result.mobileTxBytes;
+                app.wifiRxBytes = result.wifiRxBytes;
+                app.wifiTxBytes = result.wifiTxBytes;
                 if (u.getUid() == Process.WIFI_UID) {
                     mWifiSippers.add(app);
                 } else if (u.getUid() == Process.BLUETOOTH_UID) {
@@ -797,8 +630,8 @@ public class BatteryStatsHelper {
             double power) {
         if (power > mMaxPower) mMaxPower = power;
         mTotalPower += power;
-        BatterySipper bs = new BatterySipper(mActivity, mRequestQueue, mHandler,
-                label, drainType, iconId, null, new double[] {power});
+        BatterySipper bs = new BatterySipper(mActivity, label, drainType, iconId, null,
+                new double[] {power});
         bs.usageTime = time;
         bs.iconId = iconId;
         mUsageList.add(bs);
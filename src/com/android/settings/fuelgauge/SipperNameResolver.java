@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Process;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.settings.fuelgauge.BatterySipper.UidToDetail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads names and icons of apps in the battery list on a few background
+ * threads, the highest ranked first.  Sippers sharing a uid are loaded
+ * once between them.
+ *
+ * What is loaded is kept for as long as the process lives, across
+ * refreshes and visits, so the list can come up labelled straight away
+ * next time.  Entries are dropped when their packages are added, changed
+ * or removed, and all of them when the locale changes.
+ */
+class SipperNameResolver {
+    static final int WORKERS = 2;
+    private static final long KEEP_ALIVE_MS = 5000;
+    /** Uids whose name and icon are kept. */
+    private static final int MAX_CACHED = 256;
+
+    private static final LruCache<Integer, UidToDetail> sCache =
+            new LruCache<Integer, UidToDetail>(MAX_CACHED);
+    private static boolean sReceiverRegistered;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            WORKERS, WORKERS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                int mCount;
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("BatteryUsage Icon Loader#" + (++mCount)) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static final BroadcastReceiver sPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                if (uids == null) {
+                    sCache.evictAll();
+                } else {
+                    for (int uid : uids) {
+                        sCache.remove(uid);
+                    }
+                }
+            } else if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                sCache.evictAll();
+            } else {
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid < 0) {
+                    sCache.evictAll();
+                } else {
+                    sCache.remove(uid);
+                }
+            }
+        }
+    };
+
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    /** Uids still to load, highest ranked first. */
+    private final ArrayDeque<Integer> mPending = new ArrayDeque<Integer>();
+    /** Sippers waiting on each pending uid. */
+    private final SparseArray<ArrayList<BatterySipper>> mWaiting =
+            new SparseArray<ArrayList<BatterySipper>>();
+    /** Workers taking from mPending. */
+    private int mRunning;
+
+    private final Runnable mWork = new Runnable() {
+        @Override
+        public void run() {
+            resolvePending();
+        }
+    };
+
+    SipperNameResolver(Context context, Handler handler) {
+        mHandler = handler;
+        registerReceiver(context.getApplicationContext());
+    }
+
+    private static synchronized void registerReceiver(Context context) {
+        if (sReceiverRegistered) return;
+        sReceiverRegistered = true;
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(sPackageReceiver, filter);
+
+        final IntentFilter otherFilter = new IntentFilter();
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        otherFilter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiver(sPackageReceiver, otherFilter);
+    }
+
+    /**
+     * Name and icon known for the uid, or null.  The icon is a copy, so
+     * several views can show it.
+     */
+    static UidToDetail getCached(int uid) {
+        final UidToDetail cached = sCache.get(uid);
+        if (cached == null) return null;
+        final UidToDetail utd = new UidToDetail();
+        utd.name = cached.name;
+        utd.packageName = cached.packageName;
+        utd.icon = copyOf(cached.icon);
+        return utd;
+    }
+
+    static void putCached(int uid, UidToDetail utd) {
+        sCache.put(uid, utd);
+    }
+
+    static void clearCache() {
+        sCache.evictAll();
+    }
+
+    private static Drawable copyOf(Drawable icon) {
+        if (icon == null) return null;
+        final Drawable.ConstantState state = icon.getConstantState();
+        return state != null ? state.newDrawable() : icon;
+    }
+
+    /**
+     * Loads names and icons for the sippers, which are in the order they
+     * are listed, in place of any still waiting from before.  Each one is
+     * reported to the handler as it is loaded, and
+     * {@link BatteryStatsHelper#MSG_REPORT_FULLY_DRAWN} once all are.
+     */
+    void resolve(List<BatterySipper> sippers) {
+        final int workers;
+        synchronized (mLock) {
+            mPending.clear();
+            mWaiting.clear();
+            for (int i = 0; i < sippers.size(); i++) {
+                final BatterySipper sipper = sippers.get(i);
+                final int uid = sipper.getUid();
+                ArrayList<BatterySipper> waiting = mWaiting.get(uid);
+                if (waiting == null) {
+                    waiting = new ArrayList<BatterySipper>();
+                    mWaiting.put(uid, waiting);
+                    mPending.addLast(uid);
+                }
+                waiting.add(sipper);
+            }
+            if (mPending.isEmpty() && mRunning == 0) {
+                mHandler.sendEmptyMessage(BatteryStatsHelper.MSG_REPORT_FULLY_DRAWN);
+                return;
+            }
+            workers = Math.min(WORKERS, mPending.size()) - mRunning;
+            if (workers > 0) mRunning += workers;
+        }
+        for (int i = 0; i < workers; i++) {
+            sExecutor.execute(mWork);
+        }
+    }
+
+    /**
+     * Drops whatever is still waiting.  Loads already started finish.
+     */
+    void cancel() {
+        synchronized (mLock) {
+            mPending.clear();
+            mWaiting.clear();
+        }
+    }
+
+    private void resolvePending() {
+        while (true) {
+            final ArrayList<BatterySipper> sippers;
+            synchronized (mLock) {
+                final Integer uid = mPending.pollFirst();
+                if (uid == null) {
+                    if (--mRunning == 0) {
+                        mHandler.sendEmptyMessage(BatteryStatsHelper.MSG_REPORT_FULLY_DRAWN);
+                    }
+                    return;
+                }
+                sippers = mWaiting.get(uid);
+                mWaiting.remove(uid);
+            }
+
+            // another list may have loaded it while this one waited
+            final BatterySipper first = sippers.get(0);
+            final UidToDetail cached = getCached(first.getUid());
+            if (cached != null) {
+                first.setNameAndIcon(cached);
+            } else if (!first.loadNameAndIcon()) {
+                continue;
+            }
+            for (int i = 0; i < sippers.size(); i++) {
+                final BatterySipper sipper = sippers.get(i);
+                if (i > 0) {
+                    sipper.setNameAndIcon(first);
+                }
+                mHandler.sendMessage(mHandler.obtainMessage(
+                        BatteryStatsHelper.MSG_UPDATE_NAME_ICON, sipper));
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+
+/**
+ * Collapses {@link NetworkStats} rows into the items of the data usage list
+ * and ranks them heaviest first.  Totals are kept in primitive arrays, and
+ * each uid is only mapped to its item once however many rows it has.
+ * {@link AppItem} objects are only made for positions asked for, and only
+ * as many items are ranked as have been asked for, in growing chunks, so
+ * binding doesn't sort a list nobody scrolls through.
+ *
+ * Items in the same position come out as sorting every {@link AppItem}
+ * would give, with ties in the order they were first seen.  Arrays are
+ * reused from one {@link #reset} to the next.  Not thread safe.
+ */
+public class AppUsageCollector {
+    static final int FIRST_RANKED = 32;
+
+    private int mCurrentUserId;
+
+    // Items in the order first seen.
+    private int mCount;
+    private int[] mKeys = new int[16];
+    private long[] mTotals = new long[16];
+    private boolean[] mRestricted = new boolean[16];
+    private int[] mFirstUid = new int[16];
+    private AppItem[] mItems = new AppItem[16];
+
+    // Distinct uids seen, each chained to the next of the same item.
+    private int mUidCount;
+    private int[] mUids = new int[64];
+    private int[] mNextUid = new int[64];
+
+    private final IntIntMap mItemForKey = new IntIntMap();
+    private final IntIntMap mItemForUid = new IntIntMap();
+
+    // Item indexes, the first mRanked of them heaviest first.
+    private int[] mOrder = new int[16];
+    int mRanked;
+
+    private NetworkStats.Entry mEntry;
+
+    /**
+     * The item a uid's usage is shown under: apps of the current user on
+     * their own, other users' apps under their user, and the rest of the
+     * system together.
+     */
+    public static int collapseKey(int uid, int currentUserId) {
+        if (UserHandle.isApp(uid)) {
+            if (UserHandle.getUserId(uid) == currentUserId) {
+                return uid;
+            } else {
+                return UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+            }
+        } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+            return uid;
+        } else {
+            return android.os.Process.SYSTEM_UID;
+        }
+    }
+
+    public void reset(int currentUserId) {
+        mCurrentUserId = currentUserId;
+        Arrays.fill(mItems, 0, mCount, null);
+        mCount = 0;
+        mUidCount = 0;
+        mRanked = 0;
+        mItemForKey.clear();
+        mItemForUid.clear();
+    }
+
+    /**
+     * Adds in every row of the stats, which may be {@code null}.
+     */
+    public void addStats(NetworkStats stats) {
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            mEntry = stats.getValues(i, mEntry);
+            addUsage(mEntry.uid, mEntry.rxBytes + mEntry.txBytes);
+        }
+    }
+
+    public void addUsage(int uid, long bytes) {
+        int item = mItemForUid.get(uid);
+        if (item < 0) {
+            item = obtainItem(collapseKey(uid, mCurrentUserId));
+            if (mUidCount == mUids.length) {
+                mUids = Arrays.copyOf(mUids, mUidCount * 2);
+                mNextUid = Arrays.copyOf(mNextUid, mUidCount * 2);
+            }
+            mUids[mUidCount] = uid;
+            mNextUid[mUidCount] = mFirstUid[item];
+            mFirstUid[item] = mUidCount;
+            mUidCount++;
+            mItemForUid.put(uid, item);
+        }
+        mTotals[item] += bytes;
+    }
+
+    /**
+     * Marks the current user's restricted uids, adding items for the ones
+     * with no usage.
+     */
+    public void addRestricted(int[] restrictedUids) {
+        for (int uid : restrictedUids) {
+            // Only splice in restricted state for current user
+            if (UserHandle.getUserId(uid) != mCurrentUserId) continue;
+
+            int item = mItemForKey.get(uid);
+            if (item < 0) {
+                item = obtainItem(uid);
+                mTotals[item] = -1;
+            }
+            mRestricted[item] = true;
+        }
+    }
+
+    private int obtainItem(int key) {
+        int item = mItemForKey.get(key);
+        if (item >= 0) {
+            return item;
+        }
+        if (mCount == mKeys.length) {
+            final int capacity = mCount * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mTotals = Arrays.copyOf(mTotals, capacity);
+            mRestricted = Arrays.copyOf(mRestricted, capacity);
+            mFirstUid = Arrays.copyOf(mFirstUid, capacity);
+            mItems = Arrays.copyOf(mItems, capacity);
+            mOrder = Arrays.copyOf(mOrder, capacity);
+        }
+        item = mCount++;
+        mKeys[item] = key;
+        mTotals[item] = 0;
+        mRestricted[item] = false;
+        mFirstUid[item] = -1;
+        mOrder[item] = item;
+        mItemForKey.put(key, item);
+        return item;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * The total of the heaviest item, or 0 if there are none.
+     */
+    public long getLargest() {
+        if (mCount == 0) return 0;
+        ensureRanked(1);
+        return mTotals[mOrder[0]];
+    }
+
+    /**
+     * The item at that position, heaviest first.
+     */
+    public AppItem get(int position) {
+        ensureRanked(position + 1);
+        final int item = mOrder[position];
+        AppItem appItem = mItems[item];
+        if (appItem == null) {
+            appItem = new AppItem(mKeys[item]);
+            for (int u = mFirstUid[item]; u >= 0; u = mNextUid[u]) {
+                appItem.addUid(mUids[u]);
+            }
+            appItem.total = mTotals[item];
+            appItem.restricted = mRestricted[item];
+            mItems[item] = appItem;
+        }
+        return appItem;
+    }
+
+    public int getKey(int position) {
+        ensureRanked(position + 1);
+        return mKeys[mOrder[position]];
+    }
+
+    public long getTotal(int position) {
+        ensureRanked(position + 1);
+        return mTotals[mOrder[position]];
+    }
+
+    /**
+     * Makes sure at least the first count positions are ranked, ranking
+     * twice as many as last time while the list is being scrolled.
+     */
+    private void ensureRanked(int count) {
+        if (count <= mRanked) return;
+        final int target = Math.min(mCount, Math.max(count, Math.max(FIRST_RANKED, mRanked * 2)));
+        select(mRanked, mCount - 1, target);
+        sort(mRanked, target - 1);
+        mRanked = target;
+    }
+
+    /**
+     * Whether item a goes before item b: heavier first, then first seen.
+     */
+    private boolean before(int a, int b) {
+        final long totalA = mTotals[a];
+        final long totalB = mTotals[b];
+        return totalA > totalB || (totalA == totalB && a < b);
+    }
+
+    private void swap(int i, int j) {
+        final int tmp = mOrder[i];
+        mOrder[i] = mOrder[j];
+        mOrder[j] = tmp;
+    }
+
+    /**
+     * Partitions mOrder[lo..hi] around a middle element; returns where it
+     * ends up, with everything going before it to its left.
+     */
+    private int partition(int lo, int hi) {
+        swap((lo + hi) >>> 1, hi);
+        final int pivot = mOrder[hi];
+        int store = lo;
+        for (int i = lo; i < hi; i++) {
+            if (before(mOrder[i], pivot)) {
+                swap(i, store++);
+            }
+        }
+        swap(store, hi);
+        return store;
+    }
+
+    /**
+     * Moves the items that go before position k within mOrder[lo..hi] to
+     * the left of it, in no particular order.
+     */
+    private void select(int lo, int hi, int k) {
+        while (lo < hi) {
+            final int p = partition(lo, hi);
+            if (p == k) {
+                return;
+            } else if (p < k) {
+                lo = p + 1;
+            } else {
+                hi = p - 1;
+            }
+        }
+    }
+
+    private void sort(int lo, int hi) {
+        while (hi - lo > 16) {
+            final int p = partition(lo, hi);
+            // Recurse into the smaller side, loop on the larger.
+            if (p - lo < hi - p) {
+                sort(lo, p - 1);
+                lo = p + 1;
+            } else {
+                sort(p + 1, hi);
+                hi = p - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            final int item = mOrder[i];
+            int j = i - 1;
+            while (j >= lo && before(item, mOrder[j])) {
+                mOrder[j + 1] = mOrder[j];
+                j--;
+            }
+            mOrder[j + 1] = item;
+        }
+    }
+
+    /**
+     * Open addressing map from int to a non-negative int, with -1 for
+     * missing keys.
+     */
+    static class IntIntMap {
+        private int[] mMapKeys = new int[64];
+        private int[] mMapValues = new int[64];
+        private boolean[] mUsed = new boolean[64];
+        private int mSize;
+
+        private int slot(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int get(int key) {
+            final int mask = mUsed.length - 1;
+            for (int i = slot(key, mask); mUsed[i]; i = (i + 1) & mask) {
+                if (mMapKeys[i] == key) return mMapValues[i];
+            }
+            return -1;
+        }
+
+        void put(int key, int value) {
+            if ((mSize + 1) * 2 > mUsed.length) {
+                grow();
+            }
+            final int mask = mUsed.length - 1;
+            int i = slot(key, mask);
+            while (mUsed[i]) {
+                if (mMapKeys[i] == key) {
+                    mMapValues[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            mUsed[i] = true;
+            mMapKeys[i] = key;
+            mMapValues[i] = value;
+            mSize++;
+        }
+
+        private void grow() {
+            final int[] keys = mMapKeys;
+            final int[] values = mMapValues;
+            final boolean[] used = mUsed;
+            mMapKeys = new int[keys.length * 2];
+            mMapValues = new int[keys.length * 2];
+            mUsed = new boolean[keys.length * 2];
+            mSize = 0;
+            for (int i = 0; i < used.length; i++) {
+                if (used[i]) put(keys[i], values[i]);
+            }
+        }
+
+        void clear() {
+            if (mSize > 0) {
+                Arrays.fill(mUsed, false);
+                mSize = 0;
+            }
+        }
+    }
+}
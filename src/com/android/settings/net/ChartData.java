@@ -24,4 +24,42 @@ public class ChartData {
     public NetworkStatsHistory detail;
     public NetworkStatsHistory detailDefault;
     public NetworkStatsHistory detailForeground;
+
+    /** Set while uid histories are still being fetched and added in. */
+    public boolean partial;
+
+    /**
+     * Whether this shows just what the other does, so binding one after
+     * the other changes nothing.
+     */
+    public boolean sameAs(ChartData other) {
+        if (other == this) return true;
+        return other != null && partial == other.partial
+                && sameHistory(network, other.network)
+                && sameHistory(detail, other.detail)
+                && sameHistory(detailDefault, other.detailDefault)
+                && sameHistory(detailForeground, other.detailForeground);
+    }
+
+    static boolean sameHistory(NetworkStatsHistory a, NetworkStatsHistory b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (a.getBucketDuration() != b.getBucketDuration() || a.size() != b.size()) {
+            return false;
+        }
+        NetworkStatsHistory.Entry entryA = null;
+        NetworkStatsHistory.Entry entryB = null;
+        for (int i = 0; i < a.size(); i++) {
+            entryA = a.getValues(i, entryA);
+            entryB = b.getValues(i, entryB);
+            if (entryA.bucketStart != entryB.bucketStart
+                    || entryA.rxBytes != entryB.rxBytes || entryA.txBytes != entryB.txBytes
+                    || entryA.rxPackets != entryB.rxPackets
+                    || entryA.txPackets != entryB.txPackets
+                    || entryA.operations != entryB.operations) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -29,10 +29,22 @@ import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
@@ -41,8 +53,58 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    /** Histories fetched at once; items like "Android OS" have dozens of uids. */
+    static final int FETCH_THREADS = 4;
+    /** Least time between partial results handed to the chart. */
+    private static final long PARTIAL_INTERVAL = 250;
+
+    private static final ThreadPoolExecutor sFetchExecutor = new ThreadPoolExecutor(
+            FETCH_THREADS, FETCH_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sFetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
+    private final DataUsageCache mCache;
+    private final Handler mMainHandler;
+
+    /** Bumped for each load, so partial results of an old one are dropped. */
+    private volatile int mLoadSeq;
+
+    /** PARTIAL_INTERVAL, except in tests. */
+    long mPartialInterval = PARTIAL_INTERVAL;
+
+    /**
+     * One history to fetch: the network's when uid is -1, else a uid's in
+     * one set.
+     */
+    private class Fetch implements Callable<Fetch> {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+        NetworkStatsHistory history;
+
+        Fetch(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public Fetch call() throws RemoteException {
+            if (uid == -1) {
+                history = mSession.getHistoryForNetwork(template, fields);
+            } else {
+                history = mSession.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            }
+            return this;
+        }
+    }
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
         return buildArgs(template, app, FIELD_RX_BYTES | FIELD_TX_BYTES);
@@ -56,10 +118,30 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
+    /**
+     * What a loader with these args would have put in the cache, if any.
+     */
+    public static DataUsageCache.Hit<ChartData> getCached(DataUsageCache cache, Bundle args) {
+        final NetworkTemplate template = args.getParcelable(KEY_TEMPLATE);
+        final AppItem app = args.getParcelable(KEY_APP);
+        return cache.getChart(template, app, args.getInt(KEY_FIELDS),
+                SystemClock.elapsedRealtime());
+    }
+
     public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, args, null);
+    }
+
+    /**
+     * Loader that also puts what it loads in the cache, if any.
+     */
+    public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args,
+            DataUsageCache cache) {
         super(context);
         mSession = session;
         mArgs = args;
+        mCache = cache;
+        mMainHandler = new Handler(context.getMainLooper());
     }
 
     @Override
@@ -68,14 +150,26 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         forceLoad();
     }
 
+    @Override
+    protected void onForceLoad() {
+        mLoadSeq++;
+        super.onForceLoad();
+    }
+
     @Override
     public ChartData loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final AppItem app = mArgs.getParcelable(KEY_APP);
         final int fields = mArgs.getInt(KEY_FIELDS);
+        final int generation = mCache != null ? mCache.getGeneration() : 0;
 
         try {
-            return loadInBackground(template, app, fields);
+            final ChartData data = loadInBackground(template, app, fields);
+            if (data != null && mCache != null) {
+                mCache.putChart(template, app, fields, data, generation,
+                        SystemClock.elapsedRealtime());
+            }
+            return data;
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -85,21 +179,93 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
 
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
+        final int seq = mLoadSeq;
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
 
-        if (app != null) {
-            // load stats for current uid and template
-            final int size = app.uids.size();
-            for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+        // Fetch everything at once, and add up the uid histories as they come.
+        final CompletionService<Fetch> completion = new ExecutorCompletionService<Fetch>(
+                sFetchExecutor);
+        final ArrayList<Future<Fetch>> futures = new ArrayList<Future<Fetch>>();
+        futures.add(completion.submit(new Fetch(template, -1, 0, fields)));
+        final int size = app != null ? app.uids.size() : 0;
+        final ArrayList<Fetch> uidFetches = new ArrayList<Fetch>(size * 2);
+        for (int i = 0; i < size; i++) {
+            final int uid = app.uids.keyAt(i);
+            final Fetch fetchDefault = new Fetch(
+                    template, uid, SET_DEFAULT, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            final Fetch fetchForeground = new Fetch(
+                    template, uid, SET_FOREGROUND, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            uidFetches.add(fetchDefault);
+            uidFetches.add(fetchForeground);
+            futures.add(completion.submit(fetchDefault));
+            futures.add(completion.submit(fetchForeground));
+        }
+
+        HistoryMerger mergedDefault = null;
+        HistoryMerger mergedForeground = null;
+        HistoryMerger merged = null;
+        boolean aligned = true;
+        long lastPartial = SystemClock.uptimeMillis();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                final Fetch fetch = completion.take().get();
+                if (isLoadInBackgroundCanceled()) {
+                    return null;
+                }
+                if (fetch.uid == -1) {
+                    data.network = fetch.history;
+                } else if (aligned) {
+                    if (merged == null) {
+                        final long bucketDuration = fetch.history.getBucketDuration();
+                        mergedDefault = new HistoryMerger(bucketDuration);
+                        mergedForeground = new HistoryMerger(bucketDuration);
+                        merged = new HistoryMerger(bucketDuration);
+                    }
+                    aligned = merged.add(fetch.history) && (fetch.set == SET_DEFAULT
+                            ? mergedDefault : mergedForeground).add(fetch.history);
+                }
+
+                final long now = SystemClock.uptimeMillis();
+                if (aligned && merged != null && data.network != null
+                        && i < futures.size() - 1 && now - lastPartial >= mPartialInterval) {
+                    lastPartial = now;
+                    final ChartData partial = new ChartData();
+                    partial.network = data.network;
+                    partial.detailDefault = mergedDefault.build();
+                    partial.detailForeground = mergedForeground.build();
+                    partial.detail = merged.build();
+                    partial.partial = true;
+                    deliverPartial(partial, seq);
+                }
             }
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).cancel(true);
+            }
+        }
 
-            if (size > 0) {
+        if (app != null) {
+            if (size > 0 && aligned) {
+                data.detailDefault = mergedDefault.build();
+                data.detailForeground = mergedForeground.build();
+                data.detail = merged.build();
+            } else if (size > 0) {
+                // Buckets that don't line up; add them up the slow way, in order.
+                for (int i = 0; i < uidFetches.size(); i++) {
+                    final Fetch fetch = uidFetches.get(i);
+                    if (fetch.set == SET_DEFAULT) {
+                        data.detailDefault = combine(data.detailDefault, fetch.history);
+                    } else {
+                        data.detailForeground = combine(data.detailForeground, fetch.history);
+                    }
+                }
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
@@ -113,6 +279,21 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return data;
     }
 
+    /**
+     * Hands what has been added up so far to the chart, unless the load it
+     * came from has been replaced or stopped by then.
+     */
+    void deliverPartial(final ChartData partial, final int seq) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (seq == mLoadSeq && isStarted() && !isAbandoned()) {
+                    deliverResult(partial);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onStopLoading() {
         super.onStopLoading();
@@ -126,15 +307,10 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Combine {@link NetworkStatsHistory} into an existing one if provided.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
+    private static NetworkStatsHistory combine(
+            NetworkStatsHistory existing, NetworkStatsHistory history) {
         if (existing != null) {
             existing.recordEntireHistory(history);
             return existing;
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.util.LruCache;
+
+import com.android.internal.util.Objects;
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the {@link ChartData} loaded for each template and app, and the
+ * {@link NetworkStats} summary loaded for each template and cycle, so
+ * going back to a tab or cycle can show them straight away.
+ *
+ * Everything loaded before the last {@link #invalidate}, which is called
+ * once the stats service has polled again, or longer than FRESH_AGE ago,
+ * is stale: still shown, but loaded again behind it.  Results are dropped
+ * least recently used first past MAX_BYTES, going by a rough count of the
+ * buckets and rows they hold.
+ *
+ * Loaders put results from their worker threads; everything synchronizes
+ * on this.
+ */
+public class DataUsageCache {
+    static final long FRESH_AGE = 60 * 1000;
+    static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    /** Rough bytes held for each bucket of a history and each stats row. */
+    private static final int BUCKET_BYTES = 3 * 8;
+    private static final int ROW_BYTES = 64;
+
+    private static final int KIND_CHART = 0;
+    private static final int KIND_SUMMARY = 1;
+
+    /**
+     * A cached result; when not fresh it should be shown while loading
+     * again.
+     */
+    public static class Hit<T> {
+        public final T value;
+        public final boolean fresh;
+
+        Hit(T value, boolean fresh) {
+            this.value = value;
+            this.fresh = fresh;
+        }
+    }
+
+    private static final class Key {
+        final int kind;
+        final NetworkTemplate template;
+        final int[] uids;
+        final int fields;
+        final long start;
+        final long end;
+
+        Key(int kind, NetworkTemplate template, int[] uids, int fields, long start, long end) {
+            this.kind = kind;
+            this.template = template;
+            this.uids = uids;
+            this.fields = fields;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(kind, template, Arrays.hashCode(uids), fields, start, end);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return kind == other.kind && Objects.equal(template, other.template)
+                    && Arrays.equals(uids, other.uids) && fields == other.fields
+                    && start == other.start && end == other.end;
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final int size;
+        final int generation;
+        final long loadTime;
+
+        Entry(Object value, int size, int generation, long loadTime) {
+            this.value = value;
+            this.size = size;
+            this.generation = generation;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private final LruCache<Key, Entry> mEntries;
+    private int mGeneration;
+
+    public DataUsageCache() {
+        this(MAX_BYTES);
+    }
+
+    DataUsageCache(int maxBytes) {
+        mEntries = new LruCache<Key, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Entry entry) {
+                return entry.size;
+            }
+        };
+    }
+
+    /**
+     * Generation to hand to a put for what is about to be loaded, so
+     * anything loaded across an {@link #invalidate} counts as stale.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Makes everything cached so far stale.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+    }
+
+    public synchronized void clear() {
+        mEntries.evictAll();
+    }
+
+    public synchronized int getBytes() {
+        return mEntries.size();
+    }
+
+    public Hit<ChartData> getChart(NetworkTemplate template, AppItem app, int fields, long now) {
+        return get(chartKey(template, app, fields), now);
+    }
+
+    public void putChart(NetworkTemplate template, AppItem app, int fields, ChartData data,
+            int generation, long now) {
+        int buckets = size(data.network) + size(data.detail) + size(data.detailDefault)
+                + size(data.detailForeground);
+        put(chartKey(template, app, fields), data, buckets * BUCKET_BYTES, generation, now);
+    }
+
+    public Hit<NetworkStats> getSummary(NetworkTemplate template, long start, long end,
+            long now) {
+        return get(new Key(KIND_SUMMARY, template, null, 0, start, end), now);
+    }
+
+    public void putSummary(NetworkTemplate template, long start, long end, NetworkStats stats,
+            int generation, long now) {
+        put(new Key(KIND_SUMMARY, template, null, 0, start, end), stats,
+                stats.size() * ROW_BYTES, generation, now);
+    }
+
+    private static Key chartKey(NetworkTemplate template, AppItem app, int fields) {
+        int[] uids = null;
+        if (app != null) {
+            uids = new int[app.uids.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = app.uids.keyAt(i);
+            }
+        }
+        return new Key(KIND_CHART, template, uids, fields, 0, 0);
+    }
+
+    private static int size(NetworkStatsHistory history) {
+        return history != null ? history.size() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Hit<T> get(Key key, long now) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final boolean fresh = entry.generation == mGeneration
+                && now - entry.loadTime < FRESH_AGE;
+        return new Hit<T>((T) entry.value, fresh);
+    }
+
+    private synchronized void put(Key key, Object value, int size, int generation, long now) {
+        // anything bigger than the whole budget would only push out the rest
+        if (size >= mEntries.maxSize()) {
+            mEntries.remove(key);
+            return;
+        }
+        mEntries.put(key, new Entry(value, Math.max(size, 1), generation, now));
+    }
+}
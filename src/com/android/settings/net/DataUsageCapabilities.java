@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary;
+
+/**
+ * Which networks the data usage screen has tabs for.  Probing is done off
+ * the UI thread in two steps: the radios, which are quick to ask about,
+ * then whether ethernet ever carried traffic, which adds up its whole
+ * history.  The last answer is kept in preferences so the next launch can
+ * show its tabs straight away.
+ *
+ * Once ethernet has carried traffic it stays that way until its history
+ * expires, so a yes is trusted for ETHERNET_VALID_TIME without adding it up
+ * again, as long as the hardware is still there.
+ */
+public class DataUsageCapabilities {
+    private static final String TAG = "DataUsageCapabilities";
+
+    static final long ETHERNET_VALID_TIME = DAY_IN_MILLIS;
+
+    private static final String PREF_MOBILE = "probe_mobile";
+    private static final String PREF_MOBILE_4G = "probe_mobile_4g";
+    private static final String PREF_WIFI = "probe_wifi";
+    private static final String PREF_ETHERNET = "probe_ethernet";
+    private static final String PREF_ETHERNET_TIME = "probe_ethernet_time";
+
+    public boolean mobile;
+    public boolean mobile4g;
+    public boolean wifi;
+    public boolean ethernet;
+
+    public boolean ethernetSupported;
+    long ethernetCheckTime;
+
+    public DataUsageCapabilities() {
+    }
+
+    public DataUsageCapabilities(DataUsageCapabilities other) {
+        mobile = other.mobile;
+        mobile4g = other.mobile4g;
+        wifi = other.wifi;
+        ethernet = other.ethernet;
+        ethernetSupported = other.ethernetSupported;
+        ethernetCheckTime = other.ethernetCheckTime;
+    }
+
+    /**
+     * What was found last time, or nothing at all on first launch.
+     */
+    public static DataUsageCapabilities read(SharedPreferences prefs) {
+        final DataUsageCapabilities caps = new DataUsageCapabilities();
+        caps.mobile = prefs.getBoolean(PREF_MOBILE, false);
+        caps.mobile4g = prefs.getBoolean(PREF_MOBILE_4G, false);
+        caps.wifi = prefs.getBoolean(PREF_WIFI, false);
+        caps.ethernet = prefs.getBoolean(PREF_ETHERNET, false);
+        caps.ethernetSupported = caps.ethernet;
+        caps.ethernetCheckTime = prefs.getLong(PREF_ETHERNET_TIME, 0);
+        return caps;
+    }
+
+    public void write(SharedPreferences prefs) {
+        prefs.edit()
+                .putBoolean(PREF_MOBILE, mobile)
+                .putBoolean(PREF_MOBILE_4G, mobile4g)
+                .putBoolean(PREF_WIFI, wifi)
+                .putBoolean(PREF_ETHERNET, ethernet)
+                .putLong(PREF_ETHERNET_TIME, ethernetCheckTime)
+                .apply();
+    }
+
+    /**
+     * Asks about the radios; a few quick binder calls.
+     */
+    public void probeRadios(Context context) {
+        mobile = DataUsageSummary.hasReadyMobileRadio(context);
+        mobile4g = DataUsageSummary.hasReadyMobile4gRadio(context);
+        wifi = DataUsageSummary.hasWifiRadio(context);
+        ethernetSupported = DataUsageSummary.hasEthernetRadio(context);
+    }
+
+    /**
+     * Finds whether ethernet is there and ever carried traffic, only adding
+     * up its history when a recent yes isn't known.
+     */
+    public void probeEthernet(INetworkStatsSession session, long now) {
+        if (!ethernetSupported || session == null) {
+            ethernet = false;
+            return;
+        }
+        if (ethernet && now - ethernetCheckTime < ETHERNET_VALID_TIME) {
+            return;
+        }
+
+        try {
+            final NetworkStats stats = session.getSummaryForNetwork(
+                    NetworkTemplate.buildTemplateEthernet(), Long.MIN_VALUE, Long.MAX_VALUE);
+            ethernet = stats.getTotalBytes() > 0;
+            ethernetCheckTime = now;
+        } catch (RemoteException e) {
+            Log.w(TAG, "problem reading ethernet stats", e);
+            ethernet = false;
+        }
+    }
+
+    /**
+     * Whether both would show the same tabs.
+     */
+    public boolean sameTabs(DataUsageCapabilities other) {
+        return mobile == other.mobile && mobile4g == other.mobile4g && wifi == other.wifi
+                && ethernet == other.ethernet;
+    }
+}
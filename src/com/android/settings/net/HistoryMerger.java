@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+
+/**
+ * Adds up {@link NetworkStatsHistory} with the same bucket duration bucket
+ * by bucket, in time linear in the number of buckets, where
+ * {@link NetworkStatsHistory#recordEntireHistory} searches for each bucket
+ * it records.  Only rx and tx bytes are kept, which is all the chart asks
+ * for.  Not thread safe.
+ */
+class HistoryMerger {
+    private final long mBucketDuration;
+    private final NetworkStatsHistory.Entry mEntry = new NetworkStatsHistory.Entry();
+
+    // Start of the first bucket, and the buckets from there on that any
+    // history added had.
+    private long mStart;
+    private int mCount;
+    private boolean[] mPresent = new boolean[0];
+    private long[] mRxBytes = new long[0];
+    private long[] mTxBytes = new long[0];
+
+    HistoryMerger(long bucketDuration) {
+        mBucketDuration = bucketDuration;
+    }
+
+    long getBucketDuration() {
+        return mBucketDuration;
+    }
+
+    /**
+     * Adds in the history, unless its buckets don't line up with these;
+     * returns whether it did.
+     */
+    boolean add(NetworkStatsHistory history) {
+        if (history.getBucketDuration() != mBucketDuration) {
+            return false;
+        }
+        final int size = history.size();
+        if (size == 0) {
+            return true;
+        }
+        final long first = history.getValues(0, mEntry).bucketStart;
+        final long last = history.getValues(size - 1, mEntry).bucketStart;
+        if (mCount > 0 && (first - mStart) % mBucketDuration != 0) {
+            return false;
+        }
+        ensureRange(first, last);
+
+        for (int i = 0; i < size; i++) {
+            final NetworkStatsHistory.Entry entry = history.getValues(i, mEntry);
+            final int index = (int) ((entry.bucketStart - mStart) / mBucketDuration);
+            mPresent[index] = true;
+            if (entry.rxBytes > 0) {
+                mRxBytes[index] += entry.rxBytes;
+            }
+            if (entry.txBytes > 0) {
+                mTxBytes[index] += entry.txBytes;
+            }
+        }
+        return true;
+    }
+
+    private void ensureRange(long first, long last) {
+        if (mCount == 0) {
+            mStart = first;
+            mCount = (int) ((last - first) / mBucketDuration) + 1;
+            mPresent = new boolean[mCount];
+            mRxBytes = new long[mCount];
+            mTxBytes = new long[mCount];
+            return;
+        }
+        final long end = mStart + mCount * mBucketDuration;
+        if (first >= mStart && last < end) {
+            return;
+        }
+        final long newStart = Math.min(first, mStart);
+        final long newEnd = Math.max(last + mBucketDuration, end);
+        final int newCount = (int) ((newEnd - newStart) / mBucketDuration);
+        final int offset = (int) ((mStart - newStart) / mBucketDuration);
+
+        final boolean[] present = new boolean[newCount];
+        final long[] rxBytes = new long[newCount];
+        final long[] txBytes = new long[newCount];
+        System.arraycopy(mPresent, 0, present, offset, mCount);
+        System.arraycopy(mRxBytes, 0, rxBytes, offset, mCount);
+        System.arraycopy(mTxBytes, 0, txBytes, offset, mCount);
+        mStart = newStart;
+        mCount = newCount;
+        mPresent = present;
+        mRxBytes = rxBytes;
+        mTxBytes = txBytes;
+    }
+
+    /**
+     * Returns a new history with the sums so far.
+     */
+    NetworkStatsHistory build() {
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mPresent[i]) {
+                size++;
+            }
+        }
+        final NetworkStatsHistory history = new NetworkStatsHistory(
+                mBucketDuration, size, FIELD_RX_BYTES | FIELD_TX_BYTES);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < mCount; i++) {
+            if (!mPresent[i]) continue;
+            final long start = mStart + i * mBucketDuration;
+            entry.rxBytes = mRxBytes[i];
+            entry.txBytes = mTxBytes[i];
+            history.recordData(start, start + mBucketDuration, entry);
+        }
+        return history;
+    }
+}
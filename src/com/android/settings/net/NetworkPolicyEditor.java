@@ -32,7 +32,9 @@ import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
 import android.net.NetworkTemplate;
 import android.net.wifi.WifiInfo;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.Time;
 
@@ -41,23 +43,76 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Sets;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Utility class to modify list of {@link NetworkPolicy}. Specifically knows
  * about which policies can coexist. This editor offers thread safety when
  * talking with {@link NetworkPolicyManager}.
+ *
+ * Changes are written behind: once no more have come for WRITE_DELAY, or
+ * at most MAX_WRITE_DELAY after the first, a copy of every policy is handed
+ * to a single writer thread.  A copy still waiting there when a newer one
+ * comes along is dropped, since every write replaces all policies.  Call
+ * {@link #flush()} before leaving, so others reading policies see them.
  */
 public class NetworkPolicyEditor {
     // TODO: be more robust when missing policies from service
 
     public static final boolean ENABLE_SPLIT_POLICIES = false;
 
+    static final long WRITE_DELAY = 300;
+    static final long MAX_WRITE_DELAY = 2000;
+
+    /** Writes policies in the order they were flushed, for all editors. */
+    private static final ThreadPoolExecutor sWriteExecutor = new ThreadPoolExecutor(
+            1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private NetworkPolicyManager mPolicyManager;
     private ArrayList<NetworkPolicy> mPolicies = Lists.newArrayList();
+    private HashMap<NetworkTemplate, NetworkPolicy> mPolicyIndex =
+            new HashMap<NetworkTemplate, NetworkPolicy>();
+
+    private final Handler mHandler;
+    /** When the oldest change not yet flushed was made, or -1. */
+    private long mDirtySince = -1;
+    /** Latest policies flushed but not yet written. */
+    private final AtomicReference<NetworkPolicy[]> mPendingWrite =
+            new AtomicReference<NetworkPolicy[]>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            final NetworkPolicy[] policies = mPendingWrite.getAndSet(null);
+            if (policies != null) {
+                write(policies);
+            }
+        }
+    };
 
     public NetworkPolicyEditor(NetworkPolicyManager policyManager) {
+        this(policyManager, Looper.getMainLooper());
+    }
+
+    NetworkPolicyEditor(NetworkPolicyManager policyManager, Looper looper) {
         mPolicyManager = checkNotNull(policyManager);
+        mHandler = new Handler(looper);
     }
 
     public void read() {
@@ -65,6 +120,7 @@ public class NetworkPolicyEditor {
 
         boolean modified = false;
         mPolicies.clear();
+        mPolicyIndex.clear();
         for (NetworkPolicy policy : policies) {
             // TODO: find better place to clamp these
             if (policy.limitBytes < -1) {
@@ -76,7 +132,7 @@ public class NetworkPolicyEditor {
                 modified = true;
             }
 
-            mPolicies.add(policy);
+            addPolicy(policy);
         }
 
         // force combine any split policies when disabled
@@ -88,16 +144,45 @@ public class NetworkPolicyEditor {
         if (modified) writeAsync();
     }
 
+    /**
+     * Writes policies once changes stop coming for a moment.
+     */
     public void writeAsync() {
+        final long now = SystemClock.uptimeMillis();
+        if (mDirtySince < 0) {
+            mDirtySince = now;
+        }
+        mHandler.removeCallbacks(mFlush);
+        final long deadline = mDirtySince + MAX_WRITE_DELAY;
+        if (now >= deadline) {
+            flush();
+        } else {
+            mHandler.postDelayed(mFlush, Math.min(WRITE_DELAY, deadline - now));
+        }
+    }
+
+    /**
+     * Hands any changes not yet written to the writer thread now.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+        if (mDirtySince < 0) return;
+        mDirtySince = -1;
+
         // TODO: consider making more robust by passing through service
-        final NetworkPolicy[] policies = mPolicies.toArray(new NetworkPolicy[mPolicies.size()]);
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                write(policies);
-                return null;
-            }
-        }.execute();
+
+        // copies, since policies keep being edited while the writer parcels
+        final NetworkPolicy[] policies = new NetworkPolicy[mPolicies.size()];
+        for (int i = 0; i < policies.length; i++) {
+            final NetworkPolicy policy = mPolicies.get(i);
+            policies[i] = new NetworkPolicy(policy.template, policy.cycleDay,
+                    policy.cycleTimezone, policy.warningBytes, policy.limitBytes,
+                    policy.lastWarningSnooze, policy.lastLimitSnooze, policy.metered,
+                    policy.inferred);
+        }
+        if (mPendingWrite.getAndSet(policies) == null) {
+            sWriteExecutor.execute(mWrite);
+        }
     }
 
     public void write(NetworkPolicy[] policies) {
@@ -113,18 +198,34 @@ public class NetworkPolicyEditor {
         NetworkPolicy policy = getPolicy(template);
         if (policy == null) {
             policy = buildDefaultPolicy(template);
-            mPolicies.add(policy);
+            addPolicy(policy);
         }
         return policy;
     }
 
     public NetworkPolicy getPolicy(NetworkTemplate template) {
-        for (NetworkPolicy policy : mPolicies) {
-            if (policy.template.equals(template)) {
-                return policy;
+        return mPolicyIndex.get(template);
+    }
+
+    private void addPolicy(NetworkPolicy policy) {
+        mPolicies.add(policy);
+        // the first of any duplicates is the one edited, as before
+        if (!mPolicyIndex.containsKey(policy.template)) {
+            mPolicyIndex.put(policy.template, policy);
+        }
+    }
+
+    private void removePolicy(NetworkPolicy policy) {
+        mPolicies.remove(policy);
+        if (mPolicyIndex.get(policy.template) == policy) {
+            mPolicyIndex.remove(policy.template);
+            for (NetworkPolicy other : mPolicies) {
+                if (other.template.equals(policy.template)) {
+                    mPolicyIndex.put(other.template, other);
+                    break;
+                }
             }
         }
-        return null;
     }
 
     public NetworkPolicy getPolicyMaybeUnquoted(NetworkTemplate template) {
@@ -214,7 +315,7 @@ public class NetworkPolicyEditor {
                 policy = buildDefaultPolicy(template);
                 policy.metered = true;
                 policy.inferred = false;
-                mPolicies.add(policy);
+                addPolicy(policy);
                 modified = true;
             } else if (!policy.metered) {
                 policy.metered = true;
@@ -236,7 +337,7 @@ public class NetworkPolicyEditor {
         final NetworkTemplate unquoted = buildUnquotedNetworkTemplate(template);
         final NetworkPolicy unquotedPolicy = getPolicy(unquoted);
         if (unquotedPolicy != null) {
-            mPolicies.remove(unquotedPolicy);
+            removePolicy(unquotedPolicy);
             modified = true;
         }
 
@@ -311,9 +412,9 @@ public class NetworkPolicyEditor {
 
             final NetworkPolicy restrictive = policy3g.compareTo(policy4g) < 0 ? policy3g
                     : policy4g;
-            mPolicies.remove(policy3g);
-            mPolicies.remove(policy4g);
-            mPolicies.add(new NetworkPolicy(templateAll, restrictive.cycleDay,
+            removePolicy(policy3g);
+            removePolicy(policy4g);
+            addPolicy(new NetworkPolicy(templateAll, restrictive.cycleDay,
                     restrictive.cycleTimezone, restrictive.warningBytes, restrictive.limitBytes,
                     SNOOZE_NEVER, SNOOZE_NEVER, restrictive.metered, restrictive.inferred));
             return true;
@@ -321,11 +422,11 @@ public class NetworkPolicyEditor {
         } else if (!beforeSplit && split) {
             // duplicate existing policy into two rules
             final NetworkPolicy policyAll = getPolicy(templateAll);
-            mPolicies.remove(policyAll);
-            mPolicies.add(new NetworkPolicy(template3g, policyAll.cycleDay, policyAll.cycleTimezone,
+            removePolicy(policyAll);
+            addPolicy(new NetworkPolicy(template3g, policyAll.cycleDay, policyAll.cycleTimezone,
                     policyAll.warningBytes, policyAll.limitBytes, SNOOZE_NEVER, SNOOZE_NEVER,
                     policyAll.metered, policyAll.inferred));
-            mPolicies.add(new NetworkPolicy(template4g, policyAll.cycleDay, policyAll.cycleTimezone,
+            addPolicy(new NetworkPolicy(template4g, policyAll.cycleDay, policyAll.cycleTimezone,
                     policyAll.warningBytes, policyAll.limitBytes, SNOOZE_NEVER, SNOOZE_NEVER,
                     policyAll.metered, policyAll.inferred));
             return true;
@@ -23,6 +23,7 @@ import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     private static final String KEY_TEMPLATE = "template";
@@ -31,6 +32,7 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
 
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
+    private final DataUsageCache mCache;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
         final Bundle args = new Bundle();
@@ -40,10 +42,28 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         return args;
     }
 
+    /**
+     * What a loader with these args would have put in the cache, if any.
+     */
+    public static DataUsageCache.Hit<NetworkStats> getCached(DataUsageCache cache, Bundle args) {
+        final NetworkTemplate template = args.getParcelable(KEY_TEMPLATE);
+        return cache.getSummary(template, args.getLong(KEY_START), args.getLong(KEY_END),
+                SystemClock.elapsedRealtime());
+    }
+
     public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, args, null);
+    }
+
+    /**
+     * Loader that also puts what it loads in the cache, if any.
+     */
+    public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args,
+            DataUsageCache cache) {
         super(context);
         mSession = session;
         mArgs = args;
+        mCache = cache;
     }
 
     @Override
@@ -57,9 +77,15 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
+        final int generation = mCache != null ? mCache.getGeneration() : 0;
 
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            final NetworkStats stats = mSession.getSummaryForAllUid(template, start, end, false);
+            if (stats != null && mCache != null) {
+                mCache.putSummary(template, start, end, stats, generation,
+                        SystemClock.elapsedRealtime());
+            }
+            return stats;
         } catch (RemoteException e) {
             return null;
         }
@@ -28,7 +28,7 @@ import android.net.ConnectivityManager;
 import android.net.TrafficStats;
 import android.os.UserManager;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.LruCache;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
@@ -39,8 +39,11 @@ import com.android.settings.users.UserUtils;
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
  */
 public class UidDetailProvider {
+    /** Details kept; each holds an icon, so this is bounded. */
+    private static final int MAX_CACHED_DETAILS = 128;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
 
     public static int buildKeyForUser(int userHandle) {
         return -(2000 + userHandle);
@@ -48,24 +51,18 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailCache = new LruCache<Integer, UidDetail>(MAX_CACHED_DETAILS);
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
-        }
+        mUidDetailCache.evictAll();
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
-        }
+        UidDetail detail = mUidDetailCache.get(uid);
 
         if (detail != null) {
             return detail;
@@ -74,10 +71,7 @@ public class UidDetailProvider {
         }
 
         detail = buildUidDetail(uid);
-
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
-        }
+        mUidDetailCache.put(uid, detail);
 
         return detail;
     }
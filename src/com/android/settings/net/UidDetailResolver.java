@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads {@link UidDetail} for list rows on one background thread, binding
+ * each row's {@link android.R.id#icon} and {@link android.R.id#title} when
+ * it is ready.  Requests made while the thread is busy are taken together,
+ * rows that are recycled for another uid before theirs was started are
+ * dropped, and uids about to be scrolled to can be asked for ahead of
+ * time.  Results are handed back to the main thread a batch at a time.
+ *
+ * Labels of apps are also kept across sessions, so a row can show one
+ * straight away while its icon loads; the label is loaded again anyway, in
+ * case the app changed, and the kept one replaced.
+ *
+ * All methods besides the constructor must be called on the looper's
+ * thread.
+ */
+public class UidDetailResolver {
+    private static final String PREFS_NAME = "uid_detail_labels";
+    private static final String KEY_LOCALE = "locale";
+
+    /** Results handed back in each message to the main thread. */
+    private static final int BATCH_SIZE = 8;
+    /** Prefetched uids still waiting beyond which the oldest are dropped. */
+    private static final int MAX_PREFETCH = 32;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final UidDetailProvider mProvider;
+    private final Handler mHandler;
+    private final SharedPreferences mPrefs;
+
+    /** Key each waiting row is bound to. */
+    private final HashMap<View, Integer> mTargets = new HashMap<View, Integer>();
+
+    private final Object mLock = new Object();
+    /** Keys rows are waiting for, then keys asked for ahead, in order. */
+    private final LinkedHashSet<Integer> mWanted = new LinkedHashSet<Integer>();
+    private final LinkedHashSet<Integer> mPrefetch = new LinkedHashSet<Integer>();
+    private boolean mRunning;
+    private boolean mReleased;
+    /** Labels kept from last time; null until read. */
+    private SparseArray<String> mLabels;
+
+    private final Runnable mWork = new Runnable() {
+        @Override
+        public void run() {
+            resolvePending();
+        }
+    };
+
+    public UidDetailResolver(Context context, UidDetailProvider provider) {
+        this(context, provider, Looper.getMainLooper(), PREFS_NAME);
+    }
+
+    UidDetailResolver(Context context, UidDetailProvider provider, Looper looper,
+            String prefsName) {
+        mProvider = provider;
+        mHandler = new Handler(looper);
+        mPrefs = context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+        synchronized (mLock) {
+            mRunning = true;
+        }
+        sExecutor.execute(mWork);
+    }
+
+    /**
+     * Shows the detail for the key in the row, now if it is known and
+     * once it is loaded if not.  Whatever the row was waiting for before
+     * is no longer wanted for it.
+     */
+    public void bindView(int key, View target) {
+        final Integer previous = mTargets.remove(target);
+        if (previous != null && previous != key) {
+            unwant(previous);
+        }
+
+        final UidDetail cached = mProvider.getUidDetail(key, false);
+        if (cached != null) {
+            bindView(cached, target);
+            return;
+        }
+
+        final String label;
+        synchronized (mLock) {
+            label = mLabels != null ? mLabels.get(key) : null;
+            mPrefetch.remove(key);
+            mWanted.add(key);
+        }
+        bindLabel(label, target);
+        mTargets.put(target, key);
+        schedule();
+    }
+
+    /**
+     * Loads the detail for the key once wanted rows are done with, so it
+     * is ready when a row is bound to it.
+     */
+    public void prefetch(int key) {
+        if (mProvider.getUidDetail(key, false) != null) return;
+        synchronized (mLock) {
+            if (mWanted.contains(key) || !mPrefetch.add(key)) return;
+            if (mPrefetch.size() > MAX_PREFETCH) {
+                final Iterator<Integer> it = mPrefetch.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Drops everything still waiting; nothing is bound after this.
+     */
+    public void release() {
+        mTargets.clear();
+        mHandler.removeCallbacksAndMessages(null);
+        synchronized (mLock) {
+            mReleased = true;
+            mWanted.clear();
+            mPrefetch.clear();
+        }
+    }
+
+    private void unwant(int key) {
+        // Another row may still be waiting for it.
+        if (mTargets.containsValue(key)) return;
+        synchronized (mLock) {
+            mWanted.remove(key);
+        }
+    }
+
+    private void schedule() {
+        synchronized (mLock) {
+            if (mRunning) return;
+            mRunning = true;
+        }
+        sExecutor.execute(mWork);
+    }
+
+    private static void bindView(UidDetail detail, View target) {
+        final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
+        final TextView title = (TextView) target.findViewById(android.R.id.title);
+
+        if (detail != null) {
+            icon.setImageDrawable(detail.icon);
+            title.setText(detail.label);
+        } else {
+            icon.setImageDrawable(null);
+            title.setText(null);
+        }
+    }
+
+    private static void bindLabel(String label, View target) {
+        final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
+        final TextView title = (TextView) target.findViewById(android.R.id.title);
+        icon.setImageDrawable(null);
+        title.setText(label);
+    }
+
+    /**
+     * Runs on the background thread until nothing is left to load.
+     */
+    private void resolvePending() {
+        synchronized (mLock) {
+            if (mLabels == null) {
+                mLabels = readLabels();
+            }
+        }
+
+        ArrayList<Result> batch = new ArrayList<Result>(BATCH_SIZE);
+        while (true) {
+            final int key;
+            synchronized (mLock) {
+                final Iterator<Integer> it = !mWanted.isEmpty() ? mWanted.iterator()
+                        : !mPrefetch.isEmpty() ? mPrefetch.iterator() : null;
+                if (it == null || mReleased) {
+                    mRunning = false;
+                    break;
+                }
+                key = it.next();
+                it.remove();
+            }
+
+            batch.add(new Result(key, mProvider.getUidDetail(key, true)));
+            if (batch.size() == BATCH_SIZE) {
+                deliver(batch);
+                batch = new ArrayList<Result>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            deliver(batch);
+        }
+    }
+
+    private static class Result {
+        final int key;
+        final UidDetail detail;
+
+        Result(int key, UidDetail detail) {
+            this.key = key;
+            this.detail = detail;
+        }
+    }
+
+    private void deliver(final ArrayList<Result> batch) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onResults(batch);
+            }
+        });
+    }
+
+    private void onResults(ArrayList<Result> batch) {
+        SharedPreferences.Editor editor = null;
+        final int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            final Result result = batch.get(i);
+            final Iterator<Map.Entry<View, Integer>> it = mTargets.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<View, Integer> target = it.next();
+                if (target.getValue() == result.key) {
+                    bindView(result.detail, target.getKey());
+                    it.remove();
+                }
+            }
+
+            if (!UserHandle.isApp(result.key) || result.detail.label == null) continue;
+            final String label = result.detail.label.toString();
+            synchronized (mLock) {
+                if (label.equals(mLabels.get(result.key))) continue;
+                mLabels.put(result.key, label);
+            }
+            if (editor == null) {
+                editor = mPrefs.edit();
+            }
+            editor.putString(Integer.toString(result.key), label);
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Labels kept from last time, or none if the locale changed since.
+     */
+    private SparseArray<String> readLabels() {
+        final String locale = Locale.getDefault().toString();
+        final SparseArray<String> labels = new SparseArray<String>();
+        if (!locale.equals(mPrefs.getString(KEY_LOCALE, null))) {
+            mPrefs.edit().clear().putString(KEY_LOCALE, locale).apply();
+            return labels;
+        }
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (KEY_LOCALE.equals(entry.getKey()) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                labels.put(Integer.parseInt(entry.getKey()), (String) entry.getValue());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return labels;
+    }
+}
@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -75,6 +77,119 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    private final PathSummary mSummary = new PathSummary();
+    // How many times the buckets have been walked into mSummary.
+    int mSummaryBuilds;
+
+    /**
+     * Series outline reduced to what can be seen at pixel resolution: at
+     * most the first and last point in each pixel column, with cumulative
+     * totals left in bytes so it can be mapped onto any vertical axis.
+     * The totals only grow, so the first and last point of a column are
+     * also its lowest and highest.  Kept until the history or horizontal
+     * axis changes.
+     */
+    private static class PathSummary {
+        /** Total of a point still sitting on the bottom of the graph. */
+        static final long BOTTOM = -1;
+
+        private NetworkStatsHistory mStats;
+        private int mStatsSize;
+        private long mStart;
+        private long mEnd;
+        private float mStartPoint;
+        private float mEndPoint;
+
+        float[] points = new float[64];
+        long[] totals = new long[64];
+        int count;
+        long lastTime;
+        long totalData;
+
+        private int mColumn;
+        private int mColumnStart;
+
+        boolean matches(NetworkStatsHistory stats, ChartAxis horiz, long start, long end) {
+            return mStats == stats && mStatsSize == stats.size() && mStart == start
+                    && mEnd == end
+                    && mStartPoint == horiz.convertToPoint(start)
+                    && mEndPoint == horiz.convertToPoint(end);
+        }
+
+        void build(NetworkStatsHistory stats, ChartAxis horiz, long start, long end) {
+            mStats = stats;
+            mStatsSize = stats.size();
+            mStart = start;
+            mEnd = end;
+            mStartPoint = horiz.convertToPoint(start);
+            mEndPoint = horiz.convertToPoint(end);
+
+            count = 0;
+            mColumn = Integer.MIN_VALUE;
+            mColumnStart = 0;
+
+            long lastTotal = BOTTOM;
+            long lastTime = horiz.convertToValue(0);
+
+            // TODO: count fractional data from first bucket crossing start;
+            // currently it only accepts first full bucket.
+
+            long totalData = 0;
+
+            NetworkStatsHistory.Entry entry = null;
+
+            final int first = stats.getIndexBefore(start);
+            final int last = stats.getIndexAfter(end);
+            for (int i = first; i <= last; i++) {
+                entry = stats.getValues(i, entry);
+
+                final long startTime = entry.bucketStart;
+                final long endTime = startTime + entry.bucketDuration;
+
+                final float startX = horiz.convertToPoint(startTime);
+                final float endX = horiz.convertToPoint(endTime);
+
+                // skip until we find first stats on screen
+                if (endX < 0) continue;
+
+                // increment by current bucket total
+                totalData += entry.rxBytes + entry.txBytes;
+
+                if (lastTime != startTime) {
+                    // gap in buckets; line to start of current bucket
+                    add(startX, lastTotal);
+                }
+
+                // always draw to end of current bucket
+                add(endX, totalData);
+
+                lastTotal = totalData;
+                lastTime = endTime;
+            }
+
+            this.lastTime = lastTime;
+            this.totalData = totalData;
+        }
+
+        private void add(float x, long total) {
+            final int column = (int) Math.floor(x);
+            if (column != mColumn) {
+                mColumn = column;
+                mColumnStart = count;
+            } else if (count - mColumnStart >= 2) {
+                // replace the last point of this column
+                count--;
+            }
+            if (count == points.length) {
+                points = Arrays.copyOf(points, count * 2);
+                totals = Arrays.copyOf(totals, count * 2);
+            }
+            points[count] = x;
+            totals[count] = total;
+            count++;
+        }
+    }
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -165,7 +280,7 @@ public class ChartNetworkSeriesView extends View {
      * Erase any existing {@link Path} and generate series outline based on
      * currently bound {@link NetworkStatsHistory} data.
      */
-    private void generatePath() {
+    void generatePath() {
         if (LOGD) Log.d(TAG, "generatePath()");
 
         mMax = 0;
@@ -182,57 +297,33 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        // walking the buckets only depends on the horizontal axis, so
+        // changes to the vertical one just replay the summary.
+        if (!mSummary.matches(mStats, mHoriz, mStart, mEnd)) {
+            mSummary.build(mStats, mHoriz, mStart, mEnd);
+            mSummaryBuilds++;
+        }
+
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        final long lastTime = mSummary.lastTime;
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        final float[] points = mSummary.points;
+        final long[] totals = mSummary.totals;
+        final int count = mSummary.count;
+        for (int i = 0; i < count; i++) {
+            lastX = points[i];
+            lastY = totals[i] < 0 ? height : mVert.convertToPoint(totals[i]);
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
         }
 
+        long totalData = mSummary.totalData;
+
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
@@ -258,6 +349,8 @@ public class ChartNetworkSeriesView extends View {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
+            NetworkStatsHistory.Entry entry = null;
+
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
 
@@ -290,6 +383,10 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    Path getFillPath() {
+        return mPathFill;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
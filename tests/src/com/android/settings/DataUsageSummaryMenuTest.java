@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.view.Menu;
+import android.view.MenuInflater;
+
+import com.android.internal.view.menu.MenuBuilder;
+import com.android.settings.net.DataUsageCapabilities;
+
+/**
+ * Checks that the data usage menu is shown from what was probed last
+ * launch, whatever this device's radios say, so preparing it on startup
+ * has nothing to ask them.
+ */
+public class DataUsageSummaryMenuTest extends AndroidTestCase {
+    private static final String PREFS_NAME = "data_usage_summary_menu_test";
+
+    private SharedPreferences mPrefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+    }
+
+    private Menu inflateMenu() {
+        final Menu menu = new MenuBuilder(getContext());
+        new MenuInflater(getContext()).inflate(R.menu.data_usage, menu);
+        return menu;
+    }
+
+    private static boolean visible(Menu menu, int id) {
+        return menu.findItem(id).isVisible();
+    }
+
+    public void testMenuFromLastLaunch() {
+        final DataUsageCapabilities last = new DataUsageCapabilities();
+        last.mobile = true;
+        last.wifi = true;
+        last.write(mPrefs);
+
+        // as onCreate starts out, before anything is probed
+        final Menu menu = inflateMenu();
+        DataUsageSummary.prepareNetworkMenu(menu, DataUsageCapabilities.read(mPrefs),
+                false, true);
+        assertTrue(visible(menu, R.id.data_usage_menu_roaming));
+        assertTrue(visible(menu, R.id.data_usage_menu_restrict_background));
+        assertTrue(visible(menu, R.id.data_usage_menu_show_wifi));
+        assertTrue(visible(menu, R.id.data_usage_menu_metered));
+        assertFalse(visible(menu, R.id.data_usage_menu_split_4g));
+        assertFalse(visible(menu, R.id.data_usage_menu_show_ethernet));
+    }
+
+    public void testFirstLaunchShowsNoNetworkItems() {
+        final Menu menu = inflateMenu();
+        DataUsageSummary.prepareNetworkMenu(menu, DataUsageCapabilities.read(mPrefs),
+                false, true);
+        assertFalse(visible(menu, R.id.data_usage_menu_roaming));
+        assertFalse(visible(menu, R.id.data_usage_menu_restrict_background));
+        assertFalse(visible(menu, R.id.data_usage_menu_show_wifi));
+        assertFalse(visible(menu, R.id.data_usage_menu_metered));
+    }
+
+    public void testAppDetailAndOtherUsers() {
+        final DataUsageCapabilities caps = new DataUsageCapabilities();
+        caps.mobile = true;
+        caps.wifi = true;
+        caps.ethernet = true;
+
+        Menu menu = inflateMenu();
+        DataUsageSummary.prepareNetworkMenu(menu, caps, true, true);
+        assertFalse(visible(menu, R.id.data_usage_menu_roaming));
+        assertFalse(visible(menu, R.id.data_usage_menu_show_ethernet));
+        assertFalse(visible(menu, R.id.data_usage_menu_metered));
+
+        menu = inflateMenu();
+        DataUsageSummary.prepareNetworkMenu(menu, caps, false, false);
+        assertTrue(visible(menu, R.id.data_usage_menu_roaming));
+        assertTrue(visible(menu, R.id.data_usage_menu_show_ethernet));
+        assertFalse(visible(menu, R.id.data_usage_menu_restrict_background));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.widget.TabWidget;
+import android.widget.TextView;
+
+import com.android.settings.net.DataUsageCapabilities;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the data usage screen against a stats session that holds the
+ * ethernet probe until told to answer, checking the tabs for the radios
+ * are up while it is still adding up, and ethernet's once it is done.
+ */
+public class DataUsageSummaryStartupTest extends ActivityInstrumentationTestCase2<Settings> {
+    private static final long TIMEOUT_S = 30;
+
+    /**
+     * Holds ethernet history queries until opened, then answers that
+     * ethernet carried traffic.
+     */
+    static class GatedSession extends INetworkStatsSession.Stub {
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+
+        @Override
+        public NetworkStats getSummaryForNetwork(NetworkTemplate template, long start, long end) {
+            mEntered.countDown();
+            try {
+                mGate.await(TIMEOUT_S, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 1);
+            final NetworkStats.Entry entry = new NetworkStats.Entry();
+            entry.rxBytes = 1024;
+            stats.addValues(entry);
+            return stats;
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStats getSummaryForAllUid(NetworkTemplate template, long start, long end,
+                boolean includeTags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set,
+                int tag, int fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Probes with the gated session, as a device with wifi and ethernet
+     * but no mobile radio.
+     */
+    public static class GatedSummary extends DataUsageSummary {
+        final GatedSession mSession = new GatedSession();
+
+        @Override
+        INetworkStatsSession getProbeSession() {
+            return mSession;
+        }
+
+        @Override
+        void probeRadios(DataUsageCapabilities caps, Context context) {
+            caps.mobile = false;
+            caps.mobile4g = false;
+            caps.wifi = true;
+            caps.ethernetSupported = true;
+        }
+    }
+
+    private SharedPreferences mPrefs;
+
+    public DataUsageSummaryStartupTest() {
+        super("com.android.settings", Settings.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getInstrumentation().getTargetContext().getSharedPreferences(
+                DataUsageSummary.PREF_FILE, Context.MODE_PRIVATE);
+        // As on first launch, with nothing known from last time.
+        new DataUsageCapabilities().write(mPrefs);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new DataUsageCapabilities().write(mPrefs);
+        super.tearDown();
+    }
+
+    /**
+     * The titles of the tabs showing.
+     */
+    private String[] tabs(final GatedSummary fragment) {
+        final String[][] tabs = new String[1][];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final TabWidget tabWidget = (TabWidget) fragment.getView().findViewById(
+                        android.R.id.tabs);
+                tabs[0] = new String[tabWidget.getTabCount()];
+                for (int i = 0; i < tabs[0].length; i++) {
+                    final TextView title = (TextView) tabWidget.getChildTabViewAt(i)
+                            .findViewById(android.R.id.title);
+                    tabs[0][i] = title.getText().toString();
+                }
+            }
+        });
+        return tabs[0];
+    }
+
+    public void testTabsBeforeEthernetAddedUp() throws InterruptedException {
+        final Settings activity = getActivity();
+        final GatedSummary fragment = new GatedSummary();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.getFragmentManager().beginTransaction()
+                        .add(android.R.id.content, fragment).commitAllowingStateLoss();
+                activity.getFragmentManager().executePendingTransactions();
+            }
+        });
+
+        // The probe is now adding up ethernet, after handing over the radios.
+        try {
+            assertTrue("ethernet never probed",
+                    fragment.mSession.mEntered.await(TIMEOUT_S, TimeUnit.SECONDS));
+            getInstrumentation().waitForIdleSync();
+            String[] tabs = tabs(fragment);
+            assertEquals(1, tabs.length);
+            assertEquals(activity.getString(R.string.data_usage_tab_wifi), tabs[0]);
+        } finally {
+            fragment.mSession.mGate.countDown();
+        }
+
+        // Ethernet carried traffic, so it gets its tab once that's known.
+        final long end = SystemClock.uptimeMillis() + TIMEOUT_S * 1000;
+        String[] tabs;
+        do {
+            getInstrumentation().waitForIdleSync();
+            tabs = tabs(fragment);
+        } while (tabs.length < 2 && SystemClock.uptimeMillis() < end);
+        assertEquals(2, tabs.length);
+        assertEquals(activity.getString(R.string.data_usage_tab_wifi), tabs[0]);
+        assertEquals(activity.getString(R.string.data_usage_tab_ethernet), tabs[1]);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+import android.test.mock.MockPackageManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads a few thousand synthetic packages through {@link AppEntryLoader}
+ * against a package manager that can hold its callers, and checks the
+ * order and number of the loads rather than how long they take.
+ */
+public class AppEntryLoaderTest extends AndroidTestCase {
+    private static final String TAG = "AppEntryLoaderTest";
+
+    private static final int NUM_PACKAGES = 2000;
+    private static final long TIMEOUT_S = 60;
+
+    /**
+     * Stands in for the binder round trips behind loadLabel and loadIcon.
+     * Notes how many callers are inside it at once, and holds them all
+     * while it is closed.
+     */
+    static class GatedPackageManager extends MockPackageManager {
+        final AtomicInteger mCalls = new AtomicInteger();
+        final AtomicInteger mInside = new AtomicInteger();
+        final AtomicInteger mMaxInside = new AtomicInteger();
+        final Semaphore mEntered = new Semaphore(0);
+        volatile CountDownLatch mGate = new CountDownLatch(0);
+
+        void close() {
+            mGate = new CountDownLatch(1);
+        }
+
+        void open() {
+            mGate.countDown();
+        }
+
+        void awaitEntered(int callers) throws InterruptedException {
+            assertTrue("package manager never called",
+                    mEntered.tryAcquire(callers, TIMEOUT_S, TimeUnit.SECONDS));
+        }
+
+        private void enter() {
+            mCalls.incrementAndGet();
+            final int inside = mInside.incrementAndGet();
+            int max;
+            while (inside > (max = mMaxInside.get())
+                    && !mMaxInside.compareAndSet(max, inside)) {
+            }
+            mEntered.release();
+            try {
+                assertTrue("gate never opened", mGate.await(TIMEOUT_S, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                mInside.decrementAndGet();
+            }
+        }
+
+        @Override
+        public CharSequence getText(String packageName, int resid, ApplicationInfo appInfo) {
+            enter();
+            return "Label " + packageName;
+        }
+
+        @Override
+        public Drawable getDrawable(String packageName, int resid, ApplicationInfo appInfo) {
+            enter();
+            return new ColorDrawable(resid);
+        }
+    }
+
+    class Recorder implements AppEntryLoader.Callbacks {
+        final ArrayList<String> mOrder = new ArrayList<String>();
+        final ConcurrentHashMap<String, String> mLabels = new ConcurrentHashMap<String, String>();
+        final AtomicInteger mIcons = new AtomicInteger();
+        final Semaphore mIdle = new Semaphore(0);
+
+        @Override
+        public void onLabelLoaded(ApplicationInfo info, String label, boolean mounted) {
+            synchronized (mOrder) {
+                mOrder.add(info.packageName);
+            }
+            mLabels.put(info.packageName, label);
+        }
+
+        @Override
+        public void onIconLoaded(ApplicationsState.AppEntry entry) {
+            mIcons.incrementAndGet();
+        }
+
+        @Override
+        public void onIdle() {
+            mIdle.release();
+        }
+
+        void waitForIdle() throws InterruptedException {
+            assertTrue("loader never went idle", mIdle.tryAcquire(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+
+        ArrayList<String> getOrder() {
+            synchronized (mOrder) {
+                return new ArrayList<String>(mOrder);
+            }
+        }
+    }
+
+    private ArrayList<ApplicationInfo> makePackages(int count) {
+        // Point everything at our own apk so the mounted checks pass.
+        final String sourceDir = getContext().getApplicationInfo().sourceDir;
+        ArrayList<ApplicationInfo> infos = new ArrayList<ApplicationInfo>(count);
+        for (int i=0; i<count; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.synthetic" + i;
+            info.sourceDir = sourceDir;
+            info.labelRes = 1;
+            info.icon = i + 1;
+            info.enabled = true;
+            infos.add(info);
+        }
+        return infos;
+    }
+
+    private void fullLoad(int numWorkers) throws InterruptedException {
+        ArrayList<ApplicationInfo> infos = makePackages(NUM_PACKAGES);
+        GatedPackageManager pm = new GatedPackageManager();
+        Recorder recorder = new Recorder();
+        AppEntryLoader loader = new AppEntryLoader(getContext(), pm, numWorkers, recorder);
+
+        // Hold the first loads until every worker has one, so the pool is
+        // known to have filled up.
+        pm.close();
+        for (int i=0; i<infos.size(); i++) {
+            loader.loadLabel(infos.get(i), AppEntryLoader.PRIORITY_BACKGROUND);
+        }
+        pm.awaitEntered(numWorkers);
+        pm.open();
+        // The queue can briefly drain while it is still being filled, so
+        // idle alone doesn't mean done.
+        while (recorder.mLabels.size() < NUM_PACKAGES) {
+            recorder.waitForIdle();
+        }
+
+        for (int i=0; i<infos.size(); i++) {
+            ApplicationInfo info = infos.get(i);
+            ApplicationsState.AppEntry entry = new ApplicationsState.AppEntry(info, i,
+                    recorder.mLabels.get(info.packageName), true);
+            loader.loadIcon(entry, AppEntryLoader.PRIORITY_BACKGROUND);
+        }
+        while (recorder.mIcons.get() < NUM_PACKAGES) {
+            recorder.waitForIdle();
+        }
+
+        Log.i(TAG, numWorkers + " worker(s): at most " + pm.mMaxInside.get()
+                + " package manager calls at once");
+        assertEquals(NUM_PACKAGES * 2, pm.mCalls.get());
+        assertEquals(NUM_PACKAGES, recorder.getOrder().size());
+        assertEquals(NUM_PACKAGES, recorder.mIcons.get());
+        assertEquals(numWorkers, pm.mMaxInside.get());
+    }
+
+    public void testWorkersLoadInParallel() throws InterruptedException {
+        fullLoad(1);
+        fullLoad(2);
+        fullLoad(4);
+    }
+
+    public void testVisibleRequestsJumpTheQueue() throws InterruptedException {
+        ArrayList<ApplicationInfo> infos = makePackages(100);
+        GatedPackageManager pm = new GatedPackageManager();
+        Recorder recorder = new Recorder();
+        AppEntryLoader loader = new AppEntryLoader(getContext(), pm, 1, recorder);
+
+        // Keep the only worker busy on the first package while the rest
+        // are queued behind it.
+        pm.close();
+        loader.loadLabel(infos.get(0), AppEntryLoader.PRIORITY_BACKGROUND);
+        pm.awaitEntered(1);
+        for (int i=1; i<infos.size(); i++) {
+            loader.loadLabel(infos.get(i), AppEntryLoader.PRIORITY_BACKGROUND);
+        }
+        ApplicationInfo last = infos.get(infos.size() - 1);
+        loader.loadLabel(last, AppEntryLoader.PRIORITY_VISIBLE);
+        pm.open();
+        while (recorder.getOrder().size() < infos.size()) {
+            recorder.waitForIdle();
+        }
+
+        // The bumped one goes next; the rest keep the order they came in.
+        ArrayList<String> order = recorder.getOrder();
+        assertEquals(infos.get(0).packageName, order.get(0));
+        assertEquals(last.packageName, order.get(1));
+        for (int i=2; i<order.size(); i++) {
+            assertEquals(infos.get(i - 1).packageName, order.get(i));
+        }
+    }
+
+    public void testRunningLabelNotQueuedAgain() throws InterruptedException {
+        ApplicationInfo info = makePackages(1).get(0);
+        GatedPackageManager pm = new GatedPackageManager();
+        Recorder recorder = new Recorder();
+        AppEntryLoader loader = new AppEntryLoader(getContext(), pm, 2, recorder);
+
+        pm.close();
+        loader.loadLabel(info, AppEntryLoader.PRIORITY_BACKGROUND);
+        pm.awaitEntered(1);
+        // As MSG_LOAD_ENTRIES does when it runs before the label is published.
+        loader.loadLabel(info, AppEntryLoader.PRIORITY_BACKGROUND);
+        loader.loadLabel(info, AppEntryLoader.PRIORITY_VISIBLE);
+        pm.open();
+        recorder.waitForIdle();
+
+        assertEquals(1, pm.mCalls.get());
+        assertEquals(1, recorder.getOrder().size());
+        assertTrue(loader.isIdle());
+
+        // Once it is done it can be asked for again.
+        loader.loadLabel(info, AppEntryLoader.PRIORITY_BACKGROUND);
+        recorder.waitForIdle();
+        assertEquals(2, pm.mCalls.get());
+    }
+}
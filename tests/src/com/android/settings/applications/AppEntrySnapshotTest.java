@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Writes snapshots and reads them back, checking that only records still
+ * good for the current locale and apks come back, and that a damaged file
+ * gives an empty snapshot rather than wrong entries.
+ */
+public class AppEntrySnapshotTest extends AndroidTestCase {
+    private static final String LOCALE = "en_US";
+    private static final int NUM_RECORDS = 20;
+    private static final long MODIFIED = 1000000000000L;
+
+    private File mDir;
+    private File mFile;
+    private final ArrayList<ApplicationInfo> mInfos = new ArrayList<ApplicationInfo>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "AppEntrySnapshotTest");
+        deleteAll(mDir);
+        mDir.mkdirs();
+        mFile = new File(mDir, AppEntrySnapshot.FILE_NAME);
+        for (int i=0; i<NUM_RECORDS; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.snapshot" + i;
+            File apk = new File(mDir, info.packageName + ".apk");
+            apk.createNewFile();
+            apk.setLastModified(MODIFIED);
+            info.sourceDir = apk.getPath();
+            mInfos.add(info);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mDir);
+        super.tearDown();
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static AppEntrySnapshot.Record record(ApplicationInfo info, int i) {
+        AppEntrySnapshot.Record r = new AppEntrySnapshot.Record();
+        r.packageName = info.packageName;
+        r.sourceDir = info.sourceDir;
+        r.apkModified = new File(info.sourceDir).lastModified();
+        r.label = "Приложение " + i;
+        r.normalizedLabel = ApplicationsState.normalize(r.label);
+        r.cacheSize = i;
+        r.codeSize = 1000L * i;
+        r.dataSize = 100L * i;
+        r.externalCodeSize = 10L * i;
+        r.externalDataSize = 20L * i;
+        r.externalCacheSize = 30L * i;
+        r.size = r.codeSize + r.dataSize;
+        r.internalSize = r.size;
+        r.externalSize = r.externalCodeSize + r.externalDataSize;
+        return r;
+    }
+
+    private void writeAll() {
+        ArrayList<AppEntrySnapshot.Record> records = new ArrayList<AppEntrySnapshot.Record>();
+        for (int i=0; i<mInfos.size(); i++) {
+            records.add(record(mInfos.get(i), i));
+        }
+        AppEntrySnapshot.write(mFile, LOCALE, records);
+    }
+
+    private void assertAllRead(AppEntrySnapshot snapshot) {
+        for (int i=0; i<mInfos.size(); i++) {
+            AppEntrySnapshot.Record expected = record(mInfos.get(i), i);
+            AppEntrySnapshot.Record r = snapshot.get(mInfos.get(i));
+            assertNotNull(expected.packageName, r);
+            assertEquals(expected.packageName, r.packageName);
+            assertEquals(expected.sourceDir, r.sourceDir);
+            assertEquals(expected.apkModified, r.apkModified);
+            assertEquals(expected.label, r.label);
+            assertEquals(expected.normalizedLabel, r.normalizedLabel);
+            assertEquals(expected.cacheSize, r.cacheSize);
+            assertEquals(expected.codeSize, r.codeSize);
+            assertEquals(expected.dataSize, r.dataSize);
+            assertEquals(expected.externalCodeSize, r.externalCodeSize);
+            assertEquals(expected.externalDataSize, r.externalDataSize);
+            assertEquals(expected.externalCacheSize, r.externalCacheSize);
+            assertEquals(expected.size, r.size);
+            assertEquals(expected.internalSize, r.internalSize);
+            assertEquals(expected.externalSize, r.externalSize);
+        }
+    }
+
+    public void testRoundTrip() {
+        writeAll();
+        assertAllRead(AppEntrySnapshot.read(mFile, LOCALE));
+    }
+
+    public void testNoFile() {
+        assertTrue(AppEntrySnapshot.read(mFile, LOCALE).isEmpty());
+    }
+
+    public void testOtherLocale() {
+        writeAll();
+        AppEntrySnapshot snapshot = AppEntrySnapshot.read(mFile, "fr_FR");
+        assertTrue(snapshot.isEmpty());
+        assertEquals("fr_FR", snapshot.mLocale);
+    }
+
+    public void testStaleApk() {
+        writeAll();
+        AppEntrySnapshot snapshot = AppEntrySnapshot.read(mFile, LOCALE);
+        ApplicationInfo updated = mInfos.get(3);
+        new File(updated.sourceDir).setLastModified(MODIFIED + 60000);
+        ApplicationInfo moved = new ApplicationInfo(mInfos.get(5));
+        moved.sourceDir = mInfos.get(6).sourceDir;
+
+        assertNull(snapshot.get(updated));
+        assertNull(snapshot.get(moved));
+        // Dropped, even once the apk looks the same again.
+        new File(updated.sourceDir).setLastModified(MODIFIED);
+        assertNull(snapshot.get(updated));
+        assertNotNull(snapshot.get(mInfos.get(4)));
+    }
+
+    public void testTruncated() throws IOException {
+        writeAll();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+        assertTrue(AppEntrySnapshot.read(mFile, LOCALE).isEmpty());
+    }
+
+    public void testCorrupt() throws IOException {
+        writeAll();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(0);
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+        assertTrue(AppEntrySnapshot.read(mFile, LOCALE).isEmpty());
+    }
+
+    public void testInterruptedWriteFallsBack() throws IOException {
+        writeAll();
+        // As a write cut off part way leaves things: the last good file
+        // moved aside as the backup, and a partial new one.
+        File backup = new File(mFile.getPath() + ".bak");
+        assertTrue(mFile.renameTo(backup));
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[] { 0x41, 0x50 });
+        } finally {
+            out.close();
+        }
+        assertAllRead(AppEntrySnapshot.read(mFile, LOCALE));
+    }
+}
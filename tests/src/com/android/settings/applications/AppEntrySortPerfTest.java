@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Checks that sorting the application list by label and by size with the
+ * cached collation keys and packed size keys gives the same order as
+ * comparators that run the collator on every comparison, as the list used
+ * to, and that labels are only compared where the sizes tie.  The times of
+ * both are logged for comparison.
+ */
+public class AppEntrySortPerfTest extends AndroidTestCase {
+    private static final String TAG = "AppEntrySortPerfTest";
+
+    private static final int NUM_ENTRIES = 3000;
+    private static final int ROUNDS = 10;
+
+    private static final Comparator<AppEntry> OLD_ALPHA_COMPARATOR = new Comparator<AppEntry>() {
+        private final Collator sCollator = Collator.getInstance();
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            final boolean normal1 = object1.info.enabled
+                    && (object1.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
+            final boolean normal2 = object2.info.enabled
+                    && (object2.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
+            if (normal1 != normal2) {
+                return normal1 ? -1 : 1;
+            }
+            return sCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    private static final Comparator<AppEntry> OLD_SIZE_COMPARATOR = new Comparator<AppEntry>() {
+        private final Collator sCollator = Collator.getInstance();
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            if (object1.size < object2.size) return 1;
+            if (object1.size > object2.size) return -1;
+            return sCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    private ArrayList<AppEntry> makeEntries(boolean manyTies) {
+        Random random = new Random(3);
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(NUM_ENTRIES);
+        for (int i=0; i<NUM_ENTRIES; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.synthetic" + i;
+            info.sourceDir = "/data/app/" + info.packageName + ".apk";
+            info.enabled = random.nextInt(10) != 0;
+            info.flags = ApplicationInfo.FLAG_INSTALLED;
+            AppEntry entry = new AppEntry(info, i, "App " + Long.toString(
+                    random.nextLong() & Long.MAX_VALUE, 36), true);
+            if (manyTies) {
+                // Lots of not-yet-computed and identical sizes.
+                int r = random.nextInt(4);
+                entry.size = r == 0 ? ApplicationsState.SIZE_UNKNOWN
+                        : r == 1 ? ApplicationsState.SIZE_INVALID : 4096 * random.nextInt(8);
+            } else {
+                entry.size = random.nextInt(200 * 1024 * 1024);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private long timeOldSort(ArrayList<AppEntry> entries, Comparator<AppEntry> comparator) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r=0; r<ROUNDS; r++) {
+            ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries);
+            Collections.sort(list, comparator);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+    }
+
+    private long timeNewSort(ArrayList<AppEntry> entries, Comparator<AppEntry> comparator) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r=0; r<ROUNDS; r++) {
+            ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries);
+            ApplicationsState.sortEntries(list, comparator);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+    }
+
+    private void assertSameOrder(ArrayList<AppEntry> entries, Comparator<AppEntry> oldComparator,
+            Comparator<AppEntry> newComparator) {
+        ArrayList<AppEntry> expected = new ArrayList<AppEntry>(entries);
+        Collections.sort(expected, oldComparator);
+        ArrayList<AppEntry> actual = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(actual, newComparator);
+        assertEquals(expected, actual);
+    }
+
+    public void testSameOrderAsCollator() {
+        for (boolean manyTies : new boolean[] { false, true }) {
+            ArrayList<AppEntry> entries = makeEntries(manyTies);
+            assertSameOrder(entries, OLD_ALPHA_COMPARATOR, ApplicationsState.ALPHA_COMPARATOR);
+            assertSameOrder(entries, OLD_SIZE_COMPARATOR, ApplicationsState.SIZE_COMPARATOR);
+        }
+    }
+
+    /**
+     * Sorts by size like SIZE_COMPARATOR, noting every time sortEntries
+     * has to fall back on comparing entries.
+     */
+    static class CountingSizeComparator extends ApplicationsState.SizeComparator {
+        int mCompares;
+        int mUntiedCompares;
+
+        @Override
+        long getSize(AppEntry entry) {
+            return entry.size;
+        }
+
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            mCompares++;
+            if (object1.size != object2.size) {
+                mUntiedCompares++;
+            }
+            return super.compare(object1, object2);
+        }
+    }
+
+    private void logTimes(String name, ArrayList<AppEntry> entries,
+            Comparator<AppEntry> oldComparator, Comparator<AppEntry> newComparator) {
+        long oldNs = timeOldSort(entries, oldComparator);
+        long newNs = timeNewSort(entries, newComparator);
+        Log.i(TAG, name + " sort of " + NUM_ENTRIES + ": collator " + (oldNs / 1000)
+                + "us, cached keys " + (newNs / 1000) + "us");
+    }
+
+    public void testAlphaSort() {
+        ArrayList<AppEntry> entries = makeEntries(false);
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(list, ApplicationsState.ALPHA_COMPARATOR);
+
+        // Each label goes through the collator once; sorting again reuses it.
+        ArrayList<Object> keys = new ArrayList<Object>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            assertNotNull(entries.get(i).collationKey);
+            keys.add(entries.get(i).collationKey);
+        }
+        Collections.shuffle(list, new Random(5));
+        ApplicationsState.sortEntries(list, ApplicationsState.ALPHA_COMPARATOR);
+        for (int i=0; i<entries.size(); i++) {
+            assertSame(keys.get(i), entries.get(i).collationKey);
+        }
+        logTimes("alpha", entries, OLD_ALPHA_COMPARATOR, ApplicationsState.ALPHA_COMPARATOR);
+    }
+
+    public void testSizeSort() {
+        ArrayList<AppEntry> entries = makeEntries(false);
+        // Make every size distinct, so no labels need comparing at all.
+        for (int i=0; i<entries.size(); i++) {
+            entries.get(i).size = entries.get(i).size * NUM_ENTRIES + i;
+        }
+        CountingSizeComparator comparator = new CountingSizeComparator();
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(list, comparator);
+        assertEquals(0, comparator.mCompares);
+        assertNull(entries.get(0).collationKey);
+        assertSameOrder(entries, OLD_SIZE_COMPARATOR, ApplicationsState.SIZE_COMPARATOR);
+        logTimes("size", entries, OLD_SIZE_COMPARATOR, ApplicationsState.SIZE_COMPARATOR);
+    }
+
+    public void testSizeSortWithTies() {
+        ArrayList<AppEntry> entries = makeEntries(true);
+        CountingSizeComparator comparator = new CountingSizeComparator();
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(list, comparator);
+        assertTrue(comparator.mCompares > 0);
+        assertEquals(0, comparator.mUntiedCompares);
+        assertSameOrder(entries, OLD_SIZE_COMPARATOR, ApplicationsState.SIZE_COMPARATOR);
+        logTimes("size with ties", entries, OLD_SIZE_COMPARATOR,
+                ApplicationsState.SIZE_COMPARATOR);
+    }
+
+    public void testSizeSortTooLargeToPack() {
+        ArrayList<AppEntry> entries = makeEntries(false);
+        entries.get(7).size = ApplicationsState.SORT_MAX_SIZE + 1;
+        CountingSizeComparator comparator = new CountingSizeComparator();
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(list, comparator);
+        // Falls back on comparing entries, in the same order.
+        assertTrue(comparator.mUntiedCompares > 0);
+        assertSame(entries.get(7), list.get(0));
+        assertSameOrder(entries, OLD_SIZE_COMPARATOR, ApplicationsState.SIZE_COMPARATOR);
+    }
+}
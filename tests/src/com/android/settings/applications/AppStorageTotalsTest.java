@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that {@link AppStorageTotals} stays equal to adding up the list
+ * again as the list and the sizes in it change.
+ */
+public class AppStorageTotalsTest extends AndroidTestCase {
+    private static final int NUM_ENTRIES = 500;
+
+    private ArrayList<AppEntry> mEntries;
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRandom = new Random(11);
+        mEntries = new ArrayList<AppEntry>(NUM_ENTRIES);
+        for (int i=0; i<NUM_ENTRIES; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.synthetic" + i;
+            info.sourceDir = "/data/app/" + info.packageName + ".apk";
+            AppEntry entry = new AppEntry(info, i, "App " + i, true);
+            resize(entry);
+            mEntries.add(entry);
+        }
+    }
+
+    private void resize(AppEntry entry) {
+        synchronized (entry) {
+            entry.codeSize = mRandom.nextInt(50 * 1024 * 1024);
+            entry.dataSize = mRandom.nextInt(100 * 1024 * 1024);
+            entry.externalCodeSize = mRandom.nextInt(1024 * 1024);
+            entry.externalDataSize = mRandom.nextInt(10 * 1024 * 1024);
+            entry.externalCacheSize = mRandom.nextInt(5 * 1024 * 1024);
+        }
+    }
+
+    private static void assertTotals(ArrayList<AppEntry> list, AppStorageTotals totals) {
+        AppStorageTotals fresh = new AppStorageTotals();
+        fresh.setEntries(list);
+        for (boolean sdCard : new boolean[] { false, true }) {
+            for (boolean emulated : new boolean[] { false, true }) {
+                assertEquals(fresh.getAppStorage(sdCard, emulated),
+                        totals.getAppStorage(sdCard, emulated));
+            }
+        }
+    }
+
+    public void testFollowsListChanges() {
+        AppStorageTotals totals = new AppStorageTotals();
+        totals.setEntries(mEntries);
+        assertTotals(mEntries, totals);
+
+        // Narrowed, as by typing a filter, then widened again.
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(mEntries);
+        for (int round=0; round<20; round++) {
+            ArrayList<AppEntry> next = new ArrayList<AppEntry>();
+            for (int i=0; i<mEntries.size(); i++) {
+                if (mRandom.nextInt(4) != 0) {
+                    next.add(mEntries.get(i));
+                }
+            }
+            list = next;
+            totals.setEntries(list);
+            assertTotals(list, totals);
+
+            AppEntry changed = list.get(mRandom.nextInt(list.size()));
+            resize(changed);
+            assertTrue(totals.update(changed));
+            assertTotals(list, totals);
+        }
+
+        totals.setEntries(null);
+        assertEquals(0, totals.getAppStorage(false, true));
+        assertEquals(0, totals.getAppStorage(true, false));
+    }
+
+    public void testCacheChangeIsAChange() {
+        AppStorageTotals totals = new AppStorageTotals();
+        totals.setEntries(mEntries);
+        AppEntry entry = mEntries.get(3);
+        assertFalse(totals.update(entry));
+        synchronized (entry) {
+            entry.cacheSize += 4096;
+        }
+        assertTrue(totals.update(entry));
+        assertFalse(totals.update(entry));
+    }
+
+    public void testEntryOutsideListIgnored() {
+        AppStorageTotals totals = new AppStorageTotals();
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(mEntries.subList(0, 10));
+        totals.setEntries(list);
+        AppEntry outside = mEntries.get(20);
+        resize(outside);
+        assertFalse(totals.update(outside));
+        assertTotals(list, totals);
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Activity;
+import android.app.AppOpsManager;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.mock.MockPackageManager;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Instrumentation that times the application list and app ops code paths
+ * over synthetic packages, so regressions show up as numbers rather than as
+ * a feeling that Manage apps got slower.
+ *
+ * Every benchmark runs against 1,000, 5,000 and 20,000 packages unless the
+ * "sizes" argument says otherwise.  Results are reported in the
+ * instrumentation results bundle as "&lt;benchmark&gt;_&lt;packages&gt;_median_ns"
+ * and written as JSON, tagged with the build fingerprint, to the file named
+ * by the "results_file" key, so runs can be compared across builds:
+ *
+ * adb shell am instrument -w -r [-e sizes 1000,5000] \
+ *     com.android.settings.tests/com.android.settings.applications.ApplicationsBenchmark
+ */
+public class ApplicationsBenchmark extends Instrumentation {
+    private static final String TAG = "ApplicationsBenchmark";
+
+    private static final int[] DEFAULT_SIZES = { 1000, 5000, 20000 };
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int DEFAULT_ROUNDS = 10;
+
+    // Packages that change between two rebuilds of the incremental case.
+    private static final int CHANGED_PER_THOUSAND = 5;
+
+    // Permissions each package requests in the app ops benchmarks.
+    private static final int PERMISSIONS_PER_PACKAGE = 50;
+
+    private static final String[] WORDS = {
+        "Google", "Play", "Music", "Camera", "Café", "Maps", "Mail", "Photos",
+        "Карты", "Почта", "Κάμερα", "地图", "音乐", "カメラ", "지도", "Zdjęcia",
+    };
+
+    private static final String[] QUERIES = {
+        "google pl", "camer", "cafe", "карт", "地图", "zdj", "xyz",
+    };
+
+    private int[] mSizes = DEFAULT_SIZES;
+    private int mRounds = DEFAULT_ROUNDS;
+    private final Bundle mResults = new Bundle();
+    private final JSONArray mJsonResults = new JSONArray();
+
+    /**
+     * One measured operation.  {@link #setUp} builds whatever the operation
+     * needs outside the timed region; {@link #run} is what gets timed.
+     */
+    static abstract class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        void setUp(Fixture fixture) {
+        }
+
+        abstract void run(Fixture fixture);
+
+        void tearDown(Fixture fixture) {
+        }
+    }
+
+    /**
+     * Rebuilds the list of a real {@link ApplicationsState.Session} over
+     * copies of the fixture's entries, so changes made to them don't leak
+     * into the other benchmarks.
+     */
+    abstract class SessionBenchmark extends Benchmark {
+        ArrayList<AppEntry> mEntries;
+        ApplicationsState mState;
+        ApplicationsState.Session mSession;
+
+        SessionBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        void setUp(Fixture f) {
+            mEntries = new ArrayList<AppEntry>(f.entries.size());
+            for (int i=0; i<f.entries.size(); i++) {
+                AppEntry entry = f.entries.get(i);
+                AppEntry copy = new AppEntry(entry.info, entry.id, entry.label, true);
+                copy.size = entry.size;
+                copy.sizeStale = false;
+                mEntries.add(copy);
+            }
+            mState = SessionRebuildPerfTest.newState(getTargetContext(), mEntries);
+            mSession = mState.newSession(null);
+            rebuild();
+        }
+
+        ArrayList<AppEntry> rebuild() {
+            return SessionRebuildPerfTest.rebuild(mSession, ApplicationsState.ALL_ENABLED_FILTER,
+                    ApplicationsState.ALPHA_COMPARATOR);
+        }
+
+        @Override
+        void tearDown(Fixture f) {
+            mSession.release();
+            mState.mThread.quit();
+            mSession = null;
+            mState = null;
+            mEntries = null;
+        }
+    }
+
+    /**
+     * Synthetic installed packages: the ApplicationInfo list the platform
+     * would report, the entries ApplicationsState builds for them, and the
+     * app ops and permission holders AppOpsState would be handed.
+     */
+    static class Fixture {
+        final int size;
+        final ArrayList<ApplicationInfo> apps;
+        final ArrayList<AppEntry> entries;
+        final HashMap<String, ApplicationInfo> appsByName;
+        final ArrayList<AppOpsManager.PackageOps> packageOps;
+        final ArrayList<PackageInfo> permissionHolders;
+
+        Fixture(int size) {
+            this.size = size;
+            Random random = new Random(size);
+            apps = new ArrayList<ApplicationInfo>(size);
+            entries = new ArrayList<AppEntry>(size);
+            appsByName = new HashMap<String, ApplicationInfo>(size);
+            packageOps = new ArrayList<AppOpsManager.PackageOps>();
+            permissionHolders = new ArrayList<PackageInfo>();
+
+            String[] allPerms = allOpPermissions();
+            for (int i=0; i<size; i++) {
+                ApplicationInfo info = new ApplicationInfo();
+                info.packageName = "com.example.synthetic" + i;
+                info.sourceDir = "/data/app/" + info.packageName + ".apk";
+                info.uid = 10000 + i;
+                info.enabled = random.nextInt(20) != 0;
+                info.flags = ApplicationInfo.FLAG_INSTALLED;
+                if (random.nextInt(3) == 0) {
+                    info.flags |= ApplicationInfo.FLAG_SYSTEM;
+                }
+                apps.add(info);
+                appsByName.put(info.packageName, info);
+
+                StringBuilder label = new StringBuilder();
+                int words = 1 + random.nextInt(3);
+                for (int j=0; j<words; j++) {
+                    if (j > 0) label.append(' ');
+                    label.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                label.append(' ').append(i);
+                AppEntry entry = new AppEntry(info, i, label.toString(), true);
+                entry.codeSize = random.nextInt(50 * 1024 * 1024);
+                entry.dataSize = random.nextInt(100 * 1024 * 1024);
+                entry.externalCodeSize = random.nextInt(4) == 0 ? random.nextInt(1024 * 1024) : 0;
+                entry.externalDataSize = random.nextInt(10 * 1024 * 1024);
+                entry.externalCacheSize = random.nextInt(5 * 1024 * 1024);
+                entry.size = entry.codeSize + entry.dataSize;
+                entry.sizeStale = false;
+                entries.add(entry);
+
+                // About a third of packages have used an op recently...
+                if (random.nextInt(3) == 0) {
+                    ArrayList<AppOpsManager.OpEntry> ops = new ArrayList<AppOpsManager.OpEntry>();
+                    for (int op=0; op<AppOpsManager._NUM_OP; op++) {
+                        if (random.nextInt(8) == 0) {
+                            ops.add(new AppOpsManager.OpEntry(op, AppOpsManager.MODE_ALLOWED,
+                                    random.nextInt(1000000), 0, 0));
+                        }
+                    }
+                    if (!ops.isEmpty()) {
+                        packageOps.add(new AppOpsManager.PackageOps(info.packageName, info.uid,
+                                ops));
+                    }
+                }
+
+                // ...and most hold a handful of op-backed permissions.
+                if (random.nextInt(4) != 0) {
+                    PackageInfo pi = new PackageInfo();
+                    pi.packageName = info.packageName;
+                    pi.applicationInfo = info;
+                    int count = 1 + random.nextInt(Math.min(allPerms.length, 8));
+                    pi.requestedPermissions = new String[count];
+                    pi.requestedPermissionsFlags = new int[count];
+                    for (int j=0; j<count; j++) {
+                        pi.requestedPermissions[j] = allPerms[random.nextInt(allPerms.length)];
+                        pi.requestedPermissionsFlags[j] = PackageInfo.REQUESTED_PERMISSION_GRANTED;
+                    }
+                    permissionHolders.add(pi);
+                }
+            }
+            ApplicationsState.sortEntries(entries, ApplicationsState.ALPHA_COMPARATOR);
+        }
+
+        private static String[] allOpPermissions() {
+            ArrayList<String> perms = new ArrayList<String>();
+            for (int op=0; op<AppOpsManager._NUM_OP; op++) {
+                String perm = AppOpsManager.opToPermission(op);
+                if (perm != null && !perms.contains(perm)) {
+                    perms.add(perm);
+                }
+            }
+            return perms.toArray(new String[perms.size()]);
+        }
+    }
+
+    /**
+     * Answers the application lookups AppOpsState makes for packages that
+     * only show up through their ops.
+     */
+    static class FixturePackageManager extends MockPackageManager {
+        final Fixture mFixture;
+
+        FixturePackageManager(Fixture fixture) {
+            mFixture = fixture;
+        }
+
+        @Override
+        public ApplicationInfo getApplicationInfo(String packageName, int flags)
+                throws NameNotFoundException {
+            ApplicationInfo info = mFixture.appsByName.get(packageName);
+            if (info == null) {
+                throw new NameNotFoundException(packageName);
+            }
+            return info;
+        }
+    }
+
+    static ArrayList<AppEntry> filterEntries(ArrayList<AppEntry> entries,
+            ApplicationsState.AppFilter filter) {
+        ArrayList<AppEntry> filtered = new ArrayList<AppEntry>();
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            if (filter.filterApp(entry.info)) {
+                filtered.add(entry);
+            }
+        }
+        return filtered;
+    }
+
+    private List<Benchmark> benchmarks() {
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new SessionBenchmark("rebuild_full") {
+            @Override
+            void run(Fixture f) {
+                // As after a resume, which throws away the last list.
+                synchronized (mState.mEntriesMap) {
+                    mState.invalidateSessionListsLocked();
+                }
+                rebuild();
+            }
+        });
+
+        benchmarks.add(new SessionBenchmark("rebuild_incremental") {
+            int mRound;
+
+            @Override
+            void run(Fixture f) {
+                // A few packages change size or label between two rebuilds.
+                mRound++;
+                Random random = new Random(mRound);
+                int count = Math.max(1, f.size * CHANGED_PER_THOUSAND / 1000);
+                for (int i=0; i<count; i++) {
+                    AppEntry entry = mEntries.get(random.nextInt(mEntries.size()));
+                    synchronized (entry) {
+                        entry.size = random.nextInt(100 * 1024 * 1024);
+                    }
+                    if (random.nextBoolean()) {
+                        entry.label = WORDS[random.nextInt(WORDS.length)] + " " + mRound;
+                        entry.normalizedLabel = null;
+                        entry.collationKey = null;
+                    }
+                    SessionRebuildPerfTest.noteChanged(mState, entry);
+                }
+                rebuild();
+            }
+        });
+
+        benchmarks.add(new Benchmark("filter") {
+            @Override
+            void run(Fixture f) {
+                filterEntries(f.entries, ApplicationsState.THIRD_PARTY_FILTER);
+                filterEntries(f.entries, ApplicationsState.ALL_ENABLED_FILTER);
+                filterEntries(f.entries, ApplicationsState.DISABLED_FILTER);
+            }
+        });
+
+        benchmarks.add(sortBenchmark("sort_alpha", ApplicationsState.ALPHA_COMPARATOR));
+        benchmarks.add(sortBenchmark("sort_size", ApplicationsState.SIZE_COMPARATOR));
+
+        benchmarks.add(new Benchmark("prefix_search") {
+            AppPrefixIndex mIndex;
+            String[] mTyped;
+
+            @Override
+            void setUp(Fixture f) {
+                mIndex = new AppPrefixIndex();
+                mIndex.setEntries(f.entries);
+                ArrayList<String> typed = new ArrayList<String>();
+                for (String query : QUERIES) {
+                    for (int len=1; len<=query.length(); len++) {
+                        typed.add(query.substring(0, len));
+                    }
+                }
+                mTyped = typed.toArray(new String[typed.size()]);
+            }
+
+            @Override
+            void run(Fixture f) {
+                // One rebuilt list, then typing into it, as the list does.
+                ArrayList<AppEntry> rebuilt = new ArrayList<AppEntry>(f.entries);
+                mIndex.setEntries(rebuilt);
+                for (int i=0; i<mTyped.length; i++) {
+                    ManageApplications.ApplicationsAdapter.applyPrefixFilter(mIndex,
+                            mTyped[i], rebuilt);
+                }
+            }
+        });
+
+        benchmarks.add(new Benchmark("size_aggregation") {
+            final AppStorageTotals mTotals = new AppStorageTotals();
+            ArrayList<AppEntry> mFiltered;
+
+            @Override
+            void setUp(Fixture f) {
+                mFiltered = filterEntries(f.entries, ApplicationsState.THIRD_PARTY_FILTER);
+            }
+
+            @Override
+            void run(Fixture f) {
+                // New lists from a rebuild and a filter.
+                mTotals.setEntries(null);
+                mTotals.setEntries(f.entries);
+                mTotals.setEntries(mFiltered);
+                mTotals.getAppStorage(false, true);
+            }
+        });
+
+        benchmarks.add(new Benchmark("size_aggregation_update") {
+            final AppStorageTotals mTotals = new AppStorageTotals();
+            AppEntry[] mChanged;
+
+            @Override
+            void setUp(Fixture f) {
+                mTotals.setEntries(f.entries);
+                Random random = new Random(f.size);
+                mChanged = new AppEntry[Math.max(1, f.size * CHANGED_PER_THOUSAND / 1000)];
+                for (int i=0; i<mChanged.length; i++) {
+                    mChanged[i] = f.entries.get(random.nextInt(f.entries.size()));
+                }
+            }
+
+            @Override
+            void run(Fixture f) {
+                // A batch of size changes coming in.
+                for (int i=0; i<mChanged.length; i++) {
+                    AppEntry entry = mChanged[i];
+                    synchronized (entry) {
+                        entry.dataSize ^= 4096;
+                    }
+                    mTotals.update(entry);
+                }
+                mTotals.getAppStorage(false, true);
+            }
+        });
+
+        benchmarks.add(new Benchmark("appops_build_state") {
+            AppOpsState mState;
+
+            @Override
+            void setUp(Fixture f) {
+                mState = fixtureAppOpsState(f);
+            }
+
+            @Override
+            void run(Fixture f) {
+                for (int i=0; i<AppOpsState.ALL_TEMPLATES.length; i++) {
+                    mState.buildState(AppOpsState.ALL_TEMPLATES[i], null, f.packageOps,
+                            f.permissionHolders);
+                }
+            }
+        });
+
+        benchmarks.add(new Benchmark("appops_build_states_many_perms") {
+            AppOpsState mState;
+            ArrayList<PackageInfo> mHolders;
+
+            @Override
+            void setUp(Fixture f) {
+                mState = fixtureAppOpsState(f);
+                mHolders = manyPermissionHolders(f);
+            }
+
+            @Override
+            void run(Fixture f) {
+                // Every template of the summary pager in one pass.
+                mState.buildStates(AppOpsState.ALL_TEMPLATES, null, f.packageOps, mHolders);
+            }
+        });
+
+        benchmarks.add(new Benchmark("appops_build_states_cold") {
+            AppOpsState mState;
+            ArrayList<PackageInfo> mHolders;
+
+            @Override
+            void setUp(Fixture f) {
+                mState = fixtureAppOpsState(f);
+                mHolders = manyPermissionHolders(f);
+            }
+
+            @Override
+            void run(Fixture f) {
+                // Right after a package broadcast: labels are loaded again.
+                mState.mPackageCache.invalidateAll();
+                mState.buildStates(AppOpsState.ALL_TEMPLATES, null, f.packageOps, mHolders);
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * An AppOpsState answering from the fixture, with its own label cache
+     * big enough for every package.
+     */
+    private AppOpsState fixtureAppOpsState(Fixture f) {
+        final FixturePackageManager pm = new FixturePackageManager(f);
+        return new AppOpsState(new ContextWrapper(getTargetContext()) {
+            @Override
+            public PackageManager getPackageManager() {
+                return pm;
+            }
+        }, new AppOpsState.PackageCache(f.size));
+    }
+
+    /**
+     * Every package requesting PERMISSIONS_PER_PACKAGE permissions, the
+     * op-backed ones among others the templates don't care about.
+     */
+    private static ArrayList<PackageInfo> manyPermissionHolders(Fixture f) {
+        String[] opPerms = Fixture.allOpPermissions();
+        Random random = new Random(f.size);
+        ArrayList<PackageInfo> holders = new ArrayList<PackageInfo>(f.size);
+        for (int i=0; i<f.apps.size(); i++) {
+            PackageInfo pi = new PackageInfo();
+            pi.applicationInfo = f.apps.get(i);
+            pi.packageName = pi.applicationInfo.packageName;
+            pi.requestedPermissions = new String[PERMISSIONS_PER_PACKAGE];
+            pi.requestedPermissionsFlags = new int[PERMISSIONS_PER_PACKAGE];
+            for (int j=0; j<PERMISSIONS_PER_PACKAGE; j++) {
+                pi.requestedPermissions[j] = random.nextInt(4) == 0
+                        ? opPerms[random.nextInt(opPerms.length)]
+                        : "com.example.permission.P" + random.nextInt(200);
+                pi.requestedPermissionsFlags[j] = random.nextInt(10) != 0
+                        ? PackageInfo.REQUESTED_PERMISSION_GRANTED : 0;
+            }
+            holders.add(pi);
+        }
+        return holders;
+    }
+
+    private Benchmark sortBenchmark(String name, final Comparator<AppEntry> comparator) {
+        return new Benchmark(name) {
+            @Override
+            void run(Fixture f) {
+                ArrayList<AppEntry> list = new ArrayList<AppEntry>(f.entries);
+                ApplicationsState.sortEntries(list, comparator);
+            }
+        };
+    }
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        if (arguments != null) {
+            String sizes = arguments.getString("sizes");
+            if (sizes != null) {
+                String[] parts = sizes.split(",");
+                mSizes = new int[parts.length];
+                for (int i=0; i<parts.length; i++) {
+                    mSizes[i] = Integer.parseInt(parts[i].trim());
+                }
+            }
+            String rounds = arguments.getString("rounds");
+            if (rounds != null) {
+                mRounds = Integer.parseInt(rounds);
+            }
+        }
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        List<Benchmark> benchmarks = benchmarks();
+        for (int s=0; s<mSizes.length; s++) {
+            Fixture fixture = new Fixture(mSizes[s]);
+            for (int b=0; b<benchmarks.size(); b++) {
+                measure(benchmarks.get(b), fixture);
+            }
+        }
+        writeResults();
+        finish(Activity.RESULT_OK, mResults);
+    }
+
+    private void measure(Benchmark benchmark, Fixture fixture) {
+        benchmark.setUp(fixture);
+        for (int r=0; r<WARMUP_ROUNDS; r++) {
+            benchmark.run(fixture);
+        }
+        long[] times = new long[mRounds];
+        for (int r=0; r<mRounds; r++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            benchmark.run(fixture);
+            times[r] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        benchmark.tearDown(fixture);
+        Arrays.sort(times);
+        long median = times[times.length / 2];
+        long min = times[0];
+
+        String key = benchmark.name + "_" + fixture.size;
+        mResults.putLong(key + "_median_ns", median);
+        mResults.putLong(key + "_min_ns", min);
+        try {
+            JSONObject result = new JSONObject();
+            result.put("benchmark", benchmark.name);
+            result.put("packages", fixture.size);
+            result.put("rounds", mRounds);
+            result.put("median_ns", median);
+            result.put("min_ns", min);
+            mJsonResults.put(result);
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to record " + key, e);
+        }
+        Log.i(TAG, key + ": median " + (median / 1000) + "us, min " + (min / 1000) + "us");
+
+        Bundle status = new Bundle();
+        status.putString(Instrumentation.REPORT_KEY_STREAMRESULT, key + ": median "
+                + median + "ns\n");
+        sendStatus(0, status);
+    }
+
+    private void writeResults() {
+        File dir = getTargetContext().getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getTargetContext().getFilesDir();
+        }
+        File file = new File(dir, "applications_benchmark.json");
+        FileOutputStream out = null;
+        try {
+            JSONObject json = new JSONObject();
+            json.put("fingerprint", Build.FINGERPRINT);
+            json.put("results", mJsonResults);
+            out = new FileOutputStream(file);
+            out.write(json.toString(2).getBytes("UTF-8"));
+            mResults.putString("results_file", file.getPath());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
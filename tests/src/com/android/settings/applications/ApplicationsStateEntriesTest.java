@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageStatsObserver;
+import android.content.pm.PackageStats;
+import android.test.AndroidTestCase;
+import android.test.mock.MockPackageManager;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that entries the loader has created but not yet published are
+ * used by the rest of ApplicationsState rather than loaded or dropped.
+ */
+public class ApplicationsStateEntriesTest extends AndroidTestCase {
+    private static final String TAG = "ApplicationsStateEntriesTest";
+
+    /**
+     * Counts label loads, and never answers size requests.
+     */
+    static class CountingPackageManager extends MockPackageManager {
+        final AtomicInteger mLabelLoads = new AtomicInteger();
+
+        @Override
+        public CharSequence getText(String packageName, int resid, ApplicationInfo appInfo) {
+            mLabelLoads.incrementAndGet();
+            return "Label " + packageName;
+        }
+
+        @Override
+        public void getPackageSizeInfo(String packageName, int userHandle,
+                IPackageStatsObserver observer) {
+        }
+    }
+
+    private CountingPackageManager mPm;
+    private ApplicationsState mState;
+    private ApplicationInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPm = new CountingPackageManager();
+        // Size callbacks can lead to a snapshot being saved; keep it away
+        // from the one the app itself uses.
+        final File cacheDir = new File(getContext().getCacheDir(), TAG);
+        cacheDir.mkdirs();
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+        };
+        mState = SessionRebuildPerfTest.newState(context, mPm, new ArrayList<AppEntry>());
+        mInfo = new ApplicationInfo();
+        mInfo.packageName = "com.example.unpublished";
+        mInfo.sourceDir = getContext().getApplicationInfo().sourceDir;
+        mInfo.labelRes = 1;
+        mInfo.enabled = true;
+        synchronized (mState.mEntriesMap) {
+            mState.mApplications.add(mInfo);
+            mState.entriesChangedLocked();
+            mState.publishEntriesLocked();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mState.mThread.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Has the loader come back with the label, and keeps it from being
+     * published yet.
+     */
+    private AppEntry loadUnpublished() {
+        mState.mLoaderCallbacks.onLabelLoaded(mInfo, "Loaded", true);
+        mState.mBackgroundHandler.removeMessages(
+                ApplicationsState.BackgroundHandler.MSG_PUBLISH_ENTRIES);
+        assertNull(mState.mEntryTable.get(mInfo.packageName));
+        AppEntry entry;
+        synchronized (mState.mEntriesMap) {
+            entry = mState.mEntriesMap.get(mInfo.packageName);
+        }
+        assertNotNull(entry);
+        return entry;
+    }
+
+    public void testObtainFindsUnpublishedEntry() {
+        AppEntry loaded = loadUnpublished();
+        AppEntry entry = mState.obtainEntry(mInfo);
+        assertSame(loaded, entry);
+        assertEquals("Loaded", entry.label);
+        assertEquals(0, mPm.mLabelLoads.get());
+    }
+
+    public void testSizeOfUnpublishedEntryKept() throws Exception {
+        AppEntry entry = loadUnpublished();
+        PackageStats stats = new PackageStats(mInfo.packageName);
+        stats.codeSize = 1000;
+        stats.dataSize = 200;
+        stats.cacheSize = 30;
+        mState.mBackgroundHandler.mStatsObserver.onGetStatsCompleted(stats, true);
+
+        synchronized (entry) {
+            assertEquals(1200, entry.size);
+            assertEquals(30, entry.cacheSize);
+            assertFalse(entry.sizeStale);
+        }
+        assertEquals(30, mState.sumCacheSizes());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+import com.android.settings.applications.ApplicationsState.EntryTable;
+
+import java.util.ArrayList;
+
+/**
+ * Reads entries the way the UI thread does while another thread keeps
+ * mEntriesMap locked for long stretches, swapping a batch of packages for
+ * a new one a step at a time and publishing a new table after each batch,
+ * the way the loader does when it is busy.  Every table a reader sees must
+ * hold whole batches only, and agree with itself.
+ */
+public class ApplicationsStateReadStressTest extends AndroidTestCase {
+    private static final String TAG = "ApplicationsStateReadStressTest";
+
+    private static final int NUM_STABLE = 50;
+    private static final int BATCH = 10;
+    private static final String BATCH_PREFIX = "com.example.batch";
+    // How long the fake loader holds the lock for each batch.
+    private static final long HOLD_MS = 50;
+    private static final long DURATION_MS = 2000;
+
+    private ApplicationsState mState;
+    private long mNextId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(NUM_STABLE);
+        for (int i=0; i<NUM_STABLE; i++) {
+            entries.add(newEntry("com.example.stable" + i));
+        }
+        mState = SessionRebuildPerfTest.newState(getContext(), entries);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mState.mThread.quit();
+        super.tearDown();
+    }
+
+    private AppEntry newEntry(String packageName) {
+        ApplicationInfo info = new ApplicationInfo();
+        info.packageName = packageName;
+        info.sourceDir = "/data/app/" + packageName + ".apk";
+        long id = mNextId++;
+        return new AppEntry(info, id, "App " + id, true);
+    }
+
+    /**
+     * Checks that the table agrees with itself and holds either no batch
+     * or one whole batch.
+     */
+    private static void assertWhole(EntryTable table) {
+        assertEquals(table.appEntries.size(), table.entries.size());
+        assertEquals(table.appEntries.size(), table.applications.size());
+        String batch = null;
+        int inBatch = 0;
+        for (int i=0; i<table.appEntries.size(); i++) {
+            AppEntry entry = table.appEntries.get(i);
+            String pkgName = entry.info.packageName;
+            assertSame(pkgName, entry, table.get(pkgName));
+            assertSame(pkgName, entry.info, table.getApplication(pkgName));
+            if (pkgName.startsWith(BATCH_PREFIX)) {
+                String which = pkgName.substring(0, pkgName.indexOf('_'));
+                if (batch == null) {
+                    batch = which;
+                }
+                assertEquals("table " + table.version + " mixes batches", batch, which);
+                inBatch++;
+            }
+        }
+        assertTrue("table " + table.version + " has " + inBatch + " of a batch",
+                inBatch == 0 || inBatch == BATCH);
+    }
+
+    public void testReadsSeeWholeTables() throws InterruptedException {
+        final ApplicationsState state = mState;
+        final String stablePkg = "com.example.stable" + (NUM_STABLE / 2);
+        final int startVersion = state.mEntryTable.version;
+
+        final boolean[] stop = new boolean[1];
+        Thread writer = new Thread("FakeLoader") {
+            @Override
+            public void run() {
+                ArrayList<AppEntry> last = new ArrayList<AppEntry>();
+                for (int b=0; ; b++) {
+                    synchronized (stop) {
+                        if (stop[0]) {
+                            return;
+                        }
+                    }
+                    synchronized (state.mEntriesMap) {
+                        for (int i=0; i<last.size(); i++) {
+                            AppEntry entry = last.get(i);
+                            state.mApplications.remove(entry.info);
+                            SystemClock.sleep(HOLD_MS / BATCH / 2);
+                            state.mEntriesMap.remove(entry.info.packageName);
+                            state.mAppEntries.remove(entry);
+                        }
+                        last.clear();
+                        for (int i=0; i<BATCH; i++) {
+                            AppEntry entry = newEntry(BATCH_PREFIX + b + "_" + i);
+                            state.mApplications.add(entry.info);
+                            SystemClock.sleep(HOLD_MS / BATCH / 2);
+                            state.mEntriesMap.put(entry.info.packageName, entry);
+                            state.mAppEntries.add(entry);
+                            last.add(entry);
+                        }
+                        state.entriesChangedLocked();
+                        state.publishEntriesLocked();
+                    }
+                }
+            }
+        };
+        writer.start();
+
+        long maxNs = 0;
+        long totalNs = 0;
+        int reads = 0;
+        int lastVersion = startVersion;
+        try {
+            long end = SystemClock.uptimeMillis() + DURATION_MS;
+            while (SystemClock.uptimeMillis() < end) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                AppEntry entry = state.getEntry(stablePkg);
+                EntryTable table = state.mEntryTable;
+                state.sumCacheSizes();
+                long ns = SystemClock.elapsedRealtimeNanos() - start;
+                maxNs = Math.max(maxNs, ns);
+                totalNs += ns;
+                reads++;
+
+                assertNotNull(entry);
+                assertTrue(table.version >= lastVersion);
+                lastVersion = table.version;
+                assertWhole(table);
+            }
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            writer.join();
+        }
+
+        int versions = state.mEntryTable.version - startVersion;
+        Log.i(TAG, reads + " reads against " + versions + " published tables while the lock"
+                + " is held " + HOLD_MS + "ms at a time: average " + (totalNs / reads / 1000)
+                + "us, max " + (maxNs / 1000) + "us");
+        assertTrue("writer never published", versions > 1);
+        assertWhole(state.mEntryTable);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link PackageSizeScheduler} against a local fake of the package
+ * size service to check the order packages get measured in and how
+ * throughput changes with the number of requests in flight.
+ */
+public class PackageSizeSchedulerTest extends AndroidTestCase {
+    private static final String TAG = "PackageSizeSchedulerTest";
+
+    private static final int NUM_PACKAGES = 300;
+    private static final long REQUEST_LATENCY_MS = 3;
+
+    /**
+     * Answers each size request after a fixed delay, several at a time, the
+     * way getPackageSizeInfo answers through its observer.
+     */
+    static class FakeSizeService {
+        final ExecutorService mExecutor = Executors.newFixedThreadPool(8);
+        final ArrayList<String> mCompleted = new ArrayList<String>();
+        final Semaphore mAnswered = new Semaphore(0);
+        final PackageSizeScheduler mScheduler;
+
+        FakeSizeService(PackageSizeScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        void requestSize(final String packageName) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(REQUEST_LATENCY_MS);
+                    synchronized (mCompleted) {
+                        mCompleted.add(packageName);
+                    }
+                    mScheduler.onSizeComputed(packageName, true);
+                    mAnswered.release();
+                }
+            });
+        }
+
+        /**
+         * Plays the part of MSG_LOAD_SIZES until everything is measured.
+         */
+        void runToCompletion() throws InterruptedException {
+            while (!mScheduler.isIdle()) {
+                ArrayList<String> ready = mScheduler.takeReady(SystemClock.uptimeMillis());
+                for (int i=0; i<ready.size(); i++) {
+                    requestSize(ready.get(i));
+                }
+                if (!mScheduler.isIdle()) {
+                    assertTrue(mAnswered.tryAcquire(10, TimeUnit.SECONDS));
+                }
+            }
+            mExecutor.shutdown();
+        }
+    }
+
+    private static List<String> packages() {
+        ArrayList<String> pkgs = new ArrayList<String>(NUM_PACKAGES);
+        for (int i=0; i<NUM_PACKAGES; i++) {
+            pkgs.add("com.example.synthetic" + i);
+        }
+        return pkgs;
+    }
+
+    private long timeMeasureAll(int maxInFlight) throws InterruptedException {
+        PackageSizeScheduler scheduler = new PackageSizeScheduler(maxInFlight,
+                PackageSizeScheduler.DEFAULT_TIMEOUT_MS);
+        for (String pkg : packages()) {
+            scheduler.enqueue(pkg);
+        }
+        FakeSizeService service = new FakeSizeService(scheduler);
+        long start = SystemClock.uptimeMillis();
+        service.runToCompletion();
+        long elapsed = SystemClock.uptimeMillis() - start;
+        assertEquals(NUM_PACKAGES, service.mCompleted.size());
+        assertEquals(NUM_PACKAGES, scheduler.takeChanged().size());
+        Log.i(TAG, maxInFlight + " in flight: measured " + NUM_PACKAGES + " packages in "
+                + elapsed + "ms");
+        return elapsed;
+    }
+
+    public void testThroughputScalesWithRequestsInFlight() throws InterruptedException {
+        long one = timeMeasureAll(1);
+        long four = timeMeasureAll(4);
+        assertTrue("4 in flight (" + four + "ms) not faster than 1 (" + one + "ms)",
+                four < one / 2);
+    }
+
+    public void testVisibleThenListOrderFirst() throws InterruptedException {
+        PackageSizeScheduler scheduler = new PackageSizeScheduler(1,
+                PackageSizeScheduler.DEFAULT_TIMEOUT_MS);
+        List<String> pkgs = packages();
+        for (String pkg : pkgs) {
+            scheduler.enqueue(pkg);
+        }
+        // The list being shown is sorted in reverse...
+        ArrayList<String> listOrder = new ArrayList<String>(pkgs.subList(100, 200));
+        Collections.reverse(listOrder);
+        scheduler.setOrder(listOrder);
+        // ...and two rows near the end of everything are on screen.
+        scheduler.prioritize(pkgs.get(290));
+        scheduler.prioritize(pkgs.get(291));
+
+        FakeSizeService service = new FakeSizeService(scheduler);
+        service.runToCompletion();
+
+        ArrayList<String> expected = new ArrayList<String>();
+        expected.addAll(Arrays.asList(pkgs.get(291), pkgs.get(290)));
+        expected.addAll(listOrder);
+        for (String pkg : pkgs) {
+            if (!expected.contains(pkg)) {
+                expected.add(pkg);
+            }
+        }
+        assertEquals(expected, service.mCompleted);
+    }
+
+    public void testUnansweredRequestsRetried() {
+        PackageSizeScheduler scheduler = new PackageSizeScheduler(2, 1000);
+        scheduler.enqueue("a");
+        scheduler.enqueue("b");
+        scheduler.enqueue("c");
+        assertEquals(Arrays.asList("a", "b"), scheduler.takeReady(0));
+        assertTrue(scheduler.takeReady(500).isEmpty());
+        assertTrue(scheduler.onSizeComputed("a", false));
+        assertEquals(Arrays.asList("c"), scheduler.takeReady(600));
+        // "b" never answered.
+        assertEquals(Arrays.asList("b"), scheduler.takeReady(1100));
+        assertFalse(scheduler.onSizeComputed("unknown", false));
+    }
+}
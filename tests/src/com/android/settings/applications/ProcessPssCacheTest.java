@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Replays a few minutes of polls of a busy device through
+ * {@link ProcessPssCache}, with a fake activity manager that counts what
+ * it is asked, and compares that with measuring every process every poll.
+ */
+public class ProcessPssCacheTest extends AndroidTestCase {
+    private static final String TAG = "ProcessPssCacheTest";
+
+    private static final int NUM_ACTIVE = 30;
+    private static final int NUM_CACHED = 120;
+    private static final long POLL_DELAY = RunningRefreshScheduler.MIN_POLL_DELAY;
+    private static final int NUM_POLLS = 150;
+
+    /**
+     * Answers with the time of the measurement, so the test can tell how
+     * old each value it gets back is.
+     */
+    static class FakeProvider implements ProcessPssCache.Provider {
+        long mNow;
+        int mCalls;
+        int mPids;
+
+        @Override
+        public long[] getProcessPss(int[] pids) {
+            mCalls++;
+            mPids += pids.length;
+            long[] pss = new long[pids.length];
+            for (int i=0; i<pids.length; i++) {
+                pss[i] = mNow;
+            }
+            return pss;
+        }
+    }
+
+    static class FakeProcess {
+        final int pid;
+        final int startSeq;
+        final boolean active;
+
+        FakeProcess(int _pid, int _startSeq, boolean _active) {
+            pid = _pid;
+            startSeq = _startSeq;
+            active = _active;
+        }
+    }
+
+    private final FakeProvider mProvider = new FakeProvider();
+    private final ProcessPssCache mCache = new ProcessPssCache(mProvider);
+    private final ArrayList<FakeProcess> mProcesses = new ArrayList<FakeProcess>();
+    private long[] mPss = new long[0];
+    private boolean[] mEstimated = new boolean[0];
+
+    private void sample(long now) throws Exception {
+        final int N = mProcesses.size();
+        int[] pids = new int[N];
+        int[] startSeqs = new int[N];
+        long[] ttls = new long[N];
+        for (int i=0; i<N; i++) {
+            FakeProcess proc = mProcesses.get(i);
+            pids[i] = proc.pid;
+            startSeqs[i] = proc.startSeq;
+            ttls[i] = proc.active ? ProcessPssCache.ACTIVE_TTL : ProcessPssCache.CACHED_TTL;
+        }
+        mPss = new long[N];
+        mEstimated = new boolean[N];
+        mProvider.mNow = now;
+        mCache.sample(N, pids, startSeqs, ttls, now, mPss, mEstimated);
+        for (int i=0; i<N; i++) {
+            long age = now - mPss[i];
+            assertTrue("pid " + pids[i] + " is " + age + "ms old", age < ttls[i]);
+            assertEquals("pid " + pids[i] + " is " + age + "ms old",
+                    age >= ProcessPssCache.ACTIVE_TTL, mEstimated[i]);
+        }
+    }
+
+    public void testReplay() throws Exception {
+        int nextPid = 1000;
+        for (int i=0; i<NUM_ACTIVE; i++) {
+            mProcesses.add(new FakeProcess(nextPid++, 0, true));
+        }
+        for (int i=0; i<NUM_CACHED; i++) {
+            mProcesses.add(new FakeProcess(nextPid++, 0, false));
+        }
+
+        int naivePids = 0;
+        long now = 0;
+        for (int poll=0; poll<NUM_POLLS; poll++) {
+            if (poll > 0 && poll % 10 == 0) {
+                // A cached process is killed and another app starts.
+                mProcesses.remove(NUM_ACTIVE);
+                mProcesses.add(new FakeProcess(nextPid++, poll, false));
+            }
+            naivePids += mProcesses.size();
+            sample(now);
+            now += POLL_DELAY;
+        }
+
+        Log.i(TAG, NUM_POLLS + " polls of " + mProcesses.size() + " processes: "
+                + mProvider.mCalls + " calls for " + mProvider.mPids + " pids, against "
+                + NUM_POLLS + " calls for " + naivePids + " pids measuring everything ("
+                + (100 - mProvider.mPids * 100 / naivePids) + "% fewer)");
+        assertTrue(mProvider.mCalls <= NUM_POLLS);
+        assertTrue(mProvider.mPids * 3 < naivePids);
+        assertEquals(mProvider.mPids, mCache.mPidsRequested);
+        assertEquals(naivePids, mCache.mPidsRequested + mCache.mPidsCached);
+    }
+
+    public void testReusedPidMeasuredAgain() throws Exception {
+        mProcesses.add(new FakeProcess(1000, 0, false));
+        sample(0);
+        assertEquals(1, mProvider.mPids);
+        sample(POLL_DELAY);
+        assertEquals(1, mProvider.mPids);
+        assertEquals(0, mPss[0]);
+
+        // The process died and its pid went to a new one.
+        mProcesses.set(0, new FakeProcess(1000, 2, false));
+        sample(2 * POLL_DELAY);
+        assertEquals(2, mProvider.mPids);
+        assertEquals(2 * POLL_DELAY, mPss[0]);
+        assertFalse(mEstimated[0]);
+    }
+
+    public void testGoneProcessesForgotten() throws Exception {
+        mProcesses.add(new FakeProcess(1000, 0, false));
+        sample(0);
+        mProcesses.clear();
+        sample(POLL_DELAY);
+        // Back within its TTL, but it was gone in between.
+        mProcesses.add(new FakeProcess(1000, 0, false));
+        sample(2 * POLL_DELAY);
+        assertEquals(2, mProvider.mPids);
+    }
+
+    public void testProviderCalledWithoutLock() throws Exception {
+        final ProcessPssCache[] cache = new ProcessPssCache[1];
+        final boolean[] held = new boolean[1];
+        cache[0] = new ProcessPssCache(new ProcessPssCache.Provider() {
+            @Override
+            public long[] getProcessPss(int[] pids) {
+                held[0] = Thread.holdsLock(cache[0]);
+                // As if the page were left while the call was out.
+                cache[0].clear();
+                return new long[pids.length];
+            }
+        });
+        long[] pss = new long[1];
+        boolean[] estimated = new boolean[1];
+        cache[0].sample(1, new int[] { 1000 }, new int[] { 0 },
+                new long[] { ProcessPssCache.CACHED_TTL }, 0, pss, estimated);
+        assertFalse(held[0]);
+        assertFalse(estimated[0]);
+    }
+}
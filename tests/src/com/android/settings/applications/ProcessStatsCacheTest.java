@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessStats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Flips between duration windows the way the menu does, against a fake
+ * process stats service that counts what it is asked.
+ */
+public class ProcessStatsCacheTest extends AndroidTestCase {
+    private static final long HOUR = 60*60*1000;
+
+    static class FakeService extends IProcessStats.Stub {
+        int mMemState;
+        // What the stats run up to; unset, so the time of the read, if 0.
+        long mStatsTime;
+        int mStateCalls;
+        int mStatsCalls;
+
+        @Override
+        public byte[] getCurrentStats(List<ParcelFileDescriptor> historic) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ParcelFileDescriptor getStatsOverTime(long minTime) throws RemoteException {
+            mStatsCalls++;
+            ProcessStats stats = new ProcessStats(false);
+            stats.mTimePeriodEndRealtime = mStatsTime;
+            Parcel current = Parcel.obtain();
+            stats.writeToParcel(current, 0);
+            byte[] data = current.marshall();
+            current.recycle();
+            try {
+                // Small enough to fit in the pipe without a writer thread.
+                ParcelFileDescriptor[] fds = ParcelFileDescriptor.createPipe();
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]);
+                out.write(data);
+                out.close();
+                return fds[0];
+            } catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+
+        @Override
+        public int getCurrentMemoryState() {
+            mStateCalls++;
+            return mMemState;
+        }
+    }
+
+    private final FakeService mService = new FakeService();
+
+    public void testFlippingWindowsNeedsNoCalls() {
+        ProcessStatsCache cache = new ProcessStatsCache(mService);
+        long now = 0;
+        assertNull(cache.get(3*HOUR, now));
+        ProcessStatsCache.Window three = cache.load(3*HOUR, now);
+        ProcessStatsCache.Window six = cache.load(6*HOUR, now);
+        assertNotNull(three);
+        assertNotNull(six);
+        assertEquals(2, mService.mStatsCalls);
+        assertTrue(cache.getBytes() > 0);
+
+        for (int i=0; i<10; i++) {
+            now += 1000;
+            assertSame(three, cache.get(3*HOUR, now));
+            assertSame(six, cache.load(6*HOUR, now));
+        }
+        assertEquals(2, mService.mStateCalls);
+        assertEquals(2, mService.mStatsCalls);
+    }
+
+    public void testReadAgainAfterAWhile() {
+        ProcessStatsCache cache = new ProcessStatsCache(mService);
+        long now = 0;
+        ProcessStatsCache.Window three = cache.load(3*HOUR, now);
+        cache.load(6*HOUR, now);
+
+        // Even with the memory state where it was, the stats have moved on.
+        now += ProcessStatsCache.VALIDATE_INTERVAL;
+        assertNull(cache.get(3*HOUR, now));
+        assertNotSame(three, cache.load(3*HOUR, now));
+        assertEquals(3, mService.mStatsCalls);
+        // And the other window, from the same time, went with it.
+        assertEquals(1, cache.getWindowCount());
+        assertNull(cache.get(6*HOUR, now));
+    }
+
+    public void testAnyReadDropsWindowsThatDontMatch() {
+        ProcessStatsCache cache = new ProcessStatsCache(mService);
+        ProcessStatsCache.Window three = cache.load(3*HOUR, 0);
+        long size = three.size;
+
+        // No window yet for this duration; the other is still dropped.
+        long now = ProcessStatsCache.VALIDATE_INTERVAL;
+        cache.load(12*HOUR, now);
+        assertEquals(1, cache.getWindowCount());
+        assertEquals(size, cache.getBytes());
+        assertNull(cache.get(3*HOUR, now));
+    }
+
+    public void testGoesByTimeOfStats() {
+        ProcessStatsCache cache = new ProcessStatsCache(mService);
+        // The service hands out stats that end a while before the read.
+        long now = 10*ProcessStatsCache.VALIDATE_INTERVAL;
+        mService.mStatsTime = now - ProcessStatsCache.VALIDATE_INTERVAL/2;
+        ProcessStatsCache.Window three = cache.load(3*HOUR, now);
+        assertEquals(mService.mStatsTime, three.statsTime);
+        assertSame(three, cache.get(3*HOUR, now));
+        assertNull(cache.get(3*HOUR, now + ProcessStatsCache.VALIDATE_INTERVAL/2));
+
+        // The service started over: its stats run up to an earlier time
+        // than what is kept, which doesn't match either.
+        cache.load(6*HOUR, now);
+        mService.mStatsTime = now - 2*ProcessStatsCache.VALIDATE_INTERVAL;
+        cache.load(12*HOUR, now);
+        assertEquals(1, cache.getWindowCount());
+        assertNull(cache.get(3*HOUR, now));
+        assertNull(cache.get(6*HOUR, now));
+    }
+
+    public void testBudgetDropsLeastRecentlyUsed() {
+        long size = new ProcessStatsCache(mService).load(3*HOUR, 0).size;
+        mService.mStatsCalls = 0;
+        ProcessStatsCache cache = new ProcessStatsCache(mService, size*2 + size/2);
+        cache.load(3*HOUR, 0);
+        cache.load(6*HOUR, 0);
+        cache.get(3*HOUR, 0);
+        cache.load(12*HOUR, 0);
+        assertEquals(2, cache.getWindowCount());
+        assertEquals(size*2, cache.getBytes());
+        assertNotNull(cache.get(3*HOUR, 0));
+        assertNull(cache.get(6*HOUR, 0));
+        assertNotNull(cache.get(12*HOUR, 0));
+        assertEquals(1, cache.mEvictions);
+    }
+}
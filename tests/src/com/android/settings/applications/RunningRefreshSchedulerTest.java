@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Runs {@link RunningRefreshScheduler} through a simulated clock, the way
+ * RunningState's background handler drives it.
+ */
+public class RunningRefreshSchedulerTest extends AndroidTestCase {
+    private static final long MIN = RunningRefreshScheduler.MIN_POLL_DELAY;
+    private static final long MAX = RunningRefreshScheduler.MAX_POLL_DELAY;
+
+    public void testBacksOffWhileIdle() {
+        RunningRefreshScheduler scheduler = new RunningRefreshScheduler();
+        long now = 0;
+        long delay = scheduler.notePoll(true, now);
+        assertEquals(MIN, delay);
+        long expected = MIN;
+        for (int i=0; i<10; i++) {
+            now += delay;
+            delay = scheduler.notePoll(false, now);
+            expected = Math.min(expected * 2, MAX);
+            assertEquals(expected, delay);
+        }
+        // Something changed: straight back to full speed.
+        now += delay;
+        assertEquals(MIN, scheduler.notePoll(true, now));
+        assertTrue(scheduler.getPollsSkipped() > 0);
+    }
+
+    public void testSkippedPollsCounted() {
+        RunningRefreshScheduler scheduler = new RunningRefreshScheduler();
+        long now = 0;
+        long delay = scheduler.notePoll(false, now);
+        int polls = 1;
+        while (now < 60 * 1000) {
+            now += delay;
+            delay = scheduler.notePoll(false, now);
+            polls++;
+        }
+        // Together, the polls made and skipped are what a fixed rate would make.
+        assertEquals(now / MIN + 1, polls + scheduler.getPollsSkipped());
+    }
+
+    public void testInteractionSpeedsUp() {
+        RunningRefreshScheduler scheduler = new RunningRefreshScheduler();
+        assertEquals(-1, scheduler.noteInteraction(0));
+        long now = 0;
+        for (int i=0; i<4; i++) {
+            now += scheduler.notePoll(false, now);
+        }
+        assertEquals(MAX, scheduler.getPollDelay());
+        // A touch half a second after the last poll: next one at the usual spacing.
+        long last = now - MAX;
+        assertEquals(MIN - 500, scheduler.noteInteraction(last + 500));
+        assertEquals(MIN, scheduler.getPollDelay());
+        // Late for that already: poll right away.
+        for (int i=0; i<2; i++) {
+            now += scheduler.notePoll(false, now);
+        }
+        assertEquals(0, scheduler.noteInteraction(now + MIN));
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.android.settings.applications.RunningState.ChangeSet;
+import com.android.settings.applications.RunningState.MergedItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays a recorded sequence of running service and process snapshots
+ * through {@link RunningState#update}, checking the change sets it hands
+ * out against the lists it publishes.
+ */
+public class RunningStateReplayTest extends AndroidTestCase {
+    private static final int NUM_SERVICE_PROCESSES = 20;
+    private static final int NUM_BACKGROUND_PROCESSES = 130;
+    // Well above any real pid, so the processes have no memory to measure.
+    private static final int FIRST_PID = 100000;
+
+    /**
+     * One recorded process: the app it belongs to, and whether it is
+     * running a started service or is just cached.
+     */
+    static class RecordedProcess {
+        final PackageInfo pkg;
+        final ComponentName component;
+        final String processName;
+        final int pid;
+        final boolean service;
+        int lru;
+        long activeSince = 1000;
+
+        RecordedProcess(PackageInfo _pkg, ComponentName _component, int index,
+                boolean _service) {
+            pkg = _pkg;
+            component = _component;
+            processName = pkg.packageName + ":replay" + index;
+            pid = FIRST_PID + index;
+            service = _service;
+            lru = index;
+        }
+
+        ActivityManager.RunningAppProcessInfo processInfo() {
+            ActivityManager.RunningAppProcessInfo pi = new ActivityManager.RunningAppProcessInfo(
+                    processName, pid, new String[] { pkg.packageName });
+            pi.uid = pkg.applicationInfo.uid;
+            pi.importance = service
+                    ? ActivityManager.RunningAppProcessInfo.IMPORTANCE_SERVICE
+                    : ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND;
+            pi.lru = lru;
+            return pi;
+        }
+
+        ActivityManager.RunningServiceInfo serviceInfo() {
+            ActivityManager.RunningServiceInfo si = new ActivityManager.RunningServiceInfo();
+            si.service = component;
+            si.pid = pid;
+            si.uid = pkg.applicationInfo.uid;
+            si.process = processName;
+            si.started = true;
+            si.activeSince = activeSince;
+            return si;
+        }
+    }
+
+    private RunningState mState;
+    private final ArrayList<RecordedProcess> mProcesses = new ArrayList<RecordedProcess>();
+    private int mNextIndex;
+    // Installed apps, each with a service of theirs that can be looked up.
+    private final ArrayList<PackageInfo> mPackages = new ArrayList<PackageInfo>();
+    private final ArrayList<ComponentName> mComponents = new ArrayList<ComponentName>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mState = new RunningState(getContext());
+        PackageManager pm = getContext().getPackageManager();
+        for (PackageInfo pkg : pm.getInstalledPackages(PackageManager.GET_SERVICES)) {
+            if (pkg.services == null) {
+                continue;
+            }
+            for (int i=0; i<pkg.services.length; i++) {
+                ComponentName component = new ComponentName(pkg.packageName,
+                        pkg.services[i].name);
+                try {
+                    pm.getServiceInfo(component, 0);
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Disabled; RunningState couldn't show it.
+                    continue;
+                }
+                mPackages.add(pkg);
+                mComponents.add(component);
+                break;
+            }
+        }
+        assertFalse(mPackages.isEmpty());
+        for (int i=0; i<NUM_SERVICE_PROCESSES; i++) {
+            addProcess(true);
+        }
+        for (int i=0; i<NUM_BACKGROUND_PROCESSES; i++) {
+            addProcess(false);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mState.mBackgroundThread.quit();
+        super.tearDown();
+    }
+
+    private RecordedProcess addProcess(boolean service) {
+        int index = mNextIndex++;
+        int which = index % mPackages.size();
+        RecordedProcess proc = new RecordedProcess(mPackages.get(which), mComponents.get(which),
+                index, service);
+        mProcesses.add(proc);
+        return proc;
+    }
+
+    private RecordedProcess findProcess(boolean service) {
+        for (int i=0; i<mProcesses.size(); i++) {
+            if (mProcesses.get(i).service == service) {
+                return mProcesses.get(i);
+            }
+        }
+        fail("no " + (service ? "service" : "background") + " process left");
+        return null;
+    }
+
+    /**
+     * Feeds the current recording to the state, with new info objects each
+     * time as the activity manager would hand out.
+     */
+    private boolean replay() {
+        ArrayList<ActivityManager.RunningServiceInfo> services
+                = new ArrayList<ActivityManager.RunningServiceInfo>();
+        ArrayList<ActivityManager.RunningAppProcessInfo> processes
+                = new ArrayList<ActivityManager.RunningAppProcessInfo>();
+        for (int i=0; i<mProcesses.size(); i++) {
+            RecordedProcess proc = mProcesses.get(i);
+            processes.add(proc.processInfo());
+            if (proc.service) {
+                services.add(proc.serviceInfo());
+            }
+        }
+        mState.setWatchingBackgroundItems(true);
+        return mState.update(getContext(), services, processes);
+    }
+
+    private static long[] ids(List<MergedItem> items) {
+        long[] ids = new long[items.size()];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = items.get(i).getStableId();
+        }
+        return ids;
+    }
+
+    /**
+     * Applies the change set to the ids of the list it starts from, and
+     * checks that gives the ids of the list it goes to.
+     */
+    private static void assertApplies(ChangeSet changes) {
+        assertFalse(changes.toString(), changes.mReset);
+        ArrayList<Long> replica = new ArrayList<Long>();
+        long[] from = ids(changes.mFrom);
+        for (int i=0; i<from.length; i++) {
+            if (Arrays.binarySearch(changes.mRemoved, i) < 0) {
+                replica.add(from[i]);
+            }
+        }
+        long[] to = ids(changes.mTo);
+        ArrayList<Long> kept = new ArrayList<Long>();
+        for (int i=0; i<to.length; i++) {
+            if (Arrays.binarySearch(changes.mInserted, i) < 0) {
+                kept.add(to[i]);
+            }
+        }
+        if (changes.mMoved.length == 0) {
+            assertEquals(changes.toString(), replica, kept);
+        } else {
+            assertEquals(changes.toString(), replica.size(), kept.size());
+            assertTrue(changes.toString(), replica.containsAll(kept));
+        }
+    }
+
+    private static int positionOf(List<MergedItem> items, RecordedProcess proc) {
+        for (int i=0; i<items.size(); i++) {
+            MergedItem item = items.get(i);
+            if (item.mProcess != null && item.mProcess.mPid == proc.pid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void testReplay() {
+        // The first snapshot brings in everything.
+        assertTrue(replay());
+        ChangeSet merged = mState.getMergedChanges();
+        ChangeSet background = mState.getBackgroundChanges();
+        assertEquals(NUM_SERVICE_PROCESSES, merged.mInserted.length);
+        assertEquals(NUM_BACKGROUND_PROCESSES, background.mInserted.length);
+        assertApplies(merged);
+        assertApplies(background);
+
+        // Nothing changes: nothing new is handed out.
+        ArrayList<MergedItem> mergedItems = mState.getCurrentMergedItems();
+        ArrayList<MergedItem> backgroundItems = mState.getCurrentBackgroundItems();
+        for (int i=0; i<3; i++) {
+            assertFalse(replay());
+            assertSame(mergedItems, mState.getCurrentMergedItems());
+            assertSame(backgroundItems, mState.getCurrentBackgroundItems());
+            assertSame(merged, mState.getMergedChanges());
+            assertSame(background, mState.getBackgroundChanges());
+        }
+
+        // One service process goes and another comes.
+        mProcesses.remove(findProcess(true));
+        addProcess(true);
+        assertTrue(replay());
+        merged = mState.getMergedChanges();
+        assertSame(mergedItems, merged.mFrom);
+        assertEquals(merged.toString(), 1, merged.mRemoved.length);
+        assertEquals(merged.toString(), 1, merged.mInserted.length);
+        assertApplies(merged);
+        mergedItems = mState.getCurrentMergedItems();
+
+        // A service restarts: only its row needs binding again.
+        RecordedProcess restarted = findProcess(true);
+        restarted.activeSince = 5000;
+        assertTrue(replay());
+        merged = mState.getMergedChanges();
+        assertSame(mergedItems, merged.mFrom);
+        assertFalse(merged.toString(), merged.isStructural());
+        assertEquals(merged.toString(), 1, merged.mChanged.length);
+        assertEquals(positionOf(merged.mTo, restarted), merged.mChanged[0]);
+        assertApplies(merged);
+
+        // A cached process is killed.
+        RecordedProcess killed = findProcess(false);
+        int killedPosition = positionOf(backgroundItems, killed);
+        mProcesses.remove(killed);
+        assertTrue(replay());
+        background = mState.getBackgroundChanges();
+        assertSame(backgroundItems, background.mFrom);
+        assertEquals(background.toString(), 1, background.mRemoved.length);
+        assertEquals(killedPosition, background.mRemoved[0]);
+        assertEquals(background.toString(), 0, background.mInserted.length);
+        assertEquals(background.toString(), 0, background.mChanged.length);
+        assertApplies(background);
+        assertEquals(NUM_BACKGROUND_PROCESSES - 1, mState.getCurrentBackgroundItems().size());
+    }
+
+    /**
+     * What the UI can see of an item, to check it isn't changed under it.
+     */
+    private static String shown(MergedItem item) {
+        return item.mDisplayLabel + "|" + item.mDescription + "|" + item.mActiveSince
+                + "|" + item.mBackground + "|" + item.mOtherProcesses + "|" + item.mServices
+                + "|" + item.mChildren;
+    }
+
+    private static ArrayList<String> shown(List<MergedItem> items) {
+        ArrayList<String> shown = new ArrayList<String>(items.size());
+        for (int i=0; i<items.size(); i++) {
+            shown.add(shown(items.get(i)));
+        }
+        return shown;
+    }
+
+    public void testPublishedItemsLeftAlone() {
+        assertTrue(replay());
+        ArrayList<MergedItem> mergedItems = mState.getCurrentMergedItems();
+        ArrayList<MergedItem> backgroundItems = mState.getCurrentBackgroundItems();
+        ArrayList<String> mergedShown = shown(mergedItems);
+        ArrayList<String> backgroundShown = shown(backgroundItems);
+
+        // A service restarts, a cached process goes and the rest reorder.
+        RecordedProcess restarted = findProcess(true);
+        restarted.activeSince = 5000;
+        mProcesses.remove(findProcess(false));
+        for (int i=0; i<mProcesses.size(); i++) {
+            RecordedProcess proc = mProcesses.get(i);
+            proc.lru = mProcesses.size() - i;
+        }
+        assertTrue(replay());
+
+        // The rows the UI was handed still show what they did.
+        assertEquals(mergedShown, shown(mergedItems));
+        assertEquals(backgroundShown, shown(backgroundItems));
+
+        // The restarted service's row is a new item; the others are kept.
+        ChangeSet merged = mState.getMergedChanges();
+        assertSame(mergedItems, merged.mFrom);
+        assertEquals(merged.toString(), 1, merged.mChanged.length);
+        int position = positionOf(merged.mTo, restarted);
+        assertEquals(position, merged.mChanged[0]);
+        assertNotSame(mergedItems.get(positionOf(mergedItems, restarted)),
+                merged.mTo.get(position));
+        assertEquals(5000, merged.mTo.get(position).mActiveSince);
+        for (int i=0; i<merged.mTo.size(); i++) {
+            if (i != position) {
+                assertTrue(mergedItems.contains(merged.mTo.get(i)));
+            }
+        }
+
+        // Nothing more changes: the same items stay out.
+        ArrayList<MergedItem> current = mState.getCurrentMergedItems();
+        assertFalse(replay());
+        assertSame(current, mState.getCurrentMergedItems());
+    }
+
+    /**
+     * Every merged item the state holds: those handed out, and those kept
+     * by processes and services for the next update.
+     */
+    private Set<MergedItem> heldItems() {
+        Set<MergedItem> items = Collections.newSetFromMap(
+                new IdentityHashMap<MergedItem, Boolean>());
+        items.addAll(mState.getCurrentMergedItems());
+        items.addAll(mState.getCurrentBackgroundItems());
+        for (int i=0; i<mState.mAllProcessItems.size(); i++) {
+            RunningState.ProcessItem proc = mState.mAllProcessItems.get(i);
+            if (proc.mMergedItem != null) {
+                items.add(proc.mMergedItem);
+            }
+            for (RunningState.ServiceItem si : proc.mServices.values()) {
+                if (si.mMergedItem != null) {
+                    items.add(si.mMergedItem);
+                }
+            }
+        }
+        return items;
+    }
+
+    public void testUnchangedReplayMakesNoItems() {
+        assertTrue(replay());
+        Set<MergedItem> held = heldItems();
+
+        assertFalse(replay());
+        Set<MergedItem> after = heldItems();
+        after.removeAll(held);
+        assertTrue(after.size() + " new items", after.isEmpty());
+    }
+
+    public void testReusedPidIsNewProcess() {
+        assertTrue(replay());
+        RecordedProcess killed = findProcess(false);
+        MergedItem item = mState.getCurrentBackgroundItems().get(
+                positionOf(mState.getCurrentBackgroundItems(), killed));
+        int oldStartSeq = item.mProcess.mStartSeq;
+
+        // It dies and its pid goes to another process.
+        int index = mProcesses.indexOf(killed);
+        RecordedProcess reused = new RecordedProcess(killed.pkg, killed.component,
+                killed.pid - FIRST_PID, false) {
+            @Override
+            ActivityManager.RunningAppProcessInfo processInfo() {
+                ActivityManager.RunningAppProcessInfo pi = super.processInfo();
+                pi.processName = pi.processName + ":reused";
+                return pi;
+            }
+        };
+        reused.lru = killed.lru;
+        mProcesses.set(index, reused);
+        assertTrue(replay());
+
+        MergedItem newItem = mState.getCurrentBackgroundItems().get(
+                positionOf(mState.getCurrentBackgroundItems(), reused));
+        assertNotSame(item.mProcess, newItem.mProcess);
+        assertEquals(reused.processName + ":reused", newItem.mProcess.mProcessName);
+        assertTrue(newItem.mProcess.mStartSeq > oldStartSeq);
+    }
+}
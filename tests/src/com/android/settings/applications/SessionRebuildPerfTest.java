@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.mock.MockPackageManager;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+import com.android.settings.applications.ApplicationsState.Session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives a real {@link Session} over synthetic packages, bringing its list
+ * up to date after a few packages change, and compares the cost of
+ * rebuilding from scratch with re-placing only the changed entries.  Either
+ * way the list must come out the same as sorting everything again.
+ */
+public class SessionRebuildPerfTest extends AndroidTestCase {
+    private static final String TAG = "SessionRebuildPerfTest";
+
+    private static final int NUM_ENTRIES = 3000;
+    private static final int NUM_EVENTS = 200;
+    private static final int MAX_CHANGES_PER_EVENT = 5;
+
+    private ApplicationsState mState;
+    private Session mSession;
+    private ArrayList<AppEntry> mEntries;
+    private Random mRandom;
+
+    /**
+     * An ApplicationsState holding the given entries as if they had all
+     * been loaded, without a package manager behind it.
+     */
+    static ApplicationsState newState(Context context, List<AppEntry> entries) {
+        return newState(context, new MockPackageManager(), entries);
+    }
+
+    static ApplicationsState newState(Context context, PackageManager pm,
+            List<AppEntry> entries) {
+        ApplicationsState state = new ApplicationsState(context, pm);
+        synchronized (state.mEntriesMap) {
+            for (int i=0; i<entries.size(); i++) {
+                AppEntry entry = entries.get(i);
+                state.mApplications.add(entry.info);
+                state.mEntriesMap.put(entry.info.packageName, entry);
+                state.mAppEntries.add(entry);
+            }
+            state.entriesChangedLocked();
+            state.publishEntriesLocked();
+        }
+        return state;
+    }
+
+    /**
+     * Runs a rebuild of the session on this thread, the way its
+     * background handler would, and returns the list it built.
+     */
+    static ArrayList<AppEntry> rebuild(Session session, ApplicationsState.AppFilter filter,
+            Comparator<AppEntry> comparator) {
+        synchronized (session.mRebuildSync) {
+            session.mRebuildRequested = true;
+            session.mRebuildFilter = filter;
+            session.mRebuildComparator = comparator;
+        }
+        final int priority = Process.getThreadPriority(Process.myTid());
+        session.handleRebuildList();
+        Process.setThreadPriority(priority);
+        return session.mLastAppList;
+    }
+
+    /**
+     * Tells the sessions that a package changed, as a size or package
+     * broadcast would.
+     */
+    static void noteChanged(ApplicationsState state, AppEntry entry) {
+        synchronized (state.mEntriesMap) {
+            state.notePackageChangedLocked(entry.info.packageName);
+        }
+    }
+
+    private static AppEntry newEntry(int i, String label, long size) {
+        ApplicationInfo info = new ApplicationInfo();
+        info.packageName = "com.example.synthetic" + i;
+        info.sourceDir = "/data/app/" + info.packageName + ".apk";
+        info.enabled = true;
+        info.flags = ApplicationInfo.FLAG_INSTALLED;
+        AppEntry entry = new AppEntry(info, i, label, true);
+        entry.size = size;
+        return entry;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRandom = new Random(42);
+        mEntries = new ArrayList<AppEntry>(NUM_ENTRIES);
+        for (int i=0; i<NUM_ENTRIES; i++) {
+            mEntries.add(newEntry(i, "App " + Long.toString(mRandom.nextLong() & Long.MAX_VALUE,
+                    36), mRandom.nextInt(100 * 1024 * 1024)));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSession != null) {
+            mSession.release();
+        }
+        if (mState != null) {
+            mState.mThread.quit();
+        }
+        super.tearDown();
+    }
+
+    private void startSession() {
+        mState = newState(getContext(), mEntries);
+        mSession = mState.newSession(null);
+    }
+
+    private ArrayList<AppEntry> sortedFromScratch(Comparator<AppEntry> comparator) {
+        ArrayList<AppEntry> list = new ArrayList<AppEntry>(mEntries.size());
+        for (int i=0; i<mEntries.size(); i++) {
+            AppEntry entry = mEntries.get(i);
+            if (ApplicationsState.ALL_ENABLED_FILTER.filterApp(entry.info)) {
+                list.add(entry);
+            }
+        }
+        Collections.sort(list, comparator);
+        return list;
+    }
+
+    private void assertSorted(String name, Comparator<AppEntry> comparator,
+            ArrayList<AppEntry> list) {
+        ArrayList<AppEntry> expected = sortedFromScratch(comparator);
+        assertEquals(name, expected.size(), list.size());
+        for (int i=0; i<expected.size(); i++) {
+            assertEquals(name + " at " + i, 0, comparator.compare(expected.get(i), list.get(i)));
+        }
+    }
+
+    /**
+     * Changes a few packages at once: new sizes, and some of them turned
+     * on or off so they drop out of or come back into the list.
+     */
+    private void changeSome() {
+        int count = 1 + mRandom.nextInt(MAX_CHANGES_PER_EVENT);
+        for (int i=0; i<count; i++) {
+            AppEntry changed = mEntries.get(mRandom.nextInt(NUM_ENTRIES));
+            synchronized (changed) {
+                changed.size = mRandom.nextInt(100 * 1024 * 1024);
+            }
+            if (mRandom.nextInt(10) == 0) {
+                changed.info.enabled = !changed.info.enabled;
+            }
+            noteChanged(mState, changed);
+        }
+    }
+
+    private void compare(String name, Comparator<AppEntry> comparator) {
+        startSession();
+        ArrayList<AppEntry> list = rebuild(mSession, ApplicationsState.ALL_ENABLED_FILTER,
+                comparator);
+        assertSorted(name + " first", comparator, list);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i=0; i<NUM_EVENTS; i++) {
+            changeSome();
+            synchronized (mState.mEntriesMap) {
+                mState.invalidateSessionListsLocked();
+            }
+            list = rebuild(mSession, ApplicationsState.ALL_ENABLED_FILTER, comparator);
+        }
+        long fullNs = (SystemClock.elapsedRealtimeNanos() - start) / NUM_EVENTS;
+        assertSorted(name + " full", comparator, list);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i=0; i<NUM_EVENTS; i++) {
+            changeSome();
+            list = rebuild(mSession, ApplicationsState.ALL_ENABLED_FILTER, comparator);
+            assertSorted(name + " event " + i, comparator, list);
+        }
+        long incrementalNs = (SystemClock.elapsedRealtimeNanos() - start) / NUM_EVENTS;
+
+        Log.i(TAG, name + ": per-event full rebuild " + (fullNs / 1000) + "us, incremental "
+                + (incrementalNs / 1000) + "us (including checking it) over " + NUM_ENTRIES
+                + " entries");
+    }
+
+    public void testSizeUpdateAlphaOrder() {
+        compare("alpha", ApplicationsState.ALPHA_COMPARATOR);
+    }
+
+    public void testSizeUpdateSizeOrder() {
+        compare("size", ApplicationsState.SIZE_COMPARATOR);
+    }
+
+    public void testSeveralChangesInOneRebuild() {
+        // Moving the 90 down past where the 70 is, and the 70 to the end,
+        // in the same rebuild.
+        final long[] sizes = { 100, 90, 80, 70, 60, 50, 40, 30, 29, 28, 27, 26, 25, 24, 23, 22 };
+        mEntries = new ArrayList<AppEntry>();
+        for (int i=0; i<sizes.length; i++) {
+            mEntries.add(newEntry(i, "App " + i, sizes[i]));
+        }
+        startSession();
+        assertSorted("first", ApplicationsState.SIZE_COMPARATOR,
+                rebuild(mSession, null, ApplicationsState.SIZE_COMPARATOR));
+
+        AppEntry b = mEntries.get(1);
+        AppEntry bigB = mEntries.get(3);
+        b.size = 45;
+        bigB.size = 5;
+        noteChanged(mState, b);
+        noteChanged(mState, bigB);
+        ArrayList<AppEntry> list = rebuild(mSession, null, ApplicationsState.SIZE_COMPARATOR);
+
+        assertSorted("after", ApplicationsState.SIZE_COMPARATOR, list);
+        assertSame(b, list.get(4));
+        assertSame(bigB, list.get(list.size() - 1));
+    }
+}
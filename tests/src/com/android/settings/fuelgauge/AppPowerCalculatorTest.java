@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import static android.os.BatteryStats.NETWORK_MOBILE_RX_BYTES;
+import static android.os.BatteryStats.NETWORK_MOBILE_TX_BYTES;
+import static android.os.BatteryStats.NETWORK_WIFI_RX_BYTES;
+import static android.os.BatteryStats.NETWORK_WIFI_TX_BYTES;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.os.BatteryStatsImpl;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Works out app power for a few hundred made up uids on one thread and on
+ * several, checking both against the loop it replaced.
+ */
+public class AppPowerCalculatorTest extends AndroidTestCase {
+    private static final String TAG = "AppPowerCalculatorTest";
+
+    private static final int WHICH = BatteryStats.STATS_SINCE_CHARGED;
+    private static final int UIDS = 400;
+    private static final int PROCS_PER_UID = 6;
+    private static final int SPEED_STEPS = 12;
+    private static final int OTHER_USER = 10;
+
+    private static final double[] POWER_CPU_NORMAL = new double[SPEED_STEPS];
+    private static final double POWER_CPU_AWAKE = 52.3;
+    private static final double POWER_WIFI_ON = 3.1;
+    private static final double POWER_WIFI_SCAN = 101.7;
+    private static final double[] POWER_WIFI_BATCHED_SCAN =
+            new double[BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS];
+    private static final double POWER_GPS_ON = 50.9;
+    private static final double MOBILE_POWER_PER_BYTE = 1.0 / 3600 / 25000;
+    private static final double WIFI_POWER_PER_BYTE = 1.0 / 3600 / 125000;
+
+    static {
+        for (int i = 0; i < SPEED_STEPS; i++) {
+            POWER_CPU_NORMAL[i] = 60.1 + i * 17.3;
+        }
+        for (int i = 0; i < POWER_WIFI_BATCHED_SCAN.length; i++) {
+            POWER_WIFI_BATCHED_SCAN[i] = 0.2 * (i + 1);
+        }
+    }
+
+    private SparseArray<? extends Uid> mUidStats;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUidStats = buildStats(new Random(42)).getUidStats();
+    }
+
+    private static BatteryStatsImpl buildStats(Random random) {
+        final BatteryStatsImpl stats = new BatteryStatsImpl();
+        stats.setNumSpeedSteps(SPEED_STEPS);
+        final long[] speedTimes = new long[SPEED_STEPS];
+        for (int i = 0; i < UIDS; i++) {
+            final int uid;
+            if (i == 0) {
+                uid = 0;
+            } else if (i == 1) {
+                uid = Process.WIFI_UID;
+            } else if (i == 2) {
+                uid = Process.BLUETOOTH_UID;
+            } else if (i % 7 == 0) {
+                uid = UserHandle.getUid(OTHER_USER, Process.FIRST_APPLICATION_UID + i);
+            } else {
+                uid = Process.FIRST_APPLICATION_UID + i;
+            }
+            // some uids drew nothing at all
+            if (i % 11 == 5) {
+                stats.getUidStatsLocked(uid);
+                continue;
+            }
+            for (int j = 0; j < PROCS_PER_UID; j++) {
+                final String name = (j == 0 ? "*wakelock*" : "") + "com.example.app" + i
+                        + (j > 1 ? ":proc" + j : "");
+                final BatteryStatsImpl.Uid.Proc proc = stats.getProcessStatsLocked(uid, name);
+                proc.addCpuTimeLocked(random.nextInt(100000), random.nextInt(100000));
+                proc.addForegroundTimeLocked(random.nextInt(150000));
+                for (int step = 0; step < SPEED_STEPS; step++) {
+                    speedTimes[step] = random.nextInt(5000);
+                }
+                proc.addSpeedStepTimes(speedTimes);
+            }
+            final BatteryStatsImpl.Uid u = stats.getUidStatsLocked(uid);
+            u.noteNetworkActivityLocked(NETWORK_MOBILE_RX_BYTES, random.nextInt(1 << 24));
+            u.noteNetworkActivityLocked(NETWORK_MOBILE_TX_BYTES, random.nextInt(1 << 20));
+            u.noteNetworkActivityLocked(NETWORK_WIFI_RX_BYTES, random.nextInt(1 << 26));
+            u.noteNetworkActivityLocked(NETWORK_WIFI_TX_BYTES, random.nextInt(1 << 22));
+        }
+        return stats;
+    }
+
+    private static AppPowerCalculator calculator(long uSecTime) {
+        return new AppPowerCalculator(WHICH, uSecTime, POWER_CPU_NORMAL, POWER_CPU_AWAKE,
+                POWER_WIFI_ON, POWER_WIFI_SCAN, POWER_WIFI_BATCHED_SCAN, POWER_GPS_ON,
+                new int[0], new double[0], MOBILE_POWER_PER_BYTE, WIFI_POWER_PER_BYTE);
+    }
+
+    /**
+     * What BatteryStatsHelper.processAppUsage adds up, by uid bucket.
+     */
+    static class Totals {
+        double totalPower;
+        double maxPower;
+        double wifiPower;
+        double bluetoothPower;
+        final SparseArray<Double> userPower = new SparseArray<Double>();
+        long appWakelockTime;
+        long appWifiRunning;
+
+        void add(int uid, double power, long wakelockTime, long wifiRunningTime) {
+            appWakelockTime += wakelockTime;
+            appWifiRunning += wifiRunningTime;
+            if (power == 0) return;
+            final int userId = UserHandle.getUserId(uid);
+            if (uid == Process.WIFI_UID) {
+                wifiPower += power;
+            } else if (uid == Process.BLUETOOTH_UID) {
+                bluetoothPower += power;
+            } else if (userId != UserHandle.myUserId()
+                    && UserHandle.getAppId(uid) >= Process.FIRST_APPLICATION_UID) {
+                final Double sum = userPower.get(userId);
+                userPower.put(userId, sum == null ? power : sum + power);
+            } else {
+                if (power > maxPower) maxPower = power;
+                totalPower += power;
+            }
+        }
+
+        void assertMatches(Totals other) {
+            assertEquals(totalPower, other.totalPower);
+            assertEquals(maxPower, other.maxPower);
+            assertEquals(wifiPower, other.wifiPower);
+            assertEquals(bluetoothPower, other.bluetoothPower);
+            assertEquals(appWakelockTime, other.appWakelockTime);
+            assertEquals(appWifiRunning, other.appWifiRunning);
+            assertEquals(userPower.size(), other.userPower.size());
+            for (int i = 0; i < userPower.size(); i++) {
+                assertEquals(userPower.keyAt(i), other.userPower.keyAt(i));
+                assertEquals(userPower.valueAt(i), other.userPower.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * The per-uid loop from before the power model was split out, less
+     * sensors and logging, with the profile replaced by the constants above.
+     */
+    private static Totals oldProcessAppUsage(SparseArray<? extends Uid> uidStats,
+            long uSecTime, String[] highestDrains) {
+        final Totals totals = new Totals();
+        final long[] cpuSpeedStepTimes = new long[SPEED_STEPS];
+        final int which = WHICH;
+        final int NU = uidStats.size();
+        for (int iu = 0; iu < NU; iu++) {
+            Uid u = uidStats.valueAt(iu);
+            double p;
+            double power = 0;
+            double highestDrain = 0;
+            String packageWithHighestDrain = null;
+            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+            long wakelockTime = 0;
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                Uid.Proc ps = ent.getValue();
+                final long userTime = ps.getUserTime(which);
+                final long systemTime = ps.getSystemTime(which);
+                final long tmpCpuTime = (userTime + systemTime) * 10;
+                int totalTimeAtSpeeds = 0;
+                for (int step = 0; step < SPEED_STEPS; step++) {
+                    cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                double processPower = 0;
+                for (int step = 0; step < SPEED_STEPS; step++) {
+                    double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                    processPower += ratio * tmpCpuTime * POWER_CPU_NORMAL[step];
+                }
+                power += processPower;
+                if (packageWithHighestDrain == null
+                        || packageWithHighestDrain.startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                } else if (highestDrain < processPower
+                        && !ent.getKey().startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                }
+            }
+            power /= 1000;
+
+            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                    : wakelockStats.entrySet()) {
+                BatteryStats.Timer timer = wakelockEntry.getValue().getWakeTime(
+                        BatteryStats.WAKE_TYPE_PARTIAL);
+                if (timer != null) {
+                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+                }
+            }
+            wakelockTime /= 1000;
+            p = (wakelockTime * POWER_CPU_AWAKE) / 1000;
+            power += p;
+
+            final long mobileRx = u.getNetworkActivityCount(NETWORK_MOBILE_RX_BYTES, which);
+            final long mobileTx = u.getNetworkActivityCount(NETWORK_MOBILE_TX_BYTES, which);
+            p = (mobileRx + mobileTx) * MOBILE_POWER_PER_BYTE;
+            power += p;
+
+            final long wifiRx = u.getNetworkActivityCount(NETWORK_WIFI_RX_BYTES, which);
+            final long wifiTx = u.getNetworkActivityCount(NETWORK_WIFI_TX_BYTES, which);
+            p = (wifiRx + wifiTx) * WIFI_POWER_PER_BYTE;
+            power += p;
+
+            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+            p = (wifiRunningTimeMs * POWER_WIFI_ON) / 1000;
+            power += p;
+
+            long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
+            p = (wifiScanTimeMs * POWER_WIFI_SCAN) / 1000;
+            power += p;
+            for (int bin = 0; bin < BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS; bin++) {
+                long batchScanTimeMs = u.getWifiBatchedScanTime(bin, uSecTime, which) / 1000;
+                p = (batchScanTimeMs * POWER_WIFI_BATCHED_SCAN[bin]);
+                power += p;
+            }
+
+            highestDrains[iu] = packageWithHighestDrain;
+            totals.add(u.getUid(), power, wakelockTime, wifiRunningTimeMs);
+        }
+        return totals;
+    }
+
+    private static Totals addUp(AppPowerCalculator.AppPower[] results) {
+        final Totals totals = new Totals();
+        for (int i = 0; i < results.length; i++) {
+            final AppPowerCalculator.AppPower result = results[i];
+            totals.add(result.uid, result.power, result.wakeLockTime, result.wifiRunningTime);
+        }
+        return totals;
+    }
+
+    private static void assertSameResults(AppPowerCalculator.AppPower[] expected,
+            AppPowerCalculator.AppPower[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            final AppPowerCalculator.AppPower a = expected[i];
+            final AppPowerCalculator.AppPower b = actual[i];
+            assertEquals(a.uid, b.uid);
+            assertEquals(a.power, b.power);
+            assertEquals(a.packageWithHighestDrain, b.packageWithHighestDrain);
+            assertEquals(a.cpuTime, b.cpuTime);
+            assertEquals(a.cpuFgTime, b.cpuFgTime);
+            assertEquals(a.wakeLockTime, b.wakeLockTime);
+            assertEquals(a.gpsTime, b.gpsTime);
+            assertEquals(a.wifiRunningTime, b.wifiRunningTime);
+            assertEquals(a.mobileRxBytes, b.mobileRxBytes);
+            assertEquals(a.mobileTxBytes, b.mobileTxBytes);
+            assertEquals(a.wifiRxBytes, b.wifiRxBytes);
+            assertEquals(a.wifiTxBytes, b.wifiTxBytes);
+        }
+    }
+
+    public void testMatchesOldLoop() {
+        final long uSecTime = SystemClock.elapsedRealtime() * 1000;
+        final String[] highestDrains = new String[mUidStats.size()];
+
+        long start = SystemClock.uptimeMillis();
+        final Totals expected = oldProcessAppUsage(mUidStats, uSecTime, highestDrains);
+        final long oldMs = SystemClock.uptimeMillis() - start;
+
+        start = SystemClock.uptimeMillis();
+        final AppPowerCalculator.AppPower[] results = calculator(uSecTime).calculateAll(
+                mUidStats, AppPowerCalculator.defaultWorkerCount());
+        final Totals actual = addUp(results);
+        final long newMs = SystemClock.uptimeMillis() - start;
+
+        Log.i(TAG, mUidStats.size() + " uids: one thread " + oldMs + "ms, "
+                + AppPowerCalculator.defaultWorkerCount() + " workers " + newMs + "ms");
+        expected.assertMatches(actual);
+        assertTrue(expected.totalPower > 0);
+        assertTrue(expected.userPower.size() > 0);
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(mUidStats.valueAt(i).getUid(), results[i].uid);
+            assertEquals(highestDrains[i], results[i].packageWithHighestDrain);
+        }
+    }
+
+    public void testSameForAnyWorkerCount() {
+        final long uSecTime = SystemClock.elapsedRealtime() * 1000;
+        final AppPowerCalculator calculator = calculator(uSecTime);
+        final AppPowerCalculator.AppPower[] serial = calculator.calculateAll(mUidStats, 1);
+        final Totals expected = addUp(serial);
+        for (int workers = 2; workers <= 8; workers++) {
+            for (int run = 0; run < 5; run++) {
+                final AppPowerCalculator.AppPower[] parallel =
+                        calculator.calculateAll(mUidStats, workers);
+                assertSameResults(serial, parallel);
+                expected.assertMatches(addUp(parallel));
+            }
+        }
+    }
+
+    public void testFewUidsStayOnCallingThread() {
+        final SparseArray<Uid> few = new SparseArray<Uid>();
+        for (int i = 0; i < 3; i++) {
+            few.put(mUidStats.keyAt(i), mUidStats.valueAt(i));
+        }
+        final AppPowerCalculator.AppPower[] results = calculator(0).calculateAll(few, 4);
+        assertEquals(3, results.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(few.keyAt(i), results[i].uid);
+        }
+    }
+}
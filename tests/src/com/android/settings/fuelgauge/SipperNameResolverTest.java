@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads names and icons for the apps installed on the device the way the
+ * battery list does, then again as on a second visit.
+ */
+public class SipperNameResolverTest extends AndroidTestCase {
+    private static final String TAG = "SipperNameResolverTest";
+    private static final long TIMEOUT = 10000;
+    private static final int MAX_APPS = 40;
+
+    /**
+     * Keeps the sippers reported, in order, and notes when all are.
+     */
+    static class RecordingHandler extends Handler {
+        final List<BatterySipper> mUpdated = new ArrayList<BatterySipper>();
+        final CountDownLatch mFullyDrawn = new CountDownLatch(1);
+
+        RecordingHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case BatteryStatsHelper.MSG_UPDATE_NAME_ICON:
+                    synchronized (mUpdated) {
+                        mUpdated.add((BatterySipper) msg.obj);
+                    }
+                    break;
+                case BatteryStatsHelper.MSG_REPORT_FULLY_DRAWN:
+                    mFullyDrawn.countDown();
+                    break;
+            }
+        }
+
+        List<BatterySipper> getUpdated() {
+            synchronized (mUpdated) {
+                return new ArrayList<BatterySipper>(mUpdated);
+            }
+        }
+
+        void awaitFullyDrawn() throws InterruptedException {
+            assertTrue(mFullyDrawn.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private HandlerThread mThread;
+    private final BatteryStatsImpl mStats = new BatteryStatsImpl();
+    private final int[] mUids = new int[MAX_APPS];
+    private int mUidCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        SipperNameResolver.clearCache();
+
+        final SparseBooleanArray seen = new SparseBooleanArray();
+        for (ApplicationInfo info : getContext().getPackageManager()
+                .getInstalledApplications(0)) {
+            if (info.uid < Process.FIRST_APPLICATION_UID || seen.get(info.uid)) continue;
+            seen.put(info.uid, true);
+            mUids[mUidCount++] = info.uid;
+            if (mUidCount == MAX_APPS) break;
+        }
+        assertTrue(mUidCount > SipperNameResolver.WORKERS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        SipperNameResolver.clearCache();
+        super.tearDown();
+    }
+
+    private BatterySipper sipper(int uid, double power) {
+        return new BatterySipper(getContext(), "proc" + uid, DrainType.APP, 0,
+                mStats.getUidStatsLocked(uid), new double[] {power});
+    }
+
+    /**
+     * One sipper per app, the highest ranked first.
+     */
+    private List<BatterySipper> listSippers() {
+        final List<BatterySipper> sippers = new ArrayList<BatterySipper>();
+        for (int i = 0; i < mUidCount; i++) {
+            sippers.add(sipper(mUids[i], mUidCount - i));
+        }
+        return sippers;
+    }
+
+    private static int countNeedingNames(List<BatterySipper> sippers) {
+        int count = 0;
+        for (BatterySipper bs : sippers) {
+            if (bs.mNeedsNameAndIcon) count++;
+        }
+        return count;
+    }
+
+    private List<BatterySipper> resolveAll() throws InterruptedException {
+        final RecordingHandler handler = new RecordingHandler(mThread);
+        final SipperNameResolver resolver = new SipperNameResolver(getContext(), handler);
+        resolver.resolve(listSippers());
+        handler.awaitFullyDrawn();
+        return handler.getUpdated();
+    }
+
+    public void testSecondVisitLabelledStraightAway() throws Exception {
+        long start = SystemClock.uptimeMillis();
+        final List<BatterySipper> first = listSippers();
+        assertEquals(mUidCount, countNeedingNames(first));
+        final RecordingHandler handler = new RecordingHandler(mThread);
+        new SipperNameResolver(getContext(), handler).resolve(first);
+        handler.awaitFullyDrawn();
+        final long firstMs = SystemClock.uptimeMillis() - start;
+        assertEquals(mUidCount, handler.getUpdated().size());
+
+        // as if the activity were started again
+        start = SystemClock.uptimeMillis();
+        final List<BatterySipper> second = listSippers();
+        final long secondMs = SystemClock.uptimeMillis() - start;
+        Log.i(TAG, mUidCount + " apps labelled in " + firstMs + "ms, again in " + secondMs
+                + "ms");
+        assertEquals(0, countNeedingNames(second));
+        for (int i = 0; i < mUidCount; i++) {
+            assertEquals(first.get(i).name, second.get(i).name);
+            assertEquals(first.get(i).defaultPackageName, second.get(i).defaultPackageName);
+            assertNotNull(second.get(i).icon);
+            assertNotSame(first.get(i).icon, second.get(i).icon);
+        }
+
+        // nothing left to load still reports the list drawn
+        final RecordingHandler again = new RecordingHandler(mThread);
+        new SipperNameResolver(getContext(), again).resolve(new ArrayList<BatterySipper>());
+        again.awaitFullyDrawn();
+    }
+
+    public void testHighestRankedFirst() throws Exception {
+        final List<BatterySipper> sippers = listSippers();
+        final RecordingHandler handler = new RecordingHandler(mThread);
+        new SipperNameResolver(getContext(), handler).resolve(sippers);
+        handler.awaitFullyDrawn();
+
+        // each worker takes the highest still waiting, so none is reported
+        // ahead of more than the others in flight
+        final List<BatterySipper> updated = handler.getUpdated();
+        assertEquals(sippers.size(), updated.size());
+        for (int i = 0; i < updated.size(); i++) {
+            final int rank = sippers.indexOf(updated.get(i));
+            assertTrue("rank " + rank + " reported " + i,
+                    rank <= i + SipperNameResolver.WORKERS - 1);
+        }
+    }
+
+    public void testSharedUidLoadedOnce() throws Exception {
+        final List<BatterySipper> sippers = new ArrayList<BatterySipper>();
+        sippers.add(sipper(mUids[0], 3));
+        sippers.add(sipper(mUids[1], 2));
+        sippers.add(sipper(mUids[0], 1));
+        final RecordingHandler handler = new RecordingHandler(mThread);
+        new SipperNameResolver(getContext(), handler).resolve(sippers);
+        handler.awaitFullyDrawn();
+
+        assertEquals(3, handler.getUpdated().size());
+        assertEquals(sippers.get(0).name, sippers.get(2).name);
+        assertNotSame(sippers.get(0).icon, sippers.get(2).icon);
+        assertEquals(0, countNeedingNames(sippers));
+    }
+
+    public void testPackageChangesDropCachedNames() throws Exception {
+        resolveAll();
+        assertEquals(0, countNeedingNames(listSippers()));
+
+        final Intent changed = new Intent(Intent.ACTION_PACKAGE_CHANGED);
+        changed.putExtra(Intent.EXTRA_UID, mUids[1]);
+        SipperNameResolver.sPackageReceiver.onReceive(getContext(), changed);
+        List<BatterySipper> sippers = listSippers();
+        assertEquals(1, countNeedingNames(sippers));
+        assertTrue(sippers.get(1).mNeedsNameAndIcon);
+
+        final Intent unavailable = new Intent(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        unavailable.putExtra(Intent.EXTRA_CHANGED_UID_LIST, new int[] { mUids[2], mUids[3] });
+        SipperNameResolver.sPackageReceiver.onReceive(getContext(), unavailable);
+        assertEquals(3, countNeedingNames(listSippers()));
+
+        SipperNameResolver.sPackageReceiver.onReceive(getContext(),
+                new Intent(Intent.ACTION_LOCALE_CHANGED));
+        assertEquals(mUidCount, countNeedingNames(listSippers()));
+    }
+
+    public void testCancelDropsWaiting() throws Exception {
+        final List<BatterySipper> sippers = listSippers();
+        final RecordingHandler handler = new RecordingHandler(mThread);
+        final SipperNameResolver resolver = new SipperNameResolver(getContext(), handler);
+        resolver.resolve(sippers);
+        resolver.cancel();
+        handler.awaitFullyDrawn();
+        assertTrue(handler.getUpdated().size() < mUidCount);
+    }
+}
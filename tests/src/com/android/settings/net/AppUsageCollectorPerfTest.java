@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.NetworkStats;
+import android.net.TrafficStats;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Times binding a 10,000 row summary the way the data usage list does,
+ * showing the first screen of it, against collapsing into AppItems and
+ * sorting them all as it used to.
+ */
+public class AppUsageCollectorPerfTest extends AndroidTestCase {
+    private static final String TAG = "AppUsageCollectorPerfTest";
+
+    private static final int NUM_ROWS = 10000;
+    private static final int NUM_UIDS = 800;
+    private static final int FIRST_SCREEN = 10;
+    private static final int ROUNDS = 20;
+    private static final int CURRENT_USER = 0;
+    private static final String[] IFACES = { "rmnet0", "rmnet1", "wlan0" };
+
+    private static NetworkStats makeStats() {
+        final Random random = new Random(18);
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), NUM_ROWS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            final int which = random.nextInt(NUM_UIDS);
+            if (which < 20) {
+                // System uids, a few other users' apps, removed and tethering.
+                entry.uid = which < 10 ? 1000 + which
+                        : which < 17 ? UserHandle.getUid(10 + which % 3, 10000 + which)
+                        : which < 19 ? TrafficStats.UID_REMOVED : TrafficStats.UID_TETHERING;
+            } else {
+                entry.uid = UserHandle.getUid(CURRENT_USER, 10000 + which);
+            }
+            entry.iface = IFACES[random.nextInt(IFACES.length)];
+            entry.set = random.nextBoolean() ? SET_DEFAULT : SET_FOREGROUND;
+            entry.tag = random.nextInt(4) == 0 ? random.nextInt(16) : TAG_NONE;
+            // Lots of small, identical totals, as idle apps have.
+            entry.rxBytes = random.nextInt(3) == 0 ? 4096 : random.nextInt(50 * 1024 * 1024);
+            entry.txBytes = random.nextInt(3) == 0 ? 0 : random.nextInt(5 * 1024 * 1024);
+            stats.addValues(entry);
+        }
+        return stats;
+    }
+
+    private static int[] makeRestricted() {
+        return new int[] {
+                UserHandle.getUid(CURRENT_USER, 10030), UserHandle.getUid(CURRENT_USER, 19999),
+                UserHandle.getUid(11, 10030),
+        };
+    }
+
+    /**
+     * What DataUsageAdapter.bindStats did before.
+     */
+    private static ArrayList<AppItem> oldBind(NetworkStats stats, int[] restrictedUids) {
+        final ArrayList<AppItem> items = new ArrayList<AppItem>();
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+            final int collapseKey = AppUsageCollector.collapseKey(uid, CURRENT_USER);
+
+            AppItem item = knownItems.get(collapseKey);
+            if (item == null) {
+                item = new AppItem(collapseKey);
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.addUid(uid);
+            item.total += entry.rxBytes + entry.txBytes;
+        }
+
+        for (int uid : restrictedUids) {
+            if (UserHandle.getUserId(uid) != CURRENT_USER) continue;
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        Collections.sort(items);
+        return items;
+    }
+
+    private static void assertSameItem(AppItem expected, AppItem actual) {
+        assertEquals(expected.key, actual.key);
+        assertEquals(expected.total, actual.total);
+        assertEquals(expected.restricted, actual.restricted);
+        assertEquals(expected.uids.size(), actual.uids.size());
+        for (int i = 0; i < expected.uids.size(); i++) {
+            assertEquals(expected.uids.keyAt(i), actual.uids.keyAt(i));
+        }
+    }
+
+    public void testSameItemsInSameOrder() {
+        final NetworkStats stats = makeStats();
+        final int[] restricted = makeRestricted();
+        final ArrayList<AppItem> expected = oldBind(stats, restricted);
+
+        final AppUsageCollector collector = new AppUsageCollector();
+        // Twice, to check nothing is left over between binds.
+        for (int r = 0; r < 2; r++) {
+            collector.reset(CURRENT_USER);
+            collector.addStats(stats);
+            collector.addRestricted(restricted);
+            assertEquals(expected.size(), collector.size());
+            assertEquals(expected.get(0).total, collector.getLargest());
+            // In the order a scrolling list asks for them.
+            for (int i = 0; i < expected.size(); i++) {
+                assertSameItem(expected.get(i), collector.get(i));
+            }
+        }
+    }
+
+    public void testEmpty() {
+        final AppUsageCollector collector = new AppUsageCollector();
+        collector.reset(CURRENT_USER);
+        collector.addStats(null);
+        collector.addRestricted(new int[0]);
+        assertEquals(0, collector.size());
+        assertEquals(0, collector.getLargest());
+    }
+
+    public void testBindFirstScreen() {
+        final NetworkStats stats = makeStats();
+        final int[] restricted = makeRestricted();
+        final AppUsageCollector collector = new AppUsageCollector();
+        for (int r = 0; r < 3; r++) {
+            oldBind(stats, restricted);
+            collector.reset(CURRENT_USER);
+            collector.addStats(stats);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < ROUNDS; r++) {
+            final ArrayList<AppItem> items = oldBind(stats, restricted);
+            for (int i = 0; i < FIRST_SCREEN; i++) {
+                items.get(i);
+            }
+        }
+        final long oldNs = (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < ROUNDS; r++) {
+            collector.reset(CURRENT_USER);
+            collector.addStats(stats);
+            collector.addRestricted(restricted);
+            collector.getLargest();
+            for (int i = 0; i < FIRST_SCREEN; i++) {
+                collector.get(i);
+            }
+        }
+        final long newNs = (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+
+        Log.i(TAG, "bind " + NUM_ROWS + " rows, show " + FIRST_SCREEN + ": AppItems and sort "
+                + (oldNs / 1000) + "us, collector " + (newNs / 1000) + "us");
+        // Only the first chunk was ranked; the rest is left unsorted.
+        assertTrue(collector.size() > AppUsageCollector.FIRST_RANKED);
+        assertEquals(AppUsageCollector.FIRST_RANKED, collector.mRanked);
+    }
+}
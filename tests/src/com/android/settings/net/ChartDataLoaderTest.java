@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the chart for an item with many uids from a fake stats session
+ * that can hold its callers, checking how many fetches run at once, what
+ * is handed out part way, and that the histories add up the same as one
+ * after another would.
+ */
+public class ChartDataLoaderTest extends AndroidTestCase {
+    private static final String TAG = "ChartDataLoaderTest";
+
+    private static final int NUM_UIDS = 24;
+    private static final int NUM_BUCKETS = 24 * 30;
+    private static final long START = 1000 * HOUR_IN_MILLIS;
+    private static final long TIMEOUT_S = 60;
+
+    /**
+     * Answers every query with a made up history.  Notes how many callers
+     * are inside it at once, and holds them all while it is closed.  If
+     * given permits, each uid query also takes one before answering, and
+     * the order they answer in is kept.
+     */
+    static class FakeSession extends INetworkStatsSession.Stub {
+        final AtomicInteger mCalls = new AtomicInteger();
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mMaxActive = new AtomicInteger();
+        final Semaphore mEntered = new Semaphore(0);
+        volatile CountDownLatch mGate = new CountDownLatch(0);
+        Semaphore mPermits;
+        final ArrayList<NetworkStatsHistory> mAnswered = new ArrayList<NetworkStatsHistory>();
+
+        static NetworkStatsHistory history(int uid, int set) {
+            final NetworkStatsHistory history = new NetworkStatsHistory(
+                    HOUR_IN_MILLIS, NUM_BUCKETS, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            final NetworkStats.Entry entry = new NetworkStats.Entry();
+            // Each uid was around for a different stretch.
+            for (int i = uid % 7; i < NUM_BUCKETS - uid % 5; i++) {
+                final long start = START + i * HOUR_IN_MILLIS;
+                entry.rxBytes = 1 + uid * 31 + set * 7 + i;
+                entry.txBytes = 1 + uid * 17 + set * 3 + i / 2;
+                history.recordData(start, start + HOUR_IN_MILLIS, entry);
+            }
+            return history;
+        }
+
+        void closeGate() {
+            mGate = new CountDownLatch(1);
+        }
+
+        void openGate() {
+            mGate.countDown();
+        }
+
+        void awaitEntered(int callers) throws InterruptedException {
+            assertTrue("session never called",
+                    mEntered.tryAcquire(callers, TIMEOUT_S, TimeUnit.SECONDS));
+        }
+
+        private void enter() {
+            mCalls.incrementAndGet();
+            final int active = mActive.incrementAndGet();
+            int max;
+            while (active > (max = mMaxActive.get())) {
+                if (mMaxActive.compareAndSet(max, active)) break;
+            }
+            mEntered.release();
+            try {
+                assertTrue("gate never opened", mGate.await(TIMEOUT_S, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                mActive.decrementAndGet();
+            }
+        }
+
+        @Override
+        public NetworkStats getSummaryForNetwork(NetworkTemplate template, long start, long end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields) {
+            enter();
+            return history(0, 0);
+        }
+
+        @Override
+        public NetworkStats getSummaryForAllUid(NetworkTemplate template, long start, long end,
+                boolean includeTags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set,
+                int tag, int fields) {
+            enter();
+            final NetworkStatsHistory history = history(uid, set);
+            if (mPermits != null) {
+                try {
+                    assertTrue("never let answer",
+                            mPermits.tryAcquire(TIMEOUT_S, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                synchronized (mAnswered) {
+                    mAnswered.add(history);
+                }
+            }
+            return history;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Keeps the partial results instead of posting them, and lets the
+     * session answer one more uid query after each.
+     */
+    static class RecordingLoader extends ChartDataLoader {
+        final FakeSession mSession;
+        final ArrayList<ChartData> mPartials = new ArrayList<ChartData>();
+
+        RecordingLoader(AndroidTestCase test, FakeSession session, AppItem app) {
+            super(test.getContext(), session,
+                    buildArgs(NetworkTemplate.buildTemplateMobileAll("fake"), app));
+            mSession = session;
+        }
+
+        @Override
+        void deliverPartial(ChartData partial, int seq) {
+            mPartials.add(partial);
+            if (mSession.mPermits != null) {
+                mSession.mPermits.release();
+            }
+        }
+    }
+
+    private static AppItem makeApp() {
+        final AppItem app = new AppItem(NetworkStats.UID_ALL);
+        for (int i = 0; i < NUM_UIDS; i++) {
+            app.addUid(10000 + i);
+        }
+        return app;
+    }
+
+    private static NetworkStatsHistory sum(Iterable<NetworkStatsHistory> histories) {
+        final NetworkStatsHistory sum = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        for (NetworkStatsHistory history : histories) {
+            sum.recordEntireHistory(history);
+        }
+        return sum;
+    }
+
+    private static void assertSameHistory(NetworkStatsHistory expected,
+            NetworkStatsHistory actual) {
+        assertEquals(expected.getBucketDuration(), actual.getBucketDuration());
+        assertEquals(expected.size(), actual.size());
+        final NetworkStatsHistory.Entry e = new NetworkStatsHistory.Entry();
+        final NetworkStatsHistory.Entry a = new NetworkStatsHistory.Entry();
+        for (int i = 0; i < expected.size(); i++) {
+            expected.getValues(i, e);
+            actual.getValues(i, a);
+            assertEquals(e.bucketStart, a.bucketStart);
+            assertEquals(e.rxBytes, a.rxBytes);
+            assertEquals(e.txBytes, a.txBytes);
+        }
+    }
+
+    /**
+     * Checks the whole result against fetching and adding up one uid after
+     * another.
+     */
+    private static void assertAddsUp(AppItem app, ChartData data) {
+        NetworkStatsHistory expectedDefault = null;
+        NetworkStatsHistory expectedForeground = null;
+        for (int i = 0; i < app.uids.size(); i++) {
+            final int uid = app.uids.keyAt(i);
+            if (expectedDefault == null) {
+                expectedDefault = FakeSession.history(uid, SET_DEFAULT);
+                expectedForeground = FakeSession.history(uid, SET_FOREGROUND);
+            } else {
+                expectedDefault.recordEntireHistory(FakeSession.history(uid, SET_DEFAULT));
+                expectedForeground.recordEntireHistory(FakeSession.history(uid, SET_FOREGROUND));
+            }
+        }
+        final NetworkStatsHistory expected = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        expected.recordEntireHistory(expectedDefault);
+        expected.recordEntireHistory(expectedForeground);
+
+        assertSameHistory(FakeSession.history(0, 0), data.network);
+        assertSameHistory(expectedDefault, data.detailDefault);
+        assertSameHistory(expectedForeground, data.detailForeground);
+        assertSameHistory(expected, data.detail);
+        assertFalse(data.partial);
+    }
+
+    public void testFetchesRunConcurrently() throws InterruptedException {
+        final FakeSession session = new FakeSession();
+        final AppItem app = makeApp();
+        final RecordingLoader loader = new RecordingLoader(this, session, app);
+        loader.mPartialInterval = Long.MAX_VALUE;
+
+        // Hold the first fetches until the whole pool is in the session at
+        // once.
+        session.closeGate();
+        final ChartData[] result = new ChartData[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                result[0] = loader.loadInBackground();
+            }
+        };
+        thread.start();
+        session.awaitEntered(ChartDataLoader.FETCH_THREADS);
+        session.openGate();
+        thread.join(TIMEOUT_S * 1000);
+        assertFalse(thread.isAlive());
+
+        Log.i(TAG, session.mCalls.get() + " fetches, at most " + session.mMaxActive.get()
+                + " at once");
+        assertEquals(1 + NUM_UIDS * 2, session.mCalls.get());
+        assertEquals(ChartDataLoader.FETCH_THREADS, session.mMaxActive.get());
+        assertTrue(loader.mPartials.isEmpty());
+        assertAddsUp(app, result[0]);
+    }
+
+    public void testPartialResultsGrowInOrder() {
+        final FakeSession session = new FakeSession();
+        // One uid query answers at first, then one more each time a
+        // partial result goes out, so each adds exactly one history.
+        session.mPermits = new Semaphore(1);
+        final AppItem app = makeApp();
+        final RecordingLoader loader = new RecordingLoader(this, session, app);
+        loader.mPartialInterval = 0;
+        final ChartData data = loader.loadInBackground();
+
+        // One after each uid history but the last, which goes in the result.
+        final ArrayList<ChartData> partials = loader.mPartials;
+        assertEquals(NUM_UIDS * 2 - 1, partials.size());
+        final ArrayList<NetworkStatsHistory> answered = session.mAnswered;
+        assertEquals(NUM_UIDS * 2, answered.size());
+        for (int i = 0; i < partials.size(); i++) {
+            final ChartData partial = partials.get(i);
+            assertTrue(partial.partial);
+            assertSameHistory(FakeSession.history(0, 0), partial.network);
+            // Everything answered so far, and nothing else.
+            assertSameHistory(sum(answered.subList(0, i + 1)), partial.detail);
+            final NetworkStatsHistory both = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            if (partial.detailDefault.size() > 0) {
+                both.recordEntireHistory(partial.detailDefault);
+            }
+            if (partial.detailForeground.size() > 0) {
+                both.recordEntireHistory(partial.detailForeground);
+            }
+            assertSameHistory(partial.detail, both);
+        }
+        assertAddsUp(app, data);
+    }
+
+    public void testNoUids() {
+        final FakeSession session = new FakeSession();
+        final ChartDataLoader loader = new ChartDataLoader(getContext(), session,
+                ChartDataLoader.buildArgs(NetworkTemplate.buildTemplateMobileAll("fake"),
+                        new AppItem(0)));
+        final ChartData data = loader.loadInBackground();
+        assertNotNull(data.network);
+        assertEquals(0, data.detail.size());
+        assertEquals(1, session.mCalls.get());
+    }
+}
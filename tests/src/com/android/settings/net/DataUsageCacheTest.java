@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.test.AndroidTestCase;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+/**
+ * Switches between tabs, apps and cycles the way the data usage screen
+ * does, checking what is shown from the cache and what is loaded again.
+ */
+public class DataUsageCacheTest extends AndroidTestCase {
+    private static final int FIELDS = FIELD_RX_BYTES | FIELD_TX_BYTES;
+
+    private static final NetworkTemplate MOBILE =
+            NetworkTemplate.buildTemplateMobileAll("310260000000000");
+    private static final NetworkTemplate WIFI = NetworkTemplate.buildTemplateWifiWildcard();
+
+    private static ChartData chart(int buckets) {
+        final ChartData data = new ChartData();
+        data.network = new NetworkStatsHistory(HOUR_IN_MILLIS, buckets, FIELDS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 1;
+        for (int i = 0; i < buckets; i++) {
+            data.network.recordData(i * HOUR_IN_MILLIS, (i + 1) * HOUR_IN_MILLIS, entry);
+        }
+        return data;
+    }
+
+    private static NetworkStats summary(int rows) {
+        final NetworkStats stats = new NetworkStats(0, rows);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < rows; i++) {
+            entry.uid = 10000 + i;
+            stats.addValues(entry);
+        }
+        return stats;
+    }
+
+    private static AppItem app(int key, int... uids) {
+        final AppItem app = new AppItem(key);
+        for (int uid : uids) {
+            app.addUid(uid);
+        }
+        return app;
+    }
+
+    public void testTabsShownAgainWhileFresh() {
+        final DataUsageCache cache = new DataUsageCache();
+        final ChartData mobile = chart(10);
+        final ChartData wifi = chart(20);
+        cache.putChart(MOBILE, null, FIELDS, mobile, cache.getGeneration(), 0);
+        cache.putChart(WIFI, null, FIELDS, wifi, cache.getGeneration(), 0);
+
+        DataUsageCache.Hit<ChartData> hit = cache.getChart(MOBILE, null, FIELDS, 1000);
+        assertSame(mobile, hit.value);
+        assertTrue(hit.fresh);
+        assertSame(wifi, cache.getChart(WIFI, null, FIELDS, 1000).value);
+
+        // after a while it's still shown, but loaded again
+        hit = cache.getChart(MOBILE, null, FIELDS, DataUsageCache.FRESH_AGE);
+        assertSame(mobile, hit.value);
+        assertFalse(hit.fresh);
+    }
+
+    public void testStaleOnceStatsPolled() {
+        final DataUsageCache cache = new DataUsageCache();
+        final NetworkStats stats = summary(5);
+        cache.putSummary(MOBILE, 0, 100, stats, cache.getGeneration(), 0);
+        assertTrue(cache.getSummary(MOBILE, 0, 100, 0).fresh);
+        assertNull(cache.getSummary(MOBILE, 0, 200, 0));
+        assertNull(cache.getSummary(WIFI, 0, 100, 0));
+
+        cache.invalidate();
+        final DataUsageCache.Hit<NetworkStats> hit = cache.getSummary(MOBILE, 0, 100, 0);
+        assertSame(stats, hit.value);
+        assertFalse(hit.fresh);
+    }
+
+    public void testLoadedAcrossPollIsStale() {
+        final DataUsageCache cache = new DataUsageCache();
+        final int generation = cache.getGeneration();
+        cache.invalidate();
+        cache.putSummary(MOBILE, 0, 100, summary(5), generation, 0);
+        assertFalse(cache.getSummary(MOBILE, 0, 100, 0).fresh);
+    }
+
+    public void testChartsKeyedByAppUids() {
+        final DataUsageCache cache = new DataUsageCache();
+        final ChartData data = chart(10);
+        cache.putChart(MOBILE, app(1000, 1000, 1001), FIELDS, data, cache.getGeneration(), 0);
+        assertSame(data, cache.getChart(MOBILE, app(1000, 1000, 1001), FIELDS, 0).value);
+        assertNull(cache.getChart(MOBILE, app(1000, 1000), FIELDS, 0));
+        assertNull(cache.getChart(MOBILE, null, FIELDS, 0));
+        assertNull(cache.getChart(MOBILE, app(1000, 1000, 1001), FIELD_RX_BYTES, 0));
+    }
+
+    public void testBudgetDropsLeastRecentlyUsed() {
+        final NetworkStats stats = summary(100);
+        final DataUsageCache probe = new DataUsageCache();
+        probe.putSummary(MOBILE, 0, 1, stats, 0, 0);
+        final int size = probe.getBytes();
+
+        final DataUsageCache cache = new DataUsageCache(size * 2 + size / 2);
+        cache.putSummary(MOBILE, 0, 1, stats, 0, 0);
+        cache.putSummary(MOBILE, 1, 2, stats, 0, 0);
+        cache.getSummary(MOBILE, 0, 1, 0);
+        cache.putSummary(MOBILE, 2, 3, stats, 0, 0);
+        assertEquals(size * 2, cache.getBytes());
+        assertNotNull(cache.getSummary(MOBILE, 0, 1, 0));
+        assertNull(cache.getSummary(MOBILE, 1, 2, 0));
+        assertNotNull(cache.getSummary(MOBILE, 2, 3, 0));
+
+        // too big to keep at all
+        cache.putSummary(WIFI, 0, 1, summary(1000), 0, 0);
+        assertNull(cache.getSummary(WIFI, 0, 1, 0));
+    }
+
+    public void testReloadedChartComparedWithCached() {
+        // A stale hit shown while loading, then the load bringing the same:
+        // the screen doesn't bind it again.
+        final ChartData cached = chart(48);
+        assertTrue(chart(48).sameAs(cached));
+        assertTrue(cached.sameAs(cached));
+        assertFalse(chart(49).sameAs(cached));
+        assertFalse(chart(48).sameAs(null));
+
+        final ChartData partial = chart(48);
+        partial.partial = true;
+        assertFalse(partial.sameAs(cached));
+
+        final ChartData moreUsage = chart(48);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 1;
+        moreUsage.network.recordData(47 * HOUR_IN_MILLIS, 48 * HOUR_IN_MILLIS, entry);
+        assertFalse(moreUsage.sameAs(cached));
+    }
+}
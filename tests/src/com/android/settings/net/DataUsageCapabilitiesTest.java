@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Times what the data usage screen waits on before it has tabs, against a
+ * stats session that takes as long to add up ethernet as a device with
+ * plenty of history.
+ */
+public class DataUsageCapabilitiesTest extends AndroidTestCase {
+    private static final String TAG = "DataUsageCapabilitiesTest";
+
+    private static final String PREFS_NAME = "data_usage_capabilities_test";
+    private static final long LATENCY = 500;
+    private static final long NOW = 1000L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Adds up ethernet after LATENCY, counting how often it's asked.
+     */
+    static class SlowSession extends INetworkStatsSession.Stub {
+        int mCalls;
+        long mBytes = 1024;
+
+        @Override
+        public NetworkStats getSummaryForNetwork(NetworkTemplate template, long start, long end) {
+            mCalls++;
+            SystemClock.sleep(LATENCY);
+            final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 1);
+            final NetworkStats.Entry entry = new NetworkStats.Entry();
+            entry.rxBytes = mBytes;
+            stats.addValues(entry);
+            return stats;
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStats getSummaryForAllUid(NetworkTemplate template, long start, long end,
+                boolean includeTags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set,
+                int tag, int fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private SharedPreferences mPrefs;
+    private final SlowSession mSession = new SlowSession();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+    }
+
+    public void testRadiosKnownBeforeEthernetAddedUp() {
+        final DataUsageCapabilities caps = DataUsageCapabilities.read(mPrefs);
+        assertFalse(caps.mobile || caps.wifi || caps.ethernet);
+
+        long start = SystemClock.uptimeMillis();
+        caps.probeRadios(getContext());
+        final long radiosMs = SystemClock.uptimeMillis() - start;
+
+        // as if this device had ethernet
+        caps.ethernetSupported = true;
+        start = SystemClock.uptimeMillis();
+        caps.probeEthernet(mSession, NOW);
+        final long ethernetMs = SystemClock.uptimeMillis() - start;
+
+        Log.i(TAG, "radios probed in " + radiosMs + "ms, ethernet added up in " + ethernetMs
+                + "ms");
+        assertTrue(caps.ethernet);
+        assertEquals(1, mSession.mCalls);
+    }
+
+    public void testNextLaunchTrustsRecentEthernet() {
+        final DataUsageCapabilities first = new DataUsageCapabilities();
+        first.ethernetSupported = true;
+        first.probeEthernet(mSession, NOW);
+        first.write(mPrefs);
+        assertEquals(1, mSession.mCalls);
+
+        // tabs from last time straight away, and no adding up again
+        final DataUsageCapabilities next = DataUsageCapabilities.read(mPrefs);
+        assertTrue(next.ethernet);
+        final long start = SystemClock.uptimeMillis();
+        next.probeEthernet(mSession, NOW + 60 * 60 * 1000);
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        Log.i(TAG, "ethernet from last launch in " + elapsed + "ms");
+        assertTrue(next.ethernet);
+        assertEquals(1, mSession.mCalls);
+
+        // after a while it's checked again
+        next.probeEthernet(mSession, NOW + DataUsageCapabilities.ETHERNET_VALID_TIME);
+        assertEquals(2, mSession.mCalls);
+    }
+
+    public void testNoTrafficAskedEachLaunch() {
+        mSession.mBytes = 0;
+        final DataUsageCapabilities first = new DataUsageCapabilities();
+        first.ethernetSupported = true;
+        first.probeEthernet(mSession, NOW);
+        assertFalse(first.ethernet);
+        first.write(mPrefs);
+
+        final DataUsageCapabilities next = DataUsageCapabilities.read(mPrefs);
+        next.ethernetSupported = true;
+        next.probeEthernet(mSession, NOW + 1);
+        assertEquals(2, mSession.mCalls);
+    }
+
+    public void testNoHardwareNeverAddsUp() {
+        final DataUsageCapabilities caps = new DataUsageCapabilities();
+        caps.ethernet = true;
+        caps.ethernetCheckTime = NOW;
+        caps.probeEthernet(mSession, NOW);
+        assertFalse(caps.ethernet);
+        assertEquals(0, mSession.mCalls);
+    }
+
+    public void testSameTabs() {
+        final DataUsageCapabilities a = new DataUsageCapabilities();
+        final DataUsageCapabilities b = new DataUsageCapabilities(a);
+        assertTrue(a.sameTabs(b));
+        b.ethernetCheckTime = NOW;
+        assertTrue(a.sameTabs(b));
+        b.wifi = true;
+        assertFalse(a.sameTabs(b));
+    }
+}
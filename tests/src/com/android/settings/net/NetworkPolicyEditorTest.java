@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkPolicy.LIMIT_DISABLED;
+import static android.net.NetworkPolicy.SNOOZE_NEVER;
+import static android.net.NetworkPolicy.WARNING_DISABLED;
+
+import android.net.INetworkPolicyManager;
+import android.net.NetworkPolicy;
+import android.net.NetworkPolicyManager;
+import android.net.NetworkTemplate;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Edits policies the way dragging the sweeps and the cycle dialogs do,
+ * against a policy manager that counts the writes it gets.
+ */
+public class NetworkPolicyEditorTest extends AndroidTestCase {
+    private static final String SUBSCRIBER = "310260000000000";
+    private static final long TIMEOUT = 5000;
+
+    private static final NetworkTemplate MOBILE =
+            NetworkTemplate.buildTemplateMobileAll(SUBSCRIBER);
+    private static final NetworkTemplate WIFI = NetworkTemplate.buildTemplateWifiWildcard();
+
+    /**
+     * Keeps policies in memory, optionally holding writes until let go.
+     */
+    static class FakePolicyManager extends NetworkPolicyManager {
+        NetworkPolicy[] mPolicies = new NetworkPolicy[0];
+        final List<NetworkPolicy[]> mWrites = new ArrayList<NetworkPolicy[]>();
+        CountDownLatch mGate;
+        final CountDownLatch mEntered = new CountDownLatch(1);
+
+        FakePolicyManager() {
+            super(INetworkPolicyManager.Stub.asInterface(new Binder()));
+        }
+
+        @Override
+        public NetworkPolicy[] getNetworkPolicies() {
+            return mPolicies;
+        }
+
+        @Override
+        public void setNetworkPolicies(NetworkPolicy[] policies) {
+            mEntered.countDown();
+            if (mGate != null) {
+                try {
+                    mGate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            synchronized (mWrites) {
+                mWrites.add(policies);
+            }
+        }
+
+        int getWriteCount() {
+            synchronized (mWrites) {
+                return mWrites.size();
+            }
+        }
+
+        long getLimitWritten(int write, NetworkTemplate template) {
+            synchronized (mWrites) {
+                for (NetworkPolicy policy : mWrites.get(write)) {
+                    if (policy.template.equals(template)) return policy.limitBytes;
+                }
+            }
+            throw new AssertionError("no policy for " + template);
+        }
+    }
+
+    private final FakePolicyManager mManager = new FakePolicyManager();
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private NetworkPolicyEditor mEditor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("NetworkPolicyEditorTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mEditor = new NetworkPolicyEditor(mManager, mThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private static NetworkPolicy policy(NetworkTemplate template) {
+        return new NetworkPolicy(template, 1, Time.TIMEZONE_UTC, WARNING_DISABLED,
+                LIMIT_DISABLED, SNOOZE_NEVER, SNOOZE_NEVER, true, false);
+    }
+
+    /**
+     * Runs the edit on the editor's thread, as the UI would, and waits.
+     */
+    private void runOnLooper(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void waitForWrites(int count) {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (mManager.getWriteCount() < count && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertEquals(count, mManager.getWriteCount());
+    }
+
+    public void testEditsCoalescedIntoOneWrite() throws Exception {
+        mManager.mPolicies = new NetworkPolicy[] { policy(MOBILE), policy(WIFI) };
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mEditor.read();
+                for (int i = 1; i <= 50; i++) {
+                    mEditor.setPolicyWarningBytes(MOBILE, i * 1000);
+                    mEditor.setPolicyLimitBytes(MOBILE, i * 2000);
+                }
+                mEditor.setPolicyCycleDay(MOBILE, 15, Time.TIMEZONE_UTC);
+            }
+        });
+        assertEquals(0, mManager.getWriteCount());
+
+        waitForWrites(1);
+        SystemClock.sleep(NetworkPolicyEditor.WRITE_DELAY * 2);
+        assertEquals(1, mManager.getWriteCount());
+        assertEquals(100000, mManager.getLimitWritten(0, MOBILE));
+        assertEquals(2, mManager.mWrites.get(0).length);
+    }
+
+    public void testSupersededWritesDropped() throws Exception {
+        mManager.mPolicies = new NetworkPolicy[] { policy(MOBILE) };
+        mManager.mGate = new CountDownLatch(1);
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mEditor.read();
+                mEditor.setPolicyLimitBytes(MOBILE, 1);
+                mEditor.flush();
+            }
+        });
+        assertTrue(mManager.mEntered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // while the first write is stuck, three more are flushed
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 2; i <= 4; i++) {
+                    mEditor.setPolicyLimitBytes(MOBILE, i);
+                    mEditor.flush();
+                }
+            }
+        });
+        mManager.mGate.countDown();
+
+        waitForWrites(2);
+        SystemClock.sleep(NetworkPolicyEditor.WRITE_DELAY);
+        assertEquals(2, mManager.getWriteCount());
+        assertEquals(1, mManager.getLimitWritten(0, MOBILE));
+        assertEquals(4, mManager.getLimitWritten(1, MOBILE));
+    }
+
+    public void testLongDragStillWritten() throws Exception {
+        mManager.mPolicies = new NetworkPolicy[] { policy(MOBILE) };
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mEditor.read();
+            }
+        });
+
+        // changes keep coming quicker than the quiet period
+        final long end = SystemClock.uptimeMillis() + NetworkPolicyEditor.MAX_WRITE_DELAY
+                + NetworkPolicyEditor.WRITE_DELAY * 2;
+        int i = 0;
+        while (SystemClock.uptimeMillis() < end) {
+            final long limit = ++i;
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    mEditor.setPolicyLimitBytes(MOBILE, limit);
+                }
+            });
+            SystemClock.sleep(NetworkPolicyEditor.WRITE_DELAY / 3);
+        }
+        assertTrue(mManager.getWriteCount() >= 1);
+    }
+
+    public void testPoliciesIndexedByTemplate() throws Exception {
+        final NetworkTemplate mobile3g = NetworkTemplate.buildTemplateMobile3gLower(SUBSCRIBER);
+        final NetworkTemplate mobile4g = NetworkTemplate.buildTemplateMobile4g(SUBSCRIBER);
+        final NetworkTemplate other = NetworkTemplate.buildTemplateMobileAll("other");
+        mManager.mPolicies = new NetworkPolicy[] {
+                policy(mobile3g), policy(mobile4g), policy(WIFI) };
+        final NetworkPolicy[] found = new NetworkPolicy[6];
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                // split policies are combined when read
+                mEditor.read();
+                found[0] = mEditor.getPolicy(mobile3g);
+                found[1] = mEditor.getPolicy(mobile4g);
+                found[2] = mEditor.getPolicy(MOBILE);
+                found[3] = mEditor.getPolicy(WIFI);
+                found[4] = mEditor.getPolicy(other);
+                found[5] = mEditor.getOrCreatePolicy(other);
+                mEditor.flush();
+            }
+        });
+        assertNull(found[0]);
+        assertNull(found[1]);
+        assertEquals(MOBILE, found[2].template);
+        assertEquals(WIFI, found[3].template);
+        assertNull(found[4]);
+        assertEquals(other, found[5].template);
+
+        waitForWrites(1);
+        assertEquals(3, mManager.mWrites.get(0).length);
+    }
+}
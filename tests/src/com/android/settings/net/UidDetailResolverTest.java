@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds rows the way a scrolling list does against a provider that only
+ * answers once let through, checking what gets loaded and in what order.
+ */
+public class UidDetailResolverTest extends AndroidTestCase {
+    private static final String PREFS_NAME = "uid_detail_labels_test";
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * Makes up a detail for each uid, once the gate is opened.
+     */
+    static class FakeProvider extends UidDetailProvider {
+        final CountDownLatch mGate = new CountDownLatch(1);
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final List<Integer> mResolved = new ArrayList<Integer>();
+        private final SparseArray<UidDetail> mCache = new SparseArray<UidDetail>();
+
+        FakeProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public UidDetail getUidDetail(int uid, boolean blocking) {
+            synchronized (mCache) {
+                final UidDetail cached = mCache.get(uid);
+                if (cached != null || !blocking) return cached;
+            }
+            mEntered.countDown();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final UidDetail detail = new UidDetail();
+            detail.label = label(uid);
+            detail.icon = new ColorDrawable(uid);
+            synchronized (mCache) {
+                mCache.put(uid, detail);
+                mResolved.add(uid);
+            }
+            return detail;
+        }
+
+        List<Integer> getResolved() {
+            synchronized (mCache) {
+                return new ArrayList<Integer>(mResolved);
+            }
+        }
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("UidDetailResolverTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private static String label(int uid) {
+        return "app " + uid;
+    }
+
+    private View newRow() {
+        final LinearLayout row = new LinearLayout(getContext());
+        final ImageView icon = new ImageView(getContext());
+        icon.setId(android.R.id.icon);
+        final TextView title = new TextView(getContext());
+        title.setId(android.R.id.title);
+        row.addView(icon);
+        row.addView(title);
+        return row;
+    }
+
+    private static CharSequence titleOf(View row) {
+        return ((TextView) row.findViewById(android.R.id.title)).getText();
+    }
+
+    private static boolean hasIcon(View row) {
+        return ((ImageView) row.findViewById(android.R.id.icon)).getDrawable() != null;
+    }
+
+    /**
+     * Runs the task on the resolver's thread and waits for it.
+     */
+    private void runOnLooper(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private UidDetailResolver newResolver(final FakeProvider provider) throws Exception {
+        final UidDetailResolver[] resolver = new UidDetailResolver[1];
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                resolver[0] = new UidDetailResolver(getContext(), provider,
+                        mThread.getLooper(), PREFS_NAME);
+            }
+        });
+        return resolver[0];
+    }
+
+    private void waitForRow(final View row, final String title, final boolean icon)
+            throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        final boolean[] done = new boolean[1];
+        while (SystemClock.uptimeMillis() < deadline) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    done[0] = title.equals(String.valueOf(titleOf(row))) && hasIcon(row) == icon;
+                }
+            });
+            if (done[0]) return;
+            SystemClock.sleep(10);
+        }
+        fail("row never showed " + title);
+    }
+
+    public void testRecycledRowsAreDropped() throws Exception {
+        final FakeProvider provider = new FakeProvider(getContext());
+        final UidDetailResolver resolver = newResolver(provider);
+        final View[] rows = new View[10];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = newRow();
+        }
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                resolver.bindView(10000, rows[0]);
+            }
+        });
+        assertTrue(provider.mEntered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // Flung past 10001-10009 before any of them got started.
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i < rows.length; i++) {
+                    resolver.bindView(10000 + i, rows[i]);
+                }
+                for (int i = 1; i < rows.length; i++) {
+                    resolver.bindView(10100 + i, rows[i]);
+                }
+            }
+        });
+        provider.mGate.countDown();
+
+        for (int i = 1; i < rows.length; i++) {
+            waitForRow(rows[i], label(10100 + i), true);
+        }
+        waitForRow(rows[0], label(10000), true);
+        assertEquals(Arrays.asList(10000, 10101, 10102, 10103, 10104, 10105, 10106, 10107,
+                10108, 10109), provider.getResolved());
+    }
+
+    public void testPrefetchedAfterWantedRows() throws Exception {
+        final FakeProvider provider = new FakeProvider(getContext());
+        final UidDetailResolver resolver = newResolver(provider);
+        final View first = newRow();
+        final View second = newRow();
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                resolver.bindView(10000, first);
+            }
+        });
+        assertTrue(provider.mEntered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                resolver.prefetch(10001);
+                resolver.prefetch(10002);
+                resolver.bindView(10050, second);
+            }
+        });
+        provider.mGate.countDown();
+
+        waitForRow(second, label(10050), true);
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (provider.getResolved().size() < 4 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertEquals(Arrays.asList(10000, 10050, 10001, 10002), provider.getResolved());
+
+        // Prefetched rows are bound straight away.
+        final View third = newRow();
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                resolver.bindView(10001, third);
+                assertEquals(label(10001), String.valueOf(titleOf(third)));
+            }
+        });
+    }
+
+    public void testLabelsKeptAcrossSessions() throws Exception {
+        final FakeProvider before = new FakeProvider(getContext());
+        before.mGate.countDown();
+        final UidDetailResolver first = newResolver(before);
+        final View row = newRow();
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                first.bindView(10005, row);
+            }
+        });
+        waitForRow(row, label(10005), true);
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                first.release();
+            }
+        });
+
+        // A new session shows the label before anything is loaded.
+        final FakeProvider after = new FakeProvider(getContext());
+        final UidDetailResolver second = newResolver(after);
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        final boolean[] shown = new boolean[1];
+        while (!shown[0] && SystemClock.uptimeMillis() < deadline) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    second.bindView(10005, row);
+                    shown[0] = label(10005).equals(String.valueOf(titleOf(row)));
+                }
+            });
+            SystemClock.sleep(10);
+        }
+        assertTrue(shown[0]);
+        assertFalse(hasIcon(row));
+        assertTrue(after.getResolved().isEmpty());
+
+        after.mGate.countDown();
+        waitForRow(row, label(10005), true);
+    }
+}
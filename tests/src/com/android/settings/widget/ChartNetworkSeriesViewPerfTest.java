@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.widget.ChartDataUsageView.DataAxis;
+import com.android.settings.widget.ChartDataUsageView.TimeAxis;
+
+import java.util.Random;
+
+/**
+ * Times generating the series outline for a year of hourly buckets shown
+ * across a phone sized chart, against walking every bucket into the path
+ * as it used to, both for a newly bound history and for the vertical
+ * axis changing under a sweep drag.
+ */
+public class ChartNetworkSeriesViewPerfTest extends AndroidTestCase {
+    private static final String TAG = "ChartNetworkSeriesViewPerfTest";
+
+    private static final int BUCKETS = 24 * 365;
+    private static final long START = 1000 * HOUR_IN_MILLIS;
+    private static final long END = START + BUCKETS * HOUR_IN_MILLIS;
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int ROUNDS = 20;
+
+    private TimeAxis mHoriz;
+    private ChartAxis mVert;
+    private ChartNetworkSeriesView mView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHoriz = new TimeAxis();
+        mHoriz.setBounds(START, END);
+        mHoriz.setSize(WIDTH);
+        mVert = new InvertedChartAxis(new DataAxis());
+        mVert.setSize(HEIGHT);
+
+        mView = new ChartNetworkSeriesView(getContext());
+        mView.init(mHoriz, mVert);
+        mView.layout(0, 0, WIDTH, HEIGHT);
+        mView.setBounds(START, END);
+    }
+
+    private static NetworkStatsHistory makeHistory() {
+        final Random random = new Random(20);
+        final NetworkStatsHistory history = new NetworkStatsHistory(
+                HOUR_IN_MILLIS, BUCKETS, FIELD_RX_BYTES | FIELD_TX_BYTES);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < BUCKETS; i++) {
+            // the odd hour with nothing, leaving gaps
+            if (random.nextInt(20) == 0) continue;
+            final long start = START + i * HOUR_IN_MILLIS;
+            entry.rxBytes = random.nextInt(10 * 1024 * 1024);
+            entry.txBytes = random.nextInt(1024 * 1024);
+            history.recordData(start, start + HOUR_IN_MILLIS, entry);
+        }
+        return history;
+    }
+
+    /**
+     * How ChartNetworkSeriesView built its outline before, one segment
+     * per bucket.
+     */
+    private long oldGeneratePath(NetworkStatsHistory stats, Path stroke, Path fill) {
+        stroke.reset();
+        fill.reset();
+
+        float lastX = 0;
+        float lastY = HEIGHT;
+        long lastTime = mHoriz.convertToValue(lastX);
+
+        stroke.moveTo(lastX, lastY);
+        fill.moveTo(lastX, lastY);
+
+        long totalData = 0;
+        NetworkStatsHistory.Entry entry = null;
+
+        final int start = stats.getIndexBefore(START);
+        final int end = stats.getIndexAfter(END);
+        for (int i = start; i <= end; i++) {
+            entry = stats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
+            if (endX < 0) continue;
+
+            totalData += entry.rxBytes + entry.txBytes;
+
+            final float startY = lastY;
+            final float endY = mVert.convertToPoint(totalData);
+
+            if (lastTime != startTime) {
+                stroke.lineTo(startX, startY);
+                fill.lineTo(startX, startY);
+            }
+
+            stroke.lineTo(endX, endY);
+            fill.lineTo(endX, endY);
+
+            lastX = endX;
+            lastY = endY;
+            lastTime = endTime;
+        }
+
+        fill.lineTo(lastX, HEIGHT);
+        fill.lineTo(0, HEIGHT);
+        return totalData;
+    }
+
+    private void setVertMax(long max) {
+        mVert.setBounds(0, max);
+        mView.invalidatePath();
+    }
+
+    public void testSameOutline() {
+        final NetworkStatsHistory history = makeHistory();
+        final Path stroke = new Path();
+        final Path fill = new Path();
+        final long total = oldGeneratePath(history, stroke, fill);
+        setVertMax(total * 12 / 10);
+        oldGeneratePath(history, stroke, fill);
+
+        mView.bindNetworkStats(history);
+        mView.generatePath();
+        assertEquals(total, mView.getMaxVisible());
+
+        final RectF expected = new RectF();
+        final RectF actual = new RectF();
+        fill.computeBounds(expected, true);
+        mView.getFillPath().computeBounds(actual, true);
+        assertEquals(expected, actual);
+    }
+
+    public void testGeneratePathYearOfHours() {
+        final NetworkStatsHistory[] histories = { makeHistory(), makeHistory() };
+        final Path stroke = new Path();
+        final Path fill = new Path();
+        final long total = oldGeneratePath(histories[0], stroke, fill);
+
+        // warm up
+        for (int r = 0; r < 3; r++) {
+            setVertMax(total * (12 + r) / 10);
+            oldGeneratePath(histories[0], stroke, fill);
+            mView.bindNetworkStats(histories[r % 2]);
+            mView.generatePath();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < ROUNDS; r++) {
+            setVertMax(total * (12 + r % 4) / 10);
+            oldGeneratePath(histories[r % 2], stroke, fill);
+        }
+        final long oldNs = (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+
+        // a new history each time, so every round walks the buckets; the
+        // warm up left histories[0] bound
+        int builds = mView.mSummaryBuilds;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < ROUNDS; r++) {
+            setVertMax(total * (12 + r % 4) / 10);
+            mView.bindNetworkStats(histories[(r + 1) % 2]);
+            mView.generatePath();
+        }
+        final long boundNs = (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+        assertEquals(builds + ROUNDS, mView.mSummaryBuilds);
+
+        // the same history under a sweep drag growing the axis
+        builds = mView.mSummaryBuilds;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < ROUNDS; r++) {
+            setVertMax(total * (12 + r % 4) / 10);
+            mView.generatePath();
+        }
+        final long dragNs = (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+
+        Log.i(TAG, BUCKETS + " buckets across " + WIDTH + "px: every bucket " + (oldNs / 1000)
+                + "us, newly bound " + (boundNs / 1000) + "us, axis change "
+                + (dragNs / 1000) + "us");
+        // only the vertical axis changed, so the buckets weren't walked again
+        assertEquals(builds, mView.mSummaryBuilds);
+    }
+}